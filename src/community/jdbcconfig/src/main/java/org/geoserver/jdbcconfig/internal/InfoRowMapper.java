@@ -5,8 +5,6 @@
  */
 package org.geoserver.jdbcconfig.internal;
 
-import java.io.ByteArrayInputStream;
-import java.io.UnsupportedEncodingException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
@@ -15,7 +13,6 @@ import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.support.lob.DefaultLobHandler;
 import org.springframework.jdbc.support.lob.LobHandler;
 
-import com.google.common.base.Throwables;
 
 public final class InfoRowMapper<T extends Info> implements RowMapper<T> {
 
@@ -47,13 +44,6 @@ public final class InfoRowMapper<T extends Info> implements RowMapper<T> {
     public T mapRow(final ResultSet rs, final int rowNum) throws SQLException {
         // InputStream binaryStream = lobHandler.getBlobAsBinaryStream(rs, colNum);
         String xml = rs.getString(colNum);
-        ByteArrayInputStream in;
-        try {
-            byte[] bytes = xml.getBytes("UTF-8");
-            in = new ByteArrayInputStream(bytes);
-        } catch (UnsupportedEncodingException e) {
-            throw Throwables.propagate(e);
-        }
-        return binding.entryToObject(in, type);
+        return binding.entryToObject(xml, type);
     }
 }
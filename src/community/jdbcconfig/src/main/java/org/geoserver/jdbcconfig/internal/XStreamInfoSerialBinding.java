@@ -9,6 +9,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.logging.Level;
 
 import org.geoserver.catalog.Catalog;
@@ -26,6 +28,20 @@ public class XStreamInfoSerialBinding {
     public XStreamInfoSerialBinding(final XStreamPersisterFactory xspf) {
         this.xstreamPersister = xspf.createXMLPersister();
         this.xstreamPersister.setLoggingLevel(Level.WARNING);
+        // the same persister decodes every row, resolve converters upfront
+        this.xstreamPersister.primeCaches();
+    }
+
+    /**
+     * Parses an info object straight from its character representation, without encoding it to
+     * bytes first.
+     */
+    public <T extends Info> T entryToObject(String xml, Class<T> target) {
+        try {
+            return xstreamPersister.load(new StringReader(xml), target);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     public <T extends Info> T entryToObject(InputStream in, Class<T> target) {
@@ -50,6 +66,19 @@ public class XStreamInfoSerialBinding {
         return out.toByteArray();
     }
 
+    /**
+     * Encodes an info object to its character representation
+     */
+    public String objectToString(final Info info) {
+        StringWriter out = new StringWriter();
+        try {
+            xstreamPersister.save(info, out);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return out.toString();
+    }
+
     public void objectToEntry(final Info info, OutputStream out) {
 
         // out = new LZFOutputStream(out);
@@ -0,0 +1,291 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.gwc.layer.GeoServerTileLayer;
+import org.geoserver.ows.util.CaseInsensitiveMap;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wms.GetMapOutputFormat;
+import org.geotools.referencing.CRS;
+import org.geotools.util.logging.Logging;
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridMismatchException;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.mime.MimeException;
+import org.geowebcache.mime.MimeType;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Normalizes the parts of a WMS GetMap request that make up a tile cache key, so that requests
+ * that are equivalent to a cached tile but spelled differently still hit the cache:
+ * <ul>
+ * <li>SRS codes in any of the accepted syntaxes ({@code EPSG:4326},
+ * {@code urn:ogc:def:crs:EPSG::4326}, {@code http://www.opengis.net/gml/srs/epsg.xml#4326},
+ * {@code CRS:84}, ...) are resolved to their EPSG code, codes of other authorities are looked up
+ * through the parsed CRS</li>
+ * <li>Bounding boxes within {@link #SNAP_TOLERANCE_PROPERTY a fraction of a pixel} of a tile of
+ * the gridset are snapped to it, absorbing the floating point noise of web clients</li>
+ * <li>Format names are resolved through the aliases of the WMS output format producing them (e.g.
+ * {@code png} or {@code image/png; mode=8bit})</li>
+ * <li>Styles naming the layer's default style are turned into the empty, default, style</li>
+ * </ul>
+ */
+class CacheKeyNormalizer {
+
+    static final Logger LOGGER = Logging.getLogger(CacheKeyNormalizer.class);
+
+    /**
+     * System/environment/servlet context property setting the snapping tolerance, in pixels,
+     * defaults to {@link #DEFAULT_SNAP_TOLERANCE}. Use 0 to disable snapping
+     */
+    static final String SNAP_TOLERANCE_PROPERTY = "GWC_BBOX_SNAP_TOLERANCE";
+
+    static final double DEFAULT_SNAP_TOLERANCE = 0.1;
+
+    /**
+     * The SRS syntaxes carrying an EPSG code, other authorities (e.g. {@code CRS:83} or
+     * {@code ESRI:102100}) have numeric codes too, but not EPSG ones
+     */
+    static final Pattern EPSG_SRS = Pattern.compile("(?:EPSG:"
+            + "|urn:(?:x-)?ogc:def:crs:EPSG:[^:]*:"
+            + "|http://www\\.opengis\\.net/gml/srs/epsg\\.xml#"
+            + "|http://www\\.opengis\\.net/def/crs/EPSG/[^/]*/)(\\d+)",
+            Pattern.CASE_INSENSITIVE);
+
+    private final double snapTolerance;
+
+    /**
+     * EPSG codes by SRS name, as resolved by {@link CRS#lookupEpsgCode} for the names that can't
+     * be parsed
+     */
+    private final ConcurrentMap<String, Integer> epsgCodes =
+            new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * Equivalent format names by format name
+     */
+    private final ConcurrentMap<String, List<String>> formatAliases =
+            new ConcurrentHashMap<String, List<String>>();
+
+    CacheKeyNormalizer() {
+        this(getSnapTolerance());
+    }
+
+    CacheKeyNormalizer(double snapTolerance) {
+        this.snapTolerance = snapTolerance;
+    }
+
+    private static double getSnapTolerance() {
+        String value = GeoServerExtensions.getProperty(SNAP_TOLERANCE_PROPERTY);
+        if (value != null) {
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid " + SNAP_TOLERANCE_PROPERTY + " value " + value
+                        + ", using the default of " + DEFAULT_SNAP_TOLERANCE + " pixels");
+            }
+        }
+        return DEFAULT_SNAP_TOLERANCE;
+    }
+
+    /**
+     * Returns the EPSG code of the requested SRS, or {@code null} if it has none. The code is
+     * parsed out of the EPSG syntaxes, and looked up from the CRS for any other authority
+     *
+     * @param srs the SRS as requested
+     * @param crs the parsed CRS, used when the code can't be told from the SRS name
+     */
+    public Integer getEpsgCode(String srs, CoordinateReferenceSystem crs) {
+        if (srs == null) {
+            return null;
+        }
+        if ("CRS:84".equalsIgnoreCase(srs)) {
+            return 4326;
+        }
+        Matcher matcher = EPSG_SRS.matcher(srs.trim());
+        if (matcher.matches()) {
+            try {
+                return Integer.valueOf(matcher.group(1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        Integer epsgCode = epsgCodes.get(srs);
+        if (epsgCode == null && crs != null) {
+            try {
+                epsgCode = CRS.lookupEpsgCode(crs, false);
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "Failed to look up the EPSG code of " + srs, e);
+            }
+            if (epsgCode != null) {
+                epsgCodes.put(srs, epsgCode);
+            }
+        }
+        return epsgCode;
+    }
+
+    /**
+     * Snaps the requested bounds to the bounds of the closest tile of the given grid subsets, if
+     * they are within the snapping tolerance from it
+     *
+     * @return the bounds of the matching tile, or {@code bounds} if none is close enough
+     */
+    public BoundingBox snap(BoundingBox bounds, List<GridSubset> gridSubsets, int width,
+            int height) {
+        if (snapTolerance <= 0) {
+            return bounds;
+        }
+        for (GridSubset gridSubset : gridSubsets) {
+            if (gridSubset.getTileWidth() != width || gridSubset.getTileHeight() != height) {
+                continue;
+            }
+            final BoundingBox tileBounds;
+            try {
+                tileBounds = gridSubset.boundsFromIndex(gridSubset.closestIndex(bounds));
+            } catch (GridMismatchException e) {
+                continue;
+            }
+            final double toleranceX = snapTolerance * tileBounds.getWidth() / width;
+            final double toleranceY = snapTolerance * tileBounds.getHeight() / height;
+            if (Math.abs(tileBounds.getMinX() - bounds.getMinX()) <= toleranceX
+                    && Math.abs(tileBounds.getMaxX() - bounds.getMaxX()) <= toleranceX
+                    && Math.abs(tileBounds.getMinY() - bounds.getMinY()) <= toleranceY
+                    && Math.abs(tileBounds.getMaxY() - bounds.getMaxY()) <= toleranceY) {
+                return tileBounds;
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Returns the format of the tile layer matching the requested format, either directly or
+     * through one of its aliases
+     *
+     * @return the matching tile layer format, or {@code null} if the tile layer doesn't cache the
+     *         requested format
+     * @throws MimeException if neither the format nor its aliases are known to GeoWebCache
+     */
+    public MimeType getMimeType(String format, List<MimeType> tileLayerFormats)
+            throws MimeException {
+        MimeException unknown = null;
+        try {
+            MimeType mimeType = VectorTileMimeType.createFromFormat(format);
+            if (tileLayerFormats.contains(mimeType)) {
+                return mimeType;
+            }
+        } catch (MimeException e) {
+            unknown = e;
+        }
+
+        boolean known = unknown == null;
+        for (String alias : getFormatAliases(format)) {
+            try {
+                MimeType mimeType = VectorTileMimeType.createFromFormat(alias);
+                known = true;
+                if (tileLayerFormats.contains(mimeType)) {
+                    return mimeType;
+                }
+            } catch (MimeException e) {
+                // not known to GWC under this name, try the next one
+            }
+        }
+        if (!known) {
+            throw unknown;
+        }
+        return null;
+    }
+
+    private List<String> getFormatAliases(String format) {
+        if (format == null) {
+            return Collections.emptyList();
+        }
+        final String key = format.toLowerCase();
+        List<String> aliases = formatAliases.get(key);
+        if (aliases == null) {
+            aliases = Collections.emptyList();
+            for (GetMapOutputFormat outputFormat : GeoServerExtensions
+                    .extensions(GetMapOutputFormat.class)) {
+                List<String> names = new ArrayList<String>(outputFormat.getOutputFormatNames());
+                names.add(outputFormat.getMimeType());
+                if (containsIgnoreCase(names, format)) {
+                    names.remove(format);
+                    aliases = names;
+                    break;
+                }
+            }
+            formatAliases.put(key, aliases);
+        }
+        return aliases;
+    }
+
+    private static boolean containsIgnoreCase(List<String> names, String name) {
+        for (String candidate : names) {
+            if (candidate != null && candidate.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the requested {@code STYLES} resolve to the default style of the tile layer.
+     * Layers whose default style is not known, like layer groups, are assumed to use the default
+     * style.
+     */
+    public boolean isDefaultStyle(TileLayer tileLayer, String styles) {
+        if (styles == null || styles.replace(",", "").trim().isEmpty()) {
+            return true;
+        }
+        String defaultStyle = getDefaultStyleName(tileLayer);
+        return defaultStyle == null || defaultStyle.equalsIgnoreCase(styles.trim());
+    }
+
+    private static String getDefaultStyleName(TileLayer tileLayer) {
+        if (!(tileLayer instanceof GeoServerTileLayer)) {
+            return null;
+        }
+        LayerInfo layerInfo = ((GeoServerTileLayer) tileLayer).getLayerInfo();
+        if (layerInfo == null) {
+            return null;
+        }
+        StyleInfo style = layerInfo.getDefaultStyle();
+        return style == null ? null : style.getName();
+    }
+
+    /**
+     * Returns the request parameters to build the tile cache key from, with the explicitly
+     * requested default style replaced by the empty one
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, String> normalizeParameters(TileLayer tileLayer,
+            Map<String, String> rawKvp) {
+        String styles = rawKvp.get("STYLES");
+        if (styles == null || styles.isEmpty() || getDefaultStyleName(tileLayer) == null
+                || !isDefaultStyle(tileLayer, styles)) {
+            return rawKvp;
+        }
+        Map<String, String> normalized = new CaseInsensitiveMap(new HashMap<String, String>(
+                rawKvp));
+        normalized.put("STYLES", "");
+        return normalized;
+    }
+}
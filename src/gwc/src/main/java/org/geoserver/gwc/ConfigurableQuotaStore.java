@@ -1,11 +1,13 @@
 package org.geoserver.gwc;
 
+import java.io.File;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
+import org.geoserver.platform.GeoServerExtensions;
 import org.geotools.util.logging.Logging;
 import org.geowebcache.diskquota.QuotaStore;
 import org.geowebcache.diskquota.storage.PageStats;
@@ -19,6 +21,12 @@ import org.geowebcache.diskquota.storage.TileSetVisitor;
 /**
  * A {@link QuotaStore} delegating to another instance of {@link QuotaStore}, and allowing the
  * delegate to be changed at runtime.
+ * <p>
+ * Unless the delegate is a {@link DummyQuotaStore}, quota updates are buffered in memory and
+ * written to the delegate in batches, and the used quota queries are answered from memory, see
+ * {@link QuotaUsageBuffer}. The flush interval, in seconds, can be set with the
+ * {@link #GWC_DISKQUOTA_FLUSH_INTERVAL} variable, zero or less disables buffering.
+ * </p>
  * 
  * @author Andrea Aime - GeoSolutions
  */
@@ -26,10 +34,24 @@ public class ConfigurableQuotaStore implements QuotaStore {
 
     static final Logger LOGGER = Logging.getLogger(ConfigurableQuotaStore.class);
 
+    public static final String GWC_DISKQUOTA_FLUSH_INTERVAL = "GWC_DISKQUOTA_FLUSH_INTERVAL";
+
+    static final long DEFAULT_FLUSH_INTERVAL = 5;
+
     private QuotaStore delegate;
 
+    private final File journalDirectory;
+
+    private QuotaUsageBuffer buffer;
+
     public void setStore(QuotaStore delegate) {
+        QuotaUsageBuffer oldBuffer = this.buffer;
+        if (oldBuffer != null) {
+            // the old store contents are dismissed along with it
+            oldBuffer.discard();
+        }
         this.delegate = delegate;
+        this.buffer = createBuffer(delegate);
     }
     
     public QuotaStore getStore() {
@@ -37,7 +59,89 @@ public class ConfigurableQuotaStore implements QuotaStore {
     }
 
     public ConfigurableQuotaStore(QuotaStore delegate) {
+        this(delegate, null);
+    }
+
+    /**
+     * @param delegate the actual quota store
+     * @param journalDirectory the directory where buffered quota updates are journaled, so that
+     *        they can be recovered after a crash, or {@code null}
+     */
+    public ConfigurableQuotaStore(QuotaStore delegate, File journalDirectory) {
         this.delegate = delegate;
+        this.journalDirectory = journalDirectory;
+        this.buffer = createBuffer(delegate);
+    }
+
+    private QuotaUsageBuffer createBuffer(QuotaStore delegate) {
+        if (delegate == null || delegate instanceof DummyQuotaStore) {
+            return null;
+        }
+        long flushInterval = DEFAULT_FLUSH_INTERVAL;
+        String property = GeoServerExtensions.getProperty(GWC_DISKQUOTA_FLUSH_INTERVAL);
+        if (property != null) {
+            try {
+                flushInterval = Long.parseLong(property.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid " + GWC_DISKQUOTA_FLUSH_INTERVAL + " value " + property
+                        + ", using the default of " + DEFAULT_FLUSH_INTERVAL + " seconds");
+            }
+        }
+        if (flushInterval <= 0) {
+            return null;
+        }
+        return new QuotaUsageBuffer(delegate, journalDirectory, flushInterval);
+    }
+
+    /**
+     * Writes the buffered quota updates to the delegate store
+     */
+    public void flush() {
+        QuotaUsageBuffer buffer = this.buffer;
+        if (buffer != null) {
+            buffer.flush();
+        }
+    }
+
+    /**
+     * Flushes the buffered quota updates before the delegate tile sets or pages are changed or
+     * looked up
+     */
+    private void flush(boolean invalidate) {
+        QuotaUsageBuffer buffer = this.buffer;
+        if (buffer == null) {
+            return;
+        }
+        if (invalidate) {
+            buffer.invalidate();
+        } else {
+            buffer.flush();
+        }
+    }
+
+    /**
+     * @return the quota used by all the tile sets of the given gridset
+     */
+    public Quota getUsedQuotaByGridSet(final String gridSetId) throws InterruptedException {
+        QuotaUsageBuffer buffer = this.buffer;
+        if (buffer != null) {
+            return buffer.getUsedQuotaByGridSet(gridSetId);
+        }
+        final Quota quota = new Quota();
+        delegate.accept(new TileSetVisitor() {
+            @Override
+            public void visit(final TileSet tileSet, final QuotaStore store) {
+                if (!gridSetId.equals(tileSet.getGridsetId())) {
+                    return;
+                }
+                try {
+                    quota.add(store.getUsedQuotaByTileSetId(tileSet.getId()));
+                } catch (InterruptedException e) {
+                    LOGGER.fine(e.getMessage());
+                }
+            }
+        });
+        return quota;
     }
 
     public TilePageCalculator getTilePageCalculator() {
@@ -49,26 +153,41 @@ public class ConfigurableQuotaStore implements QuotaStore {
     }
 
     public Quota getGloballyUsedQuota() throws InterruptedException {
+        QuotaUsageBuffer buffer = this.buffer;
+        if (buffer != null) {
+            return buffer.getGloballyUsedQuota();
+        }
         return delegate.getGloballyUsedQuota();
     }
 
     public Quota getUsedQuotaByTileSetId(String tileSetId) throws InterruptedException {
+        QuotaUsageBuffer buffer = this.buffer;
+        if (buffer != null) {
+            return buffer.getUsedQuotaByTileSetId(tileSetId);
+        }
         return delegate.getUsedQuotaByTileSetId(tileSetId);
     }
 
     public void deleteLayer(String layerName) {
+        flush(true);
         delegate.deleteLayer(layerName);
     }
 
     public void renameLayer(String oldLayerName, String newLayerName) throws InterruptedException {
+        flush(true);
         delegate.renameLayer(oldLayerName, newLayerName);
     }
 
     public Quota getUsedQuotaByLayerName(String layerName) throws InterruptedException {
+        QuotaUsageBuffer buffer = this.buffer;
+        if (buffer != null) {
+            return buffer.getUsedQuotaByLayerName(layerName);
+        }
         return delegate.getUsedQuotaByLayerName(layerName);
     }
 
     public long[][] getTilesForPage(TilePage page) throws InterruptedException {
+        flush(false);
         return delegate.getTilesForPage(page);
     }
 
@@ -86,7 +205,12 @@ public class ConfigurableQuotaStore implements QuotaStore {
 
     public void addToQuotaAndTileCounts(TileSet tileSet, Quota quotaDiff,
             Collection<PageStatsPayload> tileCountDiffs) throws InterruptedException {
-        delegate.addToQuotaAndTileCounts(tileSet, quotaDiff, tileCountDiffs);
+        QuotaUsageBuffer buffer = this.buffer;
+        if (buffer != null) {
+            buffer.add(tileSet, quotaDiff, tileCountDiffs);
+        } else {
+            delegate.addToQuotaAndTileCounts(tileSet, quotaDiff, tileCountDiffs);
+        }
     }
 
     public Future<List<PageStats>> addHitsAndSetAccesTime(Collection<PageStatsPayload> statsUpdates) {
@@ -94,22 +218,30 @@ public class ConfigurableQuotaStore implements QuotaStore {
     }
 
     public TilePage getLeastFrequentlyUsedPage(Set<String> layerNames) throws InterruptedException {
+        flush(false);
         return delegate.getLeastFrequentlyUsedPage(layerNames);
     }
 
     public TilePage getLeastRecentlyUsedPage(Set<String> layerNames) throws InterruptedException {
+        flush(false);
         return delegate.getLeastRecentlyUsedPage(layerNames);
     }
 
     public PageStats setTruncated(TilePage tilePage) throws InterruptedException {
+        flush(false);
         return delegate.setTruncated(tilePage);
     }
 
     public void deleteGridSubset(String layerName, String gridSetId) {
+        flush(true);
         delegate.deleteGridSubset(layerName, gridSetId);
     }
 
     public void close() throws Exception {
+        QuotaUsageBuffer buffer = this.buffer;
+        if (buffer != null) {
+            buffer.close();
+        }
         delegate.close();
     }
 
@@ -7,6 +7,7 @@ package org.geoserver.gwc;
 
 import static org.geowebcache.diskquota.DiskQuotaMonitor.GWC_DISKQUOTA_DISABLED;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
 import java.util.logging.Level;
@@ -25,6 +26,7 @@ import org.geowebcache.diskquota.jdbc.JDBCConfiguration;
 import org.geowebcache.diskquota.jdbc.JDBCQuotaStoreFactory;
 import org.geowebcache.diskquota.storage.TilePageCalculator;
 import org.geowebcache.layer.TileLayer;
+import org.geowebcache.storage.DefaultStorageFinder;
 import org.springframework.context.ApplicationContext;
 
 /**
@@ -93,7 +95,7 @@ public class ConfigurableQuotaStoreProvider extends QuotaStoreProvider {
         }
         
         if (this.store == null) {
-            this.store = new ConfigurableQuotaStore(store);
+            this.store = new ConfigurableQuotaStore(store, getJournalDirectory());
         } else {
             ConfigurableQuotaStore configurable = (ConfigurableQuotaStore) this.store;
             QuotaStore oldStore = configurable.getStore();
@@ -118,6 +120,26 @@ public class ConfigurableQuotaStoreProvider extends QuotaStoreProvider {
 
     }
 
+    /**
+     * The directory holding the journal of the quota updates not yet written to the store, that
+     * is, the GWC cache directory
+     */
+    private File getJournalDirectory() {
+        DefaultStorageFinder storageFinder = GeoWebCacheExtensions
+                .bean(DefaultStorageFinder.class);
+        if (storageFinder == null) {
+            return null;
+        }
+        try {
+            File directory = new File(storageFinder.getDefaultPath());
+            return directory.isDirectory() ? directory : null;
+        } catch (ConfigurationException e) {
+            LOGGER.log(Level.WARNING, "Could not locate the GWC cache directory, "
+                    + "quota updates won't be journaled", e);
+            return null;
+        }
+    }
+
     /**
      * The exception occurred during the last attempt to load the quota store, if any
      * @return
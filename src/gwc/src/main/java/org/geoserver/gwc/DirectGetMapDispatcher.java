@@ -0,0 +1,412 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.gwc.layer.GeoServerTileLayer;
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.DispatcherCallback;
+import org.geoserver.ows.KvpParser;
+import org.geoserver.ows.KvpRequestReader;
+import org.geoserver.ows.LocalLayer;
+import org.geoserver.ows.LocalWorkspace;
+import org.geoserver.ows.Request;
+import org.geoserver.ows.util.KvpMap;
+import org.geoserver.ows.util.KvpUtils;
+import org.geoserver.ows.util.RequestUtils;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.Service;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+import org.geoserver.wms.WMS;
+import org.geoserver.wms.WMSErrorCode;
+import org.geoserver.wms.WebMap;
+import org.geoserver.wms.WebMapService;
+import org.geoserver.wms.map.GetMapKvpRequestReader;
+import org.geotools.referencing.CRS;
+import org.geotools.styling.Style;
+import org.geotools.util.Version;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.layer.MetaTile;
+import org.opengis.filter.Filter;
+import org.springframework.context.ApplicationContext;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Executes the GetMap requests issued by {@link GeoServerTileLayer} in process.
+ * <p>
+ * The {@link GetMapRequest} is built straight from the tile layer and the meta tile being
+ * rendered: layers and styles are resolved through the {@link WMS} facade, and thus through the
+ * secured catalog, the same way the KVP reader does, while only the values of the parameter
+ * filters go through the registered KVP parsers. The dispatcher callbacks are then fired with a
+ * request bound to {@link Dispatcher#REQUEST}, and the WMS is invoked through its service proxy
+ * so that the service interceptors still apply. There is no servlet request/response emulation
+ * and no response lookup, the resulting {@link WebMap} is returned directly.
+ * </p>
+ * <p>
+ * Thread locals owned by the dispatcher and the workspace callbacks are restored once done, as
+ * the tile layer can be called from within another dispatched request (e.g. a WMTS one).
+ * </p>
+ */
+class DirectGetMapDispatcher {
+
+    static final Version WMS_VERSION = new Version("1.1.1");
+
+    static final Method GET_MAP;
+    static {
+        try {
+            GET_MAP = WebMapService.class.getMethod("getMap", GetMapRequest.class);
+        } catch (NoSuchMethodException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Stands for the http request of tiles rendered outside of a client request (e.g. seeding),
+     * for the callbacks that expect one to be around
+     */
+    static final HttpServletRequest NO_HTTP_REQUEST = new FakeHttpServletRequest(
+            Collections.<String, String> emptyMap(), null);
+
+    /**
+     * Sets the parsed parameter filter values on the request, by property name
+     */
+    static final KvpRequestReader PROPERTY_SETTER = new KvpRequestReader(GetMapRequest.class);
+
+    private final List<DispatcherCallback> callbacks;
+
+    private final Service service;
+
+    private final WMS wms;
+
+    private final List<KvpParser> parsers;
+
+    DirectGetMapDispatcher(List<DispatcherCallback> callbacks, Service service, WMS wms,
+            List<KvpParser> parsers) {
+        this.callbacks = callbacks;
+        this.service = service;
+        this.wms = wms;
+        this.parsers = parsers;
+    }
+
+    /**
+     * Looks up the callbacks, WMS 1.1.1 service descriptor, WMS facade and GetMap KVP parsers in
+     * the application context.
+     *
+     * @return the dispatcher, or {@code null} if the WMS is not available
+     */
+    static DirectGetMapDispatcher lookup(ApplicationContext context) {
+        Service service = null;
+        for (Service s : GeoServerExtensions.extensions(Service.class, context)) {
+            if ("wms".equalsIgnoreCase(s.getId()) && WMS_VERSION.equals(s.getVersion())) {
+                service = s;
+                break;
+            }
+        }
+        WMS wms = GeoServerExtensions.bean(WMS.class, context);
+        if (service == null || wms == null) {
+            return null;
+        }
+        List<DispatcherCallback> callbacks = GeoServerExtensions.extensions(
+                DispatcherCallback.class, context);
+        List<KvpParser> parsers = GeoServerExtensions.extensions(KvpParser.class, context);
+        KvpUtils.purgeParsers(parsers, "WMS", WMS_VERSION.toString(), "GetMap");
+        return new DirectGetMapDispatcher(callbacks, service, wms, parsers);
+    }
+
+    /**
+     * Renders a meta tile
+     *
+     * @param layer the tile layer
+     * @param tile the tile that triggered the rendering
+     * @param metaTile the meta tile to render
+     * @return the map produced by the WMS
+     */
+    public WebMap getMap(GeoServerTileLayer layer, ConveyorTile tile, MetaTile metaTile)
+            throws Exception {
+        Map<String, String> parameters = tile.getFullParameters();
+        if (parameters.isEmpty()) {
+            parameters = layer.getDefaultParameterFilters();
+        }
+        String srs = layer.getGridSubset(tile.getGridSetId()).getSRS().toString();
+        GetMapRequest getMap = createRequest(layer.getName(), parameters, srs,
+                metaTile.getMetaTileBounds(), metaTile.getMetaTileWidth(),
+                metaTile.getMetaTileHeight(), tile.getMimeType().getFormat());
+        return getMap(getMap, tile.servletReq);
+    }
+
+    /**
+     * Builds the GetMap request for a tile layer
+     *
+     * @param layerName the name of the published layer or layer group
+     * @param parameters the parameter filter values, STYLES included
+     */
+    @SuppressWarnings("unchecked")
+    GetMapRequest createRequest(String layerName, Map<String, String> parameters, String srs,
+            BoundingBox bbox, int width, int height, String format) throws Exception {
+        GetMapRequest getMap = new GetMapRequest();
+        getMap.setGet(true);
+        getMap.setRequest("GetMap");
+        getMap.setVersion(WMS_VERSION.toString());
+        getMap.setFormat(format);
+        getMap.setWidth(width);
+        getMap.setHeight(height);
+        getMap.setBbox(new Envelope(bbox.getMinX(), bbox.getMaxX(), bbox.getMinY(),
+                bbox.getMaxY()));
+        getMap.setTransparent(true);
+        getMap.setExceptions(GetMapRequest.SE_XML);
+        getMap.setSRS(srs);
+        try {
+            getMap.setCrs(CRS.decode(srs));
+        } catch (Exception e) {
+            throw new ServiceException("Error occurred decoding the espg code " + srs, e,
+                    WMSErrorCode.INVALID_CRS.get(getMap.getVersion()));
+        }
+
+        // the raw parameters, for the code looking at vendor parameters
+        KvpMap rawKvp = new KvpMap();
+        rawKvp.put("SERVICE", "WMS");
+        rawKvp.put("VERSION", WMS_VERSION.toString());
+        rawKvp.put("REQUEST", "GetMap");
+        rawKvp.put("LAYERS", layerName);
+        rawKvp.put("STYLES", "");
+        rawKvp.put("SRS", srs);
+        rawKvp.put("BBOX", bbox.toString());
+        rawKvp.put("WIDTH", String.valueOf(width));
+        rawKvp.put("HEIGHT", String.valueOf(height));
+        rawKvp.put("FORMAT", format);
+        rawKvp.put("TRANSPARENT", "true");
+        rawKvp.put("EXCEPTIONS", GetMapRequest.SE_XML);
+        for (Map.Entry<String, String> entry : parameters.entrySet()) {
+            rawKvp.put(entry.getKey(), entry.getValue());
+        }
+        getMap.setRawKvp(rawKvp);
+
+        setLayers(getMap, layerName, (String) rawKvp.get("STYLES"));
+        setParameters(getMap, parameters);
+        GetMapKvpRequestReader.setDefaultDimensions(getMap);
+        return getMap;
+    }
+
+    void setLayers(GetMapRequest getMap, String layerName, String styleName) throws IOException {
+        List<MapLayerInfo> layers = new ArrayList<MapLayerInfo>();
+        List<Style> styles = new ArrayList<Style>();
+        // the secured catalog hides the layers the current user cannot access
+        LayerInfo layer = wms.getLayerByName(layerName);
+        if (layer != null) {
+            layers.add(new MapLayerInfo(layer));
+            if (styleName == null || styleName.isEmpty()) {
+                styles.add(GetMapKvpRequestReader.getDefaultStyle(layer));
+            } else {
+                Style style = wms.getStyleByName(styleName);
+                if (style == null) {
+                    throw new ServiceException("No such style: " + styleName, "StyleNotDefined");
+                }
+                styles.add(style);
+            }
+        } else {
+            LayerGroupInfo group = wms.getLayerGroupByName(layerName);
+            if (group == null) {
+                throw new ServiceException("Could not find layer " + layerName,
+                        "LayerNotDefined", "LAYERS");
+            }
+            List<LayerInfo> groupLayers = group.layers();
+            List<StyleInfo> groupStyles = group.styles();
+            for (int i = 0; i < groupLayers.size(); i++) {
+                LayerInfo l = groupLayers.get(i);
+                StyleInfo s = groupStyles.get(i);
+                layers.add(new MapLayerInfo(l));
+                styles.add(s != null ? s.getStyle() : GetMapKvpRequestReader.getDefaultStyle(l));
+            }
+        }
+        getMap.setLayers(layers);
+        getMap.setStyles(styles);
+    }
+
+    /**
+     * Parses and sets the parameter filter values other than STYLES
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    void setParameters(GetMapRequest getMap, Map<String, String> parameters) throws Exception {
+        Map<String, Object> kvp = new HashMap<String, Object>();
+        for (Map.Entry<String, String> entry : parameters.entrySet()) {
+            String key = entry.getKey().toUpperCase();
+            String value = entry.getValue();
+            if ("STYLES".equals(key) || value == null) {
+                continue;
+            }
+            Object parsed;
+            try {
+                parsed = KvpUtils.parseKey(key, value, "WMS", "GetMap",
+                        WMS_VERSION.toString(), parsers);
+            } catch (Exception e) {
+                throw new ServiceException(e, ServiceException.INVALID_PARAMETER_VALUE, key);
+            }
+            kvp.put(key, parsed != null ? parsed : value);
+        }
+        if (kvp.isEmpty()) {
+            return;
+        }
+        PROPERTY_SETTER.read(getMap, kvp, getMap.getRawKvp());
+
+        // a filter on the tile layer applies to all the layers it renders
+        List filters = getMap.getCQLFilter() != null ? getMap.getCQLFilter() : getMap
+                .getFilter();
+        if (filters != null && !filters.isEmpty()) {
+            Filter filter = (Filter) filters.get(0);
+            getMap.setFilter(Collections.nCopies(getMap.getLayers().size(), filter));
+        }
+        List<Map<String, String>> viewParams = getMap.getViewParams();
+        if (viewParams != null && viewParams.size() == 1) {
+            getMap.setViewParams(Collections.nCopies(getMap.getLayers().size(),
+                    viewParams.get(0)));
+        }
+    }
+
+    /**
+     * Executes a GetMap request, firing the dispatcher callbacks around it
+     *
+     * @param getMap the request
+     * @param httpRequest the client request that triggered the rendering, if any
+     * @return the map produced by the WMS
+     */
+    WebMap getMap(GetMapRequest getMap, HttpServletRequest httpRequest) throws Exception {
+        if (httpRequest == null) {
+            httpRequest = NO_HTTP_REQUEST;
+        }
+        getMap.setBaseUrl(RequestUtils.baseURL(httpRequest));
+
+        Request request = new Request();
+        request.setHttpRequest(httpRequest);
+        request.setGet(true);
+        request.setPath("wms");
+        request.setKvp(new KvpMap(getMap.getRawKvp()));
+        request.setRawKvp(new KvpMap(getMap.getRawKvp()));
+
+        final Request outerRequest = Dispatcher.REQUEST.get();
+        final WorkspaceInfo outerWorkspace = LocalWorkspace.get();
+        final LayerInfo outerLayer = LocalLayer.get();
+        try {
+            request = fireInitCallback(request);
+            Dispatcher.REQUEST.set(request);
+
+            request.setService("WMS");
+            request.setVersion(WMS_VERSION.toString());
+            request.setRequest("GetMap");
+            request.setOutputFormat(getMap.getFormat());
+            Service s = fireServiceDispatchedCallback(request, service);
+            request.setServiceDescriptor(s);
+
+            Operation operation = new Operation("GetMap", s, GET_MAP, new Object[] { getMap });
+            operation = fireOperationDispatchedCallback(request, operation);
+            request.setOperation(operation);
+
+            Object result = execute(operation);
+            return (WebMap) fireOperationExecutedCallback(request, operation, result);
+        } finally {
+            fireFinishedCallback(request);
+            restore(outerRequest, outerWorkspace, outerLayer);
+        }
+    }
+
+    Object execute(Operation operation) throws Exception {
+        Object service = operation.getService().getService();
+        Object[] parameters = operation.getParameters();
+        if (service instanceof WebMapService && parameters[0] instanceof GetMapRequest) {
+            // goes through the service proxy, interceptors included
+            return ((WebMapService) service).getMap((GetMapRequest) parameters[0]);
+        }
+        try {
+            return operation.getMethod().invoke(service, parameters);
+        } catch (InvocationTargetException e) {
+            throw toException(e.getCause());
+        }
+    }
+
+    void restore(Request outerRequest, WorkspaceInfo outerWorkspace, LayerInfo outerLayer) {
+        if (outerRequest == null) {
+            Dispatcher.REQUEST.remove();
+        } else {
+            Dispatcher.REQUEST.set(outerRequest);
+        }
+        if (outerWorkspace == null) {
+            LocalWorkspace.remove();
+        } else {
+            LocalWorkspace.set(outerWorkspace);
+        }
+        if (outerLayer == null) {
+            LocalLayer.remove();
+        } else {
+            LocalLayer.set(outerLayer);
+        }
+    }
+
+    Exception toException(Throwable t) {
+        if (t instanceof Exception) {
+            return (Exception) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new ServiceException(t);
+    }
+
+    Request fireInitCallback(Request request) {
+        for (DispatcherCallback cb : callbacks) {
+            Request r = cb.init(request);
+            request = r != null ? r : request;
+        }
+        return request;
+    }
+
+    Service fireServiceDispatchedCallback(Request request, Service service) {
+        for (DispatcherCallback cb : callbacks) {
+            Service s = cb.serviceDispatched(request, service);
+            service = s != null ? s : service;
+        }
+        return service;
+    }
+
+    Operation fireOperationDispatchedCallback(Request request, Operation operation) {
+        for (DispatcherCallback cb : callbacks) {
+            Operation o = cb.operationDispatched(request, operation);
+            operation = o != null ? o : operation;
+        }
+        return operation;
+    }
+
+    Object fireOperationExecutedCallback(Request request, Operation operation, Object result) {
+        for (DispatcherCallback cb : callbacks) {
+            Object r = cb.operationExecuted(request, operation, result);
+            result = r != null ? r : result;
+        }
+        return result;
+    }
+
+    void fireFinishedCallback(Request request) {
+        for (DispatcherCallback cb : callbacks) {
+            cb.finished(request);
+        }
+    }
+}
@@ -25,6 +25,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -63,6 +64,7 @@ import org.geoserver.security.WrapperPolicy;
 import org.geoserver.security.decorators.SecuredLayerInfo;
 import org.geoserver.wms.GetMapRequest;
 import org.geoserver.wms.WMS;
+import org.geoserver.wms.WebMap;
 import org.geoserver.wms.map.RenderedImageMap;
 import org.opengis.filter.Filter;
 import org.geotools.filter.visitor.ExtractBoundsFilterVisitor;
@@ -98,6 +100,7 @@ import org.geowebcache.grid.GridSubsetFactory;
 import org.geowebcache.grid.SRS;
 import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
+import org.geowebcache.layer.MetaTile;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.locks.LockProvider;
@@ -111,9 +114,11 @@ import org.geowebcache.seed.SeedRequest;
 import org.geowebcache.seed.TileBreeder;
 import org.geowebcache.service.Service;
 import org.geowebcache.storage.DefaultStorageFinder;
+import org.geowebcache.storage.DiscontinuousTileRange;
 import org.geowebcache.storage.StorageBroker;
 import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.TileRangeMask;
 import org.opengis.metadata.extent.GeographicBoundingBox;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.MathTransform;
@@ -125,9 +130,11 @@ import org.springframework.context.ApplicationContextAware;
 
 import com.google.common.base.Predicate;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
 import com.google.common.collect.Sets.SetView;
+import com.google.common.util.concurrent.AtomicLongMap;
 import com.vividsolutions.jts.densify.Densifier;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
@@ -157,10 +164,15 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
 
     static final Logger log = Logging.getLogger(GWC.class);
 
+    /**
+     * Pixels each tile is expanded by when truncating the tiles touched by a set of geometries
+     */
+    static final int TRUNCATE_PIXEL_BUFFER = 10;
+
     /**
      * @see #getResponseEncoder(MimeType, RenderedImageMap)
      */
-    private static Map<String, Response> cachedTileEncoders = new HashMap<String, Response>();
+    private static Map<String, Response> cachedTileEncoders = new ConcurrentHashMap<String, Response>();
 
     private final TileLayerDispatcher tld;
 
@@ -191,6 +203,21 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
     private JDBCPasswordEncryptionHelper passwordHelper;
 
     private JDBCConfigurationStorage jdbcConfigurationStorage;
+
+    private volatile DirectGetMapDispatcher directGetMapDispatcher;
+
+    private final TileAccessHeatmap heatmap = new TileAccessHeatmap();
+
+    private final TileWarmer warmer;
+
+    private final MemoryTileCache memoryCache;
+
+    private final CacheKeyNormalizer cacheKeyNormalizer = new CacheKeyNormalizer();
+
+    /**
+     * Number of GetMap requests that could not be served by {@link #dispatch} by reason
+     */
+    private final AtomicLongMap<String> dispatchMisses = AtomicLongMap.create();
     
     public GWC(final GWCConfigPersister gwcConfigPersister, final StorageBroker sb,
             final TileLayerDispatcher tld, final GridSetBroker gridSetBroker,
@@ -218,6 +245,13 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         updateLockProvider(getConfig().getLockProviderName());
         
         this.jdbcConfigurationStorage = jdbcConfigurationStorage;
+
+        sb.addBlobStoreListener(heatmap);
+        this.warmer = new TileWarmer(this, heatmap, sb);
+
+        this.memoryCache = new MemoryTileCache(getConfig().getMemoryCacheSize() * 1024L * 1024L);
+        updateMemoryCache(getConfig());
+        sb.addBlobStoreListener(memoryCache);
     }
 
     /**
@@ -271,6 +305,7 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
      */
     public void afterPropertiesSet() throws Exception {
         GWC.set(this);
+        warmer.start();
     }
 
     /**
@@ -285,6 +320,7 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         if (this.catalogStyleChangeListener != null) {
             catalog.removeListener(this.catalogStyleChangeListener);
         }
+        warmer.dispose();
         GWC.set(null);
     }
 
@@ -296,6 +332,38 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         return gwcConfigPersister.getConfig();
     }
 
+    /**
+     * @return the tile access statistics driving the {@link TileWarmer}
+     */
+    public TileAccessHeatmap getTileAccessHeatmap() {
+        return heatmap;
+    }
+
+    /**
+     * @return the in memory tile cache, or {@code null} if not
+     *         {@link GWCConfig#isMemoryCacheEnabled() enabled}
+     */
+    public MemoryTileCache getMemoryTileCache() {
+        return memoryCache.isEnabled() ? memoryCache : null;
+    }
+
+    private void updateMemoryCache(GWCConfig config) {
+        memoryCache.setMaxSize(config.getMemoryCacheSize() * 1024L * 1024L);
+        memoryCache.setEnabled(config.isMemoryCacheEnabled());
+    }
+
+    /**
+     * Records a tile request in the {@link #getTileAccessHeatmap() heatmap}, if tile warming is
+     * enabled
+     */
+    public void tileRequested(final TileLayer layer, final ConveyorTile tile) {
+        if (!getConfig().isTileWarmingEnabled() || tile.getMimeType() == null) {
+            return;
+        }
+        heatmap.record(layer.getName(), tile.getGridSetId(), tile.getMimeType().getFormat(),
+                tile.getParameters(), tile.getTileIndex());
+    }
+
     /**
      * Fully truncates the given layer, including any ParameterFilter
      * 
@@ -315,6 +383,9 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         for (String gridSetId : gridSubsets) {
             deleteCacheByGridSetId(layerName, gridSetId);
         }
+        // whole gridset removals do not notify each tile
+        heatmap.truncated(layerName);
+        memoryCache.invalidate(layerName);
     }
 
     /**
@@ -363,18 +434,67 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         }
     }
 
-    private BoundingBox getIntersectingBounds(String layerName, GridSubset layerGrid,
-            ReferencedEnvelope bounds) {
-        final GridSet gridSet = layerGrid.getGridSet();
-        final String gridSetId = gridSet.getName();
+    /**
+     * Truncates the tiles of the given layer intersecting the given geometries, as opposed to
+     * {@link #truncate(String, ReferencedEnvelope)} which truncates all the tiles in their bounds.
+     * <p>
+     * The geometries are rasterised per grid subset and zoom level into the exact set of tiles
+     * they touch (see {@link GeometryTileRangeMask}), expanding each tile by
+     * {@link #TRUNCATE_PIXEL_BUFFER} pixels to account for the symbols drawn around them.
+     * </p>
+     * 
+     * @param layerName the tile layer to truncate
+     * @param geometries the affected geometries
+     * @param crs the CRS of the geometries
+     */
+    public void truncate(final String layerName, final Collection<Geometry> geometries,
+            final CoordinateReferenceSystem crs) throws GeoWebCacheException {
+
+        final TileLayer tileLayer = tld.getTileLayer(layerName);
+        final Collection<String> gridSubSets = tileLayer.getGridSubsets();
+
+        for (String gridSetId : gridSubSets) {
+            GridSubset layerGrid = tileLayer.getGridSubset(gridSetId);
+            final List<Geometry> transformed = new ArrayList<Geometry>(geometries.size());
+            try {
+                CoordinateReferenceSystem gridSetCrs = getGridSetCrs(layerName,
+                        layerGrid.getGridSet());
+                MathTransform tx = CRS.findMathTransform(crs, gridSetCrs, true);
+                for (Geometry geometry : geometries) {
+                    transformed.add(tx.isIdentity() ? geometry : JTS.transform(geometry, tx));
+                }
+            } catch (Exception e) {
+                log.warning("Can't truncate layer " + layerName
+                        + ": error transforming the affected geometries to layer gridset "
+                        + gridSetId + ": " + e.getMessage());
+                continue;
+            }
+            GeometryTileRangeMask mask = new GeometryTileRangeMask(layerGrid, transformed,
+                    TRUNCATE_PIXEL_BUFFER);
+            if (mask.isEmpty()) {
+                continue;
+            }
+            String styleName = null;// all of them
+            String format = null;// all of them
+            truncate(layerName, styleName, gridSetId, null, format, mask);
+        }
+    }
+
+    private CoordinateReferenceSystem getGridSetCrs(String layerName, GridSet gridSet) {
         final SRS srs = gridSet.getSrs();
-        final CoordinateReferenceSystem gridSetCrs;
         try {
-            gridSetCrs = CRS.decode("EPSG:" + srs.getNumber(), true);
+            return CRS.decode("EPSG:" + srs.getNumber(), true);
         } catch (Exception e) {
             throw new RuntimeException("Can't decode SRS for layer '" + layerName + "': ESPG:"
                     + srs.getNumber());
         }
+    }
+
+    private BoundingBox getIntersectingBounds(String layerName, GridSubset layerGrid,
+            ReferencedEnvelope bounds) {
+        final GridSet gridSet = layerGrid.getGridSet();
+        final String gridSetId = gridSet.getName();
+        final CoordinateReferenceSystem gridSetCrs = getGridSetCrs(layerName, gridSet);
 
         ReferencedEnvelope truncateBoundsInGridsetCrs;
 
@@ -420,6 +540,12 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
      */
     public void truncate(final String layerName, final String styleName, final String gridSetName,
             final BoundingBox bounds, final String format) {
+        truncate(layerName, styleName, gridSetName, bounds, format, null);
+    }
+
+    private void truncate(final String layerName, final String styleName,
+            final String gridSetName, final BoundingBox bounds, final String format,
+            final TileRangeMask mask) {
 
         checkNotNull(layerName, "layerName can't be null");
 
@@ -444,7 +570,8 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
             mimeTypes = layer.getMimeTypes();
         } else {
             try {
-                mimeTypes = Collections.singletonList(MimeType.createFromFormat(format));
+                mimeTypes = Collections.singletonList(VectorTileMimeType
+                        .createFromFormat(format));
             } catch (MimeException e) {
                 throw new RuntimeException();
             }
@@ -471,32 +598,49 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
                 }
                 for (MimeType mime : mimeTypes) {
                     String formatName = mime.getFormat();
-                    truncate(layer, bounds, gridSubset, formatName, parameters);
+                    truncate(layer, bounds, gridSubset, formatName, parameters, mask);
                 }
             }
         }
     }
 
     private void truncate(final TileLayer layer, final BoundingBox bounds,
-            final GridSubset gridSubset, String formatName, Map<String, String> parameters) {
+            final GridSubset gridSubset, String formatName, Map<String, String> parameters,
+            TileRangeMask mask) {
         final int threadCount = 1;
         int zoomStart;
         int zoomStop;
         zoomStart = gridSubset.getZoomStart();
         zoomStop = gridSubset.getZoomStop();
         final TYPE taskType = TRUNCATE;
-        SeedRequest req = new SeedRequest(layer.getName(), bounds, gridSubset.getName(),
-                threadCount, zoomStart, zoomStop, formatName, taskType, parameters);
+        MimeType mimeType = null;
+        if (mask != null) {
+            try {
+                mimeType = VectorTileMimeType.createFromFormat(formatName);
+            } catch (MimeException e) {
+                throw new RuntimeException(e);
+            }
+        }
 
         GWCTask[] tasks;
+        TileRange tr;
         try {
-            TileRange tr = TileBreeder.createTileRange(req, layer);
+            if (mask == null) {
+                SeedRequest req = new SeedRequest(layer.getName(), bounds, gridSubset.getName(),
+                        threadCount, zoomStart, zoomStop, formatName, taskType, parameters);
+                tr = TileBreeder.createTileRange(req, layer);
+            } else {
+                tr = new DiscontinuousTileRange(layer.getName(), gridSubset.getName(), zoomStart,
+                        zoomStop, mask, mimeType, parameters);
+            }
             boolean filterUpdate = false;
             tasks = tileBreeder.createTasks(tr, taskType, threadCount, filterUpdate);
         } catch (GeoWebCacheException e) {
             throw new RuntimeException(e);
         }
 
+        // the blob store may not notify each deleted tile
+        memoryCache.invalidate(tr);
         tileBreeder.dispatchTasks(tasks);
     }
 
@@ -547,6 +691,7 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
      *         {@code false} if there wasn't a cache for that layer.
      */
     public synchronized boolean layerRemoved(final String prefixedName) {
+        memoryCache.invalidate(prefixedName);
         try {
             return storageBroker.delete(prefixedName);
         } catch (StorageException e) {
@@ -626,12 +771,13 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
          * parser turned it into a list of actual Layers
          */
         if (layerName.indexOf(',') != -1) {
-            requestMistmatchTarget.append("more than one layer requested");
+            mismatch(requestMistmatchTarget, "multiple layers").append(
+                    "more than one layer requested");
             return null;
         }
 
         if (!tld.layerExists(layerName)) {
-            requestMistmatchTarget.append("not a tile layer");
+            mismatch(requestMistmatchTarget, "not a tile layer").append("not a tile layer");
             return null;
         }
 
@@ -642,7 +788,7 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
             throw new RuntimeException(e);
         }
         if (!tileLayer.isEnabled()) {
-            requestMistmatchTarget.append("tile layer disabled");
+            mismatch(requestMistmatchTarget, "tile layer disabled").append("tile layer disabled");
             return null;
         }
 
@@ -668,15 +814,17 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
 
         final MimeType mimeType;
         try {
-            mimeType = MimeType.createFromFormat(request.getFormat());
-            List<MimeType> tileLayerFormats = tileLayer.getMimeTypes();
-            if (!tileLayerFormats.contains(mimeType)) {
-                requestMistmatchTarget.append("no tile cache for requested format");
+            mimeType = cacheKeyNormalizer.getMimeType(request.getFormat(),
+                    tileLayer.getMimeTypes());
+            if (mimeType == null) {
+                mismatch(requestMistmatchTarget, "format").append(
+                        "no tile cache for requested format");
                 return null;
             }
         } catch (MimeException me) {
             // not a GWC supported format
-            requestMistmatchTarget.append("not a GWC supported format: ").append(me.getMessage());
+            mismatch(requestMistmatchTarget, "format").append("not a GWC supported format: ")
+                    .append(me.getMessage());
             return null;
         }
 
@@ -688,13 +836,16 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
             final List<GridSubset> crsMatchingGridSubsets;
             {
                 CoordinateReferenceSystem crs = request.getCrs();
-                int epsgId;
                 // are we in wms 1.3 land?
                 if(CRS.getAxisOrder(crs) == AxisOrder.NORTH_EAST) {
                     axisFlip = true;
                 }
-                String srs = request.getSRS();
-                epsgId = Integer.parseInt(srs.substring(srs.lastIndexOf(':') + 1));
+                Integer epsgId = cacheKeyNormalizer.getEpsgCode(request.getSRS(), crs);
+                if (epsgId == null) {
+                    mismatch(requestMistmatchTarget, "crs").append(
+                            "requested CRS has no EPSG code: ").append(request.getSRS());
+                    return null;
+                }
                 SRS srs2 = SRS.getSRS(epsgId);
                 crsMatchingGridSubsets = tileLayer.getGridSubsetsForSRS(srs2);
             }
@@ -711,7 +862,8 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
             }
 
             if (crsMatchingGridSubsets.isEmpty()) {
-                requestMistmatchTarget.append("no cache exists for requested CRS");
+                mismatch(requestMistmatchTarget, "crs").append(
+                        "no cache exists for requested CRS");
                 return null;
             }
 
@@ -719,10 +871,13 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
                 long[] matchingTileIndex = new long[3];
                 final int reqW = request.getWidth();
                 final int reqH = request.getHeight();
-                gridSubset = findBestMatchingGrid(tileBounds, crsMatchingGridSubsets, reqW, reqH,
-                        matchingTileIndex);
+                BoundingBox snappedBounds = cacheKeyNormalizer.snap(tileBounds,
+                        crsMatchingGridSubsets, reqW, reqH);
+                gridSubset = findBestMatchingGrid(snappedBounds, crsMatchingGridSubsets, reqW,
+                        reqH, matchingTileIndex);
                 if (gridSubset == null) {
-                    requestMistmatchTarget.append("request does not align to grid(s) ");
+                    mismatch(requestMistmatchTarget, "grid alignment").append(
+                            "request does not align to grid(s) ");
                     for (GridSubset gs : crsMatchingGridSubsets) {
                         requestMistmatchTarget.append('\'').append(gs.getName()).append("' ");
                     }
@@ -732,7 +887,8 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
             }
 
             {
-                Map<String, String> requestParameterMap = request.getRawKvp();
+                Map<String, String> requestParameterMap = cacheKeyNormalizer
+                        .normalizeParameters(tileLayer, request.getRawKvp());
                 fullParameters = tileLayer.getModifiableParameters(requestParameterMap, "UTF-8");
             }
 
@@ -742,7 +898,7 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
                 log.log(Level.FINE, "Exception caught checking gwc dispatch preconditions", e);
             }
             Throwable rootCause = getRootCause(e);
-            requestMistmatchTarget.append("exception occurred: ")
+            mismatch(requestMistmatchTarget, "exception").append("exception occurred: ")
                     .append(rootCause.getClass().getSimpleName()).append(": ")
                     .append(e.getMessage());
             return null;
@@ -753,8 +909,10 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         HttpServletRequest servletReq = null;
         HttpServletResponse servletResp = null;
         String layerName = tileLayer.getName();
+        // vector tiles are not styled, all styles share the same tiles
         tileReq = new ConveyorTile(storageBroker, layerName, gridSetId, tileIndex, mimeType,
-                fullParameters, servletReq, servletResp);
+                VectorTileMimeType.getCacheParameters(mimeType, fullParameters), servletReq,
+                servletResp);
         return tileReq;
     }
 
@@ -772,7 +930,7 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
             StringBuilder requestMistmatchTarget) {
 
         if (null != request.getRemoteOwsType() || null != request.getRemoteOwsURL()) {
-            requestMistmatchTarget.append("request uses remote OWS");
+            mismatch(requestMistmatchTarget, "remote OWS").append("request uses remote OWS");
             return false;
         }
 
@@ -789,6 +947,12 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
             }
         }
 
+        if (!cacheKeyNormalizer.isDefaultStyle(layer, request.getRawKvp().get("STYLES"))) {
+            if (!filterApplies(filters, request, "STYLES", requestMistmatchTarget)) {
+                return false;
+            }
+        }
+
         // if (request.isTransparent()) {
         // if (!filterApplies(filters, request, "TRANSPARENT")) {
         // return false;
@@ -895,18 +1059,42 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
 
         ParameterFilter parameterFilter = filters.get(key);
         if (parameterFilter == null) {
-            requestMistmatchTarget.append("no parameter filter exists for ").append(key);
+            mismatch(requestMistmatchTarget, "parameter " + key).append(
+                    "no parameter filter exists for ").append(key);
             return false;
         }
         String parameter = request.getRawKvp().get(key);
         boolean applies = parameterFilter.applies(parameter);
         if (!applies) {
-            requestMistmatchTarget.append(key).append(
+            mismatch(requestMistmatchTarget, "parameter " + key).append(key).append(
                     " does not apply to parameter filter of the same name");
         }
         return applies;
     }
 
+    /**
+     * Counts a GetMap request that can't be served by {@link #dispatch}
+     * 
+     * @return {@code requestMistmatchTarget}, to append the mismatch details to
+     */
+    private StringBuilder mismatch(StringBuilder requestMistmatchTarget, String reason) {
+        dispatchMisses.incrementAndGet(reason);
+        return requestMistmatchTarget;
+    }
+
+    /**
+     * Returns the number of GetMap requests that could not be served from the tile cache by
+     * {@link #dispatch}, by reason (e.g. {@code format}, {@code crs}, {@code grid alignment},
+     * {@code parameter STYLES}), since startup or the last {@link #resetDispatchMisses() reset}
+     */
+    public Map<String, Long> getDispatchMisses() {
+        return ImmutableMap.copyOf(dispatchMisses.asMap());
+    }
+
+    public void resetDispatchMisses() {
+        dispatchMisses.clear();
+    }
+
     /**
      * @param layerName
      * @return the tile layer named {@code layerName}
@@ -923,6 +1111,13 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         return tileLayer;
     }
 
+    /**
+     * @return the storage broker the tiles are cached through
+     */
+    public StorageBroker getStorageBroker() {
+        return storageBroker;
+    }
+
     public Set<String> getTileLayerNames() {
         return tld.getLayerNames();
     }
@@ -979,12 +1174,30 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
 
         Set<String> layerNames = new TreeSet<String>();
 
-        for (TileLayer layer : getTileLayers()) {
-            Set<String> layerGrids = layer.getGridSubsets();
-            if (!Sets.intersection(gridSetIds, layerGrids).isEmpty()) {
-                layerNames.add(layer.getName());
+        // the GeoServer tile layers are looked up in the tile layer catalog index, only the
+        // externally defined ones need to be loaded
+        CatalogConfiguration catalogConfig = applicationContext == null ? null
+                : GeoServerExtensions.bean(CatalogConfiguration.class, applicationContext);
+        if (catalogConfig == null) {
+            for (TileLayer layer : getTileLayers()) {
+                Set<String> layerGrids = layer.getGridSubsets();
+                if (!Sets.intersection(gridSetIds, layerGrids).isEmpty()) {
+                    layerNames.add(layer.getName());
+                }
             }
+            return layerNames;
+        }
 
+        layerNames.addAll(catalogConfig.getLayerNamesForGridSets(gridSetIds));
+        Set<String> geoServerLayerNames = catalogConfig.getTileLayerNames();
+        for (String layerName : getTileLayerNames()) {
+            if (geoServerLayerNames.contains(layerName)) {
+                continue;
+            }
+            Set<String> layerGrids = getTileLayerByName(layerName).getGridSubsets();
+            if (!Sets.intersection(gridSetIds, layerGrids).isEmpty()) {
+                layerNames.add(layerName);
+            }
         }
         return layerNames;
     }
@@ -1040,6 +1253,7 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         
         // make sure we switch to the lock provider just configured
         updateLockProvider(gwcConfig.getLockProviderName());
+        updateMemoryCache(gwcConfig);
     }
 
     public void saveDiskQuotaConfig(DiskQuotaConfig config, JDBCConfiguration jdbcConfig) throws ConfigurationException, IOException, InterruptedException {
@@ -1091,6 +1305,17 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
             return null;
         }
 
+        final QuotaStore quotaStore = monitor.getQuotaStore();
+        if (quotaStore instanceof ConfigurableQuotaStore) {
+            // answered from the in memory quota aggregate
+            try {
+                return ((ConfigurableQuotaStore) quotaStore).getUsedQuotaByGridSet(gridSetName);
+            } catch (InterruptedException e) {
+                log.fine(e.getMessage());
+                return new Quota();
+            }
+        }
+
         final Quota quota = new Quota();
 
         TileSetVisitor visitor = new TileSetVisitor() {
@@ -1110,7 +1335,7 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
                 }
             }
         };
-        monitor.getQuotaStore().accept(visitor);
+        quotaStore.accept(visitor);
         return quota;
     }
 
@@ -1153,6 +1378,33 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         return null;
     }
 
+    /**
+     * Renders a meta tile of a GeoServer tile layer with a WMS GetMap request built and executed
+     * in process, firing the dispatcher callbacks but without going through the OWS
+     * {@link Dispatcher}, its KVP parsing and its servlet request/response handling.
+     * 
+     * @param layer
+     *            the tile layer
+     * @param tile
+     *            the tile that triggered the rendering
+     * @param metaTile
+     *            the meta tile to render
+     * @return the map produced by the WMS, not yet encoded
+     * @throws Exception
+     */
+    public WebMap dispatchGetMap(final GeoServerTileLayer layer, final ConveyorTile tile,
+            final MetaTile metaTile) throws Exception {
+        DirectGetMapDispatcher dispatcher = directGetMapDispatcher;
+        if (dispatcher == null) {
+            dispatcher = DirectGetMapDispatcher.lookup(applicationContext);
+            if (dispatcher == null) {
+                throw new IllegalStateException("WMS 1.1.1 service is not available");
+            }
+            directGetMapDispatcher = dispatcher;
+        }
+        return dispatcher.getMap(layer, tile, metaTile);
+    }
+
     /**
      * Dispatches a request to the GeoServer OWS {@link Dispatcher}
      * 
@@ -1279,6 +1531,7 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
             log.info("Renaming GWC TileLayer '" + oldLayerName + "' as '" + newLayerName + "'");
             // /embeddedConfig.rename(oldLayerName, newLayerName);
             storageBroker.rename(oldLayerName, newLayerName);
+            memoryCache.layerRenamed(oldLayerName, newLayerName);
         } catch (StorageException e) {
             log.log(Level.WARNING, e.getMessage(), e);
             throw new RuntimeException(e);
@@ -1726,6 +1979,7 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
     public void deleteCacheByGridSetId(final String layerName, final String gridSetId) {
         try {
             storageBroker.deleteByGridSetId(layerName, gridSetId);
+            memoryCache.gridSubsetDeleted(layerName, gridSetId);
         } catch (StorageException e) {
             throw propagate(getRootCause(e));
         }
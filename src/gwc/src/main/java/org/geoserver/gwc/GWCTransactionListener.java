@@ -29,17 +29,31 @@ import org.geoserver.wfs.TransactionEventType;
 import org.geoserver.wfs.TransactionPlugin;
 import org.geoserver.wfs.WFSException;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.geometry.jts.JTS;
 import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
 import org.geotools.util.logging.Logging;
-import org.geowebcache.GeoWebCacheException;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
 import org.opengis.referencing.operation.TransformException;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.vividsolutions.jts.geom.Geometry;
 
 /**
  * Listens to transactions (so far only issued by WFS) and truncates the cache for the affected area
  * of the layers involved in the transaction.
  * <p>
+ * The affected area is given by the geometries of the features touched by the transaction,
+ * before and after the change, so that only the tiles they actually intersect are truncated
+ * (see {@link GWC#truncate(String, java.util.Collection, CoordinateReferenceSystem)}). If the
+ * geometries can't be gathered, or there are more than {@link #MAX_GEOMETRIES} of them, the
+ * merged bounds of the changes are truncated instead. Truncations are handed over to a
+ * {@link TruncationBatcher} that merges those arriving within a short time window.
+ * </p>
+ * <p>
  * A Spring bean singleton of this class needs to be declared in order for GeoServer transactions to
  * pick it up automatically and forward transaction events to it.
  * </p>
@@ -52,19 +66,59 @@ import org.opengis.referencing.operation.TransformException;
  * @version $Id$
  * 
  */
-public class GWCTransactionListener implements TransactionPlugin {
+public class GWCTransactionListener implements TransactionPlugin, DisposableBean {
 
     private static Logger log = Logging.getLogger(GWCTransactionListener.class);
 
+    /**
+     * Maximum number of geometries gathered per change before falling back to its bounds
+     */
+    static final int MAX_GEOMETRIES = 1000;
+
     final private GWC gwc;
 
+    final private TruncationBatcher batcher;
+
     static final String GWC_TRANSACTION_INFO_PLACEHOLDER = "GWC_TRANSACTION_INFO_PLACEHOLDER";
 
+    static final String GWC_TRANSACTION_GEOMETRIES_PLACEHOLDER = "GWC_TRANSACTION_GEOMETRIES_PLACEHOLDER";
+
+    /**
+     * The geometries affected by a change, in their native CRS
+     */
+    static final class DirtyGeometries {
+        final CoordinateReferenceSystem crs;
+
+        final List<Geometry> geometries;
+
+        DirtyGeometries(CoordinateReferenceSystem crs, List<Geometry> geometries) {
+            this.crs = crs;
+            this.geometries = geometries;
+        }
+    }
+
     /**
      * @param gwc
      */
     public GWCTransactionListener(final GWC gwc) {
+        this(gwc, new TruncationBatcher(gwc));
+    }
+
+    GWCTransactionListener(final GWC gwc, final TruncationBatcher batcher) {
         this.gwc = gwc;
+        this.batcher = batcher;
+    }
+
+    /**
+     * Issues any truncation still pending
+     */
+    public void flush() {
+        batcher.flush();
+    }
+
+    @Override
+    public void destroy() {
+        batcher.dispose();
     }
 
     /**
@@ -113,7 +167,21 @@ public class GWCTransactionListener implements TransactionPlugin {
         if (byLayerDirtyRegions.isEmpty()) {
             return;
         }
+        final Map<String, List<DirtyGeometries>> byLayerDirtyGeometries = getByLayerDirtyGeometries(transaction);
         for (String tileLayerName : byLayerDirtyRegions.keySet()) {
+            List<DirtyGeometries> dirtyGeometries = byLayerDirtyGeometries.get(tileLayerName);
+            if (dirtyGeometries != null) {
+                try {
+                    final CoordinateReferenceSystem declaredCrs = gwc
+                            .getDeclaredCrs(tileLayerName);
+                    List<Geometry> geometries = transform(dirtyGeometries, declaredCrs);
+                    batcher.truncate(tileLayerName, geometries, declaredCrs);
+                    continue;
+                } catch (Exception e) {
+                    log.log(Level.FINE, "Can't truncate " + tileLayerName
+                            + " by the affected geometries, falling back to their bounds", e);
+                }
+            }
             List<ReferencedEnvelope> dirtyList = byLayerDirtyRegions.get(tileLayerName);
             ReferencedEnvelope dirtyRegion;
             try {
@@ -125,13 +193,21 @@ public class GWCTransactionListener implements TransactionPlugin {
             if (dirtyRegion == null) {
                 continue;
             }
-            try {
-                gwc.truncate(tileLayerName, dirtyRegion);
-            } catch (GeoWebCacheException e) {
-                log.warning("Error truncating tile layer " + tileLayerName
-                        + " for transaction affected bounds " + dirtyRegion);
+            batcher.truncate(tileLayerName, dirtyRegion);
+        }
+    }
+
+    private List<Geometry> transform(final List<DirtyGeometries> dirtyList,
+            final CoordinateReferenceSystem declaredCrs) throws TransformException,
+            FactoryException {
+        List<Geometry> transformed = new ArrayList<Geometry>();
+        for (DirtyGeometries dirty : dirtyList) {
+            MathTransform tx = CRS.findMathTransform(dirty.crs, declaredCrs, true);
+            for (Geometry geometry : dirty.geometries) {
+                transformed.add(tx.isIdentity() ? geometry : JTS.transform(geometry, tx));
             }
         }
+        return transformed;
     }
 
     private ReferencedEnvelope merge(final String tileLayerName,
@@ -196,11 +272,53 @@ public class GWCTransactionListener implements TransactionPlugin {
         final SimpleFeatureCollection affectedFeatures = event.getAffectedFeatures();
         final ReferencedEnvelope affectedBounds = affectedFeatures.getBounds();
 
+        // for updates this is called both before and after the change, so both the old and the
+        // new geometries are gathered
+        DirtyGeometries affectedGeometries;
+        try {
+            affectedGeometries = getAffectedGeometries(affectedFeatures, affectedBounds);
+        } catch (RuntimeException e) {
+            log.log(Level.FINE, "Can't gather the transaction's affected geometries", e);
+            affectedGeometries = null;
+        }
+
         final TransactionType transaction = event.getRequest();
 
         for (String tileLayerName : affectedTileLayers) {
             addLayerDirtyRegion(transaction, tileLayerName, affectedBounds);
+            addLayerDirtyGeometries(transaction, tileLayerName, affectedGeometries);
+        }
+    }
+
+    /**
+     * @return the affected geometries, or {@code null} if there are more than
+     *         {@link #MAX_GEOMETRIES} of them or their CRS is unknown
+     */
+    private DirtyGeometries getAffectedGeometries(final SimpleFeatureCollection affectedFeatures,
+            final ReferencedEnvelope affectedBounds) {
+        CoordinateReferenceSystem crs = affectedFeatures.getSchema().getCoordinateReferenceSystem();
+        if (crs == null) {
+            crs = affectedBounds.getCoordinateReferenceSystem();
+        }
+        if (crs == null) {
+            return null;
+        }
+        List<Geometry> geometries = new ArrayList<Geometry>();
+        SimpleFeatureIterator features = affectedFeatures.features();
+        try {
+            while (features.hasNext()) {
+                Object geometry = features.next().getDefaultGeometry();
+                if (geometry instanceof Geometry) {
+                    if (geometries.size() == MAX_GEOMETRIES) {
+                        return null;
+                    }
+                    geometries.add((Geometry) geometry);
+                }
+            }
+        } finally {
+            features.close();
         }
+        return new DirtyGeometries(crs, geometries);
     }
 
     @SuppressWarnings("unchecked")
@@ -218,6 +336,42 @@ public class GWCTransactionListener implements TransactionPlugin {
         return byLayerDirtyRegions;
     }
 
+    @SuppressWarnings("unchecked")
+    private Map<String, List<DirtyGeometries>> getByLayerDirtyGeometries(
+            final TransactionType transaction) {
+
+        final Map<Object, Object> extendedProperties = transaction.getExtendedProperties();
+        Map<String, List<DirtyGeometries>> byLayerDirtyGeometries;
+        byLayerDirtyGeometries = (Map<String, List<DirtyGeometries>>) extendedProperties
+                .get(GWC_TRANSACTION_GEOMETRIES_PLACEHOLDER);
+        if (byLayerDirtyGeometries == null) {
+            byLayerDirtyGeometries = new HashMap<String, List<DirtyGeometries>>();
+            extendedProperties.put(GWC_TRANSACTION_GEOMETRIES_PLACEHOLDER, byLayerDirtyGeometries);
+        }
+        return byLayerDirtyGeometries;
+    }
+
+    /**
+     * Records the geometries affected by a change, a {@code null} value marks the layer as
+     * having to be truncated by bounds for the whole transaction
+     */
+    private void addLayerDirtyGeometries(final TransactionType transaction,
+            final String tileLayerName, final DirtyGeometries affectedGeometries) {
+
+        Map<String, List<DirtyGeometries>> byLayerDirtyGeometries = getByLayerDirtyGeometries(transaction);
+
+        List<DirtyGeometries> layerDirtyGeometries = byLayerDirtyGeometries.get(tileLayerName);
+        if (affectedGeometries == null) {
+            byLayerDirtyGeometries.put(tileLayerName, null);
+        } else if (layerDirtyGeometries != null) {
+            layerDirtyGeometries.add(affectedGeometries);
+        } else if (!byLayerDirtyGeometries.containsKey(tileLayerName)) {
+            layerDirtyGeometries = new ArrayList<DirtyGeometries>(2);
+            layerDirtyGeometries.add(affectedGeometries);
+            byLayerDirtyGeometries.put(tileLayerName, layerDirtyGeometries);
+        }
+    }
+
     private void addLayerDirtyRegion(final TransactionType transaction, final String tileLayerName,
             final ReferencedEnvelope affectedBounds) {
 
@@ -0,0 +1,195 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.util.BitSet;
+import java.util.Collection;
+
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.storage.TileRangeMask;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * A {@link TileRangeMask} covering exactly the tiles of a grid subset that intersect a set of
+ * geometries, as opposed to all the tiles intersecting their bounding box.
+ * <p>
+ * Each tile is tested with its envelope expanded by a number of pixels, so that tiles where
+ * the symbols of the features spill over are included too. Zoom levels with up to
+ * {@link #MAX_RASTER_TILES} tiles in the geometries bounds are rasterised upfront into a bit
+ * set and their coverage is shrunk to the tiles actually hit, deeper levels are tested on
+ * demand against a spatial index of the geometries.
+ * </p>
+ */
+class GeometryTileRangeMask implements TileRangeMask {
+
+    /**
+     * Maximum number of tiles in a zoom level coverage for it to be rasterised upfront
+     */
+    static final long MAX_RASTER_TILES = 64 * 1024;
+
+    private final GridSubset gridSubset;
+
+    private final int zoomStart;
+
+    private final STRtree index = new STRtree();
+
+    private final GeometryFactory factory = new GeometryFactory();
+
+    /**
+     * Coverage by level, as {minx, miny, maxx, maxy, z}
+     */
+    private final long[][] coverages;
+
+    /**
+     * Tile envelope expansion by level, in grid set units
+     */
+    private final double[] buffers;
+
+    /**
+     * Rasterised levels, {@code null} for the levels tested on demand
+     */
+    private final BitSet[] rasters;
+
+    /**
+     * Coverage of the rasterised levels before shrinking, gives the bit set layout
+     */
+    private final long[][] rasterBounds;
+
+    private boolean empty = true;
+
+    /**
+     * @param gridSubset the grid subset to compute the mask for
+     * @param geometries the geometries, in the grid set CRS
+     * @param pixelBuffer how many pixels to expand each tile by when testing it
+     */
+    GeometryTileRangeMask(GridSubset gridSubset, Collection<Geometry> geometries, int pixelBuffer) {
+        this.gridSubset = gridSubset;
+        this.zoomStart = gridSubset.getZoomStart();
+        final int levels = gridSubset.getZoomStop() - zoomStart + 1;
+        this.coverages = new long[levels][];
+        this.buffers = new double[levels];
+        this.rasters = new BitSet[levels];
+        this.rasterBounds = new long[levels][];
+
+        final Envelope bounds = new Envelope();
+        for (Geometry geometry : geometries) {
+            if (geometry == null || geometry.isEmpty()) {
+                continue;
+            }
+            index.insert(geometry.getEnvelopeInternal(), PreparedGeometryFactory.prepare(geometry));
+            bounds.expandToInclude(geometry.getEnvelopeInternal());
+        }
+        // build now, the index is not thread safe until built
+        index.build();
+
+        for (int i = 0; i < levels; i++) {
+            final int z = zoomStart + i;
+            buffers[i] = pixelBuffer * gridSubset.getGridSet().getGrid(z).getResolution();
+            long[] coverage = null;
+            if (!bounds.isNull()) {
+                Envelope expanded = new Envelope(bounds);
+                expanded.expandBy(buffers[i]);
+                BoundingBox bbox = new BoundingBox(expanded.getMinX(), expanded.getMinY(),
+                        expanded.getMaxX(), expanded.getMaxY());
+                coverage = gridSubset.getCoverageIntersection(z, bbox);
+            }
+            if (coverage == null || coverage[0] > coverage[2] || coverage[1] > coverage[3]) {
+                // nothing to truncate at this level, use an empty raster
+                coverage = gridSubset.getCoverage(z).clone();
+                rasters[i] = new BitSet();
+                rasterBounds[i] = coverage;
+                coverages[i] = coverage;
+                continue;
+            }
+            coverages[i] = coverage;
+            long tiles = (coverage[2] - coverage[0] + 1) * (coverage[3] - coverage[1] + 1);
+            if (tiles <= MAX_RASTER_TILES) {
+                rasterize(i, coverage);
+            } else {
+                empty = false;
+            }
+        }
+    }
+
+    private void rasterize(int i, long[] coverage) {
+        final int z = zoomStart + i;
+        final long width = coverage[2] - coverage[0] + 1;
+        BitSet raster = new BitSet();
+        long minx = Long.MAX_VALUE, miny = Long.MAX_VALUE;
+        long maxx = Long.MIN_VALUE, maxy = Long.MIN_VALUE;
+        for (long y = coverage[1]; y <= coverage[3]; y++) {
+            for (long x = coverage[0]; x <= coverage[2]; x++) {
+                if (intersects(x, y, z, i)) {
+                    raster.set((int) ((y - coverage[1]) * width + (x - coverage[0])));
+                    minx = Math.min(minx, x);
+                    miny = Math.min(miny, y);
+                    maxx = Math.max(maxx, x);
+                    maxy = Math.max(maxy, y);
+                }
+            }
+        }
+        rasters[i] = raster;
+        rasterBounds[i] = coverage;
+        if (raster.isEmpty()) {
+            coverages[i] = coverage;
+        } else {
+            coverages[i] = new long[] { minx, miny, maxx, maxy, z };
+            empty = false;
+        }
+    }
+
+    private boolean intersects(long x, long y, int z, int i) {
+        BoundingBox tileBounds = gridSubset.boundsFromIndex(new long[] { x, y, z });
+        Envelope env = new Envelope(tileBounds.getMinX(), tileBounds.getMaxX(),
+                tileBounds.getMinY(), tileBounds.getMaxY());
+        env.expandBy(buffers[i]);
+        Geometry tile = factory.toGeometry(env);
+        for (Object candidate : index.query(env)) {
+            if (((PreparedGeometry) candidate).intersects(tile)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code true} if no tile at all is covered by the geometries
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    @Override
+    public long[][] getGridCoverages() {
+        return coverages;
+    }
+
+    @Override
+    public boolean lookup(long x, long y, int z) {
+        final int i = z - zoomStart;
+        if (i < 0 || i >= coverages.length) {
+            return false;
+        }
+        final long[] coverage = coverages[i];
+        if (x < coverage[0] || x > coverage[2] || y < coverage[1] || y > coverage[3]) {
+            return false;
+        }
+        final BitSet raster = rasters[i];
+        if (raster != null) {
+            final long[] layout = rasterBounds[i];
+            final long width = layout[2] - layout[0] + 1;
+            return raster.get((int) ((y - layout[1]) * width + (x - layout[0])));
+        }
+        return intersects(x, y, z, i);
+    }
+}
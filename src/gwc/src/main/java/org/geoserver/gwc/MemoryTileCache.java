@@ -0,0 +1,529 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geoserver.gwc.TileBufferPool.Allocation;
+import org.geowebcache.conveyor.Conveyor.CacheResult;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.TileRange;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+/**
+ * A bounded in memory tier for encoded tiles, sitting in front of the blob store so that hot
+ * tiles are served without touching the file system.
+ * <p>
+ * Tiles are kept in off-heap memory taken from a {@link TileBufferPool} bounded by
+ * {@link #getMaxSize()}, and served straight from it; the least recently used ones are evicted
+ * first, giving their memory back to the pool. Entries are keyed by layer, gridset, format and
+ * tile index, each holding the variants of the tile for the different parameter combinations,
+ * so that blob store events, which only carry a parameters id, can drop all of them.
+ * </p>
+ * <p>
+ * The cache listens to blob store events to drop tiles as soon as they are deleted or
+ * overwritten, and is explicitly invalidated by {@link GWC} on truncations, removals and
+ * renames. It is populated with the tiles read from the blob store, and can be
+ * {@link #setEnabled(boolean) disabled} and {@link #setMaxSize(long) resized} at runtime, both
+ * of which empty it. Every invalidation bumps a {@link #getGeneration() generation} counter, so
+ * that a tile read from the blob store before an invalidation is not cached after it.
+ * </p>
+ */
+public class MemoryTileCache implements BlobStoreListener {
+
+    /**
+     * Tiles bigger than this fraction of the cache size are not cached
+     */
+    static final int MAX_TILE_FRACTION = 100;
+
+    /**
+     * Estimated per tile memory overhead, added to the tile size to weigh entries
+     */
+    static final int ENTRY_OVERHEAD = 128;
+
+    /**
+     * Fraction of the pool the cached tiles can use, the rest leaves room for the memory of
+     * evicted tiles waiting to be reused
+     */
+    static final double CACHED_FRACTION = 0.75;
+
+    static final class TileKey {
+        final String layerName;
+
+        final String gridSetId;
+
+        final String format;
+
+        final long x;
+
+        final long y;
+
+        final int z;
+
+        TileKey(String layerName, String gridSetId, String format, long x, long y, int z) {
+            this.layerName = layerName;
+            this.gridSetId = gridSetId;
+            this.format = format;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TileKey)) {
+                return false;
+            }
+            TileKey k = (TileKey) o;
+            return x == k.x && y == k.y && z == k.z && layerName.equals(k.layerName)
+                    && gridSetId.equals(k.gridSetId) && format.equals(k.format);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[] { layerName, gridSetId, format, x, y, z });
+        }
+    }
+
+    /**
+     * The cached variants of a tile, immutable
+     */
+    static final class CachedTile {
+        final Map<String, String>[] parameters;
+
+        final Allocation[] contents;
+
+        final long[] created;
+
+        /**
+         * Copies the variants of {@code previous}, replacing or adding the one for
+         * {@code parameters}
+         */
+        @SuppressWarnings("unchecked")
+        CachedTile(CachedTile previous, Map<String, String> parameters, Allocation contents,
+                long created) {
+            int n = 1;
+            if (previous != null) {
+                n += previous.parameters.length;
+                if (previous.indexOf(parameters) >= 0) {
+                    n--;
+                }
+            }
+            this.parameters = new Map[n];
+            this.contents = new Allocation[n];
+            this.created = new long[n];
+            int i = 0;
+            if (previous != null) {
+                for (int j = 0; j < previous.parameters.length; j++) {
+                    if (!TileAccessHeatmap.equal(previous.parameters[j], parameters)) {
+                        this.parameters[i] = previous.parameters[j];
+                        this.contents[i] = previous.contents[j];
+                        this.created[i] = previous.created[j];
+                        i++;
+                    }
+                }
+            }
+            this.parameters[i] = parameters;
+            this.contents[i] = contents;
+            this.created[i] = created;
+        }
+
+        CachedTile(Map<String, String>[] parameters, Allocation[] contents, long[] created) {
+            this.parameters = parameters;
+            this.contents = contents;
+            this.created = created;
+        }
+
+        /**
+         * Returns a copy without the variants matching the given parameters, see
+         * {@link MemoryTileCache#matches(Map, Map)}
+         */
+        @SuppressWarnings("unchecked")
+        CachedTile without(Map<String, String> params) {
+            int n = 0;
+            for (Map<String, String> p : parameters) {
+                if (!matches(p, params)) {
+                    n++;
+                }
+            }
+            CachedTile result = new CachedTile(new Map[n], new Allocation[n], new long[n]);
+            int i = 0;
+            for (int j = 0; j < parameters.length; j++) {
+                if (!matches(parameters[j], params)) {
+                    result.parameters[i] = parameters[j];
+                    result.contents[i] = contents[j];
+                    result.created[i] = created[j];
+                    i++;
+                }
+            }
+            return result;
+        }
+
+        int indexOf(Map<String, String> params) {
+            for (int i = 0; i < parameters.length; i++) {
+                if (TileAccessHeatmap.equal(parameters[i], params)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int weight() {
+            int weight = 0;
+            for (Allocation allocation : contents) {
+                weight += allocation.weight() + ENTRY_OVERHEAD;
+            }
+            return weight;
+        }
+    }
+
+    private volatile boolean enabled;
+
+    private volatile long maxSize;
+
+    private volatile Cache<TileKey, CachedTile> cache;
+
+    private volatile TileBufferPool pool;
+
+    private final AtomicLong size = new AtomicLong();
+
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * @param maxSize maximum size of the cached tiles, in bytes
+     */
+    public MemoryTileCache(long maxSize) {
+        setMaxSize(maxSize);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        if (this.enabled != enabled) {
+            this.enabled = enabled;
+            clear();
+        }
+    }
+
+    /**
+     * @return the maximum size of the cached tiles, in bytes
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the maximum size of the cached tiles in bytes, emptying the cache if it changes
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        if (this.cache != null && this.maxSize == maxSize) {
+            return;
+        }
+        this.maxSize = maxSize;
+        Cache<TileKey, CachedTile> previous = this.cache;
+        final TileBufferPool pool = new TileBufferPool(maxSize);
+        this.pool = pool;
+        this.cache = CacheBuilder.newBuilder()//
+                .concurrencyLevel(16)//
+                .maximumWeight((long) (maxSize * CACHED_FRACTION))//
+                .weigher(new Weigher<TileKey, CachedTile>() {
+                    @Override
+                    public int weigh(TileKey key, CachedTile value) {
+                        return value.weight();
+                    }
+                })//
+                .removalListener(new RemovalListener<TileKey, CachedTile>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<TileKey, CachedTile> notification) {
+                        CachedTile removed = notification.getValue();
+                        size.addAndGet(-removed.weight());
+                        // replacements give back the memory of the variants they drop
+                        if (notification.getCause() != RemovalCause.REPLACED) {
+                            for (Allocation allocation : removed.contents) {
+                                pool.release(allocation);
+                            }
+                        }
+                    }
+                })//
+                .recordStats()//
+                .build();
+        if (previous != null) {
+            generation.incrementAndGet();
+            previous.invalidateAll();
+        }
+    }
+
+    /**
+     * Returns the current generation, to be passed to {@link #put(ConveyorTile, long)} along
+     * with the tile read from the blob store after this call
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Looks up a tile, setting its contents and creation time if found
+     *
+     * @param maxAge maximum age of the tile in milliseconds, or zero for no limit
+     * @return {@code true} on a cache hit
+     */
+    public boolean get(ConveyorTile tile, long maxAge) {
+        if (!enabled || tile.getMimeType() == null) {
+            return false;
+        }
+        TileKey key = key(tile);
+        CachedTile cached = cache.getIfPresent(key);
+        if (cached == null) {
+            return false;
+        }
+        int i = cached.indexOf(tile.getParameters());
+        if (i < 0) {
+            return false;
+        }
+        long created = cached.created[i];
+        if (maxAge > 0 && created + maxAge < System.currentTimeMillis()) {
+            cache.invalidate(key);
+            return false;
+        }
+        tile.setBlob(pool.resource(cached.contents[i], created));
+        tile.getStorageObject().setCreated(created);
+        tile.setCacheResult(CacheResult.HIT);
+        return true;
+    }
+
+    /**
+     * Caches the tile just read from the blob store. The tile contents are read in memory, the
+     * tile blob is replaced with them so that they are not read again.
+     *
+     * @param generation the {@link #getGeneration() generation} before the tile was read, the
+     *        tile is not cached if the cache has been invalidated since
+     */
+    public void put(ConveyorTile tile, long generation) throws IOException {
+        final Resource blob = tile.getBlob();
+        if (!enabled || blob == null || tile.getMimeType() == null) {
+            return;
+        }
+        final long length = blob.getSize();
+        if (length <= 0 || length > maxSize / MAX_TILE_FRACTION) {
+            return;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) length);
+        blob.transferTo(Channels.newChannel(out));
+        byte[] bytes = out.toByteArray();
+        tile.setBlob(new ByteArrayResource(bytes));
+        if (this.generation.get() != generation) {
+            return;
+        }
+
+        final TileBufferPool pool = this.pool;
+        Allocation contents = pool.allocate(bytes);
+        if (contents == null) {
+            // all the memory is in use, or waiting to be reused
+            return;
+        }
+        TileKey key = key(tile);
+        ConcurrentMap<TileKey, CachedTile> map = cache.asMap();
+        CachedTile cached;
+        while (true) {
+            CachedTile previous = map.get(key);
+            cached = new CachedTile(previous, tile.getParameters(), contents, tile
+                    .getStorageObject().getCreated());
+            size.addAndGet(cached.weight());
+            if (previous == null ? map.putIfAbsent(key, cached) == null : map.replace(key,
+                    previous, cached)) {
+                if (previous != null) {
+                    releaseDropped(pool, previous, cached);
+                }
+                break;
+            }
+            size.addAndGet(-cached.weight());
+        }
+        // an invalidation may have run while the tile was being added
+        if (this.generation.get() != generation) {
+            map.remove(key, cached);
+        }
+    }
+
+    /**
+     * Gives back to the pool the variants of {@code previous} no longer in {@code current}
+     */
+    private void releaseDropped(TileBufferPool pool, CachedTile previous, CachedTile current) {
+        for (Allocation allocation : previous.contents) {
+            if (!Arrays.asList(current.contents).contains(allocation)) {
+                pool.release(allocation);
+            }
+        }
+    }
+
+    private TileKey key(ConveyorTile tile) {
+        long[] index = tile.getTileIndex();
+        return new TileKey(tile.getLayerId(), tile.getGridSetId(), tile.getMimeType()
+                .getFormat(), index[0], index[1], (int) index[2]);
+    }
+
+    /**
+     * Drops all the tiles of a layer
+     */
+    public void invalidate(String layerName) {
+        invalidate(layerName, null);
+    }
+
+    /**
+     * Drops all the tiles of a layer gridset, or all gridsets if {@code gridSetId} is null
+     */
+    public void invalidate(String layerName, String gridSetId) {
+        generation.incrementAndGet();
+        for (TileKey key : cache.asMap().keySet()) {
+            if (key.layerName.equals(layerName)
+                    && (gridSetId == null || key.gridSetId.equals(gridSetId))) {
+                cache.invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * Whether the tile variant with the given parameters is affected by an operation on the
+     * {@code range} parameters: all variants are when the range has none (the layer defaults),
+     * otherwise the variants having all of the range parameters are. Errs on the side of
+     * dropping too much, as the range parameters may not list all the tile ones.
+     */
+    static boolean matches(Map<String, String> parameters, Map<String, String> range) {
+        if (range == null || range.isEmpty()) {
+            return true;
+        }
+        return parameters != null && parameters.entrySet().containsAll(range.entrySet());
+    }
+
+    /**
+     * Drops the tiles of a tile range, in the variants matching the range parameters only
+     */
+    public void invalidate(TileRange range) {
+        generation.incrementAndGet();
+        final String format = range.getMimeType() == null ? null : range.getMimeType()
+                .getFormat();
+        final TileBufferPool pool = this.pool;
+        ConcurrentMap<TileKey, CachedTile> map = cache.asMap();
+        for (TileKey key : map.keySet()) {
+            if (!key.layerName.equals(range.getLayerName())
+                    || !key.gridSetId.equals(range.getGridSetId())
+                    || (format != null && !key.format.equals(format))
+                    || !range.contains(key.x, key.y, key.z)) {
+                continue;
+            }
+            CachedTile previous;
+            while ((previous = map.get(key)) != null) {
+                CachedTile cached = previous.without(range.getParameters());
+                if (cached.parameters.length == previous.parameters.length) {
+                    break;
+                } else if (cached.parameters.length == 0) {
+                    if (map.remove(key, previous)) {
+                        break;
+                    }
+                } else {
+                    size.addAndGet(cached.weight());
+                    if (map.replace(key, previous, cached)) {
+                        releaseDropped(pool, previous, cached);
+                        break;
+                    }
+                    size.addAndGet(-cached.weight());
+                }
+            }
+        }
+    }
+
+    /**
+     * Empties the cache
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    /**
+     * @return hit/miss/eviction statistics since the cache was last resized
+     */
+    public CacheStats getStatistics() {
+        return cache.stats();
+    }
+
+    /**
+     * @return number of tile positions cached
+     */
+    public long getEntryCount() {
+        return cache.size();
+    }
+
+    /**
+     * @return approximate memory used by the cached tiles, in bytes
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    /**
+     * @return off-heap memory allocated for the cached tiles so far, including the memory of
+     *         evicted tiles waiting to be reused, in bytes
+     */
+    public long getAllocatedSize() {
+        return pool.getAllocatedSize();
+    }
+
+    private void invalidate(TileKey key) {
+        generation.incrementAndGet();
+        cache.invalidate(key);
+    }
+
+    @Override
+    public void tileStored(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize) {
+        invalidate(new TileKey(layerName, gridSetId, blobFormat, x, y, z));
+    }
+
+    @Override
+    public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize) {
+        invalidate(new TileKey(layerName, gridSetId, blobFormat, x, y, z));
+    }
+
+    @Override
+    public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize, long oldSize) {
+        invalidate(new TileKey(layerName, gridSetId, blobFormat, x, y, z));
+    }
+
+    @Override
+    public void layerDeleted(String layerName) {
+        invalidate(layerName);
+    }
+
+    @Override
+    public void layerRenamed(String oldLayerName, String newLayerName) {
+        invalidate(oldLayerName);
+        invalidate(newLayerName);
+    }
+
+    public void gridSubsetDeleted(String layerName, String gridSetId) {
+        invalidate(layerName, gridSetId);
+    }
+}
@@ -0,0 +1,737 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.util.ThreadPools;
+import org.geotools.util.logging.Logging;
+import org.geowebcache.diskquota.QuotaStore;
+import org.geowebcache.diskquota.storage.PageStatsPayload;
+import org.geowebcache.diskquota.storage.Quota;
+import org.geowebcache.diskquota.storage.TilePage;
+import org.geowebcache.diskquota.storage.TileSet;
+import org.geowebcache.diskquota.storage.TileSetVisitor;
+
+/**
+ * Accumulates the quota and tile count updates of a {@link QuotaStore} in memory, writing them to
+ * the store in batches, and answers the used quota queries out of an in memory aggregate.
+ * <p>
+ * Updates are accumulated per tile set, and per tile page for the tile counts, in concurrent
+ * maps of atomic counters, so that concurrent tile writes on different tile sets do not contend.
+ * Every {@code flushInterval} seconds the accumulated deltas are written to the store, one
+ * {@link QuotaStore#addToQuotaAndTileCounts} call per tile set.
+ * </p>
+ * <p>
+ * The used quota of each tile set is read from the store once, on the first query, and then kept
+ * up to date with the updates as they come in. Operations changing the tile sets (layer removal
+ * or renaming, gridset removal) flush the pending updates and reset the aggregate.
+ * </p>
+ * <p>
+ * If a journal directory is provided the flusher also writes the accumulated deltas to a journal
+ * every {@link #JOURNAL_INTERVAL} seconds, synced to disk, so that at most that much of the
+ * updates is lost in case of a crash. On flush the journal becomes the list of deltas being
+ * written to the store, and before each tile set is written its used quota is recorded, so that
+ * on replay a delta is only written again if the store still holds the quota it had before. The
+ * leftovers of a previous run are replayed into the store on creation.
+ * </p>
+ */
+class QuotaUsageBuffer {
+
+    static final Logger LOGGER = Logging.getLogger(QuotaUsageBuffer.class);
+
+    static final String JOURNAL = "diskquota_journal";
+
+    static final String FLUSHING_JOURNAL = JOURNAL + ".flushing";
+
+    static final String FLUSHED_TILESETS = JOURNAL + ".flushed";
+
+    static final String JOURNAL_TEMP = JOURNAL + ".tmp";
+
+    /**
+     * Interval between journal writes, in seconds
+     */
+    static final long JOURNAL_INTERVAL = 1;
+
+    /**
+     * Updates not yet written to the store of a tile set
+     */
+    static final class Delta {
+
+        final TileSet tileSet;
+
+        final AtomicLong bytes = new AtomicLong();
+
+        final ConcurrentMap<String, PageDelta> pages = new ConcurrentHashMap<String, PageDelta>();
+
+        Delta(TileSet tileSet) {
+            this.tileSet = tileSet;
+        }
+
+        void add(long bytes, Collection<PageStatsPayload> tileCountDiffs) {
+            this.bytes.addAndGet(bytes);
+            if (tileCountDiffs == null) {
+                return;
+            }
+            for (PageStatsPayload payload : tileCountDiffs) {
+                TilePage page = payload.getPage();
+                String key = page.getPageX() + "," + page.getPageY() + "," + page.getZoomLevel();
+                PageDelta delta = pages.get(key);
+                if (delta == null) {
+                    delta = new PageDelta(page);
+                    PageDelta existing = pages.putIfAbsent(key, delta);
+                    if (existing != null) {
+                        delta = existing;
+                    }
+                }
+                delta.tiles.addAndGet(payload.getNumTiles());
+            }
+        }
+
+        List<PageStatsPayload> getPayloads() {
+            List<PageStatsPayload> payloads = new ArrayList<PageStatsPayload>(pages.size());
+            for (PageDelta page : pages.values()) {
+                PageStatsPayload payload = new PageStatsPayload(page.page);
+                payload.setNumTiles(page.tiles.get());
+                payloads.add(payload);
+            }
+            return payloads;
+        }
+    }
+
+    static final class PageDelta {
+
+        final TilePage page;
+
+        final AtomicInteger tiles = new AtomicInteger();
+
+        PageDelta(TilePage page) {
+            this.page = page;
+        }
+    }
+
+    /**
+     * Used quota of a tile set, as stored plus the pending updates
+     */
+    static final class Usage {
+
+        final TileSet tileSet;
+
+        final AtomicLong bytes = new AtomicLong();
+
+        Usage(TileSet tileSet) {
+            this.tileSet = tileSet;
+        }
+    }
+
+    private final QuotaStore store;
+
+    private final File directory;
+
+    /**
+     * Guards the pending updates swap, updates are accumulated holding the read lock
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Serializes the flushes, the journal writes and the aggregate loading
+     */
+    private final Object flushLock = new Object();
+
+    private volatile ConcurrentMap<String, Delta> pending = new ConcurrentHashMap<String, Delta>();
+
+    /**
+     * Deltas the store failed to write on the last flush, retried before any other
+     */
+    private List<Delta> leftovers = new ArrayList<Delta>();
+
+    /**
+     * Whether updates came in since the last journal write
+     */
+    private volatile boolean dirty;
+
+    /**
+     * Used quota by tile set id, {@code null} until queried
+     */
+    private volatile ConcurrentMap<String, Usage> usage;
+
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * @param store the store to write the updates to
+     * @param directory the directory holding the update journal, or {@code null} to disable it
+     * @param flushInterval the interval between flushes, in seconds
+     */
+    QuotaUsageBuffer(QuotaStore store, File directory, long flushInterval) {
+        this.store = store;
+        this.directory = directory;
+        if (directory != null) {
+            replay();
+        }
+        if (flushInterval > 0) {
+            flusher = ThreadPools.newSingleThreadScheduledExecutor("GWC disk quota flusher");
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, flushInterval, flushInterval, TimeUnit.SECONDS);
+            if (directory != null) {
+                flusher.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        checkpoint();
+                    }
+                }, JOURNAL_INTERVAL, JOURNAL_INTERVAL, TimeUnit.SECONDS);
+            }
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Accumulates a quota and tile count update
+     */
+    public void add(TileSet tileSet, Quota quotaDiff,
+            Collection<PageStatsPayload> tileCountDiffs) {
+        final long bytes = quotaDiff == null ? 0 : quotaDiff.getBytes().longValue();
+        lock.readLock().lock();
+        try {
+            accumulate(pending, tileSet, bytes, tileCountDiffs);
+            ConcurrentMap<String, Usage> usage = this.usage;
+            if (usage != null) {
+                getUsage(usage, tileSet).bytes.addAndGet(bytes);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (!dirty) {
+            dirty = true;
+        }
+    }
+
+    private static void accumulate(ConcurrentMap<String, Delta> deltas, TileSet tileSet,
+            long bytes, Collection<PageStatsPayload> tileCountDiffs) {
+        Delta delta = deltas.get(tileSet.getId());
+        if (delta == null) {
+            delta = new Delta(tileSet);
+            Delta existing = deltas.putIfAbsent(tileSet.getId(), delta);
+            if (existing != null) {
+                delta = existing;
+            }
+        }
+        delta.add(bytes, tileCountDiffs);
+    }
+
+    private static Usage getUsage(ConcurrentMap<String, Usage> usage, TileSet tileSet) {
+        Usage result = usage.get(tileSet.getId());
+        if (result == null) {
+            result = new Usage(tileSet);
+            Usage existing = usage.putIfAbsent(tileSet.getId(), result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes the pending updates to the store
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            if (!leftovers.isEmpty()) {
+                leftovers = write(leftovers);
+                if (!leftovers.isEmpty()) {
+                    // the store is still failing, keep accumulating and journaling the updates
+                    return;
+                }
+            }
+            // all the deltas being flushed made it to the store
+            delete(FLUSHING_JOURNAL);
+            delete(FLUSHED_TILESETS);
+
+            final Map<String, Delta> drained;
+            lock.writeLock().lock();
+            try {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                drained = pending;
+                pending = new ConcurrentHashMap<String, Delta>();
+                dirty = false;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            rotateJournal(drained.values());
+
+            leftovers = write(drained.values());
+            if (leftovers.isEmpty()) {
+                delete(FLUSHING_JOURNAL);
+                delete(FLUSHED_TILESETS);
+            }
+        }
+    }
+
+    /**
+     * Writes the deltas to the store, recording the used quota of each tile set before writing
+     * it
+     *
+     * @return the deltas the store failed to write
+     */
+    private List<Delta> write(Collection<Delta> deltas) {
+        List<Delta> failed = new ArrayList<Delta>();
+        JournalOutput flushed = open(FLUSHED_TILESETS);
+        try {
+            for (Delta delta : deltas) {
+                try {
+                    if (flushed != null) {
+                        flushed = record(flushed, delta.tileSet.getId());
+                    }
+                    store.addToQuotaAndTileCounts(delta.tileSet, new Quota(BigInteger
+                            .valueOf(delta.bytes.get())), delta.getPayloads());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failed.add(delta);
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to update the quota of tile set "
+                            + delta.tileSet.getId() + ", will retry on next flush", e);
+                    failed.add(delta);
+                }
+            }
+        } finally {
+            close(flushed);
+        }
+        return failed;
+    }
+
+    /**
+     * Records the used quota of a tile set before its delta is written to the store
+     *
+     * @return the output to record the next tile sets to, {@code null} if recording failed
+     */
+    private JournalOutput record(JournalOutput flushed, String tileSetId)
+            throws InterruptedException {
+        try {
+            flushed.out.writeUTF(tileSetId);
+            flushed.out.writeLong(getStoredBytes(tileSetId));
+            flushed.sync();
+            return flushed;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to record the flush of " + tileSetId
+                    + ", the updates being flushed may be counted twice in case of a crash", e);
+            close(flushed);
+            return null;
+        }
+    }
+
+    private long getStoredBytes(String tileSetId) throws InterruptedException {
+        Quota stored = store.getUsedQuotaByTileSetId(tileSetId);
+        return stored == null ? 0 : stored.getBytes().longValue();
+    }
+
+    /**
+     * Flushes the pending updates and resets the used quota aggregate, to be called before the
+     * tile sets of the store are changed
+     */
+    public void invalidate() {
+        synchronized (flushLock) {
+            flush();
+            usage = null;
+        }
+    }
+
+    /**
+     * Flushes the pending updates and stops flushing them
+     */
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        flush();
+        checkpoint();
+    }
+
+    /**
+     * Stops flushing and drops the pending updates along with their journal, as the store is
+     * being dismissed
+     */
+    public void discard() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        synchronized (flushLock) {
+            lock.writeLock().lock();
+            try {
+                pending = new ConcurrentHashMap<String, Delta>();
+                leftovers = new ArrayList<Delta>();
+                delete(JOURNAL);
+                delete(JOURNAL_TEMP);
+                delete(FLUSHING_JOURNAL);
+                delete(FLUSHED_TILESETS);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    public Quota getUsedQuotaByTileSetId(String tileSetId) throws InterruptedException {
+        Usage used = getUsage().get(tileSetId);
+        return new Quota(BigInteger.valueOf(used == null ? 0 : used.bytes.get()));
+    }
+
+    public Quota getUsedQuotaByLayerName(String layerName) throws InterruptedException {
+        long bytes = 0;
+        for (Usage used : getUsage().values()) {
+            if (layerName.equals(used.tileSet.getLayerName())) {
+                bytes += used.bytes.get();
+            }
+        }
+        return new Quota(BigInteger.valueOf(bytes));
+    }
+
+    public Quota getUsedQuotaByGridSet(String gridSetId) throws InterruptedException {
+        long bytes = 0;
+        for (Usage used : getUsage().values()) {
+            if (gridSetId.equals(used.tileSet.getGridsetId())) {
+                bytes += used.bytes.get();
+            }
+        }
+        return new Quota(BigInteger.valueOf(bytes));
+    }
+
+    public Quota getGloballyUsedQuota() throws InterruptedException {
+        long bytes = 0;
+        for (Usage used : getUsage().values()) {
+            bytes += used.bytes.get();
+        }
+        return new Quota(BigInteger.valueOf(bytes));
+    }
+
+    private Map<String, Usage> getUsage() throws InterruptedException {
+        Map<String, Usage> result = usage;
+        if (result != null) {
+            return result;
+        }
+        synchronized (flushLock) {
+            if (usage != null) {
+                return usage;
+            }
+            lock.writeLock().lock();
+            try {
+                final ConcurrentMap<String, Usage> loaded = new ConcurrentHashMap<String, Usage>();
+                final InterruptedException[] interrupted = new InterruptedException[1];
+                store.accept(new TileSetVisitor() {
+                    @Override
+                    public void visit(TileSet tileSet, QuotaStore store) {
+                        try {
+                            Quota used = store.getUsedQuotaByTileSetId(tileSet.getId());
+                            getUsage(loaded, tileSet).bytes.addAndGet(
+                                    used.getBytes().longValue());
+                        } catch (InterruptedException e) {
+                            interrupted[0] = e;
+                        }
+                    }
+                });
+                if (interrupted[0] != null) {
+                    throw interrupted[0];
+                }
+                for (Delta delta : pending.values()) {
+                    getUsage(loaded, delta.tileSet).bytes.addAndGet(delta.bytes.get());
+                }
+                for (Delta delta : leftovers) {
+                    getUsage(loaded, delta.tileSet).bytes.addAndGet(delta.bytes.get());
+                }
+                usage = loaded;
+                return loaded;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /*
+     * Journal handling. Each record holds the tile set id, the quota difference and the tile
+     * count difference of each page. The flushed tile sets file holds the tile set id and the
+     * used quota in the store before the delta was written.
+     */
+
+    /**
+     * Writes the pending updates to the journal, called periodically by the flusher
+     */
+    void checkpoint() {
+        if (directory == null) {
+            return;
+        }
+        synchronized (flushLock) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            Collection<Delta> deltas = pending.values();
+            if (deltas.isEmpty()) {
+                delete(JOURNAL);
+            } else {
+                writeJournal(deltas, JOURNAL);
+            }
+        }
+    }
+
+    /**
+     * Turns the journal into the list of deltas being written to the store
+     */
+    private void rotateJournal(Collection<Delta> drained) {
+        if (directory == null) {
+            return;
+        }
+        // the journal is rewritten with the exact drained deltas first, and then renamed, so
+        // that a crash at any point finds each of them in one file only
+        if (writeJournal(drained, JOURNAL)) {
+            try {
+                move(JOURNAL, FLUSHING_JOURNAL);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to rotate the disk quota journal", e);
+            }
+        }
+    }
+
+    /**
+     * Atomically replaces the named journal with the given deltas
+     *
+     * @return {@code true} if the journal was written
+     */
+    private boolean writeJournal(Collection<Delta> deltas, String name) {
+        delete(JOURNAL_TEMP);
+        JournalOutput output = open(JOURNAL_TEMP);
+        if (output == null) {
+            return false;
+        }
+        try {
+            try {
+                for (Delta delta : deltas) {
+                    List<PageStatsPayload> payloads = delta.getPayloads();
+                    output.out.writeUTF(delta.tileSet.getId());
+                    output.out.writeLong(delta.bytes.get());
+                    output.out.writeInt(payloads.size());
+                    for (PageStatsPayload payload : payloads) {
+                        TilePage page = payload.getPage();
+                        output.out.writeInt(page.getPageX());
+                        output.out.writeInt(page.getPageY());
+                        output.out.writeInt(page.getZoomLevel());
+                        output.out.writeInt(payload.getNumTiles());
+                    }
+                }
+                output.sync();
+            } finally {
+                close(output);
+            }
+            move(JOURNAL_TEMP, name);
+            return true;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write the disk quota journal, the pending "
+                    + "updates won't be recovered in case of a crash", e);
+            delete(JOURNAL_TEMP);
+            return false;
+        }
+    }
+
+    /**
+     * Picks up the updates journaled by a previous run and not written to the store, and writes
+     * them
+     */
+    private void replay() {
+        File current = new File(directory, JOURNAL);
+        File flushing = new File(directory, FLUSHING_JOURNAL);
+        delete(JOURNAL_TEMP);
+        if (!flushing.exists()) {
+            // leftover of a flush that failed to clean up
+            delete(FLUSHED_TILESETS);
+        }
+        if (!current.exists() && !flushing.exists()) {
+            return;
+        }
+        LOGGER.info("Replaying the disk quota updates journaled in " + directory);
+        if (flushing.exists()) {
+            Map<String, Long> flushed = readFlushed();
+            ConcurrentMap<String, Delta> deltas = new ConcurrentHashMap<String, Delta>();
+            read(flushing, deltas);
+            for (Delta delta : deltas.values()) {
+                Long before = flushed.get(delta.tileSet.getId());
+                if (before == null || !isWritten(delta, before)) {
+                    leftovers.add(delta);
+                }
+            }
+        }
+        read(current, pending);
+        flush();
+    }
+
+    /**
+     * Whether a delta whose tile set held the given quota before being written made it to the
+     * store
+     */
+    private boolean isWritten(Delta delta, long before) {
+        if (delta.bytes.get() == 0) {
+            // only tile counts changed, which cannot be told apart, better to miss them than to
+            // count them twice
+            return true;
+        }
+        try {
+            return getStoredBytes(delta.tileSet.getId()) != before;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to check the quota of tile set "
+                    + delta.tileSet.getId() + ", replaying its updates", e);
+            return false;
+        }
+    }
+
+    private Map<String, Long> readFlushed() {
+        Map<String, Long> flushed = new HashMap<String, Long>();
+        File file = new File(directory, FLUSHED_TILESETS);
+        if (!file.exists()) {
+            return flushed;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                    file)));
+            try {
+                while (true) {
+                    String tileSetId = in.readUTF();
+                    // the last record wins, retried tile sets are recorded again
+                    flushed.put(tileSetId, in.readLong());
+                }
+            } catch (EOFException e) {
+                // done
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read " + file, e);
+        }
+        return flushed;
+    }
+
+    private void read(File file, ConcurrentMap<String, Delta> deltas) {
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                    file)));
+            try {
+                while (true) {
+                    String tileSetId = in.readUTF();
+                    long bytes = in.readLong();
+                    int pages = in.readInt();
+                    List<PageStatsPayload> payloads = new ArrayList<PageStatsPayload>(pages);
+                    for (int i = 0; i < pages; i++) {
+                        int x = in.readInt();
+                        int y = in.readInt();
+                        int z = in.readInt();
+                        PageStatsPayload payload = new PageStatsPayload(new TilePage(tileSetId,
+                                x, y, z));
+                        payload.setNumTiles(in.readInt());
+                        payloads.add(payload);
+                    }
+                    TileSet tileSet = store.getTileSetById(tileSetId);
+                    if (tileSet != null) {
+                        accumulate(deltas, tileSet, bytes, payloads);
+                    }
+                }
+            } catch (EOFException e) {
+                // done
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to replay the disk quota journal " + file, e);
+        }
+    }
+
+    /**
+     * A journal file being written
+     */
+    private static final class JournalOutput {
+
+        final FileOutputStream file;
+
+        final DataOutputStream out;
+
+        JournalOutput(FileOutputStream file) {
+            this.file = file;
+            this.out = new DataOutputStream(new BufferedOutputStream(file));
+        }
+
+        /**
+         * Forces the contents written so far to disk
+         */
+        void sync() throws IOException {
+            out.flush();
+            file.getFD().sync();
+        }
+    }
+
+    private JournalOutput open(String name) {
+        if (directory == null) {
+            return null;
+        }
+        try {
+            return new JournalOutput(new FileOutputStream(new File(directory, name), true));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to open the disk quota journal " + name
+                    + ", updates won't be recovered in case of a crash", e);
+            return null;
+        }
+    }
+
+    private static void close(JournalOutput output) {
+        if (output == null) {
+            return;
+        }
+        try {
+            output.out.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to close the disk quota journal", e);
+        }
+    }
+
+    private void move(String source, String target) throws IOException {
+        Files.move(new File(directory, source).toPath(), new File(directory, target).toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void delete(String name) {
+        if (directory != null) {
+            new File(directory, name).delete();
+        }
+    }
+}
@@ -0,0 +1,509 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.geowebcache.storage.BlobStoreListener;
+
+/**
+ * Keeps track of the most requested tiles of each tile layer.
+ * <p>
+ * Tile accesses are counted per layer in a count-min sketch, a fixed size array of counters
+ * giving an upper bound of the number of hits of any tile. For each gridset and zoom level of a
+ * layer the {@link #getTopTiles() top tiles} by estimated hits are retained as
+ * {@link HotTile}s, so memory use does not depend on the number of tiles requested. Counts can
+ * be {@link #decay() halved} periodically so that the heatmap follows the current usage.
+ * </p>
+ * <p>
+ * The heatmap listens to blob store events to know which of the hot tiles have been
+ * truncated and are waiting to be seeded again, see {@link #getTruncated(int)} and
+ * {@link TileWarmer}.
+ * </p>
+ */
+public class TileAccessHeatmap implements BlobStoreListener {
+
+    /**
+     * Number of rows (hash functions) of the sketch
+     */
+    static final int DEPTH = 4;
+
+    /**
+     * Number of counters per row of the sketch
+     */
+    static final int WIDTH = 1024;
+
+    static final int DEFAULT_TOP_TILES = 64;
+
+    /**
+     * A frequently requested tile
+     */
+    public static final class HotTile {
+
+        volatile String layerName;
+
+        final String gridSetId;
+
+        final String format;
+
+        final Map<String, String> parameters;
+
+        final long x;
+
+        final long y;
+
+        final int z;
+
+        volatile long hits;
+
+        volatile boolean truncated;
+
+        HotTile(String layerName, String gridSetId, String format,
+                Map<String, String> parameters, long x, long y, int z) {
+            this.layerName = layerName;
+            this.gridSetId = gridSetId;
+            this.format = format;
+            this.parameters = parameters;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        public String getLayerName() {
+            return layerName;
+        }
+
+        public String getGridSetId() {
+            return gridSetId;
+        }
+
+        public String getFormat() {
+            return format;
+        }
+
+        public Map<String, String> getParameters() {
+            return parameters;
+        }
+
+        public long[] getTileIndex() {
+            return new long[] { x, y, z };
+        }
+
+        /**
+         * @return the estimated number of hits, decayed over time
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * @return {@code true} if the tile has been removed from the cache since last stored
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        @Override
+        public String toString() {
+            return "HotTile[" + layerName + ", " + gridSetId + ", " + format + ", " + parameters
+                    + ", " + x + ", " + y + ", " + z + ", hits=" + hits + "]";
+        }
+    }
+
+    /**
+     * The hot tiles of a gridset zoom level, guarded by the level monitor
+     */
+    static final class ZoomLevel {
+
+        /** Hot tiles by position, there can be one per format and parameters combination */
+        final Map<List<Long>, List<HotTile>> tiles = new HashMap<List<Long>, List<HotTile>>();
+
+        volatile int size;
+
+        /** Lowest hit count among the hot tiles, once the level is full */
+        volatile long threshold;
+
+        List<HotTile> at(long x, long y) {
+            return tiles.get(Arrays.asList(x, y));
+        }
+
+        void offer(HotTile candidate, long estimate, int topTiles) {
+            List<Long> position = Arrays.asList(candidate.x, candidate.y);
+            List<HotTile> here = tiles.get(position);
+            if (here != null) {
+                for (HotTile tile : here) {
+                    if (tile.format.equals(candidate.format)
+                            && equal(tile.parameters, candidate.parameters)) {
+                        tile.hits = Math.max(tile.hits, estimate);
+                        return;
+                    }
+                }
+            }
+            if (size >= topTiles) {
+                HotTile coldest = coldest();
+                if (coldest == null || coldest.hits >= estimate) {
+                    return;
+                }
+                remove(coldest);
+            }
+            if (here == null) {
+                here = new ArrayList<HotTile>(1);
+                tiles.put(position, here);
+            }
+            candidate.hits = estimate;
+            here.add(candidate);
+            size++;
+            if (size >= topTiles) {
+                HotTile coldest = coldest();
+                threshold = coldest == null ? 0 : coldest.hits;
+            }
+        }
+
+        HotTile coldest() {
+            HotTile coldest = null;
+            for (List<HotTile> here : tiles.values()) {
+                for (HotTile tile : here) {
+                    if (coldest == null || tile.hits < coldest.hits) {
+                        coldest = tile;
+                    }
+                }
+            }
+            return coldest;
+        }
+
+        void remove(HotTile tile) {
+            List<Long> position = Arrays.asList(tile.x, tile.y);
+            List<HotTile> here = tiles.get(position);
+            if (here != null && here.remove(tile)) {
+                size--;
+                if (here.isEmpty()) {
+                    tiles.remove(position);
+                }
+            }
+        }
+
+        void decay() {
+            for (Iterator<List<HotTile>> it = tiles.values().iterator(); it.hasNext();) {
+                List<HotTile> here = it.next();
+                for (Iterator<HotTile> tit = here.iterator(); tit.hasNext();) {
+                    HotTile tile = tit.next();
+                    tile.hits >>= 1;
+                    if (tile.hits == 0 && !tile.truncated) {
+                        tit.remove();
+                        size--;
+                    }
+                }
+                if (here.isEmpty()) {
+                    it.remove();
+                }
+            }
+            threshold >>= 1;
+        }
+    }
+
+    /**
+     * Sketch and hot tiles of a tile layer
+     */
+    static final class LayerHeatmap {
+        final AtomicIntegerArray sketch = new AtomicIntegerArray(DEPTH * WIDTH);
+
+        final ConcurrentMap<String, ZoomLevel> levels = new ConcurrentHashMap<String, ZoomLevel>();
+
+        /**
+         * Counts a hit and returns the estimated number of hits for the key
+         */
+        long add(long hash) {
+            final int h1 = (int) hash;
+            final int h2 = (int) (hash >>> 32);
+            int estimate = Integer.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                int index = i * WIDTH + ((h1 + i * h2) & 0x7fffffff) % WIDTH;
+                int count = sketch.incrementAndGet(index);
+                if (count < 0) {
+                    // overflown, saturate
+                    sketch.set(index, Integer.MAX_VALUE);
+                    count = Integer.MAX_VALUE;
+                }
+                estimate = Math.min(estimate, count);
+            }
+            return estimate;
+        }
+
+        ZoomLevel level(String gridSetId, int z, boolean create) {
+            String key = gridSetId + "/" + z;
+            ZoomLevel level = levels.get(key);
+            if (level == null && create) {
+                level = new ZoomLevel();
+                ZoomLevel existing = levels.putIfAbsent(key, level);
+                if (existing != null) {
+                    level = existing;
+                }
+            }
+            return level;
+        }
+
+        void decay() {
+            for (int i = 0; i < sketch.length(); i++) {
+                // concurrent increments may get lost, no big deal for an estimate
+                sketch.set(i, sketch.get(i) >> 1);
+            }
+            for (ZoomLevel level : levels.values()) {
+                synchronized (level) {
+                    level.decay();
+                }
+            }
+        }
+    }
+
+    private final ConcurrentMap<String, LayerHeatmap> layers = new ConcurrentHashMap<String, LayerHeatmap>();
+
+    private final int topTiles;
+
+    public TileAccessHeatmap() {
+        this(DEFAULT_TOP_TILES);
+    }
+
+    /**
+     * @param topTiles number of hot tiles retained per layer, gridset and zoom level
+     */
+    public TileAccessHeatmap(int topTiles) {
+        this.topTiles = topTiles;
+    }
+
+    /**
+     * @return the number of hot tiles retained per layer, gridset and zoom level
+     */
+    public int getTopTiles() {
+        return topTiles;
+    }
+
+    /**
+     * Records a tile request
+     */
+    public void record(String layerName, String gridSetId, String format,
+            Map<String, String> parameters, long[] tileIndex) {
+        final long x = tileIndex[0];
+        final long y = tileIndex[1];
+        final int z = (int) tileIndex[2];
+
+        LayerHeatmap layer = layers.get(layerName);
+        if (layer == null) {
+            layer = new LayerHeatmap();
+            LayerHeatmap existing = layers.putIfAbsent(layerName, layer);
+            if (existing != null) {
+                layer = existing;
+            }
+        }
+        final long estimate = layer.add(hash(gridSetId, format, parameters, x, y, z));
+        final ZoomLevel level = layer.level(gridSetId, z, true);
+        if (level.size >= topTiles && estimate <= level.threshold) {
+            // not hot enough, skip locking
+            return;
+        }
+        synchronized (level) {
+            HotTile candidate = new HotTile(layerName, gridSetId, format, parameters, x, y, z);
+            level.offer(candidate, estimate, topTiles);
+        }
+    }
+
+    static long hash(String gridSetId, String format, Map<String, String> parameters, long x,
+            long y, int z) {
+        long h = gridSetId.hashCode();
+        h = 31 * h + format.hashCode();
+        h = 31 * h + (parameters == null ? 0 : parameters.hashCode());
+        h = 31 * h + x;
+        h = 31 * h + y;
+        h = 31 * h + z;
+        // finalizer from MurmurHash3, spreads the bits of both halves used as hash functions
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    static boolean equal(Map<String, String> p1, Map<String, String> p2) {
+        if (p1 == null || p1.isEmpty()) {
+            return p2 == null || p2.isEmpty();
+        }
+        return p1.equals(p2);
+    }
+
+    /**
+     * @return the hot tiles of the given layer, hottest first
+     */
+    public List<HotTile> getHotTiles(String layerName) {
+        List<HotTile> result = new ArrayList<HotTile>();
+        LayerHeatmap layer = layers.get(layerName);
+        if (layer != null) {
+            collect(layer, result, false);
+        }
+        sort(result);
+        return result;
+    }
+
+    /**
+     * @return up to {@code limit} hot tiles, among all layers, that have been truncated and not
+     *         stored again since, hottest first
+     */
+    public List<HotTile> getTruncated(int limit) {
+        List<HotTile> result = new ArrayList<HotTile>();
+        for (LayerHeatmap layer : layers.values()) {
+            collect(layer, result, true);
+        }
+        sort(result);
+        return result.size() > limit ? new ArrayList<HotTile>(result.subList(0, limit)) : result;
+    }
+
+    private void collect(LayerHeatmap layer, List<HotTile> result, boolean truncatedOnly) {
+        for (ZoomLevel level : layer.levels.values()) {
+            synchronized (level) {
+                for (List<HotTile> here : level.tiles.values()) {
+                    for (HotTile tile : here) {
+                        if (!truncatedOnly || tile.truncated) {
+                            result.add(tile);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void sort(List<HotTile> tiles) {
+        Collections.sort(tiles, new Comparator<HotTile>() {
+            @Override
+            public int compare(HotTile t1, HotTile t2) {
+                long h1 = t1.hits;
+                long h2 = t2.hits;
+                return h1 > h2 ? -1 : (h1 < h2 ? 1 : 0);
+            }
+        });
+    }
+
+    /**
+     * Halves all the hit counts, dropping the hot tiles whose count reaches zero
+     */
+    public void decay() {
+        for (LayerHeatmap layer : layers.values()) {
+            layer.decay();
+        }
+    }
+
+    /**
+     * Marks all the hot tiles of the layer as truncated, for truncations that don't notify each
+     * tile removal
+     */
+    public void truncated(String layerName) {
+        LayerHeatmap layer = layers.get(layerName);
+        if (layer != null) {
+            for (ZoomLevel level : layer.levels.values()) {
+                synchronized (level) {
+                    for (List<HotTile> here : level.tiles.values()) {
+                        for (HotTile tile : here) {
+                            tile.truncated = true;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all the information about a layer
+     */
+    public void clear(String layerName) {
+        layers.remove(layerName);
+    }
+
+    private void mark(String layerName, String gridSetId, String blobFormat, long x, long y,
+            int z, boolean truncated) {
+        LayerHeatmap layer = layers.get(layerName);
+        if (layer == null) {
+            return;
+        }
+        ZoomLevel level = layer.level(gridSetId, z, false);
+        if (level == null) {
+            return;
+        }
+        synchronized (level) {
+            List<HotTile> here = level.at(x, y);
+            if (here != null) {
+                // the parameters id can't be matched to the parameters, mark all of them
+                for (HotTile tile : here) {
+                    if (blobFormat == null || tile.format.equals(blobFormat)) {
+                        tile.truncated = truncated;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void tileStored(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize) {
+        mark(layerName, gridSetId, blobFormat, x, y, z, false);
+    }
+
+    @Override
+    public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize) {
+        mark(layerName, gridSetId, blobFormat, x, y, z, true);
+    }
+
+    @Override
+    public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize, long oldSize) {
+        mark(layerName, gridSetId, blobFormat, x, y, z, false);
+    }
+
+    @Override
+    public void layerDeleted(String layerName) {
+        clear(layerName);
+    }
+
+    @Override
+    public void layerRenamed(String oldLayerName, String newLayerName) {
+        LayerHeatmap layer = layers.remove(oldLayerName);
+        if (layer != null) {
+            for (ZoomLevel level : layer.levels.values()) {
+                synchronized (level) {
+                    for (List<HotTile> here : level.tiles.values()) {
+                        for (HotTile tile : here) {
+                            tile.layerName = newLayerName;
+                        }
+                    }
+                }
+            }
+            layers.put(newLayerName, layer);
+        }
+    }
+
+    /**
+     * Drops the hot tiles of a gridset removed from a layer
+     */
+    public void gridSubsetDeleted(String layerName, String gridSetId) {
+        LayerHeatmap layer = layers.get(layerName);
+        if (layer == null) {
+            return;
+        }
+        for (Iterator<String> it = layer.levels.keySet().iterator(); it.hasNext();) {
+            if (it.next().startsWith(gridSetId + "/")) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+import org.geowebcache.io.Resource;
+
+/**
+ * A bounded pool of off-heap memory for the {@link MemoryTileCache}.
+ * <p>
+ * The memory is allocated in direct slabs of {@link #SLAB_SIZE} bytes, up to the pool size, and
+ * handed out in pages of {@link #PAGE_SIZE} bytes, so that the memory of evicted tiles is reused
+ * instead of waiting for the garbage collector to free their buffers. As cached tiles are served
+ * straight from the pages, released pages are only reused after a grace period, and never while
+ * a tile is still being read out of them, however slow the client is.
+ * </p>
+ */
+class TileBufferPool {
+
+    static final int PAGE_SIZE = 4096;
+
+    static final int SLAB_SIZE = 256 * PAGE_SIZE;
+
+    /**
+     * Time, in milliseconds, released pages are kept aside before being reused
+     */
+    static final long GRACE_PERIOD = 30000;
+
+    /**
+     * The pages holding a tile
+     */
+    static final class Allocation {
+        final ByteBuffer[] pages;
+
+        final int length;
+
+        /**
+         * When the pages were released, zero while the allocation is live
+         */
+        volatile long released;
+
+        /**
+         * The reads in progress, the pages are not reused until they are done
+         */
+        int readers;
+
+        /**
+         * Whether the pages have been handed out again
+         */
+        boolean recycled;
+
+        Allocation(ByteBuffer[] pages, int length) {
+            this.pages = pages;
+            this.length = length;
+        }
+
+        int weight() {
+            return pages.length * PAGE_SIZE;
+        }
+    }
+
+    private final int maxPages;
+
+    private final long gracePeriod;
+
+    private final Deque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+
+    private final Deque<Allocation> released = new ArrayDeque<Allocation>();
+
+    private ByteBuffer slab;
+
+    private int pages;
+
+    /**
+     * @param maxSize the maximum amount of off-heap memory used, in bytes
+     */
+    TileBufferPool(long maxSize) {
+        this(maxSize, GRACE_PERIOD);
+    }
+
+    TileBufferPool(long maxSize, long gracePeriod) {
+        this.maxPages = (int) Math.min(Integer.MAX_VALUE, maxSize / PAGE_SIZE);
+        this.gracePeriod = gracePeriod;
+    }
+
+    /**
+     * Copies the tile contents in a new allocation
+     *
+     * @return the allocation, or {@code null} if the pool has no room left for it
+     */
+    synchronized Allocation allocate(byte[] contents) {
+        int count = (contents.length + PAGE_SIZE - 1) / PAGE_SIZE;
+        recycle(System.currentTimeMillis());
+        while (free.size() < count && pages < maxPages) {
+            free.push(newPage());
+        }
+        if (free.size() < count) {
+            return null;
+        }
+        ByteBuffer[] allocated = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            ByteBuffer page = free.pop();
+            page.clear();
+            int offset = i * PAGE_SIZE;
+            page.put(contents, offset, Math.min(PAGE_SIZE, contents.length - offset));
+            page.flip();
+            allocated[i] = page;
+        }
+        return new Allocation(allocated, contents.length);
+    }
+
+    /**
+     * Gives back the pages of an allocation, they will be reused once the grace period is over
+     */
+    synchronized void release(Allocation allocation) {
+        if (allocation.released == 0) {
+            allocation.released = System.currentTimeMillis();
+            released.add(allocation);
+        }
+    }
+
+    private void recycle(long now) {
+        for (Iterator<Allocation> it = released.iterator(); it.hasNext();) {
+            Allocation allocation = it.next();
+            if (allocation.released + gracePeriod > now) {
+                // released in order, the others are even more recent
+                break;
+            } else if (allocation.readers == 0) {
+                it.remove();
+                allocation.recycled = true;
+                for (ByteBuffer page : allocation.pages) {
+                    free.push(page);
+                }
+            }
+        }
+    }
+
+    private ByteBuffer newPage() {
+        if (slab == null || !slab.hasRemaining()) {
+            int slabPages = Math.min(SLAB_SIZE / PAGE_SIZE, maxPages - pages);
+            slab = ByteBuffer.allocateDirect(slabPages * PAGE_SIZE);
+        }
+        slab.limit(slab.position() + PAGE_SIZE);
+        ByteBuffer page = slab.slice();
+        slab.position(slab.limit());
+        slab.limit(slab.capacity());
+        pages++;
+        return page;
+    }
+
+    /**
+     * @return the off-heap memory allocated so far, in bytes
+     */
+    synchronized long getAllocatedSize() {
+        return (long) pages * PAGE_SIZE;
+    }
+
+    /**
+     * Whether the pages of an allocation may have been reused by now
+     */
+    synchronized boolean isReused(Allocation allocation) {
+        long released = allocation.released;
+        return allocation.recycled
+                || (released != 0 && allocation.readers == 0 && released + gracePeriod <= System
+                        .currentTimeMillis());
+    }
+
+    /**
+     * Keeps the pages of an allocation from being reused until {@link #unpin(Allocation)} is
+     * called
+     *
+     * @throws IOException if the pages may have been reused already
+     */
+    synchronized void pin(Allocation allocation) throws IOException {
+        if (isReused(allocation)) {
+            throw new IOException("The memory of the cached tile has been reused");
+        }
+        allocation.readers++;
+    }
+
+    synchronized void unpin(Allocation allocation) {
+        allocation.readers--;
+    }
+
+    /**
+     * A read only resource serving the tile straight from its pages
+     */
+    Resource resource(final Allocation allocation, final long lastModified) {
+        return new Resource() {
+
+            @Override
+            public long getSize() {
+                return allocation.length;
+            }
+
+            @Override
+            public long transferTo(WritableByteChannel channel) throws IOException {
+                pin(allocation);
+                try {
+                    for (ByteBuffer page : allocation.pages) {
+                        ByteBuffer buffer = page.duplicate();
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                    }
+                } finally {
+                    unpin(allocation);
+                }
+                return allocation.length;
+            }
+
+            @Override
+            public InputStream getInputStream() throws IOException {
+                byte[] bytes = new byte[allocation.length];
+                pin(allocation);
+                try {
+                    int offset = 0;
+                    for (ByteBuffer page : allocation.pages) {
+                        ByteBuffer buffer = page.duplicate();
+                        int length = buffer.remaining();
+                        buffer.get(bytes, offset, length);
+                        offset += length;
+                    }
+                } finally {
+                    unpin(allocation);
+                }
+                return new ByteArrayInputStream(bytes);
+            }
+
+            @Override
+            public long transferFrom(ReadableByteChannel channel) throws IOException {
+                throw new UnsupportedOperationException("Cached tiles are read only");
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                throw new UnsupportedOperationException("Cached tiles are read only");
+            }
+
+            @Override
+            public long getLastModified() {
+                return lastModified;
+            }
+        };
+    }
+}
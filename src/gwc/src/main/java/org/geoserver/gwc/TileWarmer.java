@@ -0,0 +1,169 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.gwc.TileAccessHeatmap.HotTile;
+import org.geoserver.gwc.config.GWCConfig;
+import org.geoserver.util.ThreadPools;
+import org.geoserver.wms.RasterCleaner;
+import org.geotools.util.logging.Logging;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.StorageBroker;
+
+/**
+ * Re-seeds in the background the hot tiles of the {@link TileAccessHeatmap} that have been
+ * truncated, hottest first.
+ * <p>
+ * Every {@link #CYCLE_SECONDS} seconds, if {@link GWCConfig#isTileWarmingEnabled() enabled},
+ * the warmer seeds up to {@link #MAX_TILES_PER_CYCLE} truncated tiles, one at a time. After
+ * each tile it sleeps long enough to keep its CPU usage within
+ * {@link GWCConfig#getTileWarmingCpuBudget()} percent of a CPU, measured as the thread CPU time
+ * when the JVM supports it. Seeding a tile renders its whole metatile, the other hot tiles in
+ * it are then no longer truncated and are skipped.
+ * </p>
+ * <p>
+ * The heatmap counts are halved every {@link #DECAY_CYCLES} cycles.
+ * </p>
+ */
+public class TileWarmer implements Runnable {
+
+    private static final Logger LOGGER = Logging.getLogger(TileWarmer.class);
+
+    static final long CYCLE_SECONDS = 30;
+
+    static final int MAX_TILES_PER_CYCLE = 256;
+
+    static final int DECAY_CYCLES = 10;
+
+    private final GWC gwc;
+
+    private final TileAccessHeatmap heatmap;
+
+    private final StorageBroker storageBroker;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private ScheduledExecutorService executor;
+
+    private int cycles;
+
+    private volatile long seeded;
+
+    public TileWarmer(GWC gwc, TileAccessHeatmap heatmap, StorageBroker storageBroker) {
+        this.gwc = gwc;
+        this.heatmap = heatmap;
+        this.storageBroker = storageBroker;
+    }
+
+    /**
+     * Starts the background warming thread
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = ThreadPools.manage(Executors.newSingleThreadScheduledExecutor(ThreadPools
+                .threadFactory("GWC tile warmer", Thread.MIN_PRIORITY)));
+        executor.scheduleWithFixedDelay(this, CYCLE_SECONDS, CYCLE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public synchronized void dispose() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * @return the number of tiles seeded so far
+     */
+    public long getSeeded() {
+        return seeded;
+    }
+
+    @Override
+    public void run() {
+        try {
+            cycle();
+        } catch (RuntimeException e) {
+            // an exception would cancel the next runs
+            LOGGER.log(Level.WARNING, "Tile warming cycle failed", e);
+        }
+    }
+
+    /**
+     * Runs a warming cycle
+     */
+    void cycle() {
+        final GWCConfig config = gwc.getConfig();
+        if (!config.isTileWarmingEnabled()) {
+            return;
+        }
+        if (++cycles % DECAY_CYCLES == 0) {
+            heatmap.decay();
+        }
+        final int budget = Math.max(1, Math.min(100, config.getTileWarmingCpuBudget()));
+        final List<HotTile> truncated = heatmap.getTruncated(MAX_TILES_PER_CYCLE);
+        for (HotTile tile : truncated) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            if (!tile.isTruncated()) {
+                // stored meanwhile, e.g. as part of the metatile of a hotter one
+                continue;
+            }
+            final long start = cpuTime();
+            seed(tile);
+            final long used = cpuTime() - start;
+            final long pause = TimeUnit.NANOSECONDS.toMillis(used * (100 - budget) / budget);
+            if (pause > 0) {
+                try {
+                    Thread.sleep(pause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    void seed(HotTile hot) {
+        final String layerName = hot.getLayerName();
+        try {
+            TileLayer layer = gwc.getTileLayerByName(layerName);
+            MimeType mimeType = VectorTileMimeType.createFromFormat(hot.getFormat());
+            ConveyorTile tile = new ConveyorTile(storageBroker, layerName, hot.getGridSetId(),
+                    hot.getTileIndex(), mimeType, hot.getParameters(), null, null);
+            tile.setTileLayer(layer);
+            layer.seedTile(tile, false);
+            seeded++;
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Failed to warm up " + hot, e);
+        } finally {
+            // whatever the outcome, do not try again until truncated again
+            hot.truncated = false;
+            RasterCleaner.cleanup();
+        }
+    }
+
+    long cpuTime() {
+        if (threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled()) {
+            return threads.getCurrentThreadCpuTime();
+        }
+        return System.nanoTime();
+    }
+}
@@ -0,0 +1,282 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.util.ThreadPools;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.util.logging.Logging;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Collects the truncations requested by {@link GWCTransactionListener} and issues them in
+ * batches.
+ * <p>
+ * Truncations for the same tile layer arriving within {@link #getWindow() window} milliseconds
+ * of each other are merged: duplicate geometries are dropped and the remaining ones are
+ * truncated together, so that tiles touched by several transactions are only removed once.
+ * Envelopes contained in one already pending are dropped as well. Once a layer has more than
+ * {@link #MAX_GEOMETRIES} pending geometries they are replaced by their bounds.
+ * </p>
+ * <p>
+ * The window is set with the {@link #TRUNCATE_WINDOW} system/environment property, zero or
+ * less disables batching and truncates on the calling thread right away.
+ * </p>
+ */
+class TruncationBatcher {
+
+    private static final Logger LOGGER = Logging.getLogger(TruncationBatcher.class);
+
+    /**
+     * System/environment property setting the batching window in milliseconds
+     */
+    static final String TRUNCATE_WINDOW = "GEOSERVER_GWC_TRUNCATE_WINDOW";
+
+    static final long DEFAULT_WINDOW = 1000;
+
+    /**
+     * Maximum number of geometries pending for a layer before they are replaced by their bounds
+     */
+    static final int MAX_GEOMETRIES = 10000;
+
+    /**
+     * Truncations pending for a tile layer, in a given CRS
+     */
+    static final class Pending {
+        final String layerName;
+
+        final CoordinateReferenceSystem crs;
+
+        /** Pending geometries, bucketed by envelope to find duplicates */
+        final Map<Envelope, List<Geometry>> geometries = new HashMap<Envelope, List<Geometry>>();
+
+        int geometryCount;
+
+        final List<ReferencedEnvelope> envelopes = new ArrayList<ReferencedEnvelope>(2);
+
+        Pending(String layerName, CoordinateReferenceSystem crs) {
+            this.layerName = layerName;
+            this.crs = crs;
+        }
+
+        boolean add(Geometry geometry) {
+            Envelope key = geometry.getEnvelopeInternal();
+            List<Geometry> bucket = geometries.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<Geometry>(1);
+                geometries.put(key, bucket);
+            } else {
+                for (Geometry g : bucket) {
+                    if (g.equalsExact(geometry)) {
+                        return false;
+                    }
+                }
+            }
+            bucket.add(geometry);
+            geometryCount++;
+            if (geometryCount > MAX_GEOMETRIES) {
+                ReferencedEnvelope bounds = new ReferencedEnvelope(crs);
+                for (Envelope env : geometries.keySet()) {
+                    bounds.expandToInclude(env);
+                }
+                geometries.clear();
+                geometryCount = 0;
+                add(bounds);
+            }
+            return true;
+        }
+
+        boolean add(ReferencedEnvelope envelope) {
+            for (Iterator<ReferencedEnvelope> it = envelopes.iterator(); it.hasNext();) {
+                ReferencedEnvelope pending = it.next();
+                if (pending.contains((Envelope) envelope)) {
+                    return false;
+                }
+                if (envelope.contains((Envelope) pending)) {
+                    it.remove();
+                }
+            }
+            envelopes.add(envelope);
+            return true;
+        }
+
+        List<Geometry> getGeometries() {
+            List<Geometry> result = new ArrayList<Geometry>(geometryCount);
+            for (List<Geometry> bucket : geometries.values()) {
+                result.addAll(bucket);
+            }
+            return result;
+        }
+    }
+
+    private final GWC gwc;
+
+    private final long window;
+
+    private final ScheduledExecutorService executor;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /** guarded by this */
+    private Map<List<Object>, Pending> pending = new LinkedHashMap<List<Object>, Pending>();
+
+    /** guarded by this */
+    private boolean scheduled;
+
+    private volatile long merged;
+
+    TruncationBatcher(GWC gwc) {
+        this(gwc, lookupWindow());
+    }
+
+    TruncationBatcher(GWC gwc, long window) {
+        this.gwc = gwc;
+        this.window = window;
+        if (window > 0) {
+            executor = ThreadPools.newSingleThreadScheduledExecutor("GWC truncation batcher");
+        } else {
+            executor = null;
+        }
+    }
+
+    static long lookupWindow() {
+        String value = GeoServerExtensions.getProperty(TRUNCATE_WINDOW);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid " + TRUNCATE_WINDOW + " value: " + value);
+            }
+        }
+        return DEFAULT_WINDOW;
+    }
+
+    /**
+     * @return the batching window in milliseconds
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * @return the number of truncations dropped as duplicates of pending ones so far
+     */
+    public long getMerged() {
+        return merged;
+    }
+
+    /**
+     * Schedules truncation of the tiles of a layer intersecting the given geometries
+     */
+    public void truncate(String layerName, List<Geometry> geometries,
+            CoordinateReferenceSystem crs) {
+        synchronized (this) {
+            Pending p = pending(layerName, crs);
+            for (Geometry geometry : geometries) {
+                if (geometry != null && !geometry.isEmpty() && !p.add(geometry)) {
+                    merged++;
+                }
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Schedules truncation of the tiles of a layer intersecting the given bounds
+     */
+    public void truncate(String layerName, ReferencedEnvelope bounds) {
+        synchronized (this) {
+            if (!pending(layerName, bounds.getCoordinateReferenceSystem()).add(bounds)) {
+                merged++;
+            }
+        }
+        schedule();
+    }
+
+    private Pending pending(String layerName, CoordinateReferenceSystem crs) {
+        List<Object> key = Arrays.<Object> asList(layerName, crs);
+        Pending p = pending.get(key);
+        if (p == null) {
+            p = new Pending(layerName, crs);
+            pending.put(key, p);
+        }
+        return p;
+    }
+
+    private void schedule() {
+        if (executor == null) {
+            flush();
+            return;
+        }
+        synchronized (this) {
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        executor.schedule(flushTask, window, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Issues all the pending truncations
+     */
+    public void flush() {
+        Map<List<Object>, Pending> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new LinkedHashMap<List<Object>, Pending>();
+            scheduled = false;
+        }
+        for (Pending p : batch.values()) {
+            if (p.geometryCount > 0) {
+                try {
+                    gwc.truncate(p.layerName, p.getGeometries(), p.crs);
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Error truncating tile layer " + p.layerName
+                            + " for transaction affected geometries", e);
+                }
+            }
+            for (ReferencedEnvelope bounds : p.envelopes) {
+                try {
+                    gwc.truncate(p.layerName, bounds);
+                } catch (Exception e) {
+                    LOGGER.warning("Error truncating tile layer " + p.layerName
+                            + " for transaction affected bounds " + bounds);
+                }
+            }
+        }
+    }
+
+    /**
+     * Issues the pending truncations and stops the batching thread
+     */
+    public void dispose() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        flush();
+    }
+}
@@ -0,0 +1,82 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.geoserver.wms.mvt.MVT;
+import org.geowebcache.mime.MimeException;
+import org.geowebcache.mime.MimeType;
+
+/**
+ * The Mapbox vector tile format, unknown to GeoWebCache itself.
+ * <p>
+ * Vector tiles are not image tiles: they do not support meta tiling, each tile is produced by a
+ * single GetMap request in {@link MVT#MIME_TYPE} and cached as is. They are not styled either,
+ * so the STYLES parameter is not part of their cache key (see
+ * {@link #getCacheParameters(MimeType, Map)}) and one cached tile set serves every style.
+ * </p>
+ * <p>
+ * GeoWebCache's own {@link MimeType#createFromFormat(String)} lookup cannot be extended, use
+ * {@link #createFromFormat(String)} and {@link #createFromExtension(String)} instead to resolve
+ * the format names of GeoServer tile layers. The WMTS and TMS tile requests for this format are
+ * served by {@link org.geoserver.gwc.dispatch.VectorTileRequestHandler} before they reach
+ * GeoWebCache.
+ * </p>
+ */
+public class VectorTileMimeType extends MimeType {
+
+    public static final VectorTileMimeType MAPBOX_VECTOR_TILE = new VectorTileMimeType(
+            MVT.MIME_TYPE, "pbf", "mapbox-vector", MVT.MIME_TYPE);
+
+    private VectorTileMimeType(String mimeType, String fileExtension, String internalName,
+            String format) {
+        super(mimeType, fileExtension, internalName, format, false);
+    }
+
+    /**
+     * Same as {@link MimeType#createFromFormat(String)}, but also resolving the vector tile
+     * formats
+     */
+    public static MimeType createFromFormat(String formatStr) throws MimeException {
+        for (String format : MVT.OUTPUT_FORMATS) {
+            if (format.equalsIgnoreCase(formatStr)) {
+                return MAPBOX_VECTOR_TILE;
+            }
+        }
+        return MimeType.createFromFormat(formatStr);
+    }
+
+    /**
+     * Same as {@link MimeType#createFromExtension(String)}, but also resolving the vector tile
+     * extension
+     */
+    public static MimeType createFromExtension(String fileExtension) throws MimeException {
+        if (MAPBOX_VECTOR_TILE.getFileExtension().equalsIgnoreCase(fileExtension)) {
+            return MAPBOX_VECTOR_TILE;
+        }
+        return MimeType.createFromExtension(fileExtension);
+    }
+
+    /**
+     * Returns the tile parameters making up the cache key of a tile in the given format, that is,
+     * the parameters minus STYLES for vector tiles
+     */
+    public static Map<String, String> getCacheParameters(MimeType mimeType,
+            Map<String, String> parameters) {
+        if (!(mimeType instanceof VectorTileMimeType) || parameters == null) {
+            return parameters;
+        }
+        Map<String, String> result = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : parameters.entrySet()) {
+            if (!"STYLES".equalsIgnoreCase(entry.getKey())) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+}
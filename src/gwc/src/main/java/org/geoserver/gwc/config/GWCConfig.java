@@ -74,6 +74,26 @@ public class GWCConfig implements Cloneable, Serializable {
     
     private String lockProviderName;
 
+    /**
+     * Whether the most requested tiles are re-seeded in the background once truncated
+     */
+    private boolean tileWarmingEnabled;
+
+    /**
+     * Percentage of a CPU the background tile warmer is allowed to use
+     */
+    private int tileWarmingCpuBudget = 25;
+
+    /**
+     * Whether the most requested tiles are kept in memory in front of the blob store
+     */
+    private boolean memoryCacheEnabled;
+
+    /**
+     * Maximum size of the in memory tile cache, in megabytes
+     */
+    private int memoryCacheSize = 64;
+
     /**
      * Creates a new GWC config with default values
      */
@@ -106,6 +126,12 @@ public class GWCConfig implements Cloneable, Serializable {
         if (defaultVectorCacheFormats == null) {
             defaultVectorCacheFormats = new HashSet<String>();
         }
+        if (tileWarmingCpuBudget <= 0) {
+            tileWarmingCpuBudget = 25;
+        }
+        if (memoryCacheSize <= 0) {
+            memoryCacheSize = 64;
+        }
 
         return this;
     }
@@ -353,4 +379,50 @@ public class GWCConfig implements Cloneable, Serializable {
     public void setLockProviderName(String lockProviderName) {
         this.lockProviderName = lockProviderName;
     }
+
+    public boolean isTileWarmingEnabled() {
+        return tileWarmingEnabled;
+    }
+
+    /**
+     * Sets whether the most requested tiles are re-seeded in the background after being
+     * truncated, see {@link org.geoserver.gwc.TileWarmer}
+     */
+    public void setTileWarmingEnabled(boolean tileWarmingEnabled) {
+        this.tileWarmingEnabled = tileWarmingEnabled;
+    }
+
+    public int getTileWarmingCpuBudget() {
+        return tileWarmingCpuBudget;
+    }
+
+    /**
+     * Sets the percentage (1 to 100) of a CPU the tile warmer is allowed to use
+     */
+    public void setTileWarmingCpuBudget(int tileWarmingCpuBudget) {
+        this.tileWarmingCpuBudget = tileWarmingCpuBudget;
+    }
+
+    public boolean isMemoryCacheEnabled() {
+        return memoryCacheEnabled;
+    }
+
+    /**
+     * Sets whether tiles read from the blob store are kept in memory, see
+     * {@link org.geoserver.gwc.MemoryTileCache}
+     */
+    public void setMemoryCacheEnabled(boolean memoryCacheEnabled) {
+        this.memoryCacheEnabled = memoryCacheEnabled;
+    }
+
+    public int getMemoryCacheSize() {
+        return memoryCacheSize;
+    }
+
+    /**
+     * Sets the maximum size of the in memory tile cache, in megabytes
+     */
+    public void setMemoryCacheSize(int memoryCacheSize) {
+        this.memoryCacheSize = memoryCacheSize;
+    }
 }
@@ -45,6 +45,8 @@ public class GwcServiceProxy {
 
     private final GeoWebCacheDispatcher gwcDispatcher;
 
+    private final VectorTileRequestHandler vectorTiles = new VectorTileRequestHandler();
+
     public GwcServiceProxy() {
         serviceInfo = new ServiceInfoImpl();
         serviceInfo.setId("gwc");
@@ -95,6 +97,12 @@ public class GwcServiceProxy {
             verifyAccess(rawRequest);
         }
 
+        // formats GWC itself does not know about
+        GwcOperationProxy vectorTile = vectorTiles.dispatch(rawRequest, rawRespose);
+        if (vectorTile != null) {
+            return vectorTile;
+        }
+
         gwcDispatcher.handleRequest(rawRequest, responseWrapper);
 
         final String contentType = responseWrapper.getContentType();
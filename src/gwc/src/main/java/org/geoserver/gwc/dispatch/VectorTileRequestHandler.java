@@ -0,0 +1,208 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc.dispatch;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.geoserver.gwc.GWC;
+import org.geoserver.gwc.VectorTileMimeType;
+import org.geoserver.ows.util.KvpUtils;
+import org.geoserver.platform.ServiceException;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.grid.GridSet;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.OutsideCoverageException;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.mime.MimeException;
+import org.geowebcache.mime.MimeType;
+
+/**
+ * Serves the WMTS and TMS tile requests for vector tiles.
+ * <p>
+ * GeoWebCache resolves the requested formats through its own {@link MimeType} lookup, which does
+ * not know about {@link VectorTileMimeType} and cannot be extended, so these requests are
+ * answered here, using the same tile layers and storage, before they reach GeoWebCache. All the
+ * other requests are left alone.
+ * </p>
+ */
+class VectorTileRequestHandler {
+
+    static final String WMTS_PATH = "/service/wmts";
+
+    static final String TMS_PATH = "/service/tms/1.0.0/";
+
+    /**
+     * Serves the request if it is a vector tile one
+     *
+     * @return the response, or {@code null} if the request is not a vector tile one
+     */
+    GwcOperationProxy dispatch(HttpServletRequest request, HttpServletResponse response)
+            throws Exception {
+        String path = request.getPathInfo();
+        if (path == null) {
+            return null;
+        }
+        if (path.toLowerCase().startsWith(WMTS_PATH)) {
+            return dispatchWMTS(request, response);
+        } else if (path.toLowerCase().startsWith(TMS_PATH)) {
+            return dispatchTMS(request, response, path.substring(TMS_PATH.length()));
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    GwcOperationProxy dispatchWMTS(HttpServletRequest request, HttpServletResponse response)
+            throws Exception {
+        Map<String, Object> kvp = KvpUtils.normalize(request.getParameterMap());
+        String format = (String) kvp.get("FORMAT");
+        if (!"GetTile".equalsIgnoreCase((String) kvp.get("REQUEST")) || !isVector(format)) {
+            return null;
+        }
+        TileLayer layer = getTileLayer((String) kvp.get("LAYER"));
+        GridSubset gridSubset = getGridSubset(layer, (String) kvp.get("TILEMATRIXSET"));
+        GridSet gridSet = gridSubset.getGridSet();
+        String tileMatrix = (String) kvp.get("TILEMATRIX");
+        int z = -1;
+        for (int i = 0; i < gridSet.getNumLevels(); i++) {
+            if (gridSet.getGrid(i).getName().equals(tileMatrix)) {
+                z = i;
+                break;
+            }
+        }
+        if (z < 0) {
+            throw new ServiceException("Unknown tile matrix " + tileMatrix,
+                    ServiceException.INVALID_PARAMETER_VALUE, "TILEMATRIX");
+        }
+        long column = parseIndex(kvp, "TILECOL");
+        long row = parseIndex(kvp, "TILEROW");
+        // WMTS rows go top down
+        long y = gridSet.getGrid(z).getNumTilesHigh() - 1 - row;
+        return getTile(layer, gridSubset, new long[] { column, y, z },
+                VectorTileMimeType.MAPBOX_VECTOR_TILE, request, response);
+    }
+
+    /**
+     * Handles paths like {@code layer@gridset@extension/z/x/y.extension}
+     */
+    GwcOperationProxy dispatchTMS(HttpServletRequest request, HttpServletResponse response,
+            String path) throws Exception {
+        String[] parts = path.split("/");
+        if (parts.length != 4 || parts[3].lastIndexOf('.') < 0) {
+            return null;
+        }
+        String extension = parts[3].substring(parts[3].lastIndexOf('.') + 1);
+        MimeType mimeType;
+        try {
+            mimeType = VectorTileMimeType.createFromExtension(extension);
+        } catch (MimeException e) {
+            return null;
+        }
+        if (!(mimeType instanceof VectorTileMimeType)) {
+            return null;
+        }
+        String[] layerParts = parts[0].split("@");
+        TileLayer layer = getTileLayer(layerParts[0]);
+        String gridSetId = layerParts.length > 1 ? layerParts[1] : null;
+        if (gridSetId == null) {
+            // same as GeoWebCache, default to the first gridset in EPSG:4326
+            for (String id : layer.getGridSubsets()) {
+                if (layer.getGridSubset(id).getSRS().getNumber() == 4326) {
+                    gridSetId = id;
+                    break;
+                }
+            }
+        }
+        GridSubset gridSubset = getGridSubset(layer, gridSetId);
+        try {
+            long z = Long.parseLong(parts[1]);
+            long x = Long.parseLong(parts[2]);
+            long y = Long.parseLong(parts[3].substring(0, parts[3].lastIndexOf('.')));
+            return getTile(layer, gridSubset, new long[] { x, y, z }, mimeType, request,
+                    response);
+        } catch (NumberFormatException e) {
+            throw new ServiceException("Invalid tile path " + path, e,
+                    ServiceException.INVALID_PARAMETER_VALUE);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    GwcOperationProxy getTile(TileLayer layer, GridSubset gridSubset, long[] index,
+            MimeType mimeType, HttpServletRequest request, HttpServletResponse response)
+            throws Exception {
+        if (!layer.getMimeTypes().contains(mimeType)) {
+            throw new ServiceException(mimeType.getFormat() + " is not a supported format for "
+                    + layer.getName(), ServiceException.INVALID_PARAMETER_VALUE, "FORMAT");
+        }
+        String encoding = request.getCharacterEncoding();
+        Map<String, String> parameters = layer.getModifiableParameters(
+                request.getParameterMap(), encoding == null ? "UTF-8" : encoding);
+        GWC gwc = GWC.get();
+        ConveyorTile tile = new ConveyorTile(gwc.getStorageBroker(), layer.getName(),
+                gridSubset.getName(), index, mimeType,
+                VectorTileMimeType.getCacheParameters(mimeType, parameters), request, response);
+        tile.setTileLayer(layer);
+        try {
+            tile = layer.getTile(tile);
+        } catch (OutsideCoverageException e) {
+            throw new ServiceException(e.getMessage(), "TileOutOfRange");
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tile.getBlob().transferTo(Channels.newChannel(out));
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("geowebcache-cache-result", String.valueOf(tile.getCacheResult()));
+        return new GwcOperationProxy(mimeType.getMimeType(), headers, out.toByteArray());
+    }
+
+    boolean isVector(String format) {
+        if (format == null) {
+            return false;
+        }
+        try {
+            return VectorTileMimeType.createFromFormat(format) instanceof VectorTileMimeType;
+        } catch (MimeException e) {
+            return false;
+        }
+    }
+
+    TileLayer getTileLayer(String layerName) {
+        if (layerName == null) {
+            throw new ServiceException("Missing layer name",
+                    ServiceException.MISSING_PARAMETER_VALUE, "LAYER");
+        }
+        try {
+            return GWC.get().getTileLayerByName(layerName);
+        } catch (IllegalArgumentException e) {
+            throw new ServiceException("Unknown layer " + layerName,
+                    ServiceException.INVALID_PARAMETER_VALUE, "LAYER");
+        }
+    }
+
+    GridSubset getGridSubset(TileLayer layer, String gridSetId) {
+        GridSubset gridSubset = gridSetId == null ? null : layer.getGridSubset(gridSetId);
+        if (gridSubset == null) {
+            throw new ServiceException("Unknown tile matrix set " + gridSetId + " for layer "
+                    + layer.getName(), ServiceException.INVALID_PARAMETER_VALUE,
+                    "TILEMATRIXSET");
+        }
+        return gridSubset;
+    }
+
+    long parseIndex(Map<String, Object> kvp, String key) {
+        try {
+            return Long.parseLong((String) kvp.get(key));
+        } catch (NumberFormatException e) {
+            throw new ServiceException("Invalid " + key + ": " + kvp.get(key), e,
+                    ServiceException.INVALID_PARAMETER_VALUE, key);
+        }
+    }
+}
@@ -233,16 +233,14 @@ public class CatalogConfiguration implements Configuration {
             if (!pendingDeletes.isEmpty()) {
                 names = new HashSet<String>(storedNames);
                 for (String id : pendingDeletes) {
-                    GeoServerTileLayerInfo old = tileLayerCatalog.getLayerById(id);
-                    names.remove(old.getName());
+                    names.remove(tileLayerCatalog.getLayerName(id));
                 }
             }
             if (!pendingModications.isEmpty()) {
                 for (Map.Entry<String, GeoServerTileLayerInfo> e : pendingModications.entrySet()) {
-                    GeoServerTileLayerInfo old = tileLayerCatalog.getLayerById(e.getKey());
-                    if (old != null) {
+                    String oldName = tileLayerCatalog.getLayerName(e.getKey());
+                    if (oldName != null) {
                         // it's a modification, not an addition. Make sure the name is not outdated
-                        String oldName = old.getName();
                         String newName = e.getValue().getName();
                         if (!Objects.equal(oldName, newName)) {
                             if (names == null) {
@@ -260,6 +258,34 @@ public class CatalogConfiguration implements Configuration {
         }
     }
 
+    /**
+     * Returns the names of the layers having a grid subset for any of the given gridsets, out of
+     * the tile layer catalog index, without loading the layers
+     */
+    public Set<String> getLayerNamesForGridSets(final Set<String> gridSetIds) {
+        checkNotNull(gridSetIds, "gridset ids is null");
+        lock.readLock().lock();
+        try {
+            Set<String> names = new HashSet<String>();
+            for (String layerId : tileLayerCatalog.getLayerIdsForGridSets(gridSetIds)) {
+                if (!pendingDeletes.contains(layerId) && !pendingModications.containsKey(layerId)) {
+                    names.add(tileLayerCatalog.getLayerName(layerId));
+                }
+            }
+            for (GeoServerTileLayerInfo info : pendingModications.values()) {
+                for (XMLGridSubset gridSubset : info.getGridSubsets()) {
+                    if (gridSetIds.contains(gridSubset.getGridSetName())) {
+                        names.add(info.getName());
+                        break;
+                    }
+                }
+            }
+            return names;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     @Override
     public boolean containsLayer(String layerId) {
         checkNotNull(layerId, "layer id is null");
@@ -406,18 +432,18 @@ public class CatalogConfiguration implements Configuration {
             this.layerCache.invalidateAll();
             this.tileLayerCatalog.initialize();
 
-            // startup sanity check
+            // startup sanity check, against the catalog only as the tile layers are loaded
+            // lazily
             for (String layerId : tileLayerCatalog.getLayerIds()) {
-                final String layerName = tileLayerCatalog.getLayerName(layerId);
-                try {
-                    getTileLayerById(layerId);
-                } catch (Exception e) {
+                if (geoServerCatalog.getLayer(layerId) == null
+                        && geoServerCatalog.getLayerGroup(layerId) == null) {
+                    final String layerName = tileLayerCatalog.getLayerName(layerId);
                     String msg = "GeoServer TileLayer named '" + layerName + "' with id '"
                             + layerId + "' can't be loaded. "
                             + "It will be removed from the configuration but you'll need"
                             + " to delete its cache manually (if any). Original error message: "
-                            + e.getMessage();
-                    LOGGER.log(Level.SEVERE, msg, e);
+                            + "GeoServer layer or layer group '" + layerId + "' does not exist";
+                    LOGGER.log(Level.SEVERE, msg);
                     tileLayerCatalog.delete(layerId);
                 }
             }
@@ -8,6 +8,10 @@ package org.geoserver.gwc.layer;
 import static com.google.common.base.Throwables.propagate;
 import static com.google.common.base.Throwables.propagateIfInstanceOf;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -18,7 +22,11 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -26,6 +34,7 @@ import java.util.logging.Logger;
 import org.geoserver.platform.GeoServerResourceLoader;
 import org.geotools.util.logging.Logging;
 import org.geowebcache.config.XMLConfiguration;
+import org.geowebcache.config.XMLGridSubset;
 import org.geowebcache.config.ContextualConfigurationProvider.Context;
 import org.geowebcache.storage.blobstore.file.FilePathGenerator;
 import org.geowebcache.storage.blobstore.file.FilePathUtils;
@@ -36,16 +45,36 @@ import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.thoughtworks.xstream.XStream;
 
+/**
+ * {@link TileLayerCatalog} storing each tile layer as an XML file in the {@code gwc-layers}
+ * directory.
+ * <p>
+ * Only a compact index of the layers (id, name and gridsets) is kept in memory, the layer infos
+ * are loaded from their files when requested. In order not to parse every layer file at startup
+ * the index is also saved in the {@code gwc-layers/layers.idx} file, its entries being reused as
+ * long as the corresponding layer file did not change since.
+ * </p>
+ */
 public class DefaultTileLayerCatalog implements TileLayerCatalog {
 
     private static final Logger LOGGER = Logging.getLogger(DefaultTileLayerCatalog.class);
 
     private static final String LAYERINFO_DIRECTORY = "gwc-layers";
 
+    static final String INDEX_FILE = "layers.idx";
+
+    private static final int INDEX_VERSION = 1;
+
     private BiMap<String, String> layersById;
 
+    /**
+     * Names of the gridsets of each layer, by layer id
+     */
+    private final Map<String, Set<String>> gridSetsById;
+
     /**
      * View of layer ids by name
      */
@@ -75,12 +104,14 @@ public class DefaultTileLayerCatalog implements TileLayerCatalog {
         BiMap<String, String> baseBiMap = HashBiMap.create();
         this.layersById = Maps.synchronizedBiMap(baseBiMap);
         this.layersByName = layersById.inverse();
+        this.gridSetsById = new ConcurrentHashMap<String, Set<String>>();
         this.initialized = false;
     }
 
     @Override
     public void reset() {
         layersById.clear();
+        gridSetsById.clear();
         this.initialized = false;
     }
 
@@ -88,6 +119,7 @@ public class DefaultTileLayerCatalog implements TileLayerCatalog {
     public void initialize() {
 
         layersById.clear();
+        gridSetsById.clear();
 
         File baseDir;
         try {
@@ -106,23 +138,38 @@ public class DefaultTileLayerCatalog implements TileLayerCatalog {
         });
 
         LOGGER.info("Loading tile layers from " + baseDir.getAbsolutePath());
+        final File indexFile = new File(baseDir, INDEX_FILE);
+        final Map<String, IndexEntry> storedIndex = readIndex(indexFile);
+        final Map<String, IndexEntry> index = new HashMap<String, IndexEntry>();
+        int parsed = 0;
         for (String fileName : tileLayerFiles) {
-            GeoServerTileLayerInfoImpl info;
-            try {
-                File file = new File(baseDir, fileName);
-                info = depersist(file);
-            } catch (Exception e) {
-                LOGGER.log(Level.SEVERE, "Error depersisting tile layer information from file "
-                        + fileName, e);
-                continue;
+            File file = new File(baseDir, fileName);
+            IndexEntry entry = storedIndex.get(fileName);
+            if (entry == null || !entry.isUpToDate(file)) {
+                GeoServerTileLayerInfoImpl info;
+                try {
+                    info = depersist(file);
+                } catch (Exception e) {
+                    LOGGER.log(Level.SEVERE, "Error depersisting tile layer information from file "
+                            + fileName, e);
+                    continue;
+                }
+                entry = new IndexEntry(file, info.getId(), info.getName(), gridSetNames(info));
+                parsed++;
             }
+            index.put(fileName, entry);
 
-            layersById.put(info.getId(), info.getName());
+            layersById.put(entry.id, entry.name);
+            gridSetsById.put(entry.id, entry.gridSets);
 
             if (LOGGER.isLoggable(Level.FINER)) {
-                LOGGER.finer("Loaded tile layer '" + info.getName() + "'");
+                LOGGER.finer("Loaded tile layer '" + entry.name + "'");
             }
         }
+        if (parsed > 0 || index.size() != storedIndex.size()) {
+            LOGGER.fine("Parsed " + parsed + " tile layer files, updating the tile layer index");
+            writeIndex(indexFile, index);
+        }
         this.initialized = true;
     }
 
@@ -178,6 +225,18 @@ public class DefaultTileLayerCatalog implements TileLayerCatalog {
         return ImmutableSet.copyOf(layersByName.keySet());
     }
 
+    @Override
+    public Set<String> getLayerIdsForGridSets(Set<String> gridSetIds) {
+        checkInitialized();
+        ImmutableSet.Builder<String> ids = ImmutableSet.builder();
+        for (Map.Entry<String, Set<String>> entry : gridSetsById.entrySet()) {
+            if (!Collections.disjoint(gridSetIds, entry.getValue())) {
+                ids.add(entry.getKey());
+            }
+        }
+        return ids.build();
+    }
+
     @Override
     public GeoServerTileLayerInfo delete(final String tileLayerId) {
         checkInitialized();
@@ -186,6 +245,7 @@ public class DefaultTileLayerCatalog implements TileLayerCatalog {
             if (info != null) {
                 File file = getFile(tileLayerId, false);
                 layersById.remove(tileLayerId);
+                gridSetsById.remove(tileLayerId);
                 file.delete();
             }
             return info;
@@ -224,6 +284,7 @@ public class DefaultTileLayerCatalog implements TileLayerCatalog {
 
             persist(newValue);
             layersById.put(newValue.getId(), newValue.getName());
+            gridSetsById.put(newValue.getId(), gridSetNames(newValue));
 
         } catch (Exception e) {
             if (e instanceof ExecutionException) {
@@ -307,6 +368,68 @@ public class DefaultTileLayerCatalog implements TileLayerCatalog {
         return info;
     }
 
+    private static Set<String> gridSetNames(GeoServerTileLayerInfo info) {
+        Set<String> names = Sets.newHashSet();
+        for (XMLGridSubset gridSubset : info.getGridSubsets()) {
+            names.add(gridSubset.getGridSetName());
+        }
+        return ImmutableSet.copyOf(names);
+    }
+
+    /**
+     * Reads the tile layer index, returning its entries by layer file name, or an empty map if
+     * the index does not exist or can't be read
+     */
+    private Map<String, IndexEntry> readIndex(File indexFile) {
+        Map<String, IndexEntry> index = new HashMap<String, IndexEntry>();
+        if (!indexFile.exists()) {
+            return index;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                    indexFile)));
+            try {
+                if (in.readInt() != INDEX_VERSION) {
+                    return index;
+                }
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    IndexEntry entry = IndexEntry.read(in);
+                    index.put(entry.fileName, entry);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error reading the tile layer index " + indexFile
+                    + ", the tile layer files will be parsed instead", e);
+            index.clear();
+        }
+        return index;
+    }
+
+    private void writeIndex(File indexFile, Map<String, IndexEntry> index) {
+        final File tmp = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            try {
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(index.size());
+                for (IndexEntry entry : index.values()) {
+                    entry.write(out);
+                }
+            } finally {
+                out.close();
+            }
+            rename(tmp, indexFile);
+        } catch (IOException e) {
+            // not fatal, the layer files will be parsed again on next startup
+            LOGGER.log(Level.WARNING, "Error writing the tile layer index " + indexFile, e);
+            tmp.delete();
+        }
+    }
+
     private void rename(File source, File dest) throws IOException {
         // same path? Do nothing
         if (source.getCanonicalPath().equalsIgnoreCase(dest.getCanonicalPath()))
@@ -338,4 +461,68 @@ public class DefaultTileLayerCatalog implements TileLayerCatalog {
         return layersById.get(layerId);
     }
 
+    /**
+     * Entry of the tile layer index, valid as long as the layer file keeps the same size and
+     * modification time
+     */
+    static final class IndexEntry {
+
+        final String fileName;
+
+        final long lastModified;
+
+        final long length;
+
+        final String id;
+
+        final String name;
+
+        final Set<String> gridSets;
+
+        IndexEntry(File file, String id, String name, Set<String> gridSets) {
+            this(file.getName(), file.lastModified(), file.length(), id, name, gridSets);
+        }
+
+        private IndexEntry(String fileName, long lastModified, long length, String id,
+                String name, Set<String> gridSets) {
+            this.fileName = fileName;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.id = id;
+            this.name = name;
+            this.gridSets = gridSets;
+        }
+
+        boolean isUpToDate(File file) {
+            return lastModified == file.lastModified() && length == file.length();
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(fileName);
+            out.writeLong(lastModified);
+            out.writeLong(length);
+            out.writeUTF(id);
+            out.writeUTF(name);
+            out.writeInt(gridSets.size());
+            for (String gridSet : gridSets) {
+                out.writeUTF(gridSet);
+            }
+        }
+
+        static IndexEntry read(DataInputStream in) throws IOException {
+            String fileName = in.readUTF();
+            long lastModified = in.readLong();
+            long length = in.readLong();
+            String id = in.readUTF();
+            String name = in.readUTF();
+            int count = in.readInt();
+            Set<String> gridSets = Sets.newHashSetWithExpectedSize(count);
+            for (int i = 0; i < count; i++) {
+                gridSets.add(in.readUTF());
+            }
+            return new IndexEntry(fileName, lastModified, length, id, name,
+                    ImmutableSet.copyOf(gridSets));
+        }
+    }
+
 }
@@ -198,8 +198,16 @@ public class GeoServerMetaTile extends MetaTile {
         return tile;
     }
 
+    /**
+     * Synchronized, tiles may be encoded in parallel by {@link ParallelTileEncoder}
+     */
+    @Override
+    protected synchronized void disposeLater(RenderedImage image) {
+        super.disposeLater(image);
+    }
+
     @Override
-    public void dispose() {
+    public synchronized void dispose() {
         if (metaTileMap != null) {
             metaTileMap.dispose();
             metaTileMap = null;
@@ -10,6 +10,7 @@ import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.base.Throwables.propagate;
 import static org.geoserver.gwc.GWC.tileLayerName;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -35,12 +36,15 @@ import org.geoserver.catalog.ResourceInfo;
 import org.geoserver.catalog.StyleInfo;
 import org.geoserver.gwc.FakeHttpServletResponse;
 import org.geoserver.gwc.GWC;
+import org.geoserver.gwc.MemoryTileCache;
+import org.geoserver.gwc.VectorTileMimeType;
 import org.geoserver.gwc.config.GWCConfig;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.wms.GetMapRequest;
 import org.geoserver.wms.WMS;
 import org.geoserver.wms.WebMap;
 import org.geoserver.wms.map.RenderedImageMap;
+import org.geoserver.wms.mvt.StreamingMVTMap;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
 import org.geotools.util.logging.Logging;
@@ -73,6 +77,8 @@ import org.geowebcache.locks.LockProvider.Lock;
 import org.geowebcache.mime.FormatModifier;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
 import org.geowebcache.util.GWCVars;
 import org.geowebcache.util.ServletUtils;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -90,6 +96,12 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
 
     public static final ThreadLocal<WebMap> WEB_MAP = new ThreadLocal<WebMap>();
 
+    /**
+     * System/environment property that, when set to true, makes metatile GetMap requests go
+     * through the OWS dispatcher instead of the in process {@link GWC#dispatchGetMap} path
+     */
+    public static final String DISPATCHED_GETMAP = "GEOSERVER_GWC_DISPATCHED_GETMAP";
+
     private final LayerInfo layerInfo;
 
     private final LayerGroupInfo layerGroupInfo;
@@ -467,6 +479,7 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
         returnTile = getMetatilingReponse(tile, true, metaX, metaY);
 
         sendTileRequestedEvent(returnTile);
+        GWC.get().tileRequested(this, returnTile);
 
         return returnTile;
     }
@@ -500,25 +513,42 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
         }
 
         final GeoServerMetaTile metaTile = createMetaTile(tile, metaX, metaY);
+        final String lockKey = buildLockKey(tile, metaTile);
+        boolean disposeMetaTile = true;
         Lock lock = null;
         try {
             /** ****************** Acquire lock ******************* */
-            lock = GWC.get().getLockProvider().getLock(buildLockKey(tile, metaTile));
-            // got the lock on the meta tile, try again
-            if (tryCache && tryCacheFetch(tile)) {
+            lock = GWC.get().getLockProvider().getLock(lockKey);
+            // got the lock on the meta tile, try again, waiting for the tiles of a previous
+            // request to be stored if they are still being encoded
+            if (tryCache && (tryCacheFetch(tile)
+                    || (ParallelTileEncoder.awaitPending(lockKey) && tryCacheFetch(tile)))) {
                 LOGGER.finest("--> " + Thread.currentThread().getName() + " returns cache hit for "
                         + Arrays.toString(metaTile.getMetaGridPos()));
             } else {
                 LOGGER.finer("--> " + Thread.currentThread().getName()
                         + " submitting getMap request for meta grid location "
                         + Arrays.toString(metaTile.getMetaGridPos()) + " on " + metaTile);
-                RenderedImageMap map;
+                WebMap map;
                 try {
                     long requestTime = System.currentTimeMillis();
                     map = dispatchGetMap(tile, metaTile);
                     checkNotNull(map, "Did not obtain a WebMap from GeoServer's Dispatcher");
-                    metaTile.setWebMap(map);
-                    saveTiles(metaTile, tile, requestTime);
+                    if (tile.getMimeType() instanceof VectorTileMimeType) {
+                        saveVectorTile(map, tile, requestTime);
+                    } else if (!(map instanceof RenderedImageMap)) {
+                        throw new IllegalStateException("Expected: RenderedImageMap, got " + map);
+                    } else {
+                        metaTile.setWebMap((RenderedImageMap) map);
+                        ParallelTileEncoder encoder = ParallelTileEncoder.get();
+                        if (encoder != null && metaTile.getTilesGridPositions().length > 1) {
+                            // the encoder disposes the metatile once all tiles are stored
+                            disposeMetaTile = false;
+                            encoder.saveTiles(this, metaTile, tile, requestTime, lockKey);
+                        } else {
+                            saveTiles(metaTile, tile, requestTime);
+                        }
+                    }
                 } catch (Exception e) {
                     throw new GeoWebCacheException("Problem communicating with GeoServer", e);
                 } 
@@ -528,7 +558,9 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
             if(lock != null) {
                 lock.release();
             }
-            metaTile.dispose();
+            if (disposeMetaTile) {
+                metaTile.dispose();
+            }
         }
 
 
@@ -561,25 +593,54 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
         return metaKey.toString();
     }
 
-    private RenderedImageMap dispatchGetMap(final ConveyorTile tile, final MetaTile metaTile)
+    /**
+     * Encodes a vector tile, which is never meta tiled, and stores it as is
+     */
+    private void saveVectorTile(WebMap map, ConveyorTile tile, long requestTime)
+            throws IOException, StorageException {
+        if (!(map instanceof StreamingMVTMap)) {
+            map.dispose();
+            throw new IllegalStateException("Expected: StreamingMVTMap, got " + map);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            ((StreamingMVTMap) map).encode(out);
+        } finally {
+            map.dispose();
+        }
+        ByteArrayResource resource = new ByteArrayResource(out.toByteArray());
+        TileObject tileObject = TileObject.createCompleteTileObject(getName(),
+                tile.getTileIndex(), tile.getGridSetId(), tile.getMimeType().getFormat(),
+                tile.getParameters(), resource);
+        tileObject.setCreated(requestTime);
+        if (tile.isMetaTileCacheOnly()) {
+            tile.getStorageBroker().putTransient(tileObject);
+        } else {
+            tile.getStorageBroker().put(tileObject);
+        }
+        tile.setBlob(resource);
+        tile.getStorageObject().setCreated(requestTime);
+    }
+
+    private WebMap dispatchGetMap(final ConveyorTile tile, final MetaTile metaTile)
             throws Exception {
 
-        Map<String, String> params = buildGetMap(tile, metaTile);
         WebMap map;
-        try {
+        if (Boolean.valueOf(GeoServerExtensions.getProperty(DISPATCHED_GETMAP))) {
+            Map<String, String> params = buildGetMap(tile, metaTile);
             HttpServletRequest actualRequest = tile.servletReq;
             Cookie[] cookies = actualRequest == null ? null : actualRequest.getCookies();
-
-            GWC.get().dispatchOwsRequest(params, cookies);
-            map = WEB_MAP.get();
-            if (!(map instanceof RenderedImageMap)) {
-                throw new IllegalStateException("Expected: RenderedImageMap, got " + map);
+            params.put(GWC_SEED_INTERCEPT_TOKEN, "true");
+            try {
+                GWC.get().dispatchOwsRequest(params, cookies);
+                map = WEB_MAP.get();
+            } finally {
+                WEB_MAP.remove();
             }
-        } finally {
-            WEB_MAP.remove();
+        } else {
+            map = GWC.get().dispatchGetMap(this, tile, metaTile);
         }
-
-        return (RenderedImageMap) map;
+        return map;
     }
 
     private GeoServerMetaTile createMetaTile(ConveyorTile tile, final int metaX, final int metaY) {
@@ -625,7 +686,6 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
         params.put("EXCEPTIONS", GetMapRequest.SE_XML);
         params.put("STYLES", "");
         params.put("TRANSPARENT", "true");
-        params.put(GWC_SEED_INTERCEPT_TOKEN, "true");
 
         Map<String, String> filteredParams = tile.getFullParameters();
         if (filteredParams.isEmpty()) {
@@ -639,8 +699,24 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
     private boolean tryCacheFetch(ConveyorTile tile) {
         int expireCache = this.getExpireCache((int) tile.getTileIndex()[2]);
         if (expireCache != GWCVars.CACHE_DISABLE_CACHE) {
+            // tiles not meant to be cached at this zoom level are not kept in memory either
+            final MemoryTileCache memoryCache = tile.isMetaTileCacheOnly() ? null : GWC.get()
+                    .getMemoryTileCache();
+            final long maxAge = expireCache * 1000L;
+            if (memoryCache != null && memoryCache.get(tile, maxAge)) {
+                return true;
+            }
             try {
-                return tile.retrieve(expireCache * 1000L);
+                final long generation = memoryCache == null ? 0 : memoryCache.getGeneration();
+                boolean hit = tile.retrieve(maxAge);
+                if (hit && memoryCache != null) {
+                    memoryCache.put(tile, generation);
+                }
+                return hit;
+            } catch (IOException e) {
+                // the tile is still there to be served from the blob store
+                LOGGER.log(Level.FINE, "Failed to cache tile in memory", e);
+                return true;
             } catch (GeoWebCacheException gwce) {
                 LOGGER.info(gwce.getMessage());
                 tile.setErrorMsg(gwce.getMessage());
@@ -972,7 +1048,7 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
         List<MimeType> mimeTypes = new ArrayList<MimeType>(mimeFormats.size());
         for (String format : mimeFormats) {
             try {
-                mimeTypes.add(MimeType.createFromFormat(format));
+                mimeTypes.add(VectorTileMimeType.createFromFormat(format));
             } catch (MimeException e) {
                 LOGGER.log(Level.WARNING, "Can't create MimeType from format " + format, e);
             }
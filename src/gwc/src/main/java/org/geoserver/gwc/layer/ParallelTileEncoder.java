@@ -0,0 +1,237 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc.layer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.util.ThreadPools;
+import org.geoserver.wms.RasterCleaner;
+import org.geotools.util.logging.Logging;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.config.GWCVars;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+
+/**
+ * Encodes the tiles of a {@link GeoServerMetaTile} in parallel on a bounded thread pool.
+ * <p>
+ * The tile that was actually requested is encoded by the calling thread, which returns as soon
+ * as it is done, while the other tiles of the metatile are encoded and stored in the blob store
+ * by the pool. The metatile is disposed once the last of them is stored. Requests for those
+ * tiles arriving in the meantime can wait for them with {@link #awaitPending(String)} instead
+ * of rendering the same metatile again.
+ * </p>
+ * <p>
+ * Parallel encoding is enabled by setting {@link #ENCODER_THREADS} to the size of the pool. The
+ * pool queue is bounded, once it is full the tiles are encoded by the calling thread.
+ * </p>
+ */
+class ParallelTileEncoder {
+
+    private static final Logger LOGGER = Logging.getLogger(ParallelTileEncoder.class);
+
+    /**
+     * System/environment property setting the number of threads encoding metatile tiles in
+     * parallel, unset or zero to encode the tiles sequentially on the requesting thread
+     */
+    public static final String ENCODER_THREADS = "GEOSERVER_GWC_ENCODER_THREADS";
+
+    private static volatile ParallelTileEncoder INSTANCE;
+
+    private static volatile boolean initialized;
+
+    /**
+     * Metatiles whose tiles are still being encoded, by lock key
+     */
+    private static final ConcurrentHashMap<String, CountDownLatch> PENDING = new ConcurrentHashMap<String, CountDownLatch>();
+
+    private final ExecutorService executor;
+
+    ParallelTileEncoder(int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 16),
+                ThreadPools.threadFactory("GWC tile encoder %d"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = ThreadPools.manage(pool);
+    }
+
+    /**
+     * @return the shared encoder, or {@code null} if parallel encoding is not enabled
+     */
+    static ParallelTileEncoder get() {
+        if (!initialized) {
+            synchronized (ParallelTileEncoder.class) {
+                if (!initialized) {
+                    int threads = 0;
+                    String value = GeoServerExtensions.getProperty(ENCODER_THREADS);
+                    if (value != null) {
+                        try {
+                            threads = Integer.parseInt(value.trim());
+                        } catch (NumberFormatException e) {
+                            LOGGER.warning("Invalid " + ENCODER_THREADS + " value: " + value);
+                        }
+                    }
+                    if (threads > 0) {
+                        LOGGER.info("Encoding metatiles with " + threads + " threads");
+                        INSTANCE = new ParallelTileEncoder(threads);
+                    }
+                    initialized = true;
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Waits for the tiles of the metatile with the given lock key to be stored, if they are
+     * being encoded
+     *
+     * @return {@code true} if the metatile was being encoded and is now done
+     */
+    static boolean awaitPending(String lockKey) {
+        CountDownLatch latch = PENDING.get(lockKey);
+        if (latch == null) {
+            return false;
+        }
+        try {
+            latch.await();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Encodes the requested tile into {@code tileProto} and schedules encoding and storage of the
+     * others. The encoder takes ownership of the metatile, which is disposed once all of its
+     * tiles are done, whatever the outcome.
+     */
+    void saveTiles(final GeoServerTileLayer layer, final GeoServerMetaTile metaTile,
+            final ConveyorTile tileProto, final long requestTime, final String lockKey)
+            throws GeoWebCacheException {
+
+        final long[][] gridPositions = metaTile.getTilesGridPositions();
+        final long[] gridLoc = tileProto.getTileIndex();
+        final GridSubset gridSubset = layer.getGridSubset(tileProto.getGridSetId());
+        final int zoomLevel = (int) gridLoc[2];
+        final boolean store = layer.getExpireCache(zoomLevel) != GWCVars.CACHE_DISABLE_CACHE;
+
+        int requested = -1;
+        final List<Integer> others = new ArrayList<Integer>();
+        for (int i = 0; i < gridPositions.length; i++) {
+            if (Arrays.equals(gridLoc, gridPositions[i])) {
+                requested = i;
+            } else if (store && gridSubset.covers(gridPositions[i])) {
+                others.add(i);
+            }
+        }
+
+        final Thread caller = Thread.currentThread();
+        final CountDownLatch done = new CountDownLatch(1);
+        // one for the calling thread, plus one per scheduled tile
+        final AtomicInteger remaining = new AtomicInteger(1);
+        if (!others.isEmpty()) {
+            PENDING.put(lockKey, done);
+        }
+        try {
+            for (final int i : others) {
+                remaining.incrementAndGet();
+                Runnable task = new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            ByteArrayResource resource = new ByteArrayResource(16 * 1024);
+                            if (metaTile.writeTileToStream(i, resource)) {
+                                store(layer, tileProto, gridPositions[i], resource, requestTime);
+                            }
+                        } catch (Exception e) {
+                            LOGGER.log(Level.WARNING, "Failed to encode tile "
+                                    + Arrays.toString(gridPositions[i]) + " of " + layer.getName(),
+                                    e);
+                        } finally {
+                            if (Thread.currentThread() != caller) {
+                                // no dispatcher request will clean up after the pool threads
+                                RasterCleaner.cleanup();
+                            }
+                            completed(remaining, metaTile, lockKey, done);
+                        }
+                    }
+                };
+                try {
+                    executor.execute(task);
+                } catch (RuntimeException e) {
+                    remaining.decrementAndGet();
+                    throw e;
+                }
+            }
+
+            if (requested >= 0 && gridSubset.covers(gridLoc)) {
+                ByteArrayResource resource = new ByteArrayResource(16 * 1024);
+                tileProto.setBlob(resource);
+                if (!metaTile.writeTileToStream(requested, resource)) {
+                    LOGGER.severe("metaTile.writeTileToStream returned false, no tiles saved");
+                } else if (store) {
+                    TileObject tile = store(layer, tileProto, gridLoc, resource, requestTime);
+                    tileProto.getStorageObject().setCreated(tile.getCreated());
+                }
+            }
+        } catch (Exception e) {
+            throw new GeoWebCacheException(e);
+        } finally {
+            completed(remaining, metaTile, lockKey, done);
+        }
+    }
+
+    TileObject store(GeoServerTileLayer layer, ConveyorTile tileProto, long[] gridPos,
+            ByteArrayResource resource, long requestTime) throws GeoWebCacheException {
+        long[] idx = { gridPos[0], gridPos[1], gridPos[2] };
+        TileObject tile = TileObject.createCompleteTileObject(layer.getName(), idx,
+                tileProto.getGridSetId(), tileProto.getMimeType().getFormat(),
+                tileProto.getParameters(), resource);
+        tile.setCreated(requestTime);
+        StorageBroker storageBroker = tileProto.getStorageBroker();
+        try {
+            if (tileProto.isMetaTileCacheOnly()) {
+                storageBroker.putTransient(tile);
+            } else {
+                storageBroker.put(tile);
+            }
+        } catch (StorageException e) {
+            throw new GeoWebCacheException(e);
+        }
+        return tile;
+    }
+
+    void completed(AtomicInteger remaining, GeoServerMetaTile metaTile, String lockKey,
+            CountDownLatch done) {
+        if (remaining.decrementAndGet() == 0) {
+            try {
+                metaTile.dispose();
+            } finally {
+                PENDING.remove(lockKey, done);
+                done.countDown();
+            }
+        }
+    }
+}
@@ -13,6 +13,11 @@ public interface TileLayerCatalog {
 
     public Set<String> getLayerNames();
 
+    /**
+     * @return the ids of the layers having a grid subset for any of the given gridsets
+     */
+    public Set<String> getLayerIdsForGridSets(Set<String> gridSetIds);
+
     public String getLayerId(final String layerName);
 
     public String getLayerName(final String layerId);
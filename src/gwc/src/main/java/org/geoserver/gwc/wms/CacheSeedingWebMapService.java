@@ -29,6 +29,11 @@ import org.geotools.util.logging.Logging;
  * the server with too many requests. That is, adheres to the expectations of the control-flow and
  * monitoring modules by not bypassing the dispatcher.
  * </p>
+ * <p>
+ * This is only used when {@link GeoServerTileLayer#DISPATCHED_GETMAP} is set, by default the tile
+ * layer renders through {@link org.geoserver.gwc.GWC#dispatchGetMap}, which fires the dispatcher
+ * callbacks itself and gets the map back without this interceptor.
+ * </p>
  * 
  * @author Gabriel Roldan
  * 
@@ -84,6 +84,10 @@ public class CachingWebMapService implements MethodInterceptor {
         ConveyorTile cachedTile = gwc.dispatch(request, requestMistmatchTarget);
 
         if (cachedTile == null) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("GetMap request not served from the tile cache: "
+                        + requestMistmatchTarget);
+            }
             WebMap dynamicResult = (WebMap) invocation.proceed();
             dynamicResult.setResponseHeader("geowebcache-cache-result", MISS.toString());
             dynamicResult.setResponseHeader("geowebcache-miss-reason",
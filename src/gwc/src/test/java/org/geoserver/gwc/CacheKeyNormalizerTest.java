@@ -0,0 +1,35 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+import org.junit.Test;
+
+public class CacheKeyNormalizerTest {
+
+    private CacheKeyNormalizer normalizer = new CacheKeyNormalizer(0.1);
+
+    @Test
+    public void testEpsgCode() {
+        assertEquals(Integer.valueOf(4326), normalizer.getEpsgCode("EPSG:4326", null));
+        assertEquals(Integer.valueOf(4326), normalizer.getEpsgCode("CRS:84", null));
+        assertEquals(Integer.valueOf(3857),
+                normalizer.getEpsgCode("urn:ogc:def:crs:EPSG::3857", null));
+        assertEquals(Integer.valueOf(4326),
+                normalizer.getEpsgCode("http://www.opengis.net/gml/srs/epsg.xml#4326", null));
+        assertEquals(Integer.valueOf(3857),
+                normalizer.getEpsgCode("http://www.opengis.net/def/crs/EPSG/0/3857", null));
+    }
+
+    @Test
+    public void testOtherAuthorities() {
+        // numeric codes of other authorities are not EPSG ones
+        assertNull(normalizer.getEpsgCode("CRS:83", null));
+        assertNull(normalizer.getEpsgCode("ESRI:102100", null));
+    }
+}
@@ -0,0 +1,120 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.MetadataMap;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.ows.DispatcherCallback;
+import org.geoserver.ows.KvpParser;
+import org.geoserver.ows.LocalLayer;
+import org.geoserver.ows.LocalWorkspace;
+import org.geoserver.platform.Service;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.WMS;
+import org.geotools.referencing.CRS;
+import org.geotools.styling.Style;
+import org.geowebcache.grid.BoundingBox;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DirectGetMapDispatcherTest {
+
+    private WMS wms;
+
+    private DirectGetMapDispatcher dispatcher;
+
+    private Style defaultStyle;
+
+    @Before
+    public void setUp() throws Exception {
+        wms = mock(WMS.class);
+        dispatcher = new DirectGetMapDispatcher(Collections.<DispatcherCallback> emptyList(),
+                mock(Service.class), wms, Collections.<KvpParser> emptyList());
+
+        FeatureTypeInfo resource = mock(FeatureTypeInfo.class);
+        when(resource.getPrefixedName()).thenReturn("test:layer");
+        when(resource.getMetadata()).thenReturn(new MetadataMap());
+        defaultStyle = mock(Style.class);
+        StyleInfo styleInfo = mock(StyleInfo.class);
+        when(styleInfo.getStyle()).thenReturn(defaultStyle);
+        LayerInfo layer = mock(LayerInfo.class);
+        when(layer.getResource()).thenReturn(resource);
+        when(layer.getType()).thenReturn(LayerInfo.Type.VECTOR);
+        when(layer.getDefaultStyle()).thenReturn(styleInfo);
+        when(wms.getLayerByName("test:layer")).thenReturn(layer);
+    }
+
+    @Test
+    public void testCreateRequest() throws Exception {
+        Map<String, String> parameters = Collections.singletonMap("STYLES", "");
+        GetMapRequest getMap = dispatcher.createRequest("test:layer", parameters, "EPSG:4326",
+                new BoundingBox(-180, -90, 0, 90), 512, 256, "image/png");
+
+        assertEquals(1, getMap.getLayers().size());
+        assertEquals("test:layer", getMap.getLayers().get(0).getName());
+        assertSame(defaultStyle, getMap.getStyles().get(0));
+        assertEquals(-180d, getMap.getBbox().getMinX());
+        assertEquals(90d, getMap.getBbox().getMaxY());
+        assertEquals(512, getMap.getWidth());
+        assertEquals(256, getMap.getHeight());
+        assertEquals("image/png", getMap.getFormat());
+        assertEquals("EPSG:4326", getMap.getSRS());
+        assertEquals(CRS.decode("EPSG:4326"), getMap.getCrs());
+        assertEquals("test:layer", getMap.getRawKvp().get("LAYERS"));
+        assertNull(getMap.getTime());
+    }
+
+    @Test
+    public void testCreateRequestStyle() throws Exception {
+        Style style = mock(Style.class);
+        when(wms.getStyleByName("alternate")).thenReturn(style);
+        Map<String, String> parameters = Collections.singletonMap("STYLES", "alternate");
+        GetMapRequest getMap = dispatcher.createRequest("test:layer", parameters, "EPSG:4326",
+                new BoundingBox(-180, -90, 0, 90), 256, 256, "image/png");
+        assertSame(style, getMap.getStyles().get(0));
+    }
+
+    @Test
+    public void testCreateRequestNotAccessible() throws Exception {
+        // the secured catalog does not return the layer
+        try {
+            dispatcher.createRequest("test:hidden", Collections.<String, String> emptyMap(),
+                    "EPSG:4326", new BoundingBox(-180, -90, 0, 90), 256, 256, "image/png");
+            fail("Expected a service exception");
+        } catch (ServiceException e) {
+            assertEquals("LayerNotDefined", e.getCode());
+        }
+    }
+
+    @Test
+    public void testRestoreClearsThreadLocals() {
+        LocalWorkspace.set(mock(WorkspaceInfo.class));
+        LocalLayer.set(mock(LayerInfo.class));
+        dispatcher.restore(null, null, null);
+        assertNull(LocalWorkspace.get());
+        assertNull(LocalLayer.get());
+
+        WorkspaceInfo outerWorkspace = mock(WorkspaceInfo.class);
+        LocalWorkspace.set(mock(WorkspaceInfo.class));
+        dispatcher.restore(null, outerWorkspace, null);
+        assertSame(outerWorkspace, LocalWorkspace.get());
+        LocalWorkspace.remove();
+    }
+}
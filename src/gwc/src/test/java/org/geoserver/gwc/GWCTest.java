@@ -1111,4 +1111,72 @@ public class GWCTest {
         assertEquals(fullParameters.toString(), rawKvpParamValue,
                 fullParameters.get(rawKvpParamName.toUpperCase()));
     }
+
+    @Test
+    public void testDispatchGetMapNormalizesCacheKey() throws Exception {
+        GetMapRequest request = new GetMapRequest();
+
+        @SuppressWarnings("unchecked")
+        Map<String, String> rawKvp = new CaseInsensitiveMap(new HashMap<String, String>());
+        request.setRawKvp(rawKvp);
+        request.setFormat("image/png");
+        request.setWidth(256);
+        request.setHeight(256);
+        rawKvp.put("layers", "mockLayer");
+        tileLayer = mockTileLayer("mockLayer", Arrays.asList("EPSG:4326"));
+
+        final long[] tileIndex = { 3, 1, 2 };
+        BoundingBox bounds = tileLayer.getGridSubset("EPSG:4326").boundsFromIndex(tileIndex);
+        // floating point noise well below a pixel
+        double noise = bounds.getWidth() / 256 / 100;
+        request.setBbox(new Envelope(bounds.getMinX() + noise, bounds.getMaxX() - noise, bounds
+                .getMinY() - noise, bounds.getMaxY() + noise));
+
+        for (String srs : Arrays.asList("EPSG:4326", "CRS:84",
+                "http://www.opengis.net/gml/srs/epsg.xml#4326")) {
+            request.setSRS(srs);
+            StringBuilder errors = new StringBuilder();
+            ConveyorTile tileRequest = mediator.prepareRequest(tileLayer, request, errors);
+            assertTrue(srs + ": " + errors, errors.length() == 0);
+            assertEquals("EPSG:4326", tileRequest.getGridSetId());
+            assertTrue(Arrays.toString(tileRequest.getTileIndex()),
+                    Arrays.equals(tileIndex, tileRequest.getTileIndex()));
+        }
+
+        // not snapped when off the grid
+        request.setSRS("EPSG:4326");
+        double shift = bounds.getWidth() / 2;
+        request.setBbox(new Envelope(bounds.getMinX() + shift, bounds.getMaxX() + shift, bounds
+                .getMinY(), bounds.getMaxY()));
+        StringBuilder errors = new StringBuilder();
+        assertNull(mediator.prepareRequest(tileLayer, request, errors));
+        assertTrue(errors.toString(), errors.toString().contains("does not align to grid"));
+        assertEquals(Long.valueOf(1), mediator.getDispatchMisses().get("grid alignment"));
+
+        mediator.resetDispatchMisses();
+        assertTrue(mediator.getDispatchMisses().isEmpty());
+    }
+
+    @Test
+    public void testDispatchGetMapDefaultStyle() throws Exception {
+        tileLayerInfo.removeParameterFilter("STYLES");
+        tileLayer = new GeoServerTileLayer(layer, gridSetBroker, tileLayerInfo);
+
+        GetMapRequest request = new GetMapRequest();
+        @SuppressWarnings("unchecked")
+        Map<String, String> rawKvp = new CaseInsensitiveMap(new HashMap<String, String>());
+        request.setRawKvp(rawKvp);
+        rawKvp.put("layers", tileLayer.getName());
+
+        StringBuilder target = new StringBuilder();
+        rawKvp.put("styles", layer.getDefaultStyle().getName());
+        assertTrue(target.toString(), mediator.isCachingPossible(tileLayer, request, target));
+
+        // a non default style can't be served out of the default style tiles
+        rawKvp.put("styles", "style1");
+        assertFalse(mediator.isCachingPossible(tileLayer, request, target));
+        assertTrue(target.toString(),
+                target.toString().contains("no parameter filter exists for STYLES"));
+        assertEquals(Long.valueOf(1), mediator.getDispatchMisses().get("parameter STYLES"));
+    }
 }
@@ -5,19 +5,25 @@
  */
 package org.geoserver.gwc;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertSame;
 import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 import static org.geotools.referencing.crs.DefaultGeographicCRS.WGS84;
+import static org.mockito.Matchers.anyObject;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -31,12 +37,21 @@ import net.opengis.wfs.TransactionType;
 
 import org.geoserver.wfs.TransactionEvent;
 import org.geoserver.wfs.TransactionEventType;
+import org.geotools.data.DataUtilities;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import com.google.common.collect.ImmutableSet;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
 
 public class GWCTransactionListenerTest {
 
@@ -47,7 +62,7 @@ public class GWCTransactionListenerTest {
     @Before
     public void setUp() throws Exception {
         mediator = mock(GWC.class);
-        listener = new GWCTransactionListener(mediator);
+        listener = new GWCTransactionListener(mediator, new TruncationBatcher(mediator, 0));
     }
 
     @Test
@@ -186,6 +201,74 @@ public class GWCTransactionListenerTest {
 
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testAfterTransactionGeometries() throws Exception {
+
+        Map<Object, Object> extendedProperties = new HashMap<Object, Object>();
+        Geometry west = new WKTReader().read("POINT(-170 -80)");
+        Geometry east = new WKTReader().read("POINT(170 80)");
+
+        issueInsert(extendedProperties, features(west, east));
+
+        TransactionType request = mock(TransactionType.class);
+        TransactionResponseType result = mock(TransactionResponseType.class);
+        when(request.getExtendedProperties()).thenReturn(extendedProperties);
+
+        when(mediator.getDeclaredCrs(anyString())).thenReturn(WGS84);
+        listener.afterTransaction(request, result, true);
+
+        ArgumentCaptor<Collection> geometries = ArgumentCaptor.forClass(Collection.class);
+        verify(mediator, times(1)).truncate(eq("theLayer"), geometries.capture(), eq(WGS84));
+        assertEquals(2, geometries.getValue().size());
+        assertTrue(geometries.getValue().contains(west));
+        assertTrue(geometries.getValue().contains(east));
+        verify(mediator, times(1)).truncate(eq("theGroup"), (Collection<Geometry>) anyObject(),
+                eq(WGS84));
+        // no bounding box truncation
+        verify(mediator, never()).truncate(anyString(), (ReferencedEnvelope) anyObject());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testBatchedTransactions() throws Exception {
+        listener = new GWCTransactionListener(mediator, new TruncationBatcher(mediator, 60000));
+        when(mediator.getDeclaredCrs(anyString())).thenReturn(WGS84);
+
+        Geometry point = new WKTReader().read("POINT(10 10)");
+        Geometry line = new WKTReader().read("LINESTRING(0 0, 20 20)");
+        for (SimpleFeatureCollection features : Arrays.asList(features(point),
+                features(point, line))) {
+            Map<Object, Object> extendedProperties = new HashMap<Object, Object>();
+            issueInsert(extendedProperties, features);
+            TransactionType request = mock(TransactionType.class);
+            when(request.getExtendedProperties()).thenReturn(extendedProperties);
+            listener.afterTransaction(request, mock(TransactionResponseType.class), true);
+        }
+        // nothing truncated until the window expires
+        verify(mediator, never()).truncate(anyString(), (Collection<Geometry>) anyObject(),
+                (CoordinateReferenceSystem) anyObject());
+
+        listener.flush();
+        ArgumentCaptor<Collection> geometries = ArgumentCaptor.forClass(Collection.class);
+        verify(mediator, times(1)).truncate(eq("theLayer"), geometries.capture(), eq(WGS84));
+        // the point is only truncated once
+        assertEquals(2, geometries.getValue().size());
+    }
+
+    private SimpleFeatureCollection features(Geometry... geometries) throws Exception {
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.setName("testType");
+        builder.setCRS(WGS84);
+        builder.add("geom", Geometry.class);
+        SimpleFeatureType type = builder.buildFeatureType();
+        List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+        for (Geometry geometry : geometries) {
+            features.add(SimpleFeatureBuilder.build(type, new Object[] { geometry }, null));
+        }
+        return DataUtilities.collection(features);
+    }
+
     /**
      * Issues a fake dataStoreChange insert event that affects two tile layers: "theLayer" and
      * "theGroup"
@@ -193,6 +276,14 @@ public class GWCTransactionListenerTest {
     private void issueInsert(Map<Object, Object> extendedProperties,
             ReferencedEnvelope affectedBounds) {
 
+        SimpleFeatureCollection affectedFeatures = mock(SimpleFeatureCollection.class);
+        when(affectedFeatures.getBounds()).thenReturn(affectedBounds);
+        issueInsert(extendedProperties, affectedFeatures);
+    }
+
+    private void issueInsert(Map<Object, Object> extendedProperties,
+            SimpleFeatureCollection affectedFeatures) {
+
         TransactionType transaction = mock(TransactionType.class);
         when(transaction.getExtendedProperties()).thenReturn(extendedProperties);
 
@@ -214,8 +305,6 @@ public class GWCTransactionListenerTest {
 
         ImmutableSet.of("theLayer", "theGroup"));
 
-        SimpleFeatureCollection affectedFeatures = mock(SimpleFeatureCollection.class);
-        when(affectedFeatures.getBounds()).thenReturn(affectedBounds);
         when(event.getAffectedFeatures()).thenReturn(affectedFeatures);
 
         listener.dataStoreChange(event);
@@ -0,0 +1,100 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
+
+public class GeometryTileRangeMaskTest {
+
+    private GridSubset gridSubset;
+
+    @Before
+    public void setUp() {
+        GridSetBroker gridSetBroker = new GridSetBroker(true, true);
+        gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+    }
+
+    @Test
+    public void testOppositeCorners() throws Exception {
+        Geometry west = new WKTReader().read("POINT(-170 -80)");
+        Geometry east = new WKTReader().read("POINT(170 80)");
+        GeometryTileRangeMask mask = new GeometryTileRangeMask(gridSubset, Arrays.asList(west,
+                east), 0);
+        assertFalse(mask.isEmpty());
+
+        // level 1 is 4x2 tiles, only the two corner ones are hit
+        assertTrue(mask.lookup(0, 0, 1));
+        assertTrue(mask.lookup(3, 1, 1));
+        assertFalse(mask.lookup(1, 0, 1));
+        assertFalse(mask.lookup(2, 1, 1));
+        assertFalse(mask.lookup(0, 1, 1));
+
+        // level 2 is 8x4 tiles
+        assertTrue(mask.lookup(0, 0, 2));
+        assertTrue(mask.lookup(7, 3, 2));
+        assertFalse(mask.lookup(4, 2, 2));
+
+        // too many tiles in the bounds to be rasterised, tested on demand
+        assertTrue(mask.lookup(1991, 967, 10));
+        assertFalse(mask.lookup(1000, 500, 10));
+    }
+
+    @Test
+    public void testShrunkCoverage() throws Exception {
+        Geometry line = new WKTReader().read("LINESTRING(-170 -80, -100 -80)");
+        GeometryTileRangeMask mask = new GeometryTileRangeMask(gridSubset,
+                Collections.singletonList(line), 0);
+
+        long[] coverage = null;
+        for (long[] level : mask.getGridCoverages()) {
+            if (level[4] == 2) {
+                coverage = level;
+            }
+        }
+        assertEquals(0, coverage[0]);
+        assertEquals(0, coverage[1]);
+        assertEquals(1, coverage[2]);
+        assertEquals(0, coverage[3]);
+        assertTrue(mask.lookup(0, 0, 2));
+        assertTrue(mask.lookup(1, 0, 2));
+        assertFalse(mask.lookup(2, 0, 2));
+    }
+
+    @Test
+    public void testPixelBuffer() throws Exception {
+        // 0.5 degrees from the tile edge, level 2 resolution is 45/256 degrees per pixel
+        Geometry point = new WKTReader().read("POINT(-135.5 -80)");
+        GeometryTileRangeMask mask = new GeometryTileRangeMask(gridSubset,
+                Collections.singletonList(point), 0);
+        assertFalse(mask.lookup(1, 0, 2));
+
+        mask = new GeometryTileRangeMask(gridSubset, Collections.singletonList(point), 10);
+        assertTrue(mask.lookup(0, 0, 2));
+        assertTrue(mask.lookup(1, 0, 2));
+    }
+
+    @Test
+    public void testEmpty() {
+        GeometryTileRangeMask mask = new GeometryTileRangeMask(gridSubset,
+                Collections.<Geometry> emptyList(), 0);
+        assertTrue(mask.isEmpty());
+        assertFalse(mask.lookup(0, 0, 0));
+    }
+}
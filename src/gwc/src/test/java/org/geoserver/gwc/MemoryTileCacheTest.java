@@ -0,0 +1,273 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.geoserver.gwc.TileBufferPool.Allocation;
+import org.geowebcache.conveyor.Conveyor.CacheResult;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.TileRange;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MemoryTileCacheTest {
+
+    private MemoryTileCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new MemoryTileCache(1024 * 1024);
+        cache.setEnabled(true);
+    }
+
+    private ConveyorTile tile(String layer, long x, long y, int z, Map<String, String> params)
+            throws Exception {
+        return new ConveyorTile(mock(StorageBroker.class), layer, "EPSG:4326", new long[] { x,
+                y, z }, MimeType.createFromFormat("image/png"), params, null, null);
+    }
+
+    private void put(String layer, long x, long y, int z, Map<String, String> params,
+            byte[] contents) throws Exception {
+        ConveyorTile tile = tile(layer, x, y, z, params);
+        tile.setBlob(new ByteArrayResource(contents));
+        tile.getStorageObject().setCreated(System.currentTimeMillis());
+        cache.put(tile, cache.getGeneration());
+    }
+
+    private byte[] get(String layer, long x, long y, int z, Map<String, String> params)
+            throws Exception {
+        ConveyorTile tile = tile(layer, x, y, z, params);
+        if (!cache.get(tile, 0)) {
+            return null;
+        }
+        assertEquals(CacheResult.HIT, tile.getCacheResult());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tile.getBlob().transferTo(Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testPutGet() throws Exception {
+        put("layer", 1, 2, 3, null, new byte[] { 1, 2, 3 });
+        assertEquals(3, get("layer", 1, 2, 3, null).length);
+        assertEquals(null, get("layer", 2, 2, 3, null));
+        assertEquals(null, get("other", 1, 2, 3, null));
+        assertEquals(1, cache.getStatistics().hitCount());
+        assertEquals(2, cache.getStatistics().missCount());
+    }
+
+    @Test
+    public void testParameters() throws Exception {
+        Map<String, String> styles = Collections.singletonMap("STYLES", "alternate");
+        put("layer", 1, 2, 3, null, new byte[] { 1 });
+        put("layer", 1, 2, 3, styles, new byte[] { 1, 2 });
+        assertEquals(1, get("layer", 1, 2, 3, null).length);
+        assertEquals(2, get("layer", 1, 2, 3, styles).length);
+        assertEquals(1, cache.getEntryCount());
+
+        // deleting any variant drops them all
+        cache.tileDeleted("layer", "EPSG:4326", "image/png", "abcd", 1, 2, 3, 2);
+        assertEquals(null, get("layer", 1, 2, 3, null));
+        assertEquals(null, get("layer", 1, 2, 3, styles));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testMaxAge() throws Exception {
+        ConveyorTile tile = tile("layer", 1, 2, 3, null);
+        tile.setBlob(new ByteArrayResource(new byte[] { 1 }));
+        tile.getStorageObject().setCreated(System.currentTimeMillis() - 10000);
+        cache.put(tile, cache.getGeneration());
+        assertFalse(cache.get(tile("layer", 1, 2, 3, null), 1000));
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        // tiles bigger than 1% of the cache are not cached
+        put("layer", 1, 2, 3, null, new byte[20000]);
+        assertEquals(0, cache.getEntryCount());
+
+        for (int x = 0; x < 200; x++) {
+            put("layer", x, 0, 10, null, new byte[10000]);
+        }
+        assertTrue(cache.getSize() <= cache.getMaxSize());
+        assertTrue(cache.getAllocatedSize() <= cache.getMaxSize());
+        assertTrue(cache.getEntryCount() < 200);
+    }
+
+    @Test
+    public void testInvalidateRange() throws Exception {
+        Map<String, String> styles = Collections.singletonMap("STYLES", "alternate");
+        put("layer", 1, 2, 3, null, new byte[] { 1 });
+        put("layer", 1, 2, 3, styles, new byte[] { 1, 2 });
+        put("layer", 5, 5, 3, styles, new byte[] { 1, 2 });
+        put("layer", 1, 2, 4, styles, new byte[] { 1, 2 });
+
+        long[][] bounds = new long[5][];
+        bounds[3] = new long[] { 0, 0, 2, 2, 3 };
+        TileRange range = new TileRange("layer", "EPSG:4326", 3, 3, bounds,
+                MimeType.createFromFormat("image/png"), styles);
+        cache.invalidate(range);
+        // only the variant and the tiles in the range are gone
+        assertEquals(null, get("layer", 1, 2, 3, styles));
+        assertEquals(1, get("layer", 1, 2, 3, null).length);
+        assertEquals(2, get("layer", 5, 5, 3, styles).length);
+        assertEquals(2, get("layer", 1, 2, 4, styles).length);
+        assertEquals(3, cache.getEntryCount());
+    }
+
+    @Test
+    public void testStalePut() throws Exception {
+        long generation = cache.getGeneration();
+        cache.tileStored("layer", "EPSG:4326", "image/png", null, 1, 2, 3, 1);
+        ConveyorTile tile = tile("layer", 1, 2, 3, null);
+        tile.setBlob(new ByteArrayResource(new byte[] { 1 }));
+        tile.getStorageObject().setCreated(System.currentTimeMillis());
+        cache.put(tile, generation);
+        assertEquals(0, cache.getEntryCount());
+        // the tile contents are still available to the caller
+        assertEquals(1, tile.getBlob().getSize());
+    }
+
+    @Test
+    public void testPoolReuse() throws Exception {
+        TileBufferPool pool = new TileBufferPool(2 * TileBufferPool.PAGE_SIZE, 0);
+        Allocation first = pool.allocate(new byte[TileBufferPool.PAGE_SIZE + 1]);
+        assertEquals(2, first.pages.length);
+        assertNull(pool.allocate(new byte[] { 1 }));
+
+        pool.release(first);
+        assertTrue(pool.isReused(first));
+        Allocation second = pool.allocate(new byte[] { 1, 2, 3 });
+        assertEquals(1, second.pages.length);
+        assertEquals(3, second.pages[0].remaining());
+        assertEquals(2 * TileBufferPool.PAGE_SIZE, pool.getAllocatedSize());
+
+        // the resource serves the tile straight from the pool
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pool.resource(second, 0).transferTo(Channels.newChannel(out));
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, out.toByteArray()));
+        pool.release(second);
+        try {
+            pool.resource(second, 0).transferTo(Channels.newChannel(out));
+            fail("Expected an IOException, the memory may be reused");
+        } catch (IOException e) {
+            // fine
+        }
+    }
+
+    @Test
+    public void testSlowReader() throws Exception {
+        final TileBufferPool pool = new TileBufferPool(TileBufferPool.PAGE_SIZE, 100);
+        final Allocation allocation = pool.allocate(new byte[] { 1, 2, 3 });
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final WritableByteChannel blocking = new WritableByteChannel() {
+            WritableByteChannel delegate = Channels.newChannel(out);
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                writing.countDown();
+                try {
+                    unblock.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return delegate.write(src);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() throws IOException {
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Long> transfer = executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return pool.resource(allocation, 0).transferTo(blocking);
+                }
+            });
+            writing.await();
+
+            // released while being written out, and blocked past the grace period
+            pool.release(allocation);
+            Thread.sleep(300);
+            assertFalse(pool.isReused(allocation));
+            assertNull(pool.allocate(new byte[] { 4, 5, 6 }));
+
+            unblock.countDown();
+            assertEquals(3, transfer.get().longValue());
+            assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, out.toByteArray()));
+
+            // the pages get reused once the read is done
+            Allocation other = pool.allocate(new byte[] { 4, 5, 6 });
+            assertEquals(1, other.pages.length);
+            assertTrue(pool.isReused(allocation));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLayerEvents() throws Exception {
+        put("layer", 1, 2, 3, null, new byte[] { 1 });
+        put("layer2", 1, 2, 3, null, new byte[] { 1 });
+        cache.layerRenamed("layer", "renamed");
+        assertEquals(null, get("layer", 1, 2, 3, null));
+        assertEquals(1, get("layer2", 1, 2, 3, null).length);
+
+        cache.gridSubsetDeleted("layer2", "EPSG:4326");
+        assertEquals(null, get("layer2", 1, 2, 3, null));
+
+        put("layer", 1, 2, 3, null, new byte[] { 1 });
+        cache.layerDeleted("layer");
+        assertEquals(null, get("layer", 1, 2, 3, null));
+    }
+
+    @Test
+    public void testDisableAndResize() throws Exception {
+        put("layer", 1, 2, 3, null, new byte[] { 1 });
+        cache.setMaxSize(2 * 1024 * 1024);
+        assertEquals(null, get("layer", 1, 2, 3, null));
+
+        put("layer", 1, 2, 3, null, new byte[] { 1 });
+        cache.setEnabled(false);
+        assertEquals(null, get("layer", 1, 2, 3, null));
+        put("layer", 1, 2, 3, null, new byte[] { 1 });
+        assertEquals(0, cache.getEntryCount());
+    }
+}
@@ -0,0 +1,218 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.geowebcache.diskquota.QuotaStore;
+import org.geowebcache.diskquota.storage.PageStatsPayload;
+import org.geowebcache.diskquota.storage.Quota;
+import org.geowebcache.diskquota.storage.TilePage;
+import org.geowebcache.diskquota.storage.TileSet;
+import org.geowebcache.diskquota.storage.TileSetVisitor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class QuotaUsageBufferTest {
+
+    private File directory;
+
+    private QuotaStore store;
+
+    private TileSet tileSet1, tileSet2;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new File("target", "quotaJournal");
+        FileUtils.deleteDirectory(directory);
+        directory.mkdirs();
+
+        tileSet1 = new TileSet("layer1", "EPSG:4326", "image/png", null);
+        tileSet2 = new TileSet("layer2", "EPSG:900913", "image/png", null);
+        store = mock(QuotaStore.class);
+        when(store.getTileSetById(tileSet1.getId())).thenReturn(tileSet1);
+        when(store.getTileSetById(tileSet2.getId())).thenReturn(tileSet2);
+        when(store.getUsedQuotaByTileSetId(tileSet1.getId())).thenReturn(quota(1000));
+        when(store.getUsedQuotaByTileSetId(tileSet2.getId())).thenReturn(quota(2000));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                TileSetVisitor visitor = (TileSetVisitor) invocation.getArguments()[0];
+                visitor.visit(tileSet1, store);
+                visitor.visit(tileSet2, store);
+                return null;
+            }
+        }).when(store).accept(any(TileSetVisitor.class));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    private static Quota quota(long bytes) {
+        return new Quota(BigInteger.valueOf(bytes));
+    }
+
+    private static List<PageStatsPayload> tiles(TileSet tileSet, int z, int count) {
+        PageStatsPayload payload = new PageStatsPayload(new TilePage(tileSet.getId(), 0, 0, z));
+        payload.setNumTiles(count);
+        return Collections.singletonList(payload);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testBufferAndFlush() throws Exception {
+        QuotaUsageBuffer buffer = new QuotaUsageBuffer(store, null, 0);
+        buffer.add(tileSet1, quota(100), tiles(tileSet1, 1, 1));
+        buffer.add(tileSet1, quota(200), tiles(tileSet1, 1, 2));
+        buffer.add(tileSet1, quota(50), tiles(tileSet1, 2, 1));
+        verify(store, never()).addToQuotaAndTileCounts(any(TileSet.class), any(Quota.class),
+                anyCollection());
+
+        buffer.flush();
+        ArgumentCaptor<Quota> quota = ArgumentCaptor.forClass(Quota.class);
+        ArgumentCaptor<Collection> pages = ArgumentCaptor.forClass(Collection.class);
+        verify(store, times(1)).addToQuotaAndTileCounts(same(tileSet1), quota.capture(),
+                pages.capture());
+        assertEquals(350, quota.getValue().getBytes().longValue());
+        assertEquals(2, pages.getValue().size());
+        for (PageStatsPayload payload : (Collection<PageStatsPayload>) pages.getValue()) {
+            assertEquals(payload.getPage().getZoomLevel() == 1 ? 3 : 1, payload.getNumTiles());
+        }
+
+        // nothing left to flush
+        buffer.flush();
+        verify(store, times(1)).addToQuotaAndTileCounts(any(TileSet.class), any(Quota.class),
+                anyCollection());
+        buffer.close();
+    }
+
+    @Test
+    public void testUsedQuota() throws Exception {
+        QuotaUsageBuffer buffer = new QuotaUsageBuffer(store, null, 0);
+        buffer.add(tileSet1, quota(100), null);
+        assertEquals(1100, buffer.getUsedQuotaByTileSetId(tileSet1.getId()).getBytes()
+                .longValue());
+
+        // kept up to date in memory, the store is not queried again
+        buffer.add(tileSet1, quota(100), null);
+        buffer.add(tileSet2, quota(-500), null);
+        assertEquals(1200, buffer.getUsedQuotaByLayerName("layer1").getBytes().longValue());
+        assertEquals(1500, buffer.getUsedQuotaByGridSet("EPSG:900913").getBytes().longValue());
+        assertEquals(0, buffer.getUsedQuotaByGridSet("other").getBytes().longValue());
+        assertEquals(2700, buffer.getGloballyUsedQuota().getBytes().longValue());
+        verify(store, times(1)).accept(any(TileSetVisitor.class));
+
+        // reloaded once invalidated
+        buffer.invalidate();
+        buffer.getGloballyUsedQuota();
+        verify(store, times(2)).accept(any(TileSetVisitor.class));
+    }
+
+    @Test
+    public void testFailedFlushIsRetried() throws Exception {
+        QuotaUsageBuffer buffer = new QuotaUsageBuffer(store, directory, 0);
+        doThrow(new RuntimeException("fake")).when(store).addToQuotaAndTileCounts(
+                same(tileSet1), any(Quota.class), anyCollection());
+        buffer.add(tileSet1, quota(100), null);
+        buffer.add(tileSet2, quota(200), null);
+        buffer.flush();
+        verify(store, times(1)).addToQuotaAndTileCounts(same(tileSet2), any(Quota.class),
+                anyCollection());
+
+        QuotaStore other = mock(QuotaStore.class);
+        when(other.getTileSetById(tileSet1.getId())).thenReturn(tileSet1);
+        when(other.getTileSetById(tileSet2.getId())).thenReturn(tileSet2);
+        // the quota recorded before the failed write is still there, the other one moved on
+        when(other.getUsedQuotaByTileSetId(tileSet1.getId())).thenReturn(quota(1000));
+        when(other.getUsedQuotaByTileSetId(tileSet2.getId())).thenReturn(quota(2200));
+        // the failed update is still journaled, and only that one
+        new QuotaUsageBuffer(other, directory, 0);
+        ArgumentCaptor<Quota> quota = ArgumentCaptor.forClass(Quota.class);
+        verify(other, times(1)).addToQuotaAndTileCounts(same(tileSet1), quota.capture(),
+                anyCollection());
+        assertEquals(100, quota.getValue().getBytes().longValue());
+        verify(other, never()).addToQuotaAndTileCounts(same(tileSet2), any(Quota.class),
+                anyCollection());
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        QuotaUsageBuffer buffer = new QuotaUsageBuffer(store, directory, 0);
+        buffer.add(tileSet1, quota(100), tiles(tileSet1, 1, 1));
+        buffer.flush();
+        buffer.add(tileSet1, quota(200), tiles(tileSet1, 1, 2));
+        buffer.add(tileSet2, quota(300), tiles(tileSet2, 3, 3));
+        buffer.checkpoint();
+        // updates after the last journal write are lost
+        buffer.add(tileSet2, quota(400), null);
+        // crash, the buffer is not closed
+
+        QuotaStore recovered = mock(QuotaStore.class);
+        when(recovered.getTileSetById(tileSet1.getId())).thenReturn(tileSet1);
+        when(recovered.getTileSetById(tileSet2.getId())).thenReturn(tileSet2);
+        new QuotaUsageBuffer(recovered, directory, 0);
+
+        ArgumentCaptor<Quota> quota = ArgumentCaptor.forClass(Quota.class);
+        verify(recovered, times(1)).addToQuotaAndTileCounts(same(tileSet1), quota.capture(),
+                anyCollection());
+        assertEquals(200, quota.getValue().getBytes().longValue());
+        verify(recovered, times(1)).addToQuotaAndTileCounts(same(tileSet2), quota.capture(),
+                anyCollection());
+        assertEquals(300, quota.getValue().getBytes().longValue());
+
+        // replayed journals are removed
+        assertFalse(new File(directory, QuotaUsageBuffer.JOURNAL).length() > 0);
+        assertFalse(new File(directory, QuotaUsageBuffer.FLUSHING_JOURNAL).exists());
+    }
+
+    @Test
+    public void testNoJournalWithoutUpdates() throws Exception {
+        QuotaUsageBuffer buffer = new QuotaUsageBuffer(store, directory, 0);
+        buffer.checkpoint();
+        assertFalse(new File(directory, QuotaUsageBuffer.JOURNAL).exists());
+        buffer.add(tileSet1, quota(100), null);
+        buffer.checkpoint();
+        assertTrue(new File(directory, QuotaUsageBuffer.JOURNAL).length() > 0);
+        buffer.close();
+        assertFalse(new File(directory, QuotaUsageBuffer.JOURNAL).exists());
+    }
+
+    @Test
+    public void testDiscard() throws Exception {
+        QuotaUsageBuffer buffer = new QuotaUsageBuffer(store, directory, 0);
+        buffer.add(tileSet1, quota(100), null);
+        buffer.discard();
+        buffer.flush();
+        verify(store, never()).addToQuotaAndTileCounts(any(TileSet.class), any(Quota.class),
+                anyCollection());
+        assertFalse(new File(directory, QuotaUsageBuffer.JOURNAL).exists());
+    }
+}
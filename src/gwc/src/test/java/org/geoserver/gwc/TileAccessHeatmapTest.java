@@ -0,0 +1,116 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.geoserver.gwc.TileAccessHeatmap.HotTile;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TileAccessHeatmapTest {
+
+    private TileAccessHeatmap heatmap;
+
+    @Before
+    public void setUp() {
+        heatmap = new TileAccessHeatmap(4);
+    }
+
+    private void hit(String layer, long x, long y, int z, int times) {
+        for (int i = 0; i < times; i++) {
+            heatmap.record(layer, "EPSG:4326", "image/png", null, new long[] { x, y, z });
+        }
+    }
+
+    @Test
+    public void testTopTiles() {
+        hit("layer", 1, 1, 5, 100);
+        hit("layer", 2, 2, 5, 50);
+        for (int x = 10; x < 100; x++) {
+            hit("layer", x, 0, 5, 1);
+        }
+        List<HotTile> hot = heatmap.getHotTiles("layer");
+        assertEquals(4, hot.size());
+        assertEquals(1, hot.get(0).getTileIndex()[0]);
+        assertTrue(hot.get(0).getHits() >= 100);
+        assertEquals(2, hot.get(1).getTileIndex()[0]);
+
+        // each zoom level keeps its own top tiles
+        hit("layer", 1, 1, 6, 1);
+        assertEquals(5, heatmap.getHotTiles("layer").size());
+    }
+
+    @Test
+    public void testParametersAndFormats() {
+        Map<String, String> styles = Collections.singletonMap("STYLES", "alternate");
+        long[] index = { 1, 1, 5 };
+        heatmap.record("layer", "EPSG:4326", "image/png", null, index);
+        heatmap.record("layer", "EPSG:4326", "image/png", styles, index);
+        heatmap.record("layer", "EPSG:4326", "image/jpeg", null, index);
+        heatmap.record("layer", "EPSG:4326", "image/png", Collections.<String, String> emptyMap(),
+                index);
+        assertEquals(3, heatmap.getHotTiles("layer").size());
+    }
+
+    @Test
+    public void testTruncatedAndStored() {
+        hit("layer", 1, 1, 5, 10);
+        hit("layer", 2, 2, 5, 20);
+        assertTrue(heatmap.getTruncated(10).isEmpty());
+
+        heatmap.tileDeleted("layer", "EPSG:4326", "image/png", null, 1, 1, 5, 100);
+        heatmap.tileDeleted("layer", "EPSG:4326", "image/png", null, 2, 2, 5, 100);
+        heatmap.tileDeleted("layer", "EPSG:4326", "image/png", null, 3, 3, 5, 100);
+        List<HotTile> truncated = heatmap.getTruncated(10);
+        assertEquals(2, truncated.size());
+        // hottest first
+        assertEquals(2, truncated.get(0).getTileIndex()[0]);
+        assertEquals(1, heatmap.getTruncated(1).size());
+
+        heatmap.tileStored("layer", "EPSG:4326", "image/png", null, 2, 2, 5, 100);
+        truncated = heatmap.getTruncated(10);
+        assertEquals(1, truncated.size());
+        assertEquals(1, truncated.get(0).getTileIndex()[0]);
+
+        heatmap.truncated("layer");
+        assertEquals(2, heatmap.getTruncated(10).size());
+    }
+
+    @Test
+    public void testDecay() {
+        hit("layer", 1, 1, 5, 8);
+        hit("layer", 2, 2, 5, 1);
+        heatmap.decay();
+        List<HotTile> hot = heatmap.getHotTiles("layer");
+        assertEquals(1, hot.size());
+        assertEquals(4, hot.get(0).getHits());
+    }
+
+    @Test
+    public void testLayerEvents() {
+        hit("layer", 1, 1, 5, 1);
+        heatmap.layerRenamed("layer", "renamed");
+        assertTrue(heatmap.getHotTiles("layer").isEmpty());
+        List<HotTile> hot = heatmap.getHotTiles("renamed");
+        assertEquals(1, hot.size());
+        assertEquals("renamed", hot.get(0).getLayerName());
+
+        heatmap.gridSubsetDeleted("renamed", "EPSG:4326");
+        assertTrue(heatmap.getHotTiles("renamed").isEmpty());
+
+        hit("renamed", 1, 1, 5, 1);
+        heatmap.layerDeleted("renamed");
+        assertTrue(heatmap.getHotTiles("renamed").isEmpty());
+        assertFalse(heatmap.getTruncated(10).iterator().hasNext());
+    }
+}
@@ -0,0 +1,81 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.geoserver.gwc.config.GWCConfig;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.storage.StorageBroker;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class TileWarmerTest {
+
+    private GWC mediator;
+
+    private GWCConfig config;
+
+    private TileLayer layer;
+
+    private TileAccessHeatmap heatmap;
+
+    private TileWarmer warmer;
+
+    @Before
+    public void setUp() {
+        config = new GWCConfig();
+        config.setTileWarmingEnabled(true);
+        config.setTileWarmingCpuBudget(100);
+        mediator = mock(GWC.class);
+        when(mediator.getConfig()).thenReturn(config);
+        layer = mock(TileLayer.class);
+        when(mediator.getTileLayerByName("layer")).thenReturn(layer);
+
+        heatmap = new TileAccessHeatmap();
+        warmer = new TileWarmer(mediator, heatmap, mock(StorageBroker.class));
+    }
+
+    @Test
+    public void testSeedsTruncatedTiles() throws Exception {
+        heatmap.record("layer", "EPSG:4326", "image/png", null, new long[] { 1, 2, 3 });
+        heatmap.record("layer", "EPSG:4326", "image/png", null, new long[] { 4, 5, 6 });
+        heatmap.tileDeleted("layer", "EPSG:4326", "image/png", null, 1, 2, 3, 100);
+
+        warmer.cycle();
+
+        ArgumentCaptor<ConveyorTile> tile = ArgumentCaptor.forClass(ConveyorTile.class);
+        verify(layer).seedTile(tile.capture(), eq(false));
+        assertEquals(1, tile.getValue().getTileIndex()[0]);
+        assertEquals(2, tile.getValue().getTileIndex()[1]);
+        assertEquals(3, tile.getValue().getTileIndex()[2]);
+        assertEquals("image/png", tile.getValue().getMimeType().getFormat());
+        assertEquals(1, warmer.getSeeded());
+        assertTrue(heatmap.getTruncated(10).isEmpty());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        config.setTileWarmingEnabled(false);
+        heatmap.record("layer", "EPSG:4326", "image/png", null, new long[] { 1, 2, 3 });
+        heatmap.truncated("layer");
+
+        warmer.cycle();
+
+        verify(layer, never()).seedTile((ConveyorTile) anyObject(), anyBoolean());
+        assertEquals(1, heatmap.getTruncated(10).size());
+    }
+}
@@ -0,0 +1,127 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc.dispatch;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.geoserver.gwc.GWC;
+import org.geoserver.gwc.VectorTileMimeType;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.mime.MimeType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class VectorTileRequestHandlerTest {
+
+    private VectorTileRequestHandler handler = new VectorTileRequestHandler();
+
+    private ConveyorTile requested;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        GridSetBroker gridSetBroker = new GridSetBroker(true, true);
+        GridSubset gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+
+        TileLayer layer = mock(TileLayer.class);
+        when(layer.getName()).thenReturn("test:layer");
+        when(layer.getMimeTypes()).thenReturn(
+                Arrays.asList(MimeType.createFromFormat("image/png"),
+                        VectorTileMimeType.MAPBOX_VECTOR_TILE));
+        when(layer.getGridSubsets()).thenReturn(Collections.singleton(gridSubset.getName()));
+        when(layer.getGridSubset(gridSubset.getName())).thenReturn(gridSubset);
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("STYLES", "alternate");
+        when(layer.getModifiableParameters(anyMap(), anyString())).thenReturn(parameters);
+        when(layer.getTile(any(ConveyorTile.class))).thenAnswer(new Answer<ConveyorTile>() {
+            @Override
+            public ConveyorTile answer(InvocationOnMock invocation) throws Throwable {
+                requested = (ConveyorTile) invocation.getArguments()[0];
+                requested.setBlob(new ByteArrayResource(new byte[] { 1, 2, 3 }));
+                return requested;
+            }
+        });
+
+        GWC gwc = mock(GWC.class);
+        when(gwc.getTileLayerByName("test:layer")).thenReturn(layer);
+        GWC.set(gwc);
+    }
+
+    @After
+    public void tearDown() {
+        GWC.set(null);
+    }
+
+    @Test
+    public void testWMTS() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setPathInfo("/service/wmts");
+        request.addParameter("REQUEST", "GetTile");
+        request.addParameter("LAYER", "test:layer");
+        request.addParameter("FORMAT", "application/x-protobuf;type=mapbox-vector");
+        request.addParameter("TILEMATRIXSET", "EPSG:4326");
+        request.addParameter("TILEMATRIX", "EPSG:4326:1");
+        request.addParameter("TILEROW", "0");
+        request.addParameter("TILECOL", "3");
+
+        GwcOperationProxy response = handler.dispatch(request, new MockHttpServletResponse());
+        assertEquals(VectorTileMimeType.MAPBOX_VECTOR_TILE.getMimeType(),
+                response.getMimeType());
+        assertEquals(3, response.getContents().length);
+        // WMTS rows go top down, level 1 is two tiles high
+        assertTrue(Arrays.equals(new long[] { 3, 1, 1 }, requested.getTileIndex()));
+        // one tile set for all styles
+        assertFalse(requested.getParameters().containsKey("STYLES"));
+    }
+
+    @Test
+    public void testTMS() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setPathInfo("/service/tms/1.0.0/test:layer@EPSG:4326@pbf/1/3/0.pbf");
+
+        GwcOperationProxy response = handler.dispatch(request, new MockHttpServletResponse());
+        assertEquals(3, response.getContents().length);
+        assertTrue(Arrays.equals(new long[] { 3, 0, 1 }, requested.getTileIndex()));
+        assertEquals(VectorTileMimeType.MAPBOX_VECTOR_TILE, requested.getMimeType());
+    }
+
+    @Test
+    public void testOtherFormats() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setPathInfo("/service/tms/1.0.0/test:layer@EPSG:4326@png/1/3/0.png");
+        assertNull(handler.dispatch(request, new MockHttpServletResponse()));
+
+        request = new MockHttpServletRequest();
+        request.setPathInfo("/service/wmts");
+        request.addParameter("REQUEST", "GetTile");
+        request.addParameter("FORMAT", "image/png");
+        assertNull(handler.dispatch(request, new MockHttpServletResponse()));
+        assertNull(requested);
+    }
+}
@@ -157,6 +157,11 @@ public class CatalogConfigurationTest {
         when(tileLayerCatalog.getLayerId(tileLayerName(group1))).thenReturn(group1.getId());
         when(tileLayerCatalog.getLayerId(tileLayerName(group2))).thenReturn(group2.getId());
 
+        when(tileLayerCatalog.getLayerName(layer1.getId())).thenReturn(tileLayerName(layer1));
+        when(tileLayerCatalog.getLayerName(layer2.getId())).thenReturn(tileLayerName(layer2));
+        when(tileLayerCatalog.getLayerName(group1.getId())).thenReturn(tileLayerName(group1));
+        when(tileLayerCatalog.getLayerName(group2.getId())).thenReturn(tileLayerName(group2));
+
         config = new CatalogConfiguration(catalog, tileLayerCatalog, gridSetBroker);
 
         mockMediator = mock(GWC.class);
@@ -192,6 +197,26 @@ public class CatalogConfigurationTest {
         assertEquals(expected, actual);
     }
 
+    @Test public void testGetLayerNamesForGridSets() {
+        Set<String> gridSets = ImmutableSet.of("EPSG:4326");
+        when(tileLayerCatalog.getLayerIdsForGridSets(gridSets)).thenReturn(
+                ImmutableSet.of(layer1.getId(), group1.getId()));
+
+        assertEquals(ImmutableSet.of(tileLayerName(layer1), tileLayerName(group1)),
+                config.getLayerNamesForGridSets(gridSets));
+
+        // pending changes are taken into account
+        assertTrue(config.removeLayer(tileLayerName(group1)));
+        GeoServerTileLayerInfo modified = TileLayerInfoUtil.loadOrCreate(layer1, defaults);
+        modified.getGridSubsets().clear();
+        config.modifyLayer(new GeoServerTileLayer(layer1, gridSetBroker, modified));
+        GeoServerTileLayerInfo added = TileLayerInfoUtil.loadOrCreate(layer2, defaults);
+        added.setName("renamed");
+        config.modifyLayer(new GeoServerTileLayer(layer2, gridSetBroker, added));
+
+        assertEquals(ImmutableSet.of("renamed"), config.getLayerNamesForGridSets(gridSets));
+    }
+
     @Test public void testGetLayers() {
         Iterable<GeoServerTileLayer> layers = config.getLayers();
         testGetLayers(layers);
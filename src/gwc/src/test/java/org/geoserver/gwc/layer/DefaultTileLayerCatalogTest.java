@@ -8,13 +8,16 @@ package org.geoserver.gwc.layer;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
 
 import java.io.File;
+import java.util.Arrays;
 
 import org.apache.commons.io.FileUtils;
 import org.geoserver.catalog.impl.ModificationProxy;
 import org.geoserver.platform.GeoServerResourceLoader;
 import org.geowebcache.config.XMLConfiguration;
+import org.geowebcache.config.XMLGridSubset;
 import org.geowebcache.config.ContextualConfigurationProvider.Context;
 import org.junit.After;
 import org.junit.Before;
@@ -30,14 +33,18 @@ public class DefaultTileLayerCatalogTest {
 
     private DefaultTileLayerCatalog catalog;
 
+    private GeoServerResourceLoader resourceLoader;
+
+    private XStream xStream;
+
     @Before
     public void setUp() throws Exception {
         baseDirectory = new File("target", "mockTileLayerCatalog");
         FileUtils.deleteDirectory(baseDirectory);
         baseDirectory.mkdirs();
-        GeoServerResourceLoader resourceLoader = new GeoServerResourceLoader(baseDirectory);
+        resourceLoader = new GeoServerResourceLoader(baseDirectory);
 
-        XStream xStream = XMLConfiguration.getConfiguredXStreamWithContext(new XStream(), 
+        xStream = XMLConfiguration.getConfiguredXStreamWithContext(new XStream(), 
                 (WebApplicationContext) null, Context.PERSIST);
 
         catalog = new DefaultTileLayerCatalog(resourceLoader, xStream);
@@ -115,4 +122,63 @@ public class DefaultTileLayerCatalogTest {
         assertEquals(ImmutableSet.of("image/gif"), modified.getMimeFormats());
     }
 
+    private GeoServerTileLayerInfo layerInfo(String id, String name, String... gridSets) {
+        GeoServerTileLayerInfo info = new GeoServerTileLayerInfoImpl();
+        info.setId(id);
+        info.setName(name);
+        for (String gridSet : gridSets) {
+            XMLGridSubset gridSubset = new XMLGridSubset();
+            gridSubset.setGridSetName(gridSet);
+            info.getGridSubsets().add(gridSubset);
+        }
+        return info;
+    }
+
+    @Test public void testGetLayerIdsForGridSets() {
+        catalog.save(layerInfo("id1", "name1", "EPSG:4326", "EPSG:900913"));
+        catalog.save(layerInfo("id2", "name2", "EPSG:900913"));
+        catalog.save(layerInfo("id3", "name3"));
+
+        assertEquals(ImmutableSet.of("id1"), catalog.getLayerIdsForGridSets(ImmutableSet
+                .of("EPSG:4326")));
+        assertEquals(ImmutableSet.of("id1", "id2"), catalog.getLayerIdsForGridSets(ImmutableSet
+                .of("EPSG:900913", "other")));
+
+        catalog.save(layerInfo("id2", "name2", "EPSG:4326"));
+        catalog.delete("id1");
+        assertEquals(ImmutableSet.of("id2"), catalog.getLayerIdsForGridSets(ImmutableSet
+                .of("EPSG:4326")));
+    }
+
+    @Test public void testIndex() throws Exception {
+        catalog.save(layerInfo("id1", "name1", "EPSG:4326"));
+        catalog.save(layerInfo("id2", "name2", "EPSG:900913"));
+        catalog.initialize();
+
+        File layersDir = new File(baseDirectory, "gwc-layers");
+        File indexFile = new File(layersDir, DefaultTileLayerCatalog.INDEX_FILE);
+        assertTrue(indexFile.exists());
+
+        // an unchanged layer file is not parsed again, the index entry is used instead
+        File layerFile = new File(layersDir, "id1.xml");
+        long lastModified = layerFile.lastModified();
+        byte[] garbage = new byte[(int) layerFile.length()];
+        Arrays.fill(garbage, (byte) ' ');
+        FileUtils.writeByteArrayToFile(layerFile, garbage);
+        layerFile.setLastModified(lastModified);
+
+        DefaultTileLayerCatalog reloaded = new DefaultTileLayerCatalog(resourceLoader, xStream);
+        reloaded.initialize();
+        assertEquals(ImmutableSet.of("name1", "name2"), reloaded.getLayerNames());
+        assertEquals(ImmutableSet.of("id1"), reloaded.getLayerIdsForGridSets(ImmutableSet
+                .of("EPSG:4326")));
+
+        // a corrupted index is ignored, and the layer files parsed
+        FileUtils.writeByteArrayToFile(indexFile, new byte[] { 1, 2, 3 });
+        reloaded = new DefaultTileLayerCatalog(resourceLoader, xStream);
+        reloaded.initialize();
+        assertEquals(ImmutableSet.of("name2"), reloaded.getLayerNames());
+        assertEquals(ImmutableSet.of("id2"), reloaded.getLayerIdsForGridSets(ImmutableSet
+                .of("EPSG:4326", "EPSG:900913")));
+    }
 }
@@ -19,6 +19,7 @@ import static org.mockito.Matchers.isA;
 import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -68,6 +69,7 @@ import org.geowebcache.grid.GridSetBroker;
 import org.geowebcache.grid.OutsideCoverageException;
 import org.geowebcache.io.Resource;
 import org.geowebcache.layer.ExpirationRule;
+import org.geowebcache.layer.MetaTile;
 import org.geowebcache.layer.meta.LayerMetaInformation;
 import org.geowebcache.locks.MemoryLockProvider;
 import org.geowebcache.mime.MimeType;
@@ -511,14 +513,11 @@ public class GeoServerTileLayerTest {
     @SuppressWarnings({ "unchecked", "rawtypes" })
     public void testGetTile() throws Exception {
 
-        Resource mockResult = mock(Resource.class);
-        ArgumentCaptor<Map> argument = ArgumentCaptor.forClass(Map.class);
-        Mockito.when(mockGWC.dispatchOwsRequest(argument.capture(), (Cookie[]) anyObject()))
-                .thenReturn(mockResult);
-
         BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
         RenderedImageMap fakeDispatchedMap = new RenderedImageMap(new WMSMapContent(), image,
                 "image/png");
+        Mockito.when(mockGWC.dispatchGetMap((GeoServerTileLayer) anyObject(),
+                (ConveyorTile) anyObject(), (MetaTile) anyObject())).thenReturn(fakeDispatchedMap);
 
         RenderedImageMapResponse fakeResponseEncoder = mock(RenderedImageMapResponse.class);
         MimeType mimeType = MimeType.createFromFormat("image/png");
@@ -537,7 +536,6 @@ public class GeoServerTileLayerTest {
         ConveyorTile tile = new ConveyorTile(storageBroker, layerInfoTileLayer.getName(),
                 "EPSG:4326", tileIndex, mimeType, null, servletReq, servletResp);
 
-        GeoServerTileLayer.WEB_MAP.set(fakeDispatchedMap);
         ConveyorTile returned = layerInfoTileLayer.getTile(tile);
         assertNotNull(returned);
         assertNotNull(returned.getBlob());
@@ -546,6 +544,51 @@ public class GeoServerTileLayerTest {
 
         verify(storageBroker, atLeastOnce()).get((TileObject) anyObject());
         verify(mockGWC, times(1)).getResponseEncoder(eq(mimeType), isA(RenderedImageMap.class));
+
+        // rendered in process, no dispatcher round trip
+        verify(mockGWC).dispatchGetMap(same(layerInfoTileLayer), same(tile),
+                isA(GeoServerMetaTile.class));
+        verify(mockGWC, never()).dispatchOwsRequest((Map) anyObject(), (Cookie[]) anyObject());
+    }
+
+    @Test
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void testGetTileDispatched() throws Exception {
+        System.setProperty(GeoServerTileLayer.DISPATCHED_GETMAP, "true");
+        try {
+            Resource mockResult = mock(Resource.class);
+            ArgumentCaptor<Map> argument = ArgumentCaptor.forClass(Map.class);
+            Mockito.when(mockGWC.dispatchOwsRequest(argument.capture(), (Cookie[]) anyObject()))
+                    .thenReturn(mockResult);
+
+            BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+            RenderedImageMap fakeDispatchedMap = new RenderedImageMap(new WMSMapContent(),
+                    image, "image/png");
+
+            RenderedImageMapResponse fakeResponseEncoder = mock(RenderedImageMapResponse.class);
+            MimeType mimeType = MimeType.createFromFormat("image/png");
+            when(mockGWC.getResponseEncoder(eq(mimeType), (RenderedImageMap) anyObject()))
+                    .thenReturn(fakeResponseEncoder);
+
+            StorageBroker storageBroker = mock(StorageBroker.class);
+            when(storageBroker.get((TileObject) anyObject())).thenReturn(false);
+
+            layerInfoTileLayer = new GeoServerTileLayer(layerInfo, defaults, gridSetBroker);
+
+            long[] tileIndex = { 0, 0, 0 };
+            ConveyorTile tile = new ConveyorTile(storageBroker, layerInfoTileLayer.getName(),
+                    "EPSG:4326", tileIndex, mimeType, null, new MockHttpServletRequest(),
+                    new MockHttpServletResponse());
+
+            GeoServerTileLayer.WEB_MAP.set(fakeDispatchedMap);
+            ConveyorTile returned = layerInfoTileLayer.getTile(tile);
+            assertNotNull(returned.getBlob());
+            assertEquals("true",
+                    argument.getValue().get(GeoServerTileLayer.GWC_SEED_INTERCEPT_TOKEN));
+            assertNull(GeoServerTileLayer.WEB_MAP.get());
+        } finally {
+            System.clearProperty(GeoServerTileLayer.DISPATCHED_GETMAP);
+        }
     }
 
     @Test
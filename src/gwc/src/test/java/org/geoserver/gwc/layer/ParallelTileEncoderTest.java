@@ -0,0 +1,81 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc.layer;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.TileObject;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class ParallelTileEncoderTest {
+
+    @Test
+    public void testRequestedTileReturnedBeforeOthersStored() throws Exception {
+        final long[] requested = { 0, 0, 1 };
+        final long[][] positions = { requested, { 1, 0, 1 }, { 0, 1, 1 }, { 1, 1, 1 } };
+
+        GridSubset gridSubset = mock(GridSubset.class);
+        when(gridSubset.covers((long[]) anyObject())).thenReturn(true);
+        GeoServerTileLayer layer = mock(GeoServerTileLayer.class);
+        when(layer.getName()).thenReturn("test");
+        when(layer.getGridSubset("EPSG:4326")).thenReturn(gridSubset);
+        when(layer.getExpireCache(anyInt())).thenReturn(0);
+
+        // the other tiles cannot be encoded until the requested one has been returned
+        final CountDownLatch returned = new CountDownLatch(1);
+        GeoServerMetaTile metaTile = mock(GeoServerMetaTile.class);
+        when(metaTile.getTilesGridPositions()).thenReturn(positions);
+        when(metaTile.writeTileToStream(anyInt(), (Resource) anyObject())).thenAnswer(
+                new Answer<Boolean>() {
+                    @Override
+                    public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                        int index = (Integer) invocation.getArguments()[0];
+                        if (index != 0) {
+                            returned.await();
+                        }
+                        Resource target = (Resource) invocation.getArguments()[1];
+                        target.getOutputStream().write(new byte[] { (byte) index });
+                        return true;
+                    }
+                });
+
+        StorageBroker storageBroker = mock(StorageBroker.class);
+        ConveyorTile tile = new ConveyorTile(storageBroker, "test", "EPSG:4326", requested,
+                MimeType.createFromFormat("image/png"), null, null, null);
+
+        ParallelTileEncoder encoder = new ParallelTileEncoder(2);
+        encoder.saveTiles(layer, metaTile, tile, System.currentTimeMillis(), "key");
+        assertNotNull(tile.getBlob());
+        assertEquals(1, tile.getBlob().getSize());
+        verify(storageBroker, times(1)).put((TileObject) anyObject());
+
+        returned.countDown();
+        assertTrue(ParallelTileEncoder.awaitPending("key"));
+        // all tiles stored, metatile disposed and no longer pending
+        verify(storageBroker, times(4)).put((TileObject) anyObject());
+        verify(metaTile).dispose();
+        assertFalse(ParallelTileEncoder.awaitPending("key"));
+        verify(metaTile, times(4)).writeTileToStream(anyInt(), (Resource) anyObject());
+    }
+}
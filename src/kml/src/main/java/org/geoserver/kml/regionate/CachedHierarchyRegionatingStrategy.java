@@ -238,7 +238,7 @@ public abstract class CachedHierarchyRegionatingStrategy implements
      * @return
      * @throws Exception
      */
-    private Set<String> getFeaturesForTile(String dataDir, Tile tile)
+    protected Set<String> getFeaturesForTile(String dataDir, Tile tile)
             throws Exception {
         Connection conn = null;
         Statement st = null;
@@ -5,6 +5,7 @@
  */
 package org.geoserver.kml.regionate;
 
+import java.io.File;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.sql.Connection;
@@ -15,10 +16,13 @@ import java.sql.Statement;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.config.GeoServer;
 import org.geoserver.platform.ServiceException;
+import org.geoserver.platform.resource.Resource;
+import org.geoserver.platform.resource.Resource.Type;
 import org.geoserver.wms.MapLayerInfo;
 import org.geoserver.wms.WMSMapContent;
 import org.geotools.data.FeatureSource;
@@ -44,9 +48,22 @@ import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Point;
 
+/**
+ * An attribute based regionating strategy sorting the features on the attribute out of the data
+ * store. Features with higher values of the attribute will be found in higher tiles.
+ * <p>
+ * The whole tile hierarchy is computed at once and kept in a memory mapped
+ * {@link RegionatingIndex}, built with a parallel external sort on the attribute. Setting the
+ * {@code org.geoserver.kml.regionate.mappedIndex.disable} system property to {@code true} goes
+ * back to computing the tiles one by one, caching them in an H2 database.
+ * </p>
+ */
 public class ExternalSortRegionatingStrategy extends
         CachedHierarchyRegionatingStrategy {
 
+    static final boolean MAPPED_INDEX_DISABLED = Boolean
+            .getBoolean("org.geoserver.kml.regionate.mappedIndex.disable");
+
     /**
      * The feature type for the features that we'll return back from the index
      */
@@ -136,6 +153,48 @@ public class ExternalSortRegionatingStrategy extends
         return MapLayerInfo.getRegionateAttribute(cfg); 
     }
 
+    @Override
+    protected Set<String> getFeaturesForTile(String dataDir, Tile tile) throws Exception {
+        if (MAPPED_INDEX_DISABLED) {
+            return super.getFeaturesForTile(dataDir, tile);
+        }
+
+        File file = new File(dataDir, "geosearch/" + getIndexName(tableName));
+        RegionatingIndex index = RegionatingIndex.get(file);
+        if (index == null || index.getFeaturesPerTile() != featuresPerTile) {
+            // build the synchonization token
+            canonicalizer.add(tableName);
+            tableName = canonicalizer.get(tableName);
+
+            // make sure no two thread in parallel can build the same index
+            synchronized (tableName) {
+                index = RegionatingIndex.get(file);
+                if (index == null || index.getFeaturesPerTile() != featuresPerTile) {
+                    index = buildMappedIndex(file);
+                }
+            }
+        }
+        return index.getFeatures(tile);
+    }
+
+    @Override
+    public void clearCache(FeatureTypeInfo cfg) {
+        super.clearCache(cfg);
+        try {
+            Resource geosearch = gs.getCatalog().getResourceLoader().get("geosearch");
+            if (geosearch.getType() == Type.DIRECTORY) {
+                RegionatingIndex.delete(new File(geosearch.dir(),
+                        getIndexName(getDatabaseName(cfg))));
+            }
+        } catch (Exception e) {
+            LOGGER.severe("Couldn't clear out the regionating index due to: " + e);
+        }
+    }
+
+    static String getIndexName(String databaseName) {
+        return "regionate_" + databaseName + ".idx";
+    }
+
     @Override
     public FeatureIterator getSortedFeatures(GeometryDescriptor geom, 
             ReferencedEnvelope latLongEnvelope, ReferencedEnvelope nativeEnvelope, 
@@ -170,7 +229,6 @@ public class ExternalSortRegionatingStrategy extends
     void buildIndex(Connection conn) throws Exception {
         Statement st = null;
         PreparedStatement ps = null;
-        FeatureIterator fi = null;
         try {
             st = conn.createStatement();
             st.execute("CREATE TABLE FEATUREIDX(" //
@@ -185,7 +243,79 @@ public class ExternalSortRegionatingStrategy extends
             // with it just once
             ps = conn.prepareStatement("INSERT INTO "
                     + "FEATUREIDX(X, Y, FID, ORDER_FIELD) VALUES (?, ?, ?, ?)");
+            final PreparedStatement insert = ps;
+
+            // read all the features and fill the index table
+            // make it so the insertion is a single big transaction, should
+            // be faster,
+            // provided it does not kill H2...
+            conn.setAutoCommit(false);
+            collectCentroids(new CentroidCollector() {
+
+                @Override
+                public void collect(double x, double y, String fid, Object value)
+                        throws Exception {
+                    insert.setDouble(1, x);
+                    insert.setDouble(2, y);
+                    insert.setString(3, fid);
+                    insert.setObject(4, value);
+                    insert.execute();
+                }
+            });
+            // todo: commit every 1000 features or so. No transaction is
+            // slower, but too big transaction imposes a big overhead on the db
+            conn.commit();
+            
+            // hum, shall we kick H2 so that it updates the statistics?
+        } finally {
+            conn.setAutoCommit(true);
+            JDBCUtils.close(st);
+            JDBCUtils.close(ps);
+        }
+    }
+
+    /**
+     * Builds the memory mapped index of the whole tile hierarchy
+     */
+    RegionatingIndex buildMappedIndex(File file) throws Exception {
+        File directory = file.getParentFile();
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new ServiceException("Could not create the regionating index directory "
+                    + directory);
+        }
+        final RegionatingIndexBuilder builder = new RegionatingIndexBuilder(dataEnvelope,
+                featuresPerTile, directory);
+        try {
+            collectCentroids(new CentroidCollector() {
+
+                @Override
+                public void collect(double x, double y, String fid, Object value)
+                        throws Exception {
+                    builder.add(x, y, fid, value);
+                }
+            });
+            return builder.build(file);
+        } finally {
+            builder.close();
+        }
+    }
+
+    /**
+     * Receives the features centroids
+     */
+    interface CentroidCollector {
+        /**
+         * Collects the WGS84 centroid of a feature, along with its sort attribute value
+         */
+        void collect(double x, double y, String fid, Object value) throws Exception;
+    }
 
+    /**
+     * Reads all the features, passing their centroid to the collector
+     */
+    void collectCentroids(CentroidCollector collector) throws Exception {
+        FeatureIterator fi = null;
+        try {
             // build an optimized query, loading only the necessary attributes
             GeometryDescriptor geom = fs.getSchema()
                     .getGeometryDescriptor();
@@ -205,11 +335,6 @@ public class ExternalSortRegionatingStrategy extends
             if (!CRS.equalsIgnoreMetadata(nativeCrs, Tile.WGS84))
                 tx = CRS.findMathTransform(nativeCrs, Tile.WGS84, true);
 
-            // read all the features and fill the index table
-            // make it so the insertion is a single big transaction, should
-            // be faster,
-            // provided it does not kill H2...
-            conn.setAutoCommit(false);
             fi = fs.getFeatures(q).features();
             while (fi.hasNext()) {
                 // grab the centroid and transform it in 4326 if necessary
@@ -231,22 +356,9 @@ public class ExternalSortRegionatingStrategy extends
                 if (tx != null)
                     tx.transform(coords, 0, coords, 0, 1);
 
-                // insert
-                ps.setDouble(1, coords[0]);
-                ps.setDouble(2, coords[1]);
-                ps.setString(3, f.getID());
-                ps.setObject(4, getSortAttributeValue(f));
-                ps.execute();
+                collector.collect(coords[0], coords[1], f.getID(), getSortAttributeValue(f));
             }
-            // todo: commit every 1000 features or so. No transaction is
-            // slower, but too big transaction imposes a big overhead on the db
-            conn.commit();
-            
-            // hum, shall we kick H2 so that it updates the statistics?
         } finally {
-            conn.setAutoCommit(true);
-            JDBCUtils.close(st);
-            JDBCUtils.close(ps);
             if (fi != null)
                 fi.close();
         }
@@ -0,0 +1,283 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.kml.regionate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Sorts more items than can be kept in memory: items are collected in runs, each run is sorted
+ * in parallel on the executor and spilled to a temporary file, and the runs are merged back when
+ * the sorted items are requested. Items that fit in a single run are sorted in memory.
+ * <p>
+ * The number of runs being sorted at the same time is bounded by the parallelism, so that the
+ * memory used stays within about {@code (parallelism + 1) * runSize} items.
+ * </p>
+ */
+class ExternalSorter<T> implements Closeable {
+
+    /**
+     * Writes and reads back the items in the run files
+     */
+    interface Codec<T> {
+        void write(T item, DataOutput out) throws IOException;
+
+        T read(DataInput in) throws IOException;
+    }
+
+    final Comparator<T> comparator;
+
+    final Codec<T> codec;
+
+    final File directory;
+
+    final int runSize;
+
+    final Executor executor;
+
+    final Semaphore running;
+
+    final List<Future<File>> runs = new ArrayList<Future<File>>();
+
+    final List<MergeSource> sources = new ArrayList<MergeSource>();
+
+    List<T> current;
+
+    ExternalSorter(Comparator<T> comparator, Codec<T> codec, File directory, int runSize,
+            Executor executor, int parallelism) {
+        this.comparator = comparator;
+        this.codec = codec;
+        this.directory = directory;
+        this.runSize = runSize;
+        this.executor = executor;
+        this.running = new Semaphore(Math.max(1, parallelism));
+        this.current = new ArrayList<T>(Math.min(runSize, 1024));
+    }
+
+    public void add(T item) throws IOException {
+        current.add(item);
+        if (current.size() >= runSize) {
+            spill();
+        }
+    }
+
+    /**
+     * Sorts the current run and writes it to disk in the background
+     */
+    void spill() throws IOException {
+        final List<T> run = current;
+        current = new ArrayList<T>(runSize);
+        try {
+            running.acquire();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for the sorting threads", e);
+        }
+        FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+
+            @Override
+            public File call() throws Exception {
+                try {
+                    return writeRun(run);
+                } finally {
+                    running.release();
+                }
+            }
+        });
+        runs.add(task);
+        executor.execute(task);
+    }
+
+    File writeRun(List<T> run) throws IOException {
+        Collections.sort(run, comparator);
+        File file = File.createTempFile("regionate", ".run", directory);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), 64 * 1024));
+        try {
+            for (T item : run) {
+                codec.write(item, out);
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Returns the items collected so far, sorted. The iterator is valid until the sorter is
+     * closed
+     */
+    public Iterator<T> sort() throws IOException {
+        if (runs.isEmpty()) {
+            Collections.sort(current, comparator);
+            return current.iterator();
+        }
+
+        // the last, partial run is sorted in memory and merged with the others
+        Collections.sort(current, comparator);
+        if (!current.isEmpty()) {
+            sources.add(new MergeSource(current.iterator()));
+        }
+        try {
+            for (Future<File> run : runs) {
+                sources.add(new MergeSource(run.get()));
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while sorting", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to sort", cause);
+        }
+        return new MergeIterator();
+    }
+
+    /**
+     * Releases the run files
+     */
+    public void close() {
+        for (MergeSource source : sources) {
+            source.close();
+        }
+        for (Future<File> run : runs) {
+            try {
+                File file = run.get();
+                if (file.exists()) {
+                    file.delete();
+                }
+            } catch (Exception e) {
+                // the run failed, nothing to delete
+            }
+        }
+        sources.clear();
+        runs.clear();
+        current = Collections.emptyList();
+    }
+
+    /**
+     * A sorted sequence of items, either a run file or the in memory run
+     */
+    class MergeSource {
+        DataInputStream in;
+
+        Iterator<T> iterator;
+
+        T head;
+
+        MergeSource(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                    64 * 1024));
+        }
+
+        MergeSource(Iterator<T> iterator) {
+            this.iterator = iterator;
+        }
+
+        /**
+         * Moves to the next item, returns false if there are no more
+         */
+        boolean advance() throws IOException {
+            if (iterator != null) {
+                head = iterator.hasNext() ? iterator.next() : null;
+            } else if (in != null) {
+                try {
+                    head = codec.read(in);
+                } catch (EOFException e) {
+                    head = null;
+                    close();
+                }
+            } else {
+                head = null;
+            }
+            return head != null;
+        }
+
+        void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+                in = null;
+            }
+        }
+    }
+
+    /**
+     * K-way merge of the sorted runs
+     */
+    class MergeIterator implements Iterator<T> {
+        PriorityQueue<MergeSource> queue;
+
+        MergeIterator() throws IOException {
+            queue = new PriorityQueue<MergeSource>(Math.max(1, sources.size()),
+                    new Comparator<MergeSource>() {
+
+                        @Override
+                        public int compare(MergeSource o1, MergeSource o2) {
+                            return comparator.compare(o1.head, o2.head);
+                        }
+                    });
+            for (MergeSource source : sources) {
+                if (source.advance()) {
+                    queue.add(source);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public T next() {
+            MergeSource source = queue.poll();
+            if (source == null) {
+                throw new NoSuchElementException();
+            }
+            T result = source.head;
+            try {
+                if (source.advance()) {
+                    queue.add(source);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read back the sorted run", e);
+            }
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
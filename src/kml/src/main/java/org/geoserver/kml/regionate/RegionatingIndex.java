@@ -0,0 +1,300 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.kml.regionate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * A read only, memory mapped, assignment of features to regionating tiles, as built by the
+ * {@link RegionatingIndexBuilder}. The file contains a table of the non empty tiles, sorted by
+ * tile key, each one pointing to a range of feature ids, so that finding the features of a tile
+ * is a binary search in the mapped file, without any SQL or copy of the index in memory.
+ * <p>
+ * File layout (big endian):
+ * <ul>
+ * <li>header: magic, version, features per tile, root tile key, tile count, feature count</li>
+ * <li>tiles: tile key (long) and position of the first feature of the tile (int)</li>
+ * <li>feature offsets: position of each feature id in the data section, plus the end position
+ * (int)</li>
+ * <li>data: the UTF-8 encoded feature ids</li>
+ * </ul>
+ * </p>
+ * <p>
+ * Each build writes a new version of the index, in a file named after the index plus a version
+ * number, and never touches the versions already written: a mapped file cannot be deleted or
+ * overwritten on some platforms until the garbage collector unmaps it, so the older versions
+ * are deleted once a newer one is in place, or later on if they are still mapped.
+ * </p>
+ */
+public class RegionatingIndex {
+
+    static final Logger LOGGER = Logging.getLogger("org.geoserver.geosearch");
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final int MAGIC = 0x47535249; // GSRI
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 4 + 4;
+
+    static final int TILE_SIZE = 8 + 4;
+
+    /**
+     * The deepest tile level, the tile keys pack the level and the tile coordinates in a long.
+     * The tiles of this level are less than 20cm wide
+     */
+    static final int MAX_LEVEL = 27;
+
+    private static final int Y_BITS = MAX_LEVEL;
+
+    private static final int X_BITS = MAX_LEVEL + 1;
+
+    /**
+     * The indexes opened so far, by file
+     */
+    static final ConcurrentHashMap<String, RegionatingIndex> INDEXES =
+            new ConcurrentHashMap<String, RegionatingIndex>();
+
+    final File file;
+
+    final long version;
+
+    final ByteBuffer buffer;
+
+    final int featuresPerTile;
+
+    final long rootKey;
+
+    final int tileCount;
+
+    final int featureCount;
+
+    final int offsetsStart;
+
+    final int dataStart;
+
+    RegionatingIndex(File file, long version) throws IOException {
+        this.file = file;
+        this.version = version;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            this.buffer = mapped;
+        } finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION) {
+            throw new IOException(file + " is not a regionating index");
+        }
+        featuresPerTile = buffer.getInt(8);
+        rootKey = buffer.getLong(12);
+        tileCount = buffer.getInt(20);
+        featureCount = buffer.getInt(24);
+        offsetsStart = HEADER_SIZE + tileCount * TILE_SIZE;
+        dataStart = offsetsStart + (featureCount + 1) * 4;
+    }
+
+    /**
+     * Returns the latest version of the index stored in the file, or {@code null} if there is
+     * none. Indexes are mapped once, and mapped again only when a newer version shows up.
+     */
+    public static RegionatingIndex get(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        RegionatingIndex index = INDEXES.get(path);
+        if (index != null && index.file.exists()
+                && !getVersionFile(file, index.version + 1).exists()) {
+            return index;
+        }
+        long version = getLatestVersion(file);
+        if (version >= 0) {
+            deleteVersions(file, version);
+        }
+        File versionFile = getVersionFile(file, version);
+        if (version < 0 || versionFile.length() == 0) {
+            // missing, or deleted while an older version was still mapped
+            INDEXES.remove(path);
+            return null;
+        }
+        index = new RegionatingIndex(versionFile, version);
+        INDEXES.put(path, index);
+        return index;
+    }
+
+    /**
+     * Drops the index stored in the file. If some versions are still mapped and cannot be
+     * deleted, an empty version is written on top of them, marking the index as deleted
+     */
+    public static void delete(File file) throws IOException {
+        INDEXES.remove(file.getCanonicalPath());
+        long version = getLatestVersion(file);
+        if (version >= 0 && !deleteVersions(file, version + 1)
+                && !getVersionFile(file, version + 1).createNewFile()) {
+            LOGGER.log(Level.WARNING, "Could not delete the regionating index " + file);
+        }
+    }
+
+    /**
+     * The file holding a version of the index
+     */
+    static File getVersionFile(File file, long version) {
+        return new File(file.getAbsoluteFile().getParentFile(), file.getName() + "." + version);
+    }
+
+    /**
+     * The latest version of the index written so far, or -1 if there is none
+     */
+    static long getLatestVersion(File file) {
+        long latest = -1;
+        for (long version : getVersions(file)) {
+            latest = Math.max(latest, version);
+        }
+        return latest;
+    }
+
+    /**
+     * Deletes the versions older than the given one
+     *
+     * @return whether all of them got deleted
+     */
+    static boolean deleteVersions(File file, long version) {
+        boolean deleted = true;
+        for (long older : getVersions(file)) {
+            File olderFile = getVersionFile(file, older);
+            if (older < version && !olderFile.delete()) {
+                // still mapped, will be deleted along with the next version
+                LOGGER.fine("Could not delete the regionating index " + olderFile);
+                deleted = false;
+            }
+        }
+        return deleted;
+    }
+
+    private static List<Long> getVersions(File file) {
+        List<Long> versions = new ArrayList<Long>();
+        String prefix = file.getName() + ".";
+        File[] files = file.getAbsoluteFile().getParentFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.startsWith(prefix)) {
+                    try {
+                        versions.add(Long.parseLong(name.substring(prefix.length())));
+                    } catch (NumberFormatException e) {
+                        // not a version of the index
+                    }
+                }
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * The features per tile limit the index has been built with
+     */
+    public int getFeaturesPerTile() {
+        return featuresPerTile;
+    }
+
+    /**
+     * Returns the ids of the features assigned to the tile
+     */
+    public Set<String> getFeatures(Tile tile) {
+        int level = (int) tile.z;
+        int rootLevel = getLevel(rootKey);
+        if (level > MAX_LEVEL || tile.x < 0 || tile.y < 0 || tile.x >> (level + 1) > 0
+                || tile.y >> level > 0) {
+            // outside of the tiling scheme
+            return Collections.emptySet();
+        } else if (level < rootLevel) {
+            // tiles above the root contain all the data, same as the root
+            long shift = rootLevel - level;
+            if (tile.x != getX(rootKey) >> shift || tile.y != getY(rootKey) >> shift) {
+                return Collections.emptySet();
+            }
+            return getFeatures(rootKey);
+        }
+        return getFeatures(key(level, tile.x, tile.y));
+    }
+
+    Set<String> getFeatures(long key) {
+        // binary search in the tiles table
+        int low = 0;
+        int high = tileCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = buffer.getLong(HEADER_SIZE + mid * TILE_SIZE);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                int first = buffer.getInt(HEADER_SIZE + mid * TILE_SIZE + 8);
+                int last = mid < tileCount - 1 ? buffer.getInt(HEADER_SIZE + (mid + 1)
+                        * TILE_SIZE + 8) : featureCount;
+                return readFeatures(first, last);
+            }
+        }
+        return Collections.emptySet();
+    }
+
+    private Set<String> readFeatures(int first, int last) {
+        Set<String> fids = new HashSet<String>();
+        ByteBuffer data = buffer.duplicate();
+        byte[] bytes = new byte[64];
+        for (int i = first; i < last; i++) {
+            int start = buffer.getInt(offsetsStart + i * 4);
+            int end = buffer.getInt(offsetsStart + (i + 1) * 4);
+            int length = end - start;
+            if (bytes.length < length) {
+                bytes = new byte[length];
+            }
+            data.position(dataStart + start);
+            data.get(bytes, 0, length);
+            fids.add(new String(bytes, 0, length, UTF8));
+        }
+        return fids;
+    }
+
+    /**
+     * Packs the tile level and coordinates in a long, sorting by level first
+     */
+    static long key(int level, long x, long y) {
+        return ((long) level << (X_BITS + Y_BITS)) | (x << Y_BITS) | y;
+    }
+
+    static int getLevel(long key) {
+        return (int) (key >>> (X_BITS + Y_BITS));
+    }
+
+    static long getX(long key) {
+        return (key >>> Y_BITS) & ((1L << X_BITS) - 1);
+    }
+
+    static long getY(long key) {
+        return key & ((1L << Y_BITS) - 1);
+    }
+}
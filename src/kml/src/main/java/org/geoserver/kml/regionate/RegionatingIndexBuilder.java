@@ -0,0 +1,521 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.kml.regionate;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.util.ThreadPools;
+import org.geotools.util.logging.Logging;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Builds a {@link RegionatingIndex} out of the feature centroids and regionating attribute
+ * values, assigning each feature to the tiles the same way
+ * {@link CachedHierarchyRegionatingStrategy} does: a tile contains the {@code featuresPerTile}
+ * features with the highest values among the ones whose centroid falls in the tile and that
+ * are not already in one of its ancestors.
+ * <p>
+ * The whole hierarchy is built at once:
+ * <ol>
+ * <li>the features are sorted by descending attribute value with an external sort, whose runs
+ * are sorted in parallel</li>
+ * <li>in that order, each feature is assigned to the first tile along the path from the root
+ * down that has not been filled yet</li>
+ * <li>the assignments are sorted by tile, again with a parallel external sort, and written out
+ * as tile to feature id ranges</li>
+ * </ol>
+ * </p>
+ * <p>
+ * The run size is controlled by the {@code org.geoserver.kml.regionate.runSize} system property
+ * and the number of threads sorting runs by the {@code org.geoserver.kml.regionate.threads} one
+ * </p>
+ */
+public class RegionatingIndexBuilder implements Closeable {
+
+    static final Logger LOGGER = Logging.getLogger("org.geoserver.geosearch");
+
+    static final int RUN_SIZE = Integer.getInteger("org.geoserver.kml.regionate.runSize",
+            100000);
+
+    static final int THREADS = Integer.getInteger("org.geoserver.kml.regionate.threads", Runtime
+            .getRuntime().availableProcessors());
+
+    private static final ThreadPools.Shared<ExecutorService> EXECUTOR =
+            new ThreadPools.Shared<ExecutorService>() {
+                @Override
+                protected ExecutorService create() {
+                    return ThreadPools.newFixedThreadPool("Regionating index builder %d", THREADS);
+                }
+            };
+
+    /**
+     * A feature centroid, in WGS84, along with its regionating value
+     */
+    static final class Centroid {
+        final double x;
+
+        final double y;
+
+        final String fid;
+
+        final Comparable value;
+
+        final long seq;
+
+        Centroid(double x, double y, String fid, Comparable value, long seq) {
+            this.x = x;
+            this.y = y;
+            this.fid = fid;
+            this.value = value;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * The assignment of a feature to a tile
+     */
+    static final class Assignment {
+        final long tile;
+
+        final long seq;
+
+        final String fid;
+
+        Assignment(long tile, long seq, String fid) {
+            this.tile = tile;
+            this.seq = seq;
+            this.fid = fid;
+        }
+    }
+
+    /**
+     * Highest values first, null values last, ties in insertion order
+     */
+    static final Comparator<Centroid> BY_VALUE = new Comparator<Centroid>() {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public int compare(Centroid c1, Centroid c2) {
+            if (c1.value != c2.value) {
+                if (c1.value == null) {
+                    return 1;
+                } else if (c2.value == null) {
+                    return -1;
+                }
+                int result = c2.value.compareTo(c1.value);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return c1.seq < c2.seq ? -1 : (c1.seq == c2.seq ? 0 : 1);
+        }
+    };
+
+    static final Comparator<Assignment> BY_TILE = new Comparator<Assignment>() {
+
+        @Override
+        public int compare(Assignment a1, Assignment a2) {
+            if (a1.tile != a2.tile) {
+                return a1.tile < a2.tile ? -1 : 1;
+            }
+            return a1.seq < a2.seq ? -1 : (a1.seq == a2.seq ? 0 : 1);
+        }
+    };
+
+    static final ExternalSorter.Codec<Centroid> CENTROID_CODEC =
+            new ExternalSorter.Codec<Centroid>() {
+
+        @Override
+        public void write(Centroid c, DataOutput out) throws IOException {
+            out.writeDouble(c.x);
+            out.writeDouble(c.y);
+            out.writeUTF(c.fid);
+            out.writeLong(c.seq);
+            if (c.value == null) {
+                out.writeByte(0);
+            } else if (c.value instanceof Double) {
+                out.writeByte(1);
+                out.writeDouble((Double) c.value);
+            } else if (c.value instanceof Long) {
+                out.writeByte(2);
+                out.writeLong((Long) c.value);
+            } else if (c.value instanceof Boolean) {
+                out.writeByte(3);
+                out.writeBoolean((Boolean) c.value);
+            } else {
+                byte[] bytes = c.value.toString().getBytes(RegionatingIndex.UTF8);
+                out.writeByte(4);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        @Override
+        public Centroid read(DataInput in) throws IOException {
+            double x = in.readDouble();
+            double y = in.readDouble();
+            String fid = in.readUTF();
+            long seq = in.readLong();
+            Comparable value;
+            byte type = in.readByte();
+            if (type == 0) {
+                value = null;
+            } else if (type == 1) {
+                value = in.readDouble();
+            } else if (type == 2) {
+                value = in.readLong();
+            } else if (type == 3) {
+                value = in.readBoolean();
+            } else {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                value = new String(bytes, RegionatingIndex.UTF8);
+            }
+            return new Centroid(x, y, fid, value, seq);
+        }
+    };
+
+    static final ExternalSorter.Codec<Assignment> ASSIGNMENT_CODEC =
+            new ExternalSorter.Codec<Assignment>() {
+
+        @Override
+        public void write(Assignment a, DataOutput out) throws IOException {
+            out.writeLong(a.tile);
+            out.writeLong(a.seq);
+            out.writeUTF(a.fid);
+        }
+
+        @Override
+        public Assignment read(DataInput in) throws IOException {
+            return new Assignment(in.readLong(), in.readLong(), in.readUTF());
+        }
+    };
+
+    final Envelope dataEnvelope;
+
+    final int featuresPerTile;
+
+    final File directory;
+
+    final ExternalSorter<Centroid> centroids;
+
+    final ExternalSorter<Assignment> assignments;
+
+    final int rootLevel;
+
+    long count;
+
+    /**
+     * Creates a new builder
+     *
+     * @param dataEnvelope the WGS84 bounds of the data, as declared in the configuration
+     * @param featuresPerTile the max number of features in a tile
+     * @param directory where the temporary files will be created
+     */
+    public RegionatingIndexBuilder(Envelope dataEnvelope, int featuresPerTile, File directory) {
+        this(dataEnvelope, featuresPerTile, directory, RUN_SIZE, EXECUTOR.get(), THREADS);
+    }
+
+    RegionatingIndexBuilder(Envelope dataEnvelope, int featuresPerTile, File directory,
+            int runSize, Executor executor, int parallelism) {
+        this.dataEnvelope = dataEnvelope;
+        this.featuresPerTile = featuresPerTile;
+        this.directory = directory;
+        this.centroids = new ExternalSorter<Centroid>(BY_VALUE, CENTROID_CODEC, directory,
+                runSize, executor, parallelism);
+        this.assignments = new ExternalSorter<Assignment>(BY_TILE, ASSIGNMENT_CODEC, directory,
+                runSize, executor, parallelism);
+        this.rootLevel = getRootLevel(dataEnvelope);
+    }
+
+    /**
+     * Adds a feature
+     *
+     * @param x the centroid longitude
+     * @param y the centroid latitude
+     * @param fid the feature id
+     * @param value the regionating value, higher values end up in higher tiles
+     */
+    public void add(double x, double y, String fid, Object value) throws IOException {
+        centroids.add(new Centroid(x, y, fid, toComparable(value), count++));
+    }
+
+    /**
+     * Builds the index and writes it in the specified file, replacing the existing one, if any
+     */
+    public RegionatingIndex build(File file) throws IOException {
+        long start = System.currentTimeMillis();
+
+        // top down assignment, in descending value order
+        Map<Long, int[]> counts = new HashMap<Long, int[]>();
+        Iterator<Centroid> sorted = centroids.sort();
+        long seq = 0;
+        while (sorted.hasNext()) {
+            Centroid c = sorted.next();
+            assignments.add(new Assignment(assign(c.x, c.y, counts), seq++, c.fid));
+        }
+        centroids.close();
+
+        // write out the tiles, each one followed by the next
+        File tiles = File.createTempFile("regionate", ".tiles", directory);
+        File offsets = File.createTempFile("regionate", ".offsets", directory);
+        File data = File.createTempFile("regionate", ".data", directory);
+        File target = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            DataOutputStream tilesOut = open(tiles);
+            DataOutputStream offsetsOut = open(offsets);
+            DataOutputStream dataOut = open(data);
+            int tileCount = 0;
+            int featureCount = 0;
+            long dataSize = 0;
+            try {
+                Iterator<Assignment> it = assignments.sort();
+                long lastTile = -1;
+                while (it.hasNext()) {
+                    Assignment a = it.next();
+                    if (a.tile != lastTile) {
+                        tilesOut.writeLong(a.tile);
+                        tilesOut.writeInt(featureCount);
+                        lastTile = a.tile;
+                        tileCount++;
+                    }
+                    byte[] fid = a.fid.getBytes(RegionatingIndex.UTF8);
+                    offsetsOut.writeInt((int) dataSize);
+                    dataOut.write(fid);
+                    dataSize += fid.length;
+                    featureCount++;
+                    if (dataSize > Integer.MAX_VALUE) {
+                        throw new IOException("Too many features to build a regionating index");
+                    }
+                }
+                offsetsOut.writeInt((int) dataSize);
+            } finally {
+                tilesOut.close();
+                offsetsOut.close();
+                dataOut.close();
+                assignments.close();
+            }
+            long size = RegionatingIndex.HEADER_SIZE + tiles.length() + offsets.length()
+                    + data.length();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Too many features to build a regionating index");
+            }
+
+            // put the pieces together
+            FileOutputStream fos = new FileOutputStream(target);
+            try {
+                DataOutputStream header = new DataOutputStream(fos);
+                header.writeInt(RegionatingIndex.MAGIC);
+                header.writeInt(RegionatingIndex.VERSION);
+                header.writeInt(featuresPerTile);
+                header.writeLong(getRootKey());
+                header.writeInt(tileCount);
+                header.writeInt(featureCount);
+                header.flush();
+                FileChannel out = fos.getChannel();
+                append(tiles, out);
+                append(offsets, out);
+                append(data, out);
+            } finally {
+                fos.close();
+            }
+            // a new version, the previous ones may still be mapped
+            File versionFile = RegionatingIndex.getVersionFile(file,
+                    RegionatingIndex.getLatestVersion(file) + 1);
+            if (!target.renameTo(versionFile)) {
+                throw new IOException("Could not move the regionating index to " + versionFile);
+            }
+
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Built regionating index " + file + " with " + featureCount
+                        + " features in " + tileCount + " tiles in "
+                        + (System.currentTimeMillis() - start) + "ms");
+            }
+            return RegionatingIndex.get(file);
+        } finally {
+            tiles.delete();
+            offsets.delete();
+            data.delete();
+            if (target.exists()) {
+                target.delete();
+            }
+        }
+    }
+
+    /**
+     * Releases the temporary files
+     */
+    public void close() {
+        centroids.close();
+        assignments.close();
+    }
+
+    /**
+     * Assigns the feature to the first tile, from the root down, that is not full yet
+     */
+    long assign(double x, double y, Map<Long, int[]> counts) {
+        for (int level = rootLevel;; level++) {
+            long key = RegionatingIndex.key(level, getTileX(x, level), getTileY(y, level));
+            int[] tileCount = counts.get(key);
+            if (tileCount == null) {
+                counts.put(key, new int[] { 1 });
+                return key;
+            } else if (tileCount[0] < featuresPerTile || level == RegionatingIndex.MAX_LEVEL) {
+                // the last level gets all that is left
+                tileCount[0]++;
+                return key;
+            }
+        }
+    }
+
+    /**
+     * The level of the smallest tile containing the whole data, the hierarchy root, or 0 if the
+     * data spans the two root tiles of the tiling scheme
+     */
+    static int getRootLevel(Envelope envelope) {
+        if (envelope == null || envelope.isNull()) {
+            return 0;
+        }
+        int level = 0;
+        while (level < RegionatingIndex.MAX_LEVEL && contains(level + 1, envelope)) {
+            level++;
+        }
+        return level;
+    }
+
+    private static boolean contains(int level, Envelope envelope) {
+        double size = getTileSize(level);
+        long x = getColumn(envelope.getMinX(), level);
+        long y = getRow(envelope.getMinY(), level);
+        double minX = x * size + Tile.WORLD_BOUNDS.getMinX();
+        double minY = y * size + Tile.WORLD_BOUNDS.getMinY();
+        return envelope.getMaxX() <= minX + size && envelope.getMaxY() <= minY + size;
+    }
+
+    long getRootKey() {
+        if (dataEnvelope == null || dataEnvelope.isNull()) {
+            return RegionatingIndex.key(0, 0, 0);
+        }
+        return RegionatingIndex.key(rootLevel, getColumn(dataEnvelope.getMinX(), rootLevel),
+                getRow(dataEnvelope.getMinY(), rootLevel));
+    }
+
+    /**
+     * Same tile size as computed by {@link Tile}
+     */
+    static double getTileSize(int level) {
+        return Tile.MAX_TILE_WIDTH / Math.pow(2, level);
+    }
+
+    /**
+     * Returns the column of the tile containing the longitude, following the {@link Tile}
+     * containment rules (west border in, east border out, unless the east border is the data
+     * one)
+     */
+    long getTileX(double x, int level) {
+        long column = getColumn(x, level);
+        double minX = column * getTileSize(level) + Tile.WORLD_BOUNDS.getMinX();
+        if (column > 0 && x == minX && dataEnvelope != null && !dataEnvelope.isNull()
+                && x >= dataEnvelope.getMaxX()) {
+            column--;
+        }
+        return column;
+    }
+
+    /**
+     * Returns the row of the tile containing the latitude, following the {@link Tile}
+     * containment rules (south border in, north border out, unless the north border is the data
+     * one)
+     */
+    long getTileY(double y, int level) {
+        long row = getRow(y, level);
+        double minY = row * getTileSize(level) + Tile.WORLD_BOUNDS.getMinY();
+        if (row > 0 && y == minY && dataEnvelope != null && !dataEnvelope.isNull()
+                && y >= dataEnvelope.getMaxY()) {
+            row--;
+        }
+        return row;
+    }
+
+    static long getColumn(double x, int level) {
+        return getTile(x, Tile.WORLD_BOUNDS.getMinX(), getTileSize(level),
+                (1L << (level + 1)) - 1);
+    }
+
+    static long getRow(double y, int level) {
+        return getTile(y, Tile.WORLD_BOUNDS.getMinY(), getTileSize(level), (1L << level) - 1);
+    }
+
+    /**
+     * Returns the tile containing the ordinate, clamped to the tiling scheme
+     */
+    private static long getTile(double ordinate, double origin, double size, long max) {
+        long tile = (long) Math.floor((ordinate - origin) / size);
+        // make sure rounding does not get us out of the tile computed the Tile way
+        double min = tile * size + origin;
+        if (ordinate < min) {
+            tile--;
+        } else if (ordinate >= min + size) {
+            tile++;
+        }
+        return Math.max(0, Math.min(max, tile));
+    }
+
+    /**
+     * Turns the attribute value in one that can be sorted and written in the run files
+     */
+    static Comparable toComparable(Object value) {
+        if (value == null) {
+            return null;
+        } else if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof Date) {
+            return ((Date) value).getTime();
+        } else if (value instanceof Boolean) {
+            return (Boolean) value;
+        } else {
+            return value.toString();
+        }
+    }
+
+    private static DataOutputStream open(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                64 * 1024));
+    }
+
+    private static void append(File file, FileChannel out) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel in = fis.getChannel();
+            long position = 0;
+            long size = in.size();
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        } finally {
+            fis.close();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.kml.regionate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+public class RegionatingIndexBuilderTest {
+
+    static final int FEATURES_PER_TILE = 5;
+
+    File directory;
+
+    ExecutorService executor;
+
+    /**
+     * A feature centroid along with its regionating value
+     */
+    static class Point {
+        double x;
+
+        double y;
+
+        String fid;
+
+        Integer value;
+
+        Point(double x, double y, String fid, Integer value) {
+            this.x = x;
+            this.y = y;
+            this.fid = fid;
+            this.value = value;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("regionate", "test");
+        directory.delete();
+        directory.mkdirs();
+        executor = Executors.newFixedThreadPool(3);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdown();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testTileKeys() {
+        long key = RegionatingIndex.key(12, 8000, 3000);
+        assertEquals(12, RegionatingIndex.getLevel(key));
+        assertEquals(8000, RegionatingIndex.getX(key));
+        assertEquals(3000, RegionatingIndex.getY(key));
+
+        int level = RegionatingIndex.MAX_LEVEL;
+        long x = (1L << (level + 1)) - 1;
+        long y = (1L << level) - 1;
+        key = RegionatingIndex.key(level, x, y);
+        assertEquals(level, RegionatingIndex.getLevel(key));
+        assertEquals(x, RegionatingIndex.getX(key));
+        assertEquals(y, RegionatingIndex.getY(key));
+        // sorted by level first
+        assertTrue(key < RegionatingIndex.key(level + 1, 0, 0));
+    }
+
+    @Test
+    public void testRootLevel() {
+        assertEquals(0, RegionatingIndexBuilder.getRootLevel(null));
+        assertEquals(0, RegionatingIndexBuilder.getRootLevel(new Envelope(-10, 10, -10, 10)));
+        assertEquals(4, RegionatingIndexBuilder.getRootLevel(new Envelope(0, 10, 0, 10)));
+    }
+
+    @Test
+    public void testSmallInMemory() throws Exception {
+        assertMatchesLazyRegionation(40, 1000);
+    }
+
+    @Test
+    public void testExternalSort() throws Exception {
+        // small runs, so that both sorts spill to disk and get merged back
+        assertMatchesLazyRegionation(1000, 50);
+    }
+
+    @Test
+    public void testMissing() throws Exception {
+        assertNull(RegionatingIndex.get(new File(directory, "missing.idx")));
+    }
+
+    @Test
+    public void testRebuild() throws Exception {
+        Envelope envelope = new Envelope(0, 10, 0, 10);
+        File file = new File(directory, "test.idx");
+        List<Point> points = createPoints(100, envelope, new Random(1));
+        RegionatingIndex index = build(points, envelope, 100, file);
+        Set<String> root = index.getFeatures(new Tile(16, 8, 4));
+        assertEquals(FEATURES_PER_TILE, root.size());
+
+        // replacing the file is noticed
+        RegionatingIndexBuilder builder = new RegionatingIndexBuilder(envelope, 10, directory,
+                100, executor, 3);
+        try {
+            for (Point p : points) {
+                builder.add(p.x, p.y, p.fid, p.value);
+            }
+            builder.build(file);
+        } finally {
+            builder.close();
+        }
+        index = RegionatingIndex.get(file);
+        assertEquals(10, index.getFeaturesPerTile());
+        assertEquals(10, index.getFeatures(new Tile(16, 8, 4)).size());
+        // written as a new version, the old one is gone once the new one is mapped
+        assertEquals(1, index.version);
+        assertFalse(RegionatingIndex.getVersionFile(file, 0).exists());
+
+        RegionatingIndex.delete(file);
+        assertNull(RegionatingIndex.get(file));
+        assertEquals(-1, RegionatingIndex.getLatestVersion(file));
+    }
+
+    void assertMatchesLazyRegionation(int count, int runSize) throws Exception {
+        Envelope envelope = new Envelope(0, 10, 0, 10);
+        List<Point> points = createPoints(count, envelope, new Random(count));
+        // a couple of features lying on the east and north borders of the data
+        points.add(new Point(10, 5, "east", 5));
+        points.add(new Point(5, 10, "north", 5));
+        points.add(new Point(10, 10, "corner", null));
+
+        File file = new File(directory, "test" + count + ".idx");
+        RegionatingIndex index = build(points, envelope, runSize, file);
+        RegionatingIndexBuilder tiler = new RegionatingIndexBuilder(envelope, FEATURES_PER_TILE,
+                directory);
+        try {
+            int rootLevel = RegionatingIndexBuilder.getRootLevel(envelope);
+            Map<String, Set<String>> reference = new HashMap<String, Set<String>>();
+            for (int level = rootLevel; level <= rootLevel + 6; level++) {
+                // all the tiles containing features at this level
+                Set<String> visited = new HashSet<String>();
+                for (Point p : points) {
+                    long x = tiler.getTileX(p.x, level);
+                    long y = tiler.getTileY(p.y, level);
+                    if (visited.add(x + "_" + y)) {
+                        Set<String> expected = getLazyFeatures(points, tiler, rootLevel, level,
+                                x, y, reference);
+                        assertEquals("Tile " + x + "," + y + "," + level, expected,
+                                index.getFeatures(new Tile(x, y, level)));
+                    }
+                }
+            }
+            // the tiles above the root return the same as the root
+            Set<String> root = index.getFeatures(new Tile(16, 8, 4));
+            assertEquals(FEATURES_PER_TILE, root.size());
+            assertEquals(root, index.getFeatures(new Tile(8, 4, 3)));
+            assertEquals(root, index.getFeatures(new Tile(1, 0, 0)));
+            assertEquals(Collections.emptySet(), index.getFeatures(new Tile(0, 0, 0)));
+            assertEquals(Collections.emptySet(), index.getFeatures(new Tile(9, 4, 3)));
+        } finally {
+            tiler.close();
+        }
+    }
+
+    RegionatingIndex build(List<Point> points, Envelope envelope, int runSize, File file)
+            throws Exception {
+        RegionatingIndexBuilder builder = new RegionatingIndexBuilder(envelope,
+                FEATURES_PER_TILE, directory, runSize, executor, 3);
+        try {
+            for (Point p : points) {
+                builder.add(p.x, p.y, p.fid, p.value);
+            }
+            return builder.build(file);
+        } finally {
+            builder.close();
+        }
+    }
+
+    List<Point> createPoints(int count, Envelope envelope, Random random) {
+        List<Point> points = new ArrayList<Point>();
+        for (int i = 0; i < count; i++) {
+            double x = envelope.getMinX() + random.nextDouble() * envelope.getWidth();
+            double y = envelope.getMinY() + random.nextDouble() * envelope.getHeight();
+            // plenty of ties, and a few nulls
+            Integer value = i % 17 == 0 ? null : random.nextInt(count / 4);
+            points.add(new Point(x, y, "f." + i, value));
+        }
+        return points;
+    }
+
+    /**
+     * The features of a tile the way the H2 based regionation computes them: the top features
+     * contained in the tile that are not already in any of its ancestors
+     */
+    Set<String> getLazyFeatures(List<Point> points, RegionatingIndexBuilder tiler,
+            int rootLevel, int level, long x, long y, Map<String, Set<String>> cache) {
+        String key = x + "_" + y + "_" + level;
+        Set<String> result = cache.get(key);
+        if (result != null) {
+            return result;
+        }
+
+        Set<String> upward = new HashSet<String>();
+        for (int l = rootLevel; l < level; l++) {
+            int shift = level - l;
+            upward.addAll(getLazyFeatures(points, tiler, rootLevel, l, x >> shift, y >> shift,
+                    cache));
+        }
+
+        List<Point> candidates = new ArrayList<Point>();
+        for (Point p : points) {
+            if (tiler.getTileX(p.x, level) == x && tiler.getTileY(p.y, level) == y
+                    && !upward.contains(p.fid)) {
+                candidates.add(p);
+            }
+        }
+        // descending value, nulls last, insertion order on ties
+        Collections.sort(candidates, new Comparator<Point>() {
+
+            @Override
+            public int compare(Point p1, Point p2) {
+                if (p1.value == null) {
+                    return p2.value == null ? 0 : 1;
+                } else if (p2.value == null) {
+                    return -1;
+                }
+                return p2.value.compareTo(p1.value);
+            }
+        });
+        result = new HashSet<String>();
+        for (int i = 0; i < candidates.size() && i < FEATURES_PER_TILE; i++) {
+            result.add(candidates.get(i).fid);
+        }
+        cache.put(key, result);
+        return result;
+    }
+}
@@ -36,6 +36,7 @@ public class DefaultGeoServerLoader extends GeoServerLoader {
     
     ConfigurationListener listener;
     GeoServerPersister persister; 
+    GeoServerPersister catalogPersister;
 
     public DefaultGeoServerLoader(GeoServerResourceLoader resourceLoader) {
         super(resourceLoader);
@@ -48,7 +49,9 @@ public class DefaultGeoServerLoader extends GeoServerLoader {
         
         if ( !legacy ) {
             //add the listener which will persist changes
-            catalog.addListener( new GeoServerPersister( resourceLoader, xp ) );
+            catalogPersister = new GeoServerPersister( resourceLoader, xp );
+            catalogPersister.setWriteBehind(GeoServerPersister.isWriteBehindEnabled());
+            catalog.addListener( catalogPersister );
         }
     }
     
@@ -69,6 +72,7 @@ public class DefaultGeoServerLoader extends GeoServerLoader {
             } else {
                 // lazy creation of the persister at the first need
                 this.persister = new GeoServerPersister(resourceLoader, xp);
+                this.persister.setWriteBehind(GeoServerPersister.isWriteBehindEnabled());
             }
             readConfiguration(geoServer, xp);
         } finally {
@@ -88,4 +92,24 @@ public class DefaultGeoServerLoader extends GeoServerLoader {
         catalog.removeListener(p);
     }
 
+    @Override
+    public void destroy() throws Exception {
+        // make sure queued configuration changes reach the disk
+        try {
+            if (catalogPersister != null) {
+                // a new one is created on reload, stop its writer thread
+                try {
+                    catalogPersister.flush();
+                } finally {
+                    catalogPersister.setWriteBehind(false);
+                }
+            }
+            if (persister != null) {
+                persister.flush();
+            }
+        } finally {
+            super.destroy();
+        }
+    }
+
 }
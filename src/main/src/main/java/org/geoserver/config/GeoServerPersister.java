@@ -7,6 +7,7 @@ package org.geoserver.config;
 
 import static org.geoserver.data.util.IOUtils.xStreamPersist;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -15,7 +16,14 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,21 +49,41 @@ import org.geoserver.catalog.event.CatalogModifyEvent;
 import org.geoserver.catalog.event.CatalogPostModifyEvent;
 import org.geoserver.catalog.event.CatalogRemoveEvent;
 import org.geoserver.config.util.XStreamPersister;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.GeoServerResourceLoader;
 import org.geoserver.platform.resource.Files;
 import org.geoserver.platform.resource.Resource;
 import org.geoserver.platform.resource.Resource.Type;
+import org.geoserver.util.ThreadPools;
 import org.geotools.styling.AbstractStyleVisitor;
 import org.geotools.styling.ExternalGraphic;
 import org.geotools.styling.Style;
 import org.geotools.util.logging.Logging;
 
 
-
+/**
+ * Catalog and configuration listener writing changes to the data directory.
+ * <p>
+ * By default changes are written synchronously on the thread firing the event. In write-behind
+ * mode (see {@link #setWriteBehind(boolean)}) objects are still serialized on the calling thread,
+ * but the writes, renames, moves and removals are queued and performed in order by a single
+ * background thread. Writes of the same file still in the queue are coalesced, only the latest
+ * content is written (each file is replaced atomically through a temp file and rename).
+ * Events renaming, moving or removing files wait for the queued operations first, as they
+ * look at the files on disk. Callers needing durability before returning can use
+ * {@link #flush()}.
+ * </p>
+ */
 public class GeoServerPersister implements CatalogListener, ConfigurationListener {
 
     private static final int MAX_RENAME_ATTEMPTS = 100;
 
+    /**
+     * Property enabling write-behind mode for the persisters set up by the
+     * {@link DefaultGeoServerLoader}
+     */
+    public static final String WRITE_BEHIND = "GEOSERVER_CONFIG_WRITE_BEHIND";
+
     /**
      * logging instance
      */
@@ -64,12 +92,138 @@ public class GeoServerPersister implements CatalogListener, ConfigurationListene
     GeoServerResourceLoader rl;
     GeoServerDataDirectory dd;
     XStreamPersister xp;
+
+    /** guards the write-behind queue state */
+    final Object queueLock = new Object();
+
+    /** background writer, null when writing synchronously */
+    ExecutorService writer;
+
+    /** queued writes not started yet, by resource path, used for coalescing */
+    final Map<String, WriteOp> pending = new HashMap<String, WriteOp>();
+
+    /** first background failure since the last flush */
+    Exception failure;
+
+    final AtomicLong coalesced = new AtomicLong();
     
     public GeoServerPersister(GeoServerResourceLoader rl, XStreamPersister xp) {
         this.rl = rl;
         this.dd = new GeoServerDataDirectory(rl);
         this.xp = xp;
     }
+
+    /**
+     * Returns true if {@link #WRITE_BEHIND} is set to true
+     */
+    public static boolean isWriteBehindEnabled() {
+        return Boolean.valueOf(GeoServerExtensions.getProperty(WRITE_BEHIND));
+    }
+
+    public boolean isWriteBehind() {
+        synchronized (queueLock) {
+            return writer != null;
+        }
+    }
+
+    /**
+     * Switches write-behind mode on or off. Switching it off waits for all queued operations
+     * to complete.
+     */
+    public void setWriteBehind(boolean writeBehind) {
+        ExecutorService executor;
+        synchronized (queueLock) {
+            if (writeBehind == (writer != null)) {
+                return;
+            }
+            if (writeBehind) {
+                writer = ThreadPools.newSingleThreadExecutor("GeoServer configuration writer");
+                return;
+            }
+            executor = writer;
+            writer = null;
+            pending.clear();
+        }
+        // queued operations still run after shutdown
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                LOGGER.info("Waiting for queued configuration writes to complete");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (queueLock) {
+            if (failure != null) {
+                LOGGER.log(Level.SEVERE, "Configuration changes could not be written", failure);
+                failure = null;
+            }
+        }
+    }
+
+    /**
+     * Waits for all operations queued so far to be written to disk. Does nothing when writing
+     * synchronously.
+     * 
+     * @throws IOException if any queued operation failed since the last flush
+     */
+    public void flush() throws IOException {
+        Future<?> barrier;
+        synchronized (queueLock) {
+            if (writer == null) {
+                return;
+            }
+            // single threaded executor, all previously queued operations run before this one
+            barrier = writer.submit(new Runnable() {
+                public void run() {
+                }
+            });
+        }
+        try {
+            barrier.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for configuration writes", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        Exception f;
+        synchronized (queueLock) {
+            f = failure;
+            failure = null;
+        }
+        if (f != null) {
+            throw new IOException("Failed to write configuration changes", f);
+        }
+    }
+
+    /**
+     * Same as {@link #flush()}, rethrowing failures as runtime exceptions for the event handlers
+     * not declaring {@link IOException}
+     */
+    void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns true if a modify event renames or moves files
+     */
+    static boolean isFileChange(List<String> propertyNames) {
+        return propertyNames.contains("name") || propertyNames.contains("workspace")
+                || propertyNames.contains("store");
+    }
+
+    /**
+     * Number of writes skipped in write-behind mode because a more recent version of the same
+     * file was queued
+     */
+    public long getCoalescedWrites() {
+        return coalesced.get();
+    }
     
     public void handleAddEvent(CatalogAddEvent event) {
         Object source = event.getSource();
@@ -117,6 +271,11 @@ public class GeoServerPersister implements CatalogListener, ConfigurationListene
         Object source = event.getSource();
         
         try {
+            if ( isFileChange( event.getPropertyNames() ) ) {
+                // renames and moves run after the queued writes, and look at the files on disk
+                flush();
+            }
+
             //here we handle name changes
             int i = event.getPropertyNames().indexOf( "name" );
             if ( i > -1 ) {
@@ -255,6 +414,9 @@ public class GeoServerPersister implements CatalogListener, ConfigurationListene
     public void handleRemoveEvent(CatalogRemoveEvent event) {
         Object source = event.getSource();
         try {
+            // removals look at the files on disk
+            flush();
+
             if ( source instanceof WorkspaceInfo ) {
                 removeWorkspace( (WorkspaceInfo) source );
             }
@@ -316,6 +478,7 @@ public class GeoServerPersister implements CatalogListener, ConfigurationListene
         //handle case of settings changing workspace
         int i = propertyNames.indexOf( "workspace");
         if ( i > -1 ) {
+            flushQuietly();
             WorkspaceInfo newWorkspace = (WorkspaceInfo) newValues.get( i );
             LOGGER.fine( "Moving settings '" + settings + " to workspace: " + newWorkspace);
             
@@ -335,6 +498,7 @@ public class GeoServerPersister implements CatalogListener, ConfigurationListene
 
     public void handleSettingsRemoved(SettingsInfo settings) {
         LOGGER.fine( "Removing settings " + settings );
+        flushQuietly();
         rmRes(dd.config(settings));
     }
 
@@ -694,39 +858,177 @@ public class GeoServerPersister implements CatalogListener, ConfigurationListene
         rmRes(xml);
     }
     
-    private void persist( Object o, Resource r ) throws IOException {
+    private void persist( Object o, final Resource r ) throws IOException {
+        if (!isWriteBehind()) {
+            try {
+                synchronized ( xp ) {
+                    xStreamPersist(r, o, xp);
+                }
+                LOGGER.fine("Persisted " + o.getClass().getName() + " to " + r.path() );
+            }
+            catch( Exception e ) {
+                //catch any exceptions and send them back as CatalogExeptions
+                String msg = "Error persisting " + o + " to " + r.path();
+                throw new CatalogException(msg, e);
+            }
+            return;
+        }
+
+        // snapshot the object now, it may keep changing while the write is queued
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
         try {
             synchronized ( xp ) {
-                xStreamPersist(r, o, xp);
+                xp.save(o, bytes);
             }
-            LOGGER.fine("Persisted " + o.getClass().getName() + " to " + r.path() );
         }
         catch( Exception e ) {
-            //catch any exceptions and send them back as CatalogExeptions
             String msg = "Error persisting " + o + " to " + r.path();
             throw new CatalogException(msg, e);
         }
+        synchronized (queueLock) {
+            if (writer != null) {
+                WriteOp op = pending.get(r.path());
+                if (op != null) {
+                    op.content = bytes.toByteArray();
+                    coalesced.incrementAndGet();
+                } else {
+                    op = new WriteOp(r, bytes.toByteArray());
+                    pending.put(r.path(), op);
+                    writer.execute(op);
+                }
+                return;
+            }
+        }
+        // write behind switched off meanwhile
+        try (OutputStream out = r.out()) {
+            bytes.writeTo(out);
+        }
     }
     
-    private void rmRes(Resource r) {
-        rl.remove(r.path());
+    private void rmRes(final Resource r) {
+        if (!queue(new Op("Removing " + r.path()) {
+            void execute() {
+                rl.remove(r.path());
+            }
+        })) {
+            rl.remove(r.path());
+        }
     }
     private void renameRes(Resource r, String newName) {
-        rl.move(r.path(), r.parent().get(newName).path());
+        move(r.path(), r.parent().get(newName).path());
     }
     private void moveResToDir(Resource r, Resource newDir) {
-        rl.move(r.path(), newDir.get(r.name()).path());
+        move(r.path(), newDir.get(r.name()).path());
+    }
+    private void move(final String path, final String target) {
+        if (!queue(new Op("Moving " + path + " to " + target) {
+            void execute() {
+                rl.move(path, target);
+            }
+        })) {
+            rl.move(path, target);
+        }
     }
     
-    private void copyResToDir(Resource r, Resource newDir) throws IOException {
-        Resource newR = newDir.get(r.name());
+    private void copyResToDir(final Resource r, Resource newDir) throws IOException {
+        final Resource newR = newDir.get(r.name());
+        if (!queue(new Op("Copying " + r.path() + " to " + newR.path()) {
+            void execute() throws IOException {
+                copy(r, newR);
+            }
+        })) {
+            copy(r, newR);
+        }
+    }
+    private void copy(Resource r, Resource newR) throws IOException {
         try(InputStream in = r.in();
             OutputStream out = newR.out()){
             IOUtils.copy(in, out);
         }
     }
-    private void ensureParent(Resource r) {
-        r.parent().dir();
+    private void ensureParent(final Resource r) {
+        if (!queue(new Op("Creating " + r.parent().path()) {
+            void execute() {
+                r.parent().dir();
+            }
+        })) {
+            r.parent().dir();
+        }
+    }
+
+    /**
+     * Queues an operation in write-behind mode. Pending writes queued before a structural
+     * operation (move, removal) are no longer coalesced with later ones, to keep the order.
+     * 
+     * @return false if writing synchronously, the caller has to run the operation itself
+     */
+    private boolean queue(Op op) {
+        synchronized (queueLock) {
+            if (writer == null) {
+                return false;
+            }
+            pending.clear();
+            writer.execute(op);
+            return true;
+        }
+    }
+
+    /**
+     * Operation run by the background writer, failures are logged and reported by the
+     * next {@link GeoServerPersister#flush()}
+     */
+    abstract class Op implements Runnable {
+        final String description;
+
+        Op(String description) {
+            this.description = description;
+        }
+
+        abstract void execute() throws IOException;
+
+        public void run() {
+            try {
+                execute();
+                LOGGER.fine(description);
+            } catch (Exception e) {
+                LOGGER.log(Level.SEVERE, "Error " + description, e);
+                synchronized (queueLock) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Queued write of a serialized object, content is replaced by later writes of the same
+     * resource as long as the operation did not start
+     */
+    class WriteOp extends Op {
+        final Resource resource;
+
+        byte[] content;
+
+        WriteOp(Resource resource, byte[] content) {
+            super("Persisting " + resource.path());
+            this.resource = resource;
+            this.content = content;
+        }
+
+        void execute() throws IOException {
+            byte[] data;
+            synchronized (queueLock) {
+                if (pending.get(resource.path()) == this) {
+                    pending.remove(resource.path());
+                }
+                data = content;
+            }
+            // Resource.out() writes to a temp file and renames it into place on close
+            try (OutputStream out = resource.out()) {
+                out.write(data);
+            }
+        }
     }
     
     private Resource uriToResource(Resource base, URI uri) throws MalformedURLException {
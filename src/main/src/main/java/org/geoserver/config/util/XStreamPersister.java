@@ -10,6 +10,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -19,6 +21,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -126,6 +129,8 @@ import org.opengis.referencing.operation.MathTransform;
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.converters.ConversionException;
 import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.ConverterLookup;
+import com.thoughtworks.xstream.converters.ConverterRegistry;
 import com.thoughtworks.xstream.converters.MarshallingContext;
 import com.thoughtworks.xstream.converters.SingleValueConverterWrapper;
 import com.thoughtworks.xstream.converters.UnmarshallingContext;
@@ -137,10 +142,15 @@ import com.thoughtworks.xstream.converters.reflection.ReflectionConverter;
 import com.thoughtworks.xstream.converters.reflection.ReflectionProvider;
 import com.thoughtworks.xstream.converters.reflection.SortableFieldKeySorter;
 import com.thoughtworks.xstream.converters.reflection.Sun14ReflectionProvider;
+import com.thoughtworks.xstream.core.Caching;
+import com.thoughtworks.xstream.core.ClassLoaderReference;
+import com.thoughtworks.xstream.core.DefaultConverterLookup;
+import com.thoughtworks.xstream.core.util.CompositeClassLoader;
 import com.thoughtworks.xstream.io.ExtendedHierarchicalStreamWriterHelper;
 import com.thoughtworks.xstream.io.HierarchicalStreamDriver;
 import com.thoughtworks.xstream.io.HierarchicalStreamReader;
 import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.xml.XppDriver;
 import com.thoughtworks.xstream.mapper.ClassAliasingMapper;
 import com.thoughtworks.xstream.mapper.Mapper;
 import com.vividsolutions.jts.geom.Geometry;
@@ -154,6 +164,18 @@ import com.vividsolutions.jts.geom.Geometry;
  */
 public class XStreamPersister {
 
+    /**
+     * Catalog and configuration types whose converters are resolved by {@link #primeCaches()}
+     */
+    static final Class[] INFO_TYPES = { GeoServerInfo.class, SettingsInfo.class,
+            LoggingInfo.class, JAIInfo.class, CoverageAccessInfo.class, ContactInfo.class,
+            NamespaceInfo.class, WorkspaceInfo.class, DataStoreInfo.class,
+            WMSStoreInfo.class, CoverageStoreInfo.class, StyleInfo.class, FeatureTypeInfo.class,
+            CoverageInfo.class, WMSLayerInfo.class, CoverageDimensionInfo.class,
+            MetadataLinkInfo.class, AttributeTypeInfo.class, LayerInfo.class,
+            LayerGroupInfo.class, AttributionInfo.class, AuthorityURLInfo.class,
+            LayerIdentifierInfo.class };
+
     private boolean unwrapNulls = true;
    
     /**
@@ -269,12 +291,14 @@ public class XStreamPersister {
         
         ReflectionProvider reflectionProvider = new CustomReflectionProvider( new FieldDictionary( sorter ) ); 
             //new Sun14ReflectionProvider( new FieldDictionary( sorter  ) ); 
-        if ( streamDriver != null ) {
-            xs = new XStream( reflectionProvider, streamDriver );
-        }
-        else {
-            xs = new XStream( reflectionProvider );    
-        }
+        if ( streamDriver == null ) {
+            streamDriver = new XppDriver();
+        }
+        // converter lookups happen for every object and field being (un)marshalled, use a
+        // lookup that does not synchronize once the converter for a type has been resolved
+        ConcurrentConverterLookup converters = new ConcurrentConverterLookup();
+        xs = new XStream( reflectionProvider, streamDriver, new ClassLoaderReference(
+                new CompositeClassLoader()), null, converters, converters );
         xs.setMode(XStream.NO_REFERENCES);
         
         init(xs);
@@ -467,6 +491,33 @@ public class XStreamPersister {
         backwardBreifMap.put(clazz, typeId);
     }
 
+    /**
+     * Resolves and caches the converters and class mappings of all the catalog and configuration
+     * objects known to this persister, so that the first (un)marshalling of each type does not
+     * pay for scanning the registered converters.
+     * <p>
+     * Converters registered after this call invalidate the cached lookups, so this method should
+     * be called once the persister is fully set up, and is worth calling only for instances that
+     * are reused many times.
+     * </p>
+     */
+    public void primeCaches() {
+        Mapper mapper = xs.getMapper();
+        ConverterLookup lookup = xs.getConverterLookup();
+        for (Class clazz : INFO_TYPES) {
+            Class impl = mapper.defaultImplementationOf(clazz);
+            for (Class c : new Class[] { clazz, impl }) {
+                try {
+                    lookup.lookupConverterForType(c);
+                    mapper.realClass(mapper.serializedClass(c));
+                } catch (RuntimeException e) {
+                    // a type some initializer remapped, will be resolved on first use
+                    LOGGER.log(Level.FINEST, "Could not prime converter for " + c, e);
+                }
+            }
+        }
+    }
+
     public XStream getXStream() {
         return xs;
     }
@@ -547,9 +598,25 @@ public class XStreamPersister {
      * @throws IOException
      */
     public void save(Object obj, OutputStream out) throws IOException {
+        save(obj, new OutputStreamWriter( out, "UTF-8" ));
+    }
+
+    /**
+     * Saves an object to persistence.
+     * <p>
+     * Useful when the target is character based (e.g. a database column) and encoding to bytes
+     * would only be undone right away.
+     * </p>
+     * 
+     * @param obj The object to save. 
+     * @param out The writer to save the object to, flushed but not closed.
+     * 
+     * @throws IOException
+     */
+    public void save(Object obj, Writer out) throws IOException {
         //unwrap dynamic proxies
         obj = unwrapProxies( obj );
-        xs.toXML(obj, new OutputStreamWriter( out, "UTF-8" ));
+        xs.toXML(obj, out);
     }
 
     /**
@@ -574,8 +641,26 @@ public class XStreamPersister {
      * @throws IOException
      */
     public <T> T load(InputStream in, Class<T> clazz ) throws IOException {
-        T obj = clazz.cast( xs.fromXML( in ) );
-        
+        return resolve( clazz.cast( xs.fromXML( in ) ) );
+    }
+
+    /**
+     * Loads an object from peristence.
+     * <p>
+     * Useful when the source is character based (e.g. a database column), the content is
+     * parsed as it is read, without decoding it to bytes first.
+     * </p>
+     * 
+     * @param in The reader to read the object from.
+     * @param clazz The class of the expected object.
+     * 
+     * @throws IOException
+     */
+    public <T> T load(Reader in, Class<T> clazz ) throws IOException {
+        return resolve( clazz.cast( xs.fromXML( in ) ) );
+    }
+
+    <T> T resolve(T obj) {
         //call resolve() to ensure that any references created during loading
         // get resolved to actual objects, for instance for links from datastores
         // to workspaces
@@ -2145,4 +2230,49 @@ public class XStreamPersister {
             return obj;
         }
     }
+
+    /**
+     * Converter lookup caching resolved converters in a concurrent map.
+     * <p>
+     * The xstream default lookup serializes all threads on a synchronized cache, which shows
+     * when a single persister is shared among threads (e.g. loading configuration rows from a
+     * database). Registration is still delegated to the default lookup and flushes the cache,
+     * converters are expected to be registered before the persister is shared.
+     * </p>
+     */
+    static class ConcurrentConverterLookup implements ConverterLookup, ConverterRegistry,
+            Caching {
+
+        final DefaultConverterLookup delegate = new DefaultConverterLookup();
+
+        final Map<Class, Converter> cache = new ConcurrentHashMap<Class, Converter>();
+
+        public Converter lookupConverterForType(Class type) {
+            if (type == null) {
+                return delegate.lookupConverterForType(type);
+            }
+            Converter converter = cache.get(type);
+            if (converter == null) {
+                synchronized (delegate) {
+                    converter = delegate.lookupConverterForType(type);
+                }
+                cache.put(type, converter);
+            }
+            return converter;
+        }
+
+        public void registerConverter(Converter converter, int priority) {
+            synchronized (delegate) {
+                delegate.registerConverter(converter, priority);
+                cache.clear();
+            }
+        }
+
+        public void flushCache() {
+            synchronized (delegate) {
+                delegate.flushCache();
+                cache.clear();
+            }
+        }
+    }
 }
@@ -72,6 +72,7 @@ import org.geoserver.security.auth.GeoServerRootAuthenticationProvider;
 import org.geoserver.security.auth.GuavaAuthenticationCacheImpl;
 import org.geoserver.security.auth.UsernamePasswordAuthenticationProvider;
 import org.geoserver.security.concurrent.LockingKeyStoreProvider;
+import org.geoserver.security.concurrent.CachingRoleService;
 import org.geoserver.security.concurrent.LockingRoleService;
 import org.geoserver.security.concurrent.LockingUserGroupService;
 import org.geoserver.security.config.AnonymousAuthenticationFilterConfig;
@@ -444,6 +445,10 @@ public class GeoServerSecurityManager extends ProviderManager implements Applica
             securityProvider.destroy(this);
         }
         userGroupServices.clear();
+        for (GeoServerRoleService roleService : roleServices.values()) {
+            disposeRoleService(roleService, true);
+        }
+        disposeRoleService(activeRoleService, true);
         roleServices.clear();
 
         userGroupServiceHelper.destroy();
@@ -1075,7 +1080,7 @@ public class GeoServerSecurityManager extends ProviderManager implements Applica
 
         roleServiceHelper.saveConfig(config);
         // remove from cache
-        roleServices.remove(config.getName());
+        disposeRoleService(roleServices.remove(config.getName()), false);
 
         //update active role service 
         if (activeRoleService != null && config.getName().equals(activeRoleService.getName())) {
@@ -1123,7 +1128,7 @@ public class GeoServerSecurityManager extends ProviderManager implements Applica
 
         validator.validateRemoveRoleService(config);
         
-        roleServices.remove(config.getName());
+        disposeRoleService(roleServices.remove(config.getName()), false);
         roleServiceHelper.removeConfig(config.getName());
     }
     
@@ -2968,6 +2973,11 @@ public class GeoServerSecurityManager extends ProviderManager implements Applica
                 if (needsLockProtection) {
                         service = new LockingRoleService(service);
                 }
+                long refreshInterval = CachingRoleService.lookupRefreshInterval();
+                if (refreshInterval > 0 && GeoServerSecurityProvider.getProvider(
+                        GeoServerRoleService.class, config.getClassName()).roleServiceNeedsCaching()) {
+                        service = new CachingRoleService(service, refreshInterval);
+                }
             }
 
             service.setName(name);
@@ -3126,7 +3136,25 @@ public class GeoServerSecurityManager extends ProviderManager implements Applica
      * @param activeRoleService
      */
     public void setActiveRoleService(GeoServerRoleService activeRoleService) {
+        GeoServerRoleService previous = this.activeRoleService;
         this.activeRoleService = activeRoleService;
+        if (previous != activeRoleService) {
+            disposeRoleService(previous, false);
+        }
+    }
+
+    /**
+     * Stops the background refresh of a caching role service that got replaced. Services still
+     * in use, either cached or active, are left alone unless <code>force</code> is set.
+     */
+    void disposeRoleService(GeoServerRoleService roleService, boolean force) {
+        if (!(roleService instanceof CachingRoleService)) {
+            return;
+        }
+        if (force || (roleService != activeRoleService 
+                && !roleServices.containsValue(roleService))) {
+            ((CachingRoleService) roleService).dispose();
+        }
     }
 
     /**
@@ -304,6 +304,17 @@ public abstract class GeoServerSecurityProvider {
         return false;
     }
     
+    /**
+     * Return true if the {@link GeoServerRoleService} implementation
+     * is backed by a remote store (database, directory server) and lookups
+     * should be served from an in memory cache.
+     * 
+     * @see org.geoserver.security.concurrent.CachingRoleService
+     */
+    public boolean roleServiceNeedsCaching() {
+        return false;
+    }
+    
     /**
      * Return true if the {@link GeoServerUserGroupService} implementation
      * is not thread safe.
@@ -0,0 +1,35 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.security;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.SortedSet;
+
+/**
+ * Implemented by the {@link GeoServerRoleService} able to return the users and groups of all
+ * the roles with a single query to their backend, instead of one query per role.
+ *
+ * @see org.geoserver.security.concurrent.CachingRoleService
+ */
+public interface RoleAssignmentLookup {
+
+    /**
+     * Returns the names of the users assigned to each role, by role name, the roles without
+     * users may be missing
+     *
+     * @return the user names, or {@code null} if they have to be looked up role by role
+     */
+    Map<String, SortedSet<String>> getUserNamesByRole() throws IOException;
+
+    /**
+     * Returns the names of the groups assigned to each role, by role name, the roles without
+     * groups may be missing
+     *
+     * @return the group names, or {@code null} if they have to be looked up role by role
+     */
+    Map<String, SortedSet<String>> getGroupNamesByRole() throws IOException;
+}
@@ -0,0 +1,531 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+
+package org.geoserver.security.concurrent;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.security.GeoServerRoleService;
+import org.geoserver.security.GeoServerRoleStore;
+import org.geoserver.security.RoleAssignmentLookup;
+import org.geoserver.security.config.SecurityNamedServiceConfig;
+import org.geoserver.security.event.RoleLoadedEvent;
+import org.geoserver.security.event.RoleLoadedListener;
+import org.geoserver.security.impl.GeoServerRole;
+import org.geoserver.util.ThreadPools;
+import org.geotools.util.logging.Logging;
+
+/**
+ * This is a caching wrapper class for a {@link GeoServerRoleService}.
+ * <p>
+ * The complete role graph (roles, role hierarchy, user and group assignments) is loaded
+ * from the wrapped service in a single pass and kept in memory as an immutable snapshot,
+ * inherited roles are resolved once per snapshot. Lookups done by
+ * {@link org.geoserver.security.impl.RoleCalculator} for each authenticated request are
+ * then answered without hitting the backend (JDBC, LDAP). Services implementing
+ * {@link RoleAssignmentLookup} return the users and groups of all roles at once, the others are
+ * asked role by role.
+ * </p>
+ * <p>
+ * The snapshot is rebuilt in the background every {@link #getRefreshInterval()}
+ * milliseconds, when the wrapped service fires a {@link RoleLoadedEvent} and when a
+ * store created by this service is stored.
+ * </p>
+ */
+public class CachingRoleService extends AbstractLockingService implements
+        GeoServerRoleService,RoleLoadedListener {
+
+    static final Logger LOGGER = Logging.getLogger(CachingRoleService.class);
+
+    /**
+     * System/context/env property holding the refresh interval in seconds. Caching is
+     * disabled if the property is not set or not positive.
+     */
+    public static final String REFRESH_INTERVAL = "GEOSERVER_ROLE_CACHE_REFRESH";
+
+    /**
+     * Max number of users, and of groups, not reachable from any role whose roles are looked
+     * up on demand and kept until the next refresh
+     */
+    static final int MAX_LOOKUPS = Integer.getInteger(
+            "org.geoserver.security.roleCache.maxLookups", 1000);
+
+    static final ThreadPools.Shared<ScheduledExecutorService> REFRESHER =
+        new ThreadPools.Shared<ScheduledExecutorService>() {
+            protected ScheduledExecutorService create() {
+                return ThreadPools.newSingleThreadScheduledExecutor(
+                        "GeoServer role cache refresher");
+            }
+        };
+
+    protected Set<RoleLoadedListener> listeners =
+        Collections.synchronizedSet(new HashSet<RoleLoadedListener>());
+
+    protected final Object refreshLock = new Object();
+
+    protected volatile RoleGraph graph;
+
+    protected long refreshInterval;
+
+    protected ScheduledFuture<?> refreshTask;
+
+    /**
+     * Returns the refresh interval configured through {@link #REFRESH_INTERVAL}, in
+     * milliseconds, or 0 if role caching is disabled
+     */
+    public static long lookupRefreshInterval() {
+        String value = GeoServerExtensions.getProperty(REFRESH_INTERVAL);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            LOGGER.warning("Invalid value for " + REFRESH_INTERVAL + ": " + value
+                    + ", role caching is disabled");
+            return 0;
+        }
+    }
+
+    /**
+     * Constructor for the caching wrapper
+     *
+     * @param service
+     * @param refreshInterval the background refresh interval in milliseconds,
+     *        0 disables the scheduled refresh
+     */
+    public CachingRoleService(GeoServerRoleService service, long refreshInterval) {
+        super(service);
+        this.refreshInterval = refreshInterval;
+        service.registerRoleLoadedListener(this);
+    }
+
+    /**
+     * @return the wrapped service
+     */
+    public GeoServerRoleService getService() {
+        return (GeoServerRoleService) super.getService();
+    }
+
+    /**
+     * @return the background refresh interval in milliseconds
+     */
+    public long getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    @Override
+    public GeoServerRoleStore createStore() throws IOException {
+        GeoServerRoleStore store = getService().createStore();
+        return store != null ? new CachingRoleStore(store) : null;
+    }
+
+    /**
+     * Reloads the wrapped service and rebuilds the cached role graph
+     * @see org.geoserver.security.GeoServerRoleService#load()
+     */
+    public void load() throws IOException {
+        getService().load();
+        refresh();
+    }
+
+    /**
+     * Rebuilds the cached role graph from the wrapped service and swaps it in atomically.
+     * Concurrent refresh requests are serialized.
+     */
+    public void refresh() throws IOException {
+        synchronized (refreshLock) {
+            graph = new RoleGraph(getService());
+        }
+    }
+
+    /**
+     * Drops the cached role graph, the next lookup will rebuild it.
+     */
+    public void invalidate() {
+        graph = null;
+    }
+
+    /**
+     * Returns the current role graph, loading it if necessary
+     */
+    protected RoleGraph graph() throws IOException {
+        RoleGraph result = graph;
+        if (result == null) {
+            synchronized (refreshLock) {
+                result = graph;
+                if (result == null) {
+                    result = graph = new RoleGraph(getService());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the role and all its ancestors, resolved from the cached hierarchy
+     *
+     * @param role
+     */
+    public SortedSet<GeoServerRole> getInheritedRoles(GeoServerRole role) throws IOException {
+        SortedSet<GeoServerRole> result = graph().ancestors.get(role.getAuthority());
+        return result == null ? RoleGraph.EMPTY_ROLES : result;
+    }
+
+    public SortedSet<GeoServerRole> getRolesForUser(String username) throws IOException {
+        RoleGraph g = graph();
+        SortedSet<GeoServerRole> roles = g.rolesByUser.get(username);
+        if (roles == null) {
+            roles = g.userLookups.get(username);
+        }
+        if (roles == null) {
+            // user was not reachable through the role assignments, ask once per snapshot
+            roles = Collections.unmodifiableSortedSet(
+                    new TreeSet<GeoServerRole>(getService().getRolesForUser(username)));
+            g.userLookups.put(username, roles);
+        }
+        return roles;
+    }
+
+    public SortedSet<GeoServerRole> getRolesForGroup(String groupname) throws IOException{
+        RoleGraph g = graph();
+        SortedSet<GeoServerRole> roles = g.rolesByGroup.get(groupname);
+        if (roles == null) {
+            roles = g.groupLookups.get(groupname);
+        }
+        if (roles == null) {
+            roles = Collections.unmodifiableSortedSet(
+                    new TreeSet<GeoServerRole>(getService().getRolesForGroup(groupname)));
+            g.groupLookups.put(groupname, roles);
+        }
+        return roles;
+    }
+
+    public SortedSet<GeoServerRole> getRoles() throws IOException{
+        return graph().roleSet;
+    }
+
+    /**
+     * NO_CACHE
+     * @see org.geoserver.security.GeoServerRoleService#createRoleObject(java.lang.String)
+     */
+    public GeoServerRole createRoleObject(String role) throws IOException{
+        return getService().createRoleObject(role);
+    }
+
+    public GeoServerRole getParentRole(GeoServerRole role) throws IOException{
+        return graph().parents.get(role.getAuthority());
+    }
+
+    public GeoServerRole getRoleByName(String role) throws IOException {
+        return graph().roles.get(role);
+    }
+
+    /**
+     * Fire {@link RoleLoadedEvent} for all listeners
+     */
+    protected void fireRoleChangedEvent() {
+        RoleLoadedEvent event = new RoleLoadedEvent(this);
+        for (RoleLoadedListener listener : listeners) {
+            listener.rolesChanged(event);
+        }
+    }
+
+    public void registerRoleLoadedListener(RoleLoadedListener listener) {
+        listeners.add(listener);
+    }
+
+    public void unregisterRoleLoadedListener(RoleLoadedListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * The wrapped service has reloaded, rebuild the cache before notifying
+     * our own listeners
+     */
+    public void rolesChanged(RoleLoadedEvent event) {
+        try {
+            refresh();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to refresh role cache for " + getName(), e);
+            invalidate();
+        }
+        fireRoleChangedEvent();
+    }
+
+    public SortedSet<String> getGroupNamesForRole(GeoServerRole role) throws IOException{
+        SortedSet<String> result = graph().groupsByRole.get(role.getAuthority());
+        return result == null ? RoleGraph.EMPTY_NAMES : result;
+    }
+
+    public SortedSet<String> getUserNamesForRole(GeoServerRole role) throws IOException{
+        SortedSet<String> result = graph().usersByRole.get(role.getAuthority());
+        return result == null ? RoleGraph.EMPTY_NAMES : result;
+    }
+
+    public Map<String,String> getParentMappings() throws IOException {
+        return graph().parentMappings;
+    }
+
+    /**
+     * NO_CACHE
+     * @see org.geoserver.security.GeoServerRoleService#personalizeRoleParams(java.lang.String, java.util.Properties, java.lang.String, java.util.Properties)
+     */
+    public Properties personalizeRoleParams (String roleName,Properties roleParams,
+            String userName,Properties userProps) throws IOException {
+        return getService().personalizeRoleParams(roleName, roleParams, userName, userProps);
+    }
+
+    /**
+     * Initializes the wrapped service, drops the cache and (re)schedules the
+     * background refresh
+     * @see org.geoserver.security.GeoServerRoleService#initializeFromConfig(org.geoserver.security.config.SecurityNamedServiceConfig)
+     */
+    @Override
+    public void initializeFromConfig(SecurityNamedServiceConfig config) throws IOException {
+        getService().initializeFromConfig(config);
+        invalidate();
+        schedule();
+    }
+
+    /**
+     * Schedules the periodic background refresh, cancelling the previous one if any
+     */
+    protected synchronized void schedule() {
+        if (refreshTask != null) {
+            refreshTask.cancel(false);
+            refreshTask = null;
+        }
+        if (refreshInterval <= 0) {
+            return;
+        }
+        refreshTask = REFRESHER.get().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    refresh();
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Unable to refresh role cache for " + getName(), e);
+                }
+            }
+        }, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background refresh
+     */
+    public synchronized void dispose() {
+        if (refreshTask != null) {
+            refreshTask.cancel(false);
+            refreshTask = null;
+        }
+        getService().unregisterRoleLoadedListener(this);
+    }
+
+    @Override
+    public GeoServerRole getAdminRole() {
+        try {
+            return graph().adminRole;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public GeoServerRole getGroupAdminRole() {
+        try {
+            return graph().groupAdminRole;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int getRoleCount() throws IOException{
+        return graph().roles.size();
+    }
+
+    @Override
+    public String toString() {
+        return "Caching "+ getName();
+    }
+
+    /**
+     * Immutable snapshot of the role graph of a role service. Principals which are not
+     * reachable from any role are resolved lazily, and kept in bounded lookup maps.
+     */
+    static class RoleGraph {
+
+        static final SortedSet<GeoServerRole> EMPTY_ROLES =
+            Collections.unmodifiableSortedSet(new TreeSet<GeoServerRole>());
+
+        static final SortedSet<String> EMPTY_NAMES =
+            Collections.unmodifiableSortedSet(new TreeSet<String>());
+
+        final Map<String, GeoServerRole> roles = new HashMap<String, GeoServerRole>();
+
+        final SortedSet<GeoServerRole> roleSet;
+
+        final Map<String, String> parentMappings;
+
+        final Map<String, GeoServerRole> parents = new HashMap<String, GeoServerRole>();
+
+        final Map<String, SortedSet<GeoServerRole>> ancestors =
+            new HashMap<String, SortedSet<GeoServerRole>>();
+
+        final Map<String, SortedSet<String>> usersByRole = new HashMap<String, SortedSet<String>>();
+
+        final Map<String, SortedSet<String>> groupsByRole = new HashMap<String, SortedSet<String>>();
+
+        final Map<String, SortedSet<GeoServerRole>> rolesByUser =
+            new HashMap<String, SortedSet<GeoServerRole>>();
+
+        final Map<String, SortedSet<GeoServerRole>> rolesByGroup =
+            new HashMap<String, SortedSet<GeoServerRole>>();
+
+        final Map<String, SortedSet<GeoServerRole>> userLookups = lookups(MAX_LOOKUPS);
+
+        final Map<String, SortedSet<GeoServerRole>> groupLookups = lookups(MAX_LOOKUPS);
+
+        final GeoServerRole adminRole;
+
+        final GeoServerRole groupAdminRole;
+
+        RoleGraph(GeoServerRoleService service) throws IOException {
+            TreeSet<GeoServerRole> all = new TreeSet<GeoServerRole>(service.getRoles());
+            for (GeoServerRole role : all) {
+                roles.put(role.getAuthority(), role);
+            }
+            roleSet = Collections.unmodifiableSortedSet(all);
+
+            Map<String, String> mappings = service.getParentMappings();
+            parentMappings = Collections.unmodifiableMap(mappings == null ?
+                    new HashMap<String, String>() : new HashMap<String, String>(mappings));
+            for (Map.Entry<String, String> entry : parentMappings.entrySet()) {
+                GeoServerRole parent = entry.getValue() == null ? null : roles.get(entry.getValue());
+                if (parent != null) {
+                    parents.put(entry.getKey(), parent);
+                }
+            }
+
+            // invert the role assignments
+            Map<String, SortedSet<GeoServerRole>> userRoles =
+                new TreeMap<String, SortedSet<GeoServerRole>>();
+            Map<String, SortedSet<GeoServerRole>> groupRoles =
+                new TreeMap<String, SortedSet<GeoServerRole>>();
+            Map<String, SortedSet<String>> allUsers = null;
+            Map<String, SortedSet<String>> allGroups = null;
+            if (service instanceof RoleAssignmentLookup) {
+                allUsers = ((RoleAssignmentLookup) service).getUserNamesByRole();
+                allGroups = ((RoleAssignmentLookup) service).getGroupNamesByRole();
+            }
+            for (GeoServerRole role : all) {
+                SortedSet<String> users = allUsers != null ? names(allUsers, role)
+                        : service.getUserNamesForRole(role);
+                SortedSet<String> groups = allGroups != null ? names(allGroups, role)
+                        : service.getGroupNamesForRole(role);
+                usersByRole.put(role.getAuthority(), immutable(users));
+                groupsByRole.put(role.getAuthority(), immutable(groups));
+                invert(role, users, userRoles);
+                invert(role, groups, groupRoles);
+
+                ancestors.put(role.getAuthority(), resolveAncestors(role));
+            }
+            for (Map.Entry<String, SortedSet<GeoServerRole>> entry : userRoles.entrySet()) {
+                rolesByUser.put(entry.getKey(), Collections.unmodifiableSortedSet(entry.getValue()));
+            }
+            for (Map.Entry<String, SortedSet<GeoServerRole>> entry : groupRoles.entrySet()) {
+                rolesByGroup.put(entry.getKey(), Collections.unmodifiableSortedSet(entry.getValue()));
+            }
+
+            adminRole = service.getAdminRole();
+            groupAdminRole = service.getGroupAdminRole();
+        }
+
+        static SortedSet<String> names(Map<String, SortedSet<String>> names, GeoServerRole role) {
+            SortedSet<String> result = names.get(role.getAuthority());
+            return result == null ? new TreeSet<String>() : result;
+        }
+
+        /**
+         * A synchronized map keeping the most recently used entries
+         */
+        static Map<String, SortedSet<GeoServerRole>> lookups(final int size) {
+            return Collections.synchronizedMap(
+                    new LinkedHashMap<String, SortedSet<GeoServerRole>>(16, 0.75f, true) {
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        protected boolean removeEldestEntry(
+                                Map.Entry<String, SortedSet<GeoServerRole>> eldest) {
+                            return size() > size;
+                        }
+                    });
+        }
+
+        SortedSet<GeoServerRole> resolveAncestors(GeoServerRole role) {
+            TreeSet<GeoServerRole> result = new TreeSet<GeoServerRole>();
+            GeoServerRole parent = parents.get(role.getAuthority());
+            // stop on cycles, the hierarchy helper rejects them but be defensive
+            while (parent != null && result.add(parent)) {
+                parent = parents.get(parent.getAuthority());
+            }
+            return Collections.unmodifiableSortedSet(result);
+        }
+
+        static SortedSet<String> immutable(SortedSet<String> names) {
+            if (names == null || names.isEmpty()) {
+                return EMPTY_NAMES;
+            }
+            return Collections.unmodifiableSortedSet(new TreeSet<String>(names));
+        }
+
+        static void invert(GeoServerRole role, Set<String> names,
+                Map<String, SortedSet<GeoServerRole>> target) {
+            if (names == null) {
+                return;
+            }
+            for (String name : names) {
+                SortedSet<GeoServerRole> roles = target.get(name);
+                if (roles == null) {
+                    roles = new TreeSet<GeoServerRole>();
+                    target.put(name, roles);
+                }
+                roles.add(role);
+            }
+        }
+    }
+
+    /**
+     * Store wrapper rebuilding the cache of the owning service once changes are stored
+     */
+    class CachingRoleStore extends LockingRoleStore {
+
+        CachingRoleStore(GeoServerRoleStore store) {
+            super(store);
+        }
+
+        @Override
+        public void store() throws IOException {
+            super.store();
+            refresh();
+        }
+    }
+}
@@ -15,6 +15,7 @@ import java.util.TreeSet;
 
 import org.geoserver.security.GeoServerRoleService;
 import org.geoserver.security.GeoServerUserGroupService;
+import org.geoserver.security.concurrent.CachingRoleService;
 
 /**
  * Helper Object for role calculations 
@@ -204,6 +205,14 @@ public class RoleCalculator  {
      */
     public void addInheritedRoles(Collection<GeoServerRole> coll) throws IOException {
         Set<GeoServerRole> inherited = new HashSet<GeoServerRole>();
+        if (roleService instanceof CachingRoleService) {
+            // hierarchy already resolved in memory
+            CachingRoleService cache = (CachingRoleService) roleService;
+            for (GeoServerRole role : coll)
+                inherited.addAll(cache.getInheritedRoles(role));
+            coll.addAll(inherited);
+            return;
+        }
         for (GeoServerRole role : coll)
             addParentRole(role, inherited);
         coll.addAll(inherited);        
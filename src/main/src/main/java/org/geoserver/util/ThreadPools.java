@@ -0,0 +1,134 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.util;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import org.springframework.beans.factory.DisposableBean;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Creates the thread pools GeoServer runs its background and parallel tasks in, with daemon
+ * threads named after the pool, and shuts them all down when the application context is
+ * closed, so that no thread outlives the web application.
+ * <p>
+ * Pools owned by a bean are still shut down by the bean when disposed, pools shared by all the
+ * instances of a class are held by a {@link Shared}, which creates the pool again if it is used
+ * after the application context that shut it down.
+ * </p>
+ */
+public class ThreadPools implements DisposableBean {
+
+    static final Set<ExecutorService> POOLS = Collections
+            .newSetFromMap(new ConcurrentHashMap<ExecutorService, Boolean>());
+
+    /**
+     * A pool shared by all the instances of a class, created on first use
+     */
+    public static abstract class Shared<T extends ExecutorService> {
+
+        private T pool;
+
+        /**
+         * Creates the pool
+         */
+        protected abstract T create();
+
+        /**
+         * Returns the pool, creating it if it has not been created yet, or has been shut down
+         */
+        public synchronized T get() {
+            if (pool == null || pool.isShutdown()) {
+                pool = create();
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Returns a factory of daemon threads named after the pool
+     *
+     * @param nameFormat the thread names, may contain a %d placeholder for the thread number
+     */
+    public static ThreadFactory threadFactory(String nameFormat) {
+        return threadFactory(nameFormat, Thread.NORM_PRIORITY);
+    }
+
+    /**
+     * Returns a factory of daemon threads named after the pool, running at the given priority
+     *
+     * @param nameFormat the thread names, may contain a %d placeholder for the thread number
+     */
+    public static ThreadFactory threadFactory(String nameFormat, int priority) {
+        return new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true)
+                .setPriority(priority).build();
+    }
+
+    /**
+     * Returns a managed pool of a fixed number of threads
+     */
+    public static ExecutorService newFixedThreadPool(String nameFormat, int threads) {
+        return manage(Executors.newFixedThreadPool(threads, threadFactory(nameFormat)));
+    }
+
+    /**
+     * Returns a managed pool creating threads as needed
+     */
+    public static ExecutorService newCachedThreadPool(String nameFormat) {
+        return manage(Executors.newCachedThreadPool(threadFactory(nameFormat)));
+    }
+
+    /**
+     * Returns a managed single thread pool
+     */
+    public static ExecutorService newSingleThreadExecutor(String nameFormat) {
+        return manage(Executors.newSingleThreadExecutor(threadFactory(nameFormat)));
+    }
+
+    /**
+     * Returns a managed single thread scheduled pool
+     */
+    public static ScheduledExecutorService newSingleThreadScheduledExecutor(String nameFormat) {
+        return manage(Executors.newSingleThreadScheduledExecutor(threadFactory(nameFormat)));
+    }
+
+    /**
+     * Registers a pool to be shut down along with the application context
+     */
+    public static <T extends ExecutorService> T manage(T pool) {
+        // forget about the pools their owners shut down already
+        for (Iterator<ExecutorService> it = POOLS.iterator(); it.hasNext();) {
+            if (it.next().isShutdown()) {
+                it.remove();
+            }
+        }
+        POOLS.add(pool);
+        return pool;
+    }
+
+    /**
+     * Shuts down all the pools, the tasks already submitted still run
+     */
+    public static void shutdown() {
+        for (Iterator<ExecutorService> it = POOLS.iterator(); it.hasNext();) {
+            it.next().shutdown();
+            it.remove();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        shutdown();
+    }
+}
@@ -18,6 +18,8 @@ import static org.junit.Assert.assertTrue;
 import java.io.File;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 
@@ -34,6 +36,7 @@ import org.geoserver.catalog.StyleInfo;
 import org.geoserver.catalog.WMSLayerInfo;
 import org.geoserver.catalog.WMSStoreInfo;
 import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.event.CatalogListener;
 import org.geoserver.config.util.XStreamPersisterFactory;
 import org.geoserver.data.test.SystemTestData;
 import org.geoserver.test.GeoServerSystemTestSupport;
@@ -1004,6 +1007,56 @@ public class GeoServerPersisterTest extends GeoServerSystemTestSupport {
         assertNull(f);
     }
 
+    @Test
+    public void testWriteBehind() throws Exception {
+        testAddDataStore();
+
+        List<GeoServerPersister> persisters = new ArrayList<GeoServerPersister>();
+        for (CatalogListener l : catalog.getListeners()) {
+            if (l instanceof GeoServerPersister) {
+                persisters.add((GeoServerPersister) l);
+            }
+        }
+        assertFalse(persisters.isEmpty());
+        for (GeoServerPersister p : persisters) {
+            p.setWriteBehind(true);
+        }
+        try {
+            DataStoreInfo ds = catalog.getDataStoreByName("acme", "foostore");
+            for (int i = 0; i < 10; i++) {
+                ds.setDescription("description " + i);
+                catalog.save(ds);
+            }
+            ds.setName("barstore");
+            catalog.save(ds);
+            ds.setDescription("renamed");
+            catalog.save(ds);
+
+            for (GeoServerPersister p : persisters) {
+                p.flush();
+            }
+            File dir = new File(testData.getDataDirectoryRoot(), "workspaces/acme/barstore");
+            assertTrue(dir.exists());
+            assertFalse(new File(testData.getDataDirectoryRoot(), "workspaces/acme/foostore").exists());
+            Document dom = dom(new File(dir, "datastore.xml"));
+            assertXpathEvaluatesTo("barstore", "/dataStore/name", dom);
+            assertXpathEvaluatesTo("renamed", "/dataStore/description", dom);
+
+            // a pending write does not bring back a removed store
+            ds.setDescription("removed");
+            catalog.save(ds);
+            catalog.remove(ds);
+            for (GeoServerPersister p : persisters) {
+                p.flush();
+            }
+            assertFalse(dir.exists());
+        } finally {
+            for (GeoServerPersister p : persisters) {
+                p.setWriteBehind(false);
+            }
+        }
+    }
+
     Document dom( File f ) throws Exception {
         return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse( f );
     }
@@ -17,8 +17,15 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.measure.unit.SI;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -34,8 +41,10 @@ import org.custommonkey.xmlunit.XMLAssert;
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.CatalogFactory;
 import org.geoserver.catalog.CoverageStoreInfo;
+import org.geoserver.catalog.CatalogInfo;
 import org.geoserver.catalog.DataStoreInfo;
 import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.Keyword;
 import org.geoserver.catalog.LayerGroupInfo;
 import org.geoserver.catalog.LayerInfo;
 import org.geoserver.catalog.NamespaceInfo;
@@ -53,6 +62,7 @@ import org.geoserver.config.impl.GeoServerImpl;
 import org.geoserver.config.impl.ServiceInfoImpl;
 import org.geoserver.config.util.XStreamPersister.CRSConverter;
 import org.geoserver.config.util.XStreamPersister.SRSConverter;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.jdbc.RegexpValidator;
 import org.geotools.jdbc.VirtualTable;
 import org.geotools.jdbc.VirtualTableParameter;
@@ -63,6 +73,7 @@ import org.geotools.referencing.wkt.Formattable;
 import org.geotools.referencing.wkt.UnformattableObjectException;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.w3c.dom.Document;
@@ -865,6 +876,233 @@ public class XStreamPersisterTest {
                 "/workspace/metadata/entry[@key='banana']/sweetBanana/@name", dom);
     }
 
+    @Test
+    public void testReaderWriter() throws Exception {
+        Catalog catalog = new CatalogImpl();
+        CatalogFactory cFactory = catalog.getFactory();
+
+        DataStoreInfo ds1 = cFactory.createDataStore();
+        ds1.setName( "bar" );
+        ds1.setDescription( "caf\u00e9" );
+
+        StringWriter writer = new StringWriter();
+        persister.save( ds1, writer );
+        DataStoreInfo ds2 = persister.load( new StringReader( writer.toString() ), DataStoreInfo.class );
+        assertEquals( "bar", ds2.getName() );
+        assertEquals( "caf\u00e9", ds2.getDescription() );
+
+        // same content as the stream based encoding
+        ByteArrayOutputStream out = out();
+        persister.save( ds1, out );
+        assertEquals( writer.toString(), new String( out.toByteArray(), "UTF-8" ) );
+    }
+
+    @Test
+    public void testConcurrentLoad() throws Exception {
+        persister.primeCaches();
+
+        Catalog catalog = new CatalogImpl();
+        CatalogFactory cFactory = catalog.getFactory();
+        final List<String> encoded = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            DataStoreInfo ds = cFactory.createDataStore();
+            ds.setName( "store" + i );
+            StringWriter writer = new StringWriter();
+            persister.save( ds, writer );
+            encoded.add( writer.toString() );
+
+            StyleInfo s = cFactory.createStyle();
+            s.setName( "style" + i );
+            s.setFilename( "style" + i + ".sld" );
+            writer = new StringWriter();
+            persister.save( s, writer );
+            encoded.add( writer.toString() );
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool( 8 );
+        try {
+            List<Future<CatalogInfo>> futures = new ArrayList<Future<CatalogInfo>>();
+            for (int i = 0; i < 200; i++) {
+                final String xml = encoded.get( i % encoded.size() );
+                futures.add( executor.submit( new Callable<CatalogInfo>() {
+                    public CatalogInfo call() throws Exception {
+                        return persister.load( new StringReader( xml ), CatalogInfo.class );
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                CatalogInfo info = futures.get( i ).get();
+                int n = ( i % encoded.size() ) / 2;
+                if ( i % 2 == 0 ) {
+                    assertEquals( "store" + n, ((DataStoreInfo) info).getName() );
+                } else {
+                    assertEquals( "style" + n, ((StyleInfo) info).getName() );
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Times saving and loading a large catalog, before and after priming the caches, through
+     * the stream and character based methods, from one and many threads. Not run by default,
+     * remove the {@code @Ignore} to run it, the size of the catalog is set by the
+     * {@code benchmark.count} system property
+     */
+    @Test
+    @Ignore
+    public void testBenchmark() throws Exception {
+        List<CatalogInfo> infos = createCatalog(Integer.getInteger("benchmark.count", 5000));
+        List<String> documents = new ArrayList<String>();
+        for (CatalogInfo info : infos) {
+            StringWriter writer = new StringWriter();
+            persister.save( info, writer );
+            documents.add( writer.toString() );
+        }
+        System.out.println(infos.size() + " catalog objects");
+
+        // first pass through a new persister, without and with priming
+        XStreamPersister cold = new XStreamPersisterFactory().createXMLPersister();
+        long save = timeSave( cold, infos, false );
+        long load = timeLoad( cold, documents, false, 1 );
+        System.out.printf("unprimed, first pass: save %dms, load %dms%n", save, load);
+
+        XStreamPersister primed = new XStreamPersisterFactory().createXMLPersister();
+        long start = System.nanoTime();
+        primed.primeCaches();
+        long prime = (System.nanoTime() - start) / 1000000;
+        save = timeSave( primed, infos, false );
+        load = timeLoad( primed, documents, false, 1 );
+        System.out.printf("primed in %dms, first pass: save %dms, load %dms%n", prime, save, load);
+
+        // steady state
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < 3; i++) {
+            timeSave( primed, infos, true );
+            timeLoad( primed, documents, true, threads );
+        }
+        for (boolean chars : new boolean[] { false, true }) {
+            save = timeSave( primed, infos, chars );
+            long serial = timeLoad( primed, documents, chars, 1 );
+            long parallel = timeLoad( primed, documents, chars, threads );
+            System.out.printf("%s: save %dms, load %dms, load on %d threads %dms%n",
+                    chars ? "Reader/Writer" : "InputStream/OutputStream", save, serial,
+                    threads, parallel);
+        }
+    }
+
+    List<CatalogInfo> createCatalog(int count) {
+        Catalog catalog = new CatalogImpl();
+        CatalogFactory cFactory = catalog.getFactory();
+        List<CatalogInfo> infos = new ArrayList<CatalogInfo>();
+        NamespaceInfo ns = null;
+        DataStoreInfo ds = null;
+        StyleInfo s = null;
+        for (int i = 0; i < count; i++) {
+            if (i % 100 == 0) {
+                WorkspaceInfo ws = cFactory.createWorkspace();
+                ws.setName( "ws" + i );
+                catalog.add( ws );
+                ns = cFactory.createNamespace();
+                ns.setPrefix( "ws" + i );
+                ns.setURI( "http://acme.org/ws" + i );
+                catalog.add( ns );
+                infos.add( ws );
+                infos.add( ns );
+            }
+            if (i % 10 == 0) {
+                ds = cFactory.createDataStore();
+                ds.setWorkspace( catalog.getWorkspaceByName( ns.getPrefix() ) );
+                ds.setName( "store" + i );
+                ds.getConnectionParameters().put( "host", "localhost" );
+                ds.getConnectionParameters().put( "port", 5432 );
+                ds.getConnectionParameters().put( "database", "db" + i );
+                catalog.add( ds );
+                s = cFactory.createStyle();
+                s.setName( "style" + i );
+                s.setFilename( "style" + i + ".sld" );
+                catalog.add( s );
+                infos.add( ds );
+                infos.add( s );
+            }
+            FeatureTypeInfo ft = cFactory.createFeatureType();
+            ft.setStore( ds );
+            ft.setNamespace( ns );
+            ft.setName( "layer" + i );
+            ft.setNativeName( "layer" + i );
+            ft.setTitle( "Layer " + i );
+            ft.setAbstract( "The layer number " + i );
+            ft.getKeywords().add( new Keyword( "keyword" + i ) );
+            ft.setSRS( "EPSG:4326" );
+            ft.setNativeBoundingBox( new ReferencedEnvelope( -180, 180, -90, 90,
+                    DefaultGeographicCRS.WGS84 ) );
+            ft.setLatLonBoundingBox( new ReferencedEnvelope( -180, 180, -90, 90,
+                    DefaultGeographicCRS.WGS84 ) );
+            ft.getMetadata().put( "cachingEnabled", true );
+            catalog.add( ft );
+            LayerInfo l = cFactory.createLayer();
+            l.setResource( ft );
+            l.setDefaultStyle( s );
+            catalog.add( l );
+            infos.add( ft );
+            infos.add( l );
+        }
+        return infos;
+    }
+
+    long timeSave(XStreamPersister persister, List<CatalogInfo> infos, boolean chars)
+            throws IOException {
+        long start = System.nanoTime();
+        for (CatalogInfo info : infos) {
+            if (chars) {
+                persister.save( info, new StringWriter() );
+            } else {
+                persister.save( info, new ByteArrayOutputStream() );
+            }
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    long timeLoad(final XStreamPersister persister, List<String> documents,
+            final boolean chars, int threads) throws Exception {
+        final List<byte[]> bytes = new ArrayList<byte[]>();
+        for (String document : documents) {
+            bytes.add( document.getBytes( "UTF-8" ) );
+        }
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        try {
+            long start = System.nanoTime();
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int t = 0; t < threads; t++) {
+                final List<String> slice = documents.subList( t * documents.size() / threads,
+                        (t + 1) * documents.size() / threads );
+                final List<byte[]> byteSlice = bytes.subList( t * bytes.size() / threads,
+                        (t + 1) * bytes.size() / threads );
+                futures.add( executor.submit( new Callable<Void>() {
+                    public Void call() throws Exception {
+                        for (int i = 0; i < slice.size(); i++) {
+                            if (chars) {
+                                persister.load( new StringReader( slice.get( i ) ),
+                                        CatalogInfo.class );
+                            } else {
+                                persister.load( new ByteArrayInputStream( byteSlice.get( i ) ),
+                                        CatalogInfo.class );
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            return (System.nanoTime() - start) / 1000000;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     ByteArrayOutputStream out() {
         return new ByteArrayOutputStream();
     }
@@ -0,0 +1,227 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+
+package org.geoserver.security.concurrent;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geoserver.security.GeoServerRoleStore;
+import org.geoserver.security.RoleAssignmentLookup;
+import org.geoserver.security.config.impl.MemoryRoleServiceConfigImpl;
+import org.geoserver.security.impl.GeoServerRole;
+import org.geoserver.security.impl.MemoryRoleService;
+import org.geoserver.security.impl.RoleCalculator;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachingRoleServiceTest {
+
+    CountingRoleService delegate;
+
+    CachingRoleService service;
+
+    @Before
+    public void setUp() throws IOException {
+        createService(new CountingRoleService());
+    }
+
+    void createService(CountingRoleService delegate) throws IOException {
+        MemoryRoleServiceConfigImpl config = new MemoryRoleServiceConfigImpl();
+        config.setName("test");
+        config.setAdminRoleName("ROLE_ADMINISTRATOR");
+        this.delegate = delegate;
+        service = new CachingRoleService(delegate, 0);
+        service.initializeFromConfig(config);
+
+        GeoServerRoleStore store = service.createStore();
+        GeoServerRole admin = store.createRoleObject("ROLE_ADMINISTRATOR");
+        GeoServerRole author = store.createRoleObject("ROLE_AUTHOR");
+        GeoServerRole editor = store.createRoleObject("ROLE_EDITOR");
+        store.addRole(admin);
+        store.addRole(author);
+        store.addRole(editor);
+        store.setParentRole(editor, author);
+        store.setParentRole(author, admin);
+        store.associateRoleToUser(editor, "bob");
+        store.associateRoleToGroup(author, "writers");
+        store.store();
+    }
+
+    @Test
+    public void testLookupsServedFromCache() throws IOException {
+        delegate.calls.set(0);
+
+        GeoServerRole editor = service.getRoleByName("ROLE_EDITOR");
+        assertNotNull(editor);
+        assertEquals(3, service.getRoleCount());
+        assertEquals(1, service.getRolesForUser("bob").size());
+        assertTrue(service.getRolesForUser("bob").contains(editor));
+        assertTrue(service.getRolesForGroup("writers").contains(
+                service.getRoleByName("ROLE_AUTHOR")));
+        assertEquals("ROLE_AUTHOR", service.getParentRole(editor).getAuthority());
+        assertTrue(service.getUserNamesForRole(editor).contains("bob"));
+        assertEquals("ROLE_ADMINISTRATOR", service.getAdminRole().getAuthority());
+
+        assertEquals(0, delegate.calls.get());
+    }
+
+    @Test
+    public void testInheritedRoles() throws IOException {
+        SortedSet<GeoServerRole> inherited =
+            service.getInheritedRoles(service.getRoleByName("ROLE_EDITOR"));
+        assertEquals(2, inherited.size());
+        assertTrue(inherited.contains(service.getRoleByName("ROLE_AUTHOR")));
+        assertTrue(inherited.contains(service.getRoleByName("ROLE_ADMINISTRATOR")));
+
+        RoleCalculator calc = new RoleCalculator(service);
+        SortedSet<GeoServerRole> roles = calc.calculateRoles("bob");
+        assertTrue(roles.contains(GeoServerRole.ADMIN_ROLE));
+        assertTrue(roles.contains(service.getRoleByName("ROLE_EDITOR")));
+    }
+
+    @Test
+    public void testRefreshOnStore() throws IOException {
+        assertTrue(service.getRolesForUser("alice").isEmpty());
+
+        GeoServerRoleStore store = service.createStore();
+        store.associateRoleToUser(store.getRoleByName("ROLE_AUTHOR"), "alice");
+        store.store();
+
+        assertEquals(1, service.getRolesForUser("alice").size());
+        assertTrue(service.getUserNamesForRole(service.getRoleByName("ROLE_AUTHOR"))
+                .contains("alice"));
+    }
+
+    @Test
+    public void testUnknownUserLookedUpOncePerSnapshot() throws IOException {
+        delegate.calls.set(0);
+        service.getRolesForUser("nobody");
+        service.getRolesForUser("nobody");
+        assertEquals(1, delegate.calls.get());
+
+        service.refresh();
+        delegate.calls.set(0);
+        service.getRolesForUser("nobody");
+        assertEquals(1, delegate.calls.get());
+    }
+
+    @Test
+    public void testUnknownUserLookupsBounded() throws IOException {
+        for (int i = 0; i < CachingRoleService.MAX_LOOKUPS + 10; i++) {
+            service.getRolesForUser("user" + i);
+        }
+        assertEquals(CachingRoleService.MAX_LOOKUPS, service.graph().userLookups.size());
+        // the users reachable from the roles are not evicted
+        assertEquals(1, service.getRolesForUser("bob").size());
+    }
+
+    @Test
+    public void testBulkAssignments() throws IOException {
+        BulkRoleService bulk = new BulkRoleService();
+        createService(bulk);
+        bulk.perRole.set(0);
+        service.refresh();
+        assertEquals(0, bulk.perRole.get());
+
+        GeoServerRole editor = service.getRoleByName("ROLE_EDITOR");
+        assertTrue(service.getUserNamesForRole(editor).contains("bob"));
+        assertTrue(service.getRolesForUser("bob").contains(editor));
+        assertTrue(service.getRolesForGroup("writers").contains(
+                service.getRoleByName("ROLE_AUTHOR")));
+        assertTrue(service.getUserNamesForRole(service.getRoleByName("ROLE_AUTHOR")).isEmpty());
+    }
+
+    @Test
+    public void testBulkAssignmentsFallback() throws IOException {
+        BulkRoleService bulk = new BulkRoleService();
+        bulk.supported = false;
+        createService(bulk);
+        bulk.perRole.set(0);
+        service.refresh();
+        // users and groups of each role
+        assertEquals(6, bulk.perRole.get());
+        assertTrue(service.getRolesForUser("bob").contains(service.getRoleByName("ROLE_EDITOR")));
+    }
+
+    static class CountingRoleService extends MemoryRoleService {
+
+        AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public SortedSet<GeoServerRole> getRolesForUser(String username) throws IOException {
+            calls.incrementAndGet();
+            return super.getRolesForUser(username);
+        }
+
+        @Override
+        public SortedSet<GeoServerRole> getRolesForGroup(String groupname) throws IOException {
+            calls.incrementAndGet();
+            return super.getRolesForGroup(groupname);
+        }
+
+        @Override
+        public GeoServerRole getParentRole(GeoServerRole role) throws IOException {
+            calls.incrementAndGet();
+            return super.getParentRole(role);
+        }
+
+        @Override
+        public GeoServerRole getRoleByName(String role) throws IOException {
+            calls.incrementAndGet();
+            return super.getRoleByName(role);
+        }
+    }
+
+    /**
+     * Returns the role assignments at once, like the JDBC and LDAP services
+     */
+    static class BulkRoleService extends CountingRoleService implements RoleAssignmentLookup {
+
+        AtomicInteger perRole = new AtomicInteger();
+
+        boolean supported = true;
+
+        @Override
+        public SortedSet<String> getUserNamesForRole(GeoServerRole role) throws IOException {
+            perRole.incrementAndGet();
+            return super.getUserNamesForRole(role);
+        }
+
+        @Override
+        public SortedSet<String> getGroupNamesForRole(GeoServerRole role) throws IOException {
+            perRole.incrementAndGet();
+            return super.getGroupNamesForRole(role);
+        }
+
+        public Map<String, SortedSet<String>> getUserNamesByRole() throws IOException {
+            if (!supported) {
+                return null;
+            }
+            Map<String, SortedSet<String>> result = new HashMap<String, SortedSet<String>>();
+            for (GeoServerRole role : getRoles()) {
+                result.put(role.getAuthority(), super.getUserNamesForRole(role));
+            }
+            return result;
+        }
+
+        public Map<String, SortedSet<String>> getGroupNamesByRole() throws IOException {
+            if (!supported) {
+                return null;
+            }
+            Map<String, SortedSet<String>> result = new HashMap<String, SortedSet<String>>();
+            for (GeoServerRole role : getRoles()) {
+                result.put(role.getAuthority(), super.getGroupNamesForRole(role));
+            }
+            return result;
+        }
+    }
+}
@@ -16,10 +16,12 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
+import org.springframework.beans.factory.DisposableBean;
+
 /**
  * Implementation of ResourceStore backed by the file system.
  */
-public class FileSystemResourceStore implements ResourceStore {
+public class FileSystemResourceStore implements ResourceStore, DisposableBean {
     
     /** LockProvider used to secure resources for exclusive access */
     protected LockProvider lockProvider = new NullLockProvider();
@@ -102,6 +104,17 @@ public class FileSystemResourceStore implements ResourceStore {
         }
     }
     
+    /**
+     * Stops watching the file system for changes
+     */
+    @Override
+    public synchronized void destroy() {
+        if (watcher != null) {
+            watcher.dispose();
+            watcher = null;
+        }
+    }
+
     @Override
     public Resource get(String path) {
         path = Paths.valid(path);
@@ -187,7 +200,8 @@ public class FileSystemResourceStore implements ResourceStore {
             if (!actualFile.exists()) {
                 throw new IllegalStateException("File not found " + actualFile);
             }
-            final Lock lock = lock();
+            final Lock lock = lockProvider instanceof SharedLockProvider ?
+                    ((SharedLockProvider) lockProvider).acquireShared(path) : lock();
             try {
                 return new FileInputStream(file) {
                     @Override
@@ -1,10 +1,18 @@
 package org.geoserver.platform.resource;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -13,20 +21,33 @@ import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.resource.ResourceNotification.Kind;
+import org.geotools.util.logging.Logging;
 
 
 /**
- * Active object (using a ScheduledExecutorService) used to watch file system for changes.
+ * Active object used to watch file system for changes.
  * <p>
- * This implementation currently polls the file system and should be updated with Java 7 WatchService when available. The internal design is similar
- * to WatchService, WatchKey and WatchEvent in order to facilitate this transition.
+ * Directories holding watched files are registered with the Java 7 {@link WatchService}, a
+ * single daemon thread waits for native notifications and only reviews the Watch instances
+ * affected by them. Files which cannot be registered (missing parent directory, file system
+ * without WatchService support) are polled by a ScheduledExecutorService as before. Files
+ * covered by native notifications are still polled every {@link #FALLBACK_CYCLES} cycles, to
+ * catch the changes the native service misses. Polling can be forced for all files (e.g.
+ * network file systems not reporting remote changes) setting the {@link #POLLING} property to
+ * true.
+ * <p>
+ * The watch service and its thread are released when the last listener is removed, and
+ * on {@link #dispose()}.
  * <p>
  * This implementation makes a few concessions to being associated with ResourceStore, reporting changes with resource paths rather than files.
  * 
  * @author Jody Garnett (Boundless)
  */
 public class FileSystemWatcher {
+    static final Logger LOGGER = Logging.getLogger(FileSystemWatcher.class);
+
     /**
      * Change to file system
      */
@@ -53,7 +74,7 @@ public class FileSystemWatcher {
         public Delta(File context, Kind kind, List<File> created, List<File> removed,
                 List<File> modified) {
             this.context = context;
-            this.kind = Kind.ENTRY_MODIFY;
+            this.kind = kind;
             this.created = created != null ? created : (List<File>) Collections.EMPTY_LIST;
             this.removed = removed != null ? removed : (List<File>) Collections.EMPTY_LIST;
             this.modified = modified != null ? modified : (List<File>) Collections.EMPTY_LIST;
@@ -81,17 +102,27 @@ public class FileSystemWatcher {
         
         /** When last notification was sent */
         long last = 0;
+
+        /** File size at last check, to catch rewrites keeping the same modification time */
+        long length;
         
         /** Used to track resource creation / deletion */
         boolean exsists;
         
         File[] contents; // directory contents at last check
 
+        /** True if not covered by the native watch service and polling is required */
+        volatile boolean polled = true;
+
+        /** Directory registered with the native watch service, if any */
+        volatile File directory;
+
         public Watch(File file, String path) {
             this.file = file;
             this.path = path;
             this.exsists = file.exists();
             this.last = exsists ? file.lastModified() : 0;            
+            this.length = exsists ? file.length() : 0;
             if (file.isDirectory()) {
                 contents = file.listFiles();
             }
@@ -153,6 +184,11 @@ public class FileSystemWatcher {
             return path.compareTo(other.path);
         }
 
+        /** Directory to register with the native watch service (may not exist yet) */
+        public File getDirectory() {
+            return file.isDirectory() ? file : file.getParentFile();
+        }
+
         public Delta changed(long now) {
             if (!file.exists()) {
                 if (exsists) {
@@ -174,9 +210,11 @@ public class FileSystemWatcher {
             }
             if (file.isFile()) {
                 long fileModified = file.lastModified();
-                if (fileModified > last || !exsists) {
+                long fileLength = file.length();
+                if (fileModified > last || fileLength != length || !exsists) {
+                    this.length = fileLength;
                     if (exsists) {
-                        this.last = fileModified;
+                        this.last = Math.max(fileModified, last);
                         return new Delta(file, Kind.ENTRY_MODIFY);
                     }
                     else {
@@ -203,6 +241,9 @@ public class FileSystemWatcher {
                     
                 }
                 File[] files = file.listFiles();
+                if (this.contents == null) {
+                    this.contents = new File[0]; // directory (re)created
+                }
 
                 List<File> removed = new ArrayList<File>(files.length);
                 List<File> created = new ArrayList<File>(files.length);
@@ -266,8 +307,38 @@ public class FileSystemWatcher {
         }
     }
 
+    /**
+     * Property used to force polling of the file system, even if the native
+     * {@link WatchService} is available.
+     */
+    public static final String POLLING = "GEOSERVER_FILESYSTEM_POLLING";
+
+    /**
+     * Number of polling cycles between two reviews of the files covered by native
+     * notifications (one minute with the default delay)
+     */
+    static final int FALLBACK_CYCLES = 6;
+
     private ScheduledExecutorService pool;
 
+    /** True to use the native watch service, if available */
+    private boolean nativeWatch;
+
+    /** Native file system notifications, created on first registration */
+    private WatchService service;
+
+    /** Thread waiting for native notifications, started on first registration */
+    private Thread serviceThread;
+
+    /** Directories registered with the native watch service */
+    private final Map<WatchKey, File> registered = new ConcurrentHashMap<WatchKey, File>();
+
+    /** Native watch key of each registered directory */
+    private final Map<File, WatchKey> keys = new ConcurrentHashMap<File, WatchKey>();
+
+    /** Polling cycles run so far */
+    private int cycles;
+
     //private FileSystemResourceStore store;
 
     protected long lastmodified;
@@ -275,43 +346,82 @@ public class FileSystemWatcher {
     CopyOnWriteArrayList<Watch> watchers = new CopyOnWriteArrayList<Watch>();
     
     /**
-     * Note we have a single runnable here to review all outstanding Watch instances.
-     * The focus is on using minimal system resources while we wait for Java 7 WatchService
-     * (to be more efficient).
+     * Note we have a single runnable here to review all outstanding Watch instances
+     * not covered by the native watch service.
      */
     private Runnable sync = new Runnable() {
         @Override
         public void run() {
             long now = System.currentTimeMillis();
+            boolean fallback = ++cycles % FALLBACK_CYCLES == 0;
             for (Watch watch : watchers) {
                 if( watch.getListeners().isEmpty()){
                     watchers.remove(watch);
+                    unregister(watch);
                     continue;
                 }
-                Delta delta = watch.changed(now);
-                if (delta != null) {
-                    
-                    /** Created based on created/removed/modified files */
-                    List<ResourceNotification.Event> events = ResourceNotification.delta(
-                            watch.file, delta.created, delta.removed, delta.modified);
-                    
-                    ResourceNotification notify = new ResourceNotification( watch.getPath(),
-                            delta.kind, watch.last, events);
-                    
-                    for (ResourceListener listener : watch.getListeners()) {
+                if ((watch.polled && !register(watch)) || fallback) {
+                    try {
+                        check(watch, now);
+                    } catch (Throwable t) {
+                        // keep the scheduled task alive
+                        LOGGER.log(Level.WARNING, "Unable to review " + watch, t);
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * Waits for native notifications, reviewing the Watch instances of the
+     * directory reported by each WatchKey. Stops when the watch service is closed.
+     */
+    private class Dispatch implements Runnable {
+        final WatchService service;
+
+        Dispatch(WatchService service) {
+            this.service = service;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = service.take();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (ClosedWatchServiceException e) {
+                    return;
+                }
+                // drain events, the Watch instances work out the delta themselves
+                key.pollEvents();
+                boolean valid = key.reset();
+                File directory = valid ? registered.get(key) : registered.remove(key);
+                if (directory == null) {
+                    continue;
+                }
+                if (!valid) {
+                    keys.remove(directory);
+                }
+                long now = System.currentTimeMillis();
+                for (Watch watch : watchers) {
+                    if (directory.equals(watch.file) || directory.equals(watch.file.getParentFile())) {
+                        if (!valid) {
+                            // directory gone, fall back to polling
+                            watch.directory = null;
+                            watch.polled = true;
+                        }
                         try {
-                            listener.changed(notify);
+                            check(watch, now);
                         } catch (Throwable t) {
-                            Logger logger = Logger.getLogger(listener.getClass().getPackage()
-                                    .getName());
-                            logger.log(Level.FINE,
-                                    "Unable to notify " + watch + ":" + t.getMessage(), t);
+                            LOGGER.log(Level.WARNING, "Unable to review " + watch, t);
                         }
                     }
                 }
             }
         }
-    };
+    }
 
     private ScheduledFuture<?> monitor;
 
@@ -325,7 +435,148 @@ public class FileSystemWatcher {
      * Internally a single threaded schedule executor is used to monitor files.
      */
     FileSystemWatcher() {
+        this(!Boolean.valueOf(GeoServerExtensions.getProperty(POLLING)));
+    }
+
+    /**
+     * FileSystemWatcher used to track file changes.
+     * 
+     * @param nativeWatch true to use the native WatchService when available, false to poll
+     */
+    FileSystemWatcher(boolean nativeWatch) {
         this.pool = Executors.newSingleThreadScheduledExecutor();
+        this.nativeWatch = nativeWatch;
+    }
+
+    /**
+     * Reviews a watch and notifies its listeners of any change.
+     * <p>
+     * Synchronized on the watch as both the polling and native notification threads may
+     * review it.
+     */
+    private void check(Watch watch, long now) {
+        ResourceNotification notify;
+        synchronized (watch) {
+            Delta delta = watch.changed(now);
+            if (delta == null) {
+                return;
+            }
+            /** Created based on created/removed/modified files */
+            List<ResourceNotification.Event> events = ResourceNotification.delta(
+                    watch.file, delta.created, delta.removed, delta.modified);
+
+            notify = new ResourceNotification( watch.getPath(),
+                    delta.kind, watch.last, events);
+        }
+        for (ResourceListener listener : watch.getListeners()) {
+            try {
+                listener.changed(notify);
+            } catch (Throwable t) {
+                Logger logger = Logger.getLogger(listener.getClass().getPackage()
+                        .getName());
+                logger.log(Level.FINE,
+                        "Unable to notify " + watch + ":" + t.getMessage(), t);
+            }
+        }
+    }
+
+    /**
+     * Registers the directory of a watch with the native watch service.
+     * 
+     * @return true if the watch is covered by native notifications, false if it needs polling
+     */
+    private synchronized boolean register(Watch watch) {
+        if (!nativeWatch) {
+            return false;
+        }
+        File directory = watch.getDirectory();
+        if (directory == null || !directory.isDirectory()) {
+            return false;
+        }
+        if (service == null) {
+            try {
+                service = FileSystems.getDefault().newWatchService();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "WatchService not available, polling file system", e);
+                nativeWatch = false;
+                return false;
+            } catch (UnsupportedOperationException e) {
+                LOGGER.log(Level.FINE, "WatchService not available, polling file system", e);
+                nativeWatch = false;
+                return false;
+            }
+        }
+        try {
+            WatchKey key = keys.get(directory);
+            if (key == null || !key.isValid()) {
+                key = directory.toPath().register(service,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                keys.put(directory, key);
+                registered.put(key, directory);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Unable to watch " + directory + ", polling instead", e);
+            return false;
+        }
+        if (serviceThread == null) {
+            serviceThread = new Thread(new Dispatch(service), "GeoServer file system watcher");
+            serviceThread.setDaemon(true);
+            serviceThread.start();
+        }
+        watch.directory = directory;
+        watch.polled = false;
+        return true;
+    }
+
+    /**
+     * Cancels the native registration of the directory of a removed watch, unless other
+     * watches still use it
+     */
+    private synchronized void unregister(Watch watch) {
+        File directory = watch.directory;
+        watch.directory = null;
+        watch.polled = true;
+        if (directory == null) {
+            return;
+        }
+        for (Watch other : watchers) {
+            if (directory.equals(other.directory)) {
+                return;
+            }
+        }
+        WatchKey key = keys.remove(directory);
+        if (key != null) {
+            registered.remove(key);
+            key.cancel();
+        }
+    }
+
+    /**
+     * Closes the native watch service, stopping its thread. It will be created again on the
+     * next registration.
+     */
+    private synchronized void closeService() {
+        for (WatchKey key : registered.keySet()) {
+            key.cancel();
+        }
+        registered.clear();
+        keys.clear();
+        for (Watch watch : watchers) {
+            watch.directory = null;
+            watch.polled = true;
+        }
+        if (service != null) {
+            try {
+                // makes the dispatch thread exit
+                service.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Unable to close the file system watch service", e);
+            }
+            service = null;
+            serviceThread = null;
+        }
     }
     
     private Watch watch(File file, String path ){
@@ -349,6 +600,7 @@ public class FileSystemWatcher {
         Watch watch = watch( file, path );
         if( watch == null ){
             watch = new Watch(file, path);
+            register(watch);
             watchers.add(watch);
             if( monitor == null){
                 monitor = pool.scheduleWithFixedDelay(sync, delay, delay, unit);
@@ -370,6 +622,7 @@ public class FileSystemWatcher {
             watch.removeListener(listener);
             if( watch.getListeners().isEmpty()){
                 removed = watchers.remove(watch);
+                unregister(watch);
             }
         }
         if (removed && watchers.isEmpty()) {
@@ -377,7 +630,36 @@ public class FileSystemWatcher {
                 monitor.cancel(false); // stop watching nobody is looking
                 monitor = null;
             }
+            closeService();
+        }
+    }
+
+    /**
+     * Stops watching, releasing the native watch service and the polling thread. The watcher
+     * cannot be used afterwards.
+     */
+    public synchronized void dispose() {
+        if (monitor != null) {
+            monitor.cancel(false);
+            monitor = null;
         }
+        closeService();
+        watchers.clear();
+        pool.shutdownNow();
+    }
+
+    /**
+     * Number of directories registered with the native watch service, for testing
+     */
+    int getRegisteredCount() {
+        return registered.size();
+    }
+
+    /**
+     * True if the native watch service is open, for testing
+     */
+    synchronized boolean isServiceOpen() {
+        return service != null;
     }
 
     /**
@@ -12,7 +12,7 @@ import org.geoserver.platform.resource.Resource.Lock;
  * @author Andrea Aime - GeoSolutions
  * @author Jody Garnett (Boundless)
  */
-public class GlobalLockProvider implements LockProvider {
+public class GlobalLockProvider implements SharedLockProvider {
 
     LockProvider delegate = new NullLockProvider();
 
@@ -42,6 +42,17 @@ public class GlobalLockProvider implements LockProvider {
         return delegate.acquire(path);
     }
 
+    /**
+     * Acquires a shared lock if supported by the delegate, an exclusive one otherwise.
+     */
+    @Override
+    public Lock acquireShared(String path) {
+        if (delegate instanceof SharedLockProvider) {
+            return ((SharedLockProvider) delegate).acquireShared(path);
+        }
+        return delegate.acquire(path);
+    }
+
     @Override
     public String toString() {
         if( delegate instanceof NullLockProvider){
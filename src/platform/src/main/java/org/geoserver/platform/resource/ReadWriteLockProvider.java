@@ -0,0 +1,394 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.platform.resource;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * An in memory lock provider based on hierarchical read/write locks.
+ * <p>
+ * Resource paths form a tree: locking a path takes shared locks on all of its ancestors
+ * (root first) and a shared or exclusive lock on the path itself. As a result readers never
+ * block each other, and a writer only blocks the resources in its own subtree: writing
+ * <code>workspaces/ws1/store1/ft.xml</code> does not wait for a writer on
+ * <code>workspaces/ws2</code>, but does wait for a writer renaming
+ * <code>workspaces/ws1</code>.
+ * <p>
+ * Shared locks cannot be upgraded: a thread asking for an exclusive lock on a path it holds a
+ * shared lock on gets an {@link IllegalStateException}, it has to release the shared lock
+ * first.
+ * <p>
+ * Lock nodes are created on demand and dropped once unused, node bookkeeping is protected by
+ * a striped set of monitors so that unrelated paths do not contend.
+ * <p>
+ * The provider keeps wait/hold time statistics (see {@link #getStatistics()}) and logs a
+ * diagnostic, including JVM detected deadlocks, for any thread waiting longer than
+ * {@link #getDiagnosticTimeout()} milliseconds.
+ */
+public class ReadWriteLockProvider implements SharedLockProvider {
+
+    static final Logger LOGGER = Logging.getLogger(ReadWriteLockProvider.class);
+
+    /** Lock node for a single path */
+    static final class Node {
+        final ReentrantReadWriteLock lock;
+
+        /** Number of lock requests using this node, guarded by the stripe monitor */
+        int users;
+
+        /** Current writer, for diagnostics only */
+        volatile Thread writer;
+
+        Node(boolean fair) {
+            lock = new ReentrantReadWriteLock(fair);
+        }
+    }
+
+    /** Lock statistics, times reported in milliseconds */
+    public static class LockStatistics {
+        final AtomicLong sharedAcquisitions = new AtomicLong();
+
+        final AtomicLong exclusiveAcquisitions = new AtomicLong();
+
+        final AtomicLong contended = new AtomicLong();
+
+        final AtomicLong upgrades = new AtomicLong();
+
+        final AtomicLong waitNanos = new AtomicLong();
+
+        final AtomicLong maxWaitNanos = new AtomicLong();
+
+        final AtomicLong holdNanos = new AtomicLong();
+
+        final AtomicLong maxHoldNanos = new AtomicLong();
+
+        final AtomicLong releases = new AtomicLong();
+
+        void acquired(boolean exclusive, long wait, boolean wasContended) {
+            (exclusive ? exclusiveAcquisitions : sharedAcquisitions).incrementAndGet();
+            if (wasContended) {
+                contended.incrementAndGet();
+            }
+            waitNanos.addAndGet(wait);
+            max(maxWaitNanos, wait);
+        }
+
+        void released(long hold) {
+            releases.incrementAndGet();
+            holdNanos.addAndGet(hold);
+            max(maxHoldNanos, hold);
+        }
+
+        static void max(AtomicLong max, long value) {
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        /** Number of shared locks granted */
+        public long getSharedAcquisitions() {
+            return sharedAcquisitions.get();
+        }
+
+        /** Number of exclusive locks granted */
+        public long getExclusiveAcquisitions() {
+            return exclusiveAcquisitions.get();
+        }
+
+        /** Number of lock requests that had to wait for another thread */
+        public long getContended() {
+            return contended.get();
+        }
+
+        /**
+         * Number of exclusive requests made by a thread already holding a shared lock on the
+         * same path, which have been rejected.
+         */
+        public long getUpgrades() {
+            return upgrades.get();
+        }
+
+        /** Total time spent waiting for locks */
+        public long getTotalWaitTime() {
+            return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+        }
+
+        /** Longest time spent waiting for a lock */
+        public long getMaxWaitTime() {
+            return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+        }
+
+        /** Average time spent waiting for a lock */
+        public double getAverageWaitTime() {
+            long count = sharedAcquisitions.get() + exclusiveAcquisitions.get();
+            return count == 0 ? 0 : waitNanos.get() / 1000000d / count;
+        }
+
+        /** Total time locks have been held */
+        public long getTotalHoldTime() {
+            return TimeUnit.NANOSECONDS.toMillis(holdNanos.get());
+        }
+
+        /** Longest time a lock has been held */
+        public long getMaxHoldTime() {
+            return TimeUnit.NANOSECONDS.toMillis(maxHoldNanos.get());
+        }
+
+        /** Average time a lock has been held */
+        public double getAverageHoldTime() {
+            long count = releases.get();
+            return count == 0 ? 0 : holdNanos.get() / 1000000d / count;
+        }
+
+        @Override
+        public String toString() {
+            return "LockStatistics [shared=" + getSharedAcquisitions() + ", exclusive="
+                    + getExclusiveAcquisitions() + ", contended=" + getContended()
+                    + ", upgrades=" + getUpgrades() + ", maxWait=" + getMaxWaitTime()
+                    + "ms, avgWait=" + getAverageWaitTime() + "ms, maxHold=" + getMaxHoldTime()
+                    + "ms, avgHold=" + getAverageHoldTime() + "ms]";
+        }
+    }
+
+    final boolean fair;
+
+    final Object[] stripes;
+
+    final Map<String, Node> nodes = new ConcurrentHashMap<String, Node>();
+
+    volatile LockStatistics statistics = new LockStatistics();
+
+    long diagnosticTimeout = 30000;
+
+    public ReadWriteLockProvider() {
+        this(1024, true);
+    }
+
+    /**
+     * @param concurrency number of stripes protecting lock node bookkeeping
+     * @param fair true to grant locks in arrival order, preventing writer starvation
+     */
+    public ReadWriteLockProvider(int concurrency, boolean fair) {
+        this.fair = fair;
+        this.stripes = new Object[concurrency];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    public boolean isFair() {
+        return fair;
+    }
+
+    /**
+     * Time in milliseconds a thread waits for a lock before a diagnostic is logged
+     */
+    public long getDiagnosticTimeout() {
+        return diagnosticTimeout;
+    }
+
+    public void setDiagnosticTimeout(long diagnosticTimeout) {
+        this.diagnosticTimeout = diagnosticTimeout;
+    }
+
+    /**
+     * Lock wait/hold time statistics collected since creation or last {@link #resetStatistics()}
+     */
+    public LockStatistics getStatistics() {
+        return statistics;
+    }
+
+    public void resetStatistics() {
+        statistics = new LockStatistics();
+    }
+
+    @Override
+    public Resource.Lock acquire(String path) {
+        return lock(path, true);
+    }
+
+    @Override
+    public Resource.Lock acquireShared(String path) {
+        return lock(path, false);
+    }
+
+    Resource.Lock lock(final String path, final boolean exclusive) {
+        final List<String> keys = keys(path);
+        final List<Node> held = new ArrayList<Node>(keys.size());
+        final List<java.util.concurrent.locks.Lock> locks =
+            new ArrayList<java.util.concurrent.locks.Lock>(keys.size());
+        final LockStatistics stats = statistics;
+        final long start = System.nanoTime();
+        boolean contended = false;
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                String key = keys.get(i);
+                Node node = checkout(key);
+                held.add(node);
+                boolean write = exclusive && i == keys.size() - 1;
+                if (write && node.lock.getReadHoldCount() > 0 && !node.lock.isWriteLockedByCurrentThread()) {
+                    // read locks cannot be upgraded, waiting would deadlock this thread, and
+                    // a shared lock would let the caller write along with other threads
+                    stats.upgrades.incrementAndGet();
+                    throw new IllegalStateException("Exclusive lock requested on " + key
+                            + " by a thread already holding a shared lock on it, release the "
+                            + "shared lock first");
+                }
+                java.util.concurrent.locks.Lock lock = write ? node.lock.writeLock() : node.lock.readLock();
+                if (!lock.tryLock()) {
+                    contended = true;
+                    await(lock, node, key, write);
+                }
+                locks.add(lock);
+                if (write) {
+                    node.writer = Thread.currentThread();
+                }
+            }
+        } catch (RuntimeException e) {
+            release(keys, held, locks);
+            throw e;
+        }
+        final long acquired = System.nanoTime();
+        stats.acquired(exclusive, acquired - start, contended);
+        return new Resource.Lock() {
+            boolean released = false;
+
+            public void release() {
+                if (!released) {
+                    released = true;
+                    ReadWriteLockProvider.this.release(keys, held, locks);
+                    stats.released(System.nanoTime() - acquired);
+                }
+            }
+
+            public String toString() {
+                return "ReadWriteLock " + path + (exclusive ? " (exclusive)" : " (shared)");
+            }
+        };
+    }
+
+    void await(java.util.concurrent.locks.Lock lock, Node node, String key, boolean write) {
+        long start = System.currentTimeMillis();
+        try {
+            while (!lock.tryLock(diagnosticTimeout, TimeUnit.MILLISECONDS)) {
+                diagnose(node, key, write, System.currentTimeMillis() - start);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for lock on " + key, e);
+        }
+    }
+
+    /**
+     * Logs the lock being waited for, its current writer and any deadlock detected by the JVM
+     */
+    void diagnose(Node node, String key, boolean write, long waited) {
+        Thread writer = node.writer;
+        StringBuilder sb = new StringBuilder();
+        sb.append(Thread.currentThread().getName()).append(" waiting ").append(waited)
+                .append("ms for ").append(write ? "exclusive" : "shared").append(" lock on '")
+                .append(key).append("', ").append(node.lock.getReadLockCount())
+                .append(" shared holds");
+        if (writer != null && node.lock.isWriteLocked()) {
+            sb.append(", exclusive hold by ").append(writer.getName());
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long[] deadlocked = threads.isSynchronizerUsageSupported() ?
+                threads.findDeadlockedThreads() : threads.findMonitorDeadlockedThreads();
+        if (deadlocked != null) {
+            sb.append("\nDeadlock detected:");
+            for (ThreadInfo info : threads.getThreadInfo(deadlocked, true, true)) {
+                if (info != null) {
+                    sb.append("\n").append(info);
+                }
+            }
+            LOGGER.severe(sb.toString());
+        } else {
+            LOGGER.warning(sb.toString());
+        }
+    }
+
+    void release(List<String> keys, List<Node> held, List<java.util.concurrent.locks.Lock> locks) {
+        // release leaf first, locks and nodes are acquired in the same order
+        for (int i = held.size() - 1; i >= 0; i--) {
+            Node node = held.get(i);
+            if (i < locks.size()) {
+                java.util.concurrent.locks.Lock lock = locks.get(i);
+                if (lock == node.lock.writeLock() && node.lock.getWriteHoldCount() == 1) {
+                    node.writer = null;
+                }
+                lock.unlock();
+            }
+            checkin(keys.get(i), node);
+        }
+    }
+
+    Node checkout(String key) {
+        synchronized (stripe(key)) {
+            Node node = nodes.get(key);
+            if (node == null) {
+                node = new Node(fair);
+                nodes.put(key, node);
+            }
+            node.users++;
+            return node;
+        }
+    }
+
+    void checkin(String key, Node node) {
+        synchronized (stripe(key)) {
+            if (--node.users == 0) {
+                nodes.remove(key);
+            }
+        }
+    }
+
+    Object stripe(String key) {
+        return stripes[(key.hashCode() & 0x7fffffff) % stripes.length];
+    }
+
+    /**
+     * Lock keys for a path, from the root down to the path itself
+     */
+    static List<String> keys(String path) {
+        List<String> keys = new ArrayList<String>();
+        keys.add(Paths.BASE);
+        if (path == null) {
+            return keys;
+        }
+        StringBuilder key = new StringBuilder();
+        for (String name : path.split("/")) {
+            if (name.length() == 0) {
+                continue;
+            }
+            if (key.length() > 0) {
+                key.append('/');
+            }
+            key.append(name);
+            keys.add(key.toString());
+        }
+        return keys;
+    }
+
+    @Override
+    public String toString() {
+        return "ReadWriteLockProvider";
+    }
+}
@@ -0,0 +1,25 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.platform.resource;
+
+/**
+ * LockProvider able to hand out shared locks, allowing several readers to access a resource at
+ * the same time while still being excluded by {@link #acquire(String)}.
+ *
+ * @see ReadWriteLockProvider
+ */
+public interface SharedLockProvider extends LockProvider {
+
+    /**
+     * Acquires a shared lock (using resource path as key).
+     * <p>
+     * Shared locks do not block each other, they only block (and are blocked by) exclusive
+     * locks on the same path.
+     *
+     * @param path Resource path used as lock key
+     */
+    public Resource.Lock acquireShared(String path);
+}
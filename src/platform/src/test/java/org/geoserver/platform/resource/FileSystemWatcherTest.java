@@ -0,0 +1,158 @@
+package org.geoserver.platform.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.platform.resource.FileSystemResourceTheoryTest.AwaitResourceListener;
+import org.geoserver.platform.resource.ResourceNotification.Event;
+import org.geoserver.platform.resource.ResourceNotification.Kind;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks create/modify/delete deltas reported by both the native WatchService and
+ * polling implementations of {@link FileSystemWatcher}.
+ */
+public class FileSystemWatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void nativeFileEvents() throws Exception {
+        fileEvents(new FileSystemWatcher(true));
+    }
+
+    @Test
+    public void pollingFileEvents() throws Exception {
+        fileEvents(new FileSystemWatcher(false));
+    }
+
+    @Test
+    public void nativeDirectoryEvents() throws Exception {
+        directoryEvents(new FileSystemWatcher(true));
+    }
+
+    @Test
+    public void pollingDirectoryEvents() throws Exception {
+        directoryEvents(new FileSystemWatcher(false));
+    }
+
+    @Test
+    public void nativeResourcesReleased() throws Exception {
+        FileSystemWatcher watcher = new FileSystemWatcher(true);
+        File dir = folder.newFolder("styles");
+        File other = folder.newFolder("other");
+        File first = new File(dir, "first.sld");
+        File second = new File(dir, "second.sld");
+        AwaitResourceListener listener = new AwaitResourceListener();
+        watcher.addListener(first, "styles/first.sld", listener);
+        watcher.addListener(second, "styles/second.sld", listener);
+        watcher.addListener(other, "other", listener);
+        assertTrue(watcher.isServiceOpen());
+        assertEquals(2, watcher.getRegisteredCount());
+
+        // the styles directory is still in use by the second file
+        watcher.removeListener(first, "styles/first.sld", listener);
+        assertEquals(2, watcher.getRegisteredCount());
+        watcher.removeListener(second, "styles/second.sld", listener);
+        assertEquals(1, watcher.getRegisteredCount());
+
+        // nobody is listening anymore
+        watcher.removeListener(other, "other", listener);
+        assertEquals(0, watcher.getRegisteredCount());
+        assertFalse(watcher.isServiceOpen());
+
+        // and can start again
+        watcher.addListener(other, "other", listener);
+        assertTrue(watcher.isServiceOpen());
+        watcher.dispose();
+        assertFalse(watcher.isServiceOpen());
+    }
+
+    void fileEvents(FileSystemWatcher watcher) throws Exception {
+        File file = folder.newFile("watched.properties");
+        AwaitResourceListener listener = new AwaitResourceListener();
+        watcher.schedule(30, TimeUnit.MILLISECONDS);
+        watcher.addListener(file, "watched.properties", listener);
+
+        file.setLastModified(file.lastModified() + 2000);
+        ResourceNotification n = listener.await(5, TimeUnit.SECONDS);
+        assertNotNull("file modified", n);
+        assertEquals(Kind.ENTRY_MODIFY, n.getKind());
+        assertEquals("watched.properties", n.getPath());
+
+        listener.reset();
+        file.delete();
+        n = listener.await(5, TimeUnit.SECONDS);
+        assertNotNull("file removed", n);
+        assertEquals(Kind.ENTRY_DELETE, n.getKind());
+
+        listener.reset();
+        file.createNewFile();
+        n = listener.await(5, TimeUnit.SECONDS);
+        assertNotNull("file created", n);
+        assertEquals(Kind.ENTRY_CREATE, n.getKind());
+
+        watcher.removeListener(file, "watched.properties", listener);
+    }
+
+    void directoryEvents(FileSystemWatcher watcher) throws Exception {
+        File dir = folder.newFolder("styles");
+        File existing = new File(dir, "existing.sld");
+        existing.createNewFile();
+        AwaitResourceListener listener = new AwaitResourceListener();
+        watcher.schedule(30, TimeUnit.MILLISECONDS);
+        watcher.addListener(dir, "styles", listener);
+
+        File created = new File(dir, "created.sld");
+        created.createNewFile();
+        ResourceNotification n = listener.await(5, TimeUnit.SECONDS);
+        assertNotNull("file created", n);
+        assertEquals(Kind.ENTRY_MODIFY, n.getKind());
+        Event e = n.events().get(0);
+        assertEquals(Kind.ENTRY_CREATE, e.getKind());
+        assertEquals("created.sld", e.getPath());
+
+        listener.reset();
+        existing.setLastModified(System.currentTimeMillis() + 2000);
+        n = listener.await(5, TimeUnit.SECONDS);
+        assertNotNull("file modified", n);
+        e = n.events().get(0);
+        assertEquals(Kind.ENTRY_MODIFY, e.getKind());
+        assertEquals("existing.sld", e.getPath());
+
+        listener.reset();
+        created.delete();
+        n = listener.await(5, TimeUnit.SECONDS);
+        assertNotNull("file removed", n);
+        e = n.events().get(0);
+        assertEquals(Kind.ENTRY_DELETE, e.getKind());
+        assertEquals("created.sld", e.getPath());
+
+        listener.reset();
+        existing.delete();
+        n = listener.await(5, TimeUnit.SECONDS);
+        assertNotNull("file removed", n);
+
+        listener.reset();
+        dir.delete();
+        n = listener.await(5, TimeUnit.SECONDS);
+        assertNotNull("directory removed", n);
+        assertEquals(Kind.ENTRY_DELETE, n.getKind());
+
+        listener.reset();
+        dir.mkdir();
+        n = listener.await(5, TimeUnit.SECONDS);
+        assertNotNull("directory created", n);
+        assertEquals(Kind.ENTRY_CREATE, n.getKind());
+
+        watcher.removeListener(dir, "styles", listener);
+    }
+}
@@ -0,0 +1,149 @@
+package org.geoserver.platform.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.platform.resource.Resource.Lock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReadWriteLockProviderTest {
+
+    ReadWriteLockProvider provider;
+
+    List<Thread> threads = new ArrayList<Thread>();
+
+    @Before
+    public void setUp() {
+        provider = new ReadWriteLockProvider();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        join();
+    }
+
+    @Test
+    public void keys() {
+        assertEquals(Arrays.asList("", "workspaces", "workspaces/ws1", "workspaces/ws1/ws.xml"),
+                ReadWriteLockProvider.keys("workspaces/ws1/ws.xml"));
+        assertEquals(Arrays.asList(""), ReadWriteLockProvider.keys(Paths.BASE));
+    }
+
+    @Test
+    public void sharedDoesNotBlock() throws Exception {
+        Lock lock = provider.acquireShared("styles/point.sld");
+        try {
+            assertTrue(acquiredByOtherThread("styles/point.sld", false));
+        } finally {
+            lock.release();
+        }
+    }
+
+    @Test
+    public void exclusiveBlocksSubtreeOnly() throws Exception {
+        Lock lock = provider.acquire("workspaces/ws1");
+        try {
+            assertFalse(acquiredByOtherThread("workspaces/ws1/store/datastore.xml", true));
+            assertFalse(acquiredByOtherThread("workspaces/ws1/ws.xml", false));
+            assertTrue(acquiredByOtherThread("workspaces/ws2/store/datastore.xml", true));
+            assertTrue(acquiredByOtherThread("styles/point.sld", true));
+        } finally {
+            lock.release();
+        }
+        assertTrue(acquiredByOtherThread("workspaces/ws1/store/datastore.xml", true));
+        join();
+        assertTrue(provider.nodes.isEmpty());
+    }
+
+    @Test
+    public void sharedBlocksExclusive() throws Exception {
+        Lock lock = provider.acquireShared("workspaces/ws1/ws.xml");
+        try {
+            assertFalse(acquiredByOtherThread("workspaces/ws1/ws.xml", true));
+            assertFalse(acquiredByOtherThread("workspaces", true));
+            assertTrue(acquiredByOtherThread("workspaces/ws1/namespace.xml", true));
+        } finally {
+            lock.release();
+        }
+    }
+
+    @Test
+    public void upgradeFailsFast() throws Exception {
+        Lock shared = provider.acquireShared("global.xml");
+        try {
+            provider.acquire("global.xml");
+            fail("Exclusive lock granted while holding a shared one");
+        } catch (IllegalStateException e) {
+            // expected, never a weaker lock than requested
+        }
+        // other readers are not affected, writers still excluded
+        assertTrue(acquiredByOtherThread("global.xml", false));
+        assertFalse(acquiredByOtherThread("global.xml", true));
+        shared.release();
+        join();
+        assertEquals(1, provider.getStatistics().getUpgrades());
+        assertTrue(provider.nodes.isEmpty());
+    }
+
+    @Test
+    public void statistics() throws Exception {
+        provider.acquireShared("a/b").release();
+        provider.acquire("a/b").release();
+        provider.acquire("a/c").release();
+        assertEquals(1, provider.getStatistics().getSharedAcquisitions());
+        assertEquals(2, provider.getStatistics().getExclusiveAcquisitions());
+        assertEquals(0, provider.getStatistics().getContended());
+
+        Lock lock = provider.acquire("a");
+        assertFalse(acquiredByOtherThread("a/b", true));
+        lock.release();
+        join();
+        assertEquals(1, provider.getStatistics().getContended());
+
+        provider.resetStatistics();
+        assertEquals(0, provider.getStatistics().getExclusiveAcquisitions());
+    }
+
+    /**
+     * Waits for the threads started by {@link #acquiredByOtherThread(String, boolean)}
+     */
+    void join() throws InterruptedException {
+        for (Thread t : threads) {
+            t.join(5000);
+            assertFalse(t.isAlive());
+        }
+        threads.clear();
+    }
+
+    /**
+     * Tries to lock path from another thread, the lock is released as soon as obtained.
+     *
+     * @return true if the lock was obtained within 200ms
+     */
+    boolean acquiredByOtherThread(final String path, final boolean exclusive)
+            throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        Thread t = new Thread() {
+            public void run() {
+                Lock lock = exclusive ? provider.acquire(path) : provider.acquireShared(path);
+                latch.countDown();
+                lock.release();
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        threads.add(t);
+        // if not acquired the thread completes once the test releases its lock
+        return latch.await(200, TimeUnit.MILLISECONDS);
+    }
+}
@@ -25,6 +25,7 @@ import java.util.logging.Logger;
 
 import org.geoserver.security.GeoServerRoleService;
 import org.geoserver.security.GeoServerRoleStore;
+import org.geoserver.security.RoleAssignmentLookup;
 import org.geoserver.security.config.SecurityNamedServiceConfig;
 import org.geoserver.security.config.SecurityRoleServiceConfig;
 import org.geoserver.security.event.RoleLoadedEvent;
@@ -40,7 +41,8 @@ import org.springframework.util.StringUtils;
  * @author christian
  *
  */
-public  class JDBCRoleService extends AbstractJDBCService implements GeoServerRoleService {
+public  class JDBCRoleService extends AbstractJDBCService implements GeoServerRoleService,
+        RoleAssignmentLookup {
     
     final static String DEFAULT_DML_FILE="rolesdml.xml";
     final static String DEFAULT_DDL_FILE="rolesddl.xml";
@@ -490,6 +492,53 @@ public  class JDBCRoleService extends AbstractJDBCService implements GeoServerRo
         return Collections.unmodifiableSortedSet(result);
     }
     
+    /**
+     * @see org.geoserver.security.RoleAssignmentLookup#getUserNamesByRole()
+     */
+    public Map<String, SortedSet<String>> getUserNamesByRole() throws IOException {
+        return getNamesByRole("userroles.all");
+    }
+
+    /**
+     * @see org.geoserver.security.RoleAssignmentLookup#getGroupNamesByRole()
+     */
+    public Map<String, SortedSet<String>> getGroupNamesByRole() throws IOException {
+        return getNamesByRole("grouproles.all");
+    }
+
+    /**
+     * Reads all the role assignments of a table in one query, returns {@code null} if the DML
+     * file predates the statement
+     */
+    protected Map<String, SortedSet<String>> getNamesByRole(String key) throws IOException {
+        if (dmlProps.getProperty(key) == null) {
+            return null;
+        }
+        Connection con=null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        Map<String, SortedSet<String>> result = new HashMap<String, SortedSet<String>>();
+        try {
+            con = getConnection();
+            ps = getDMLStatement(key,con);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                String rolename = rs.getString(1);
+                SortedSet<String> names = result.get(rolename);
+                if (names == null) {
+                    names = new TreeSet<String>();
+                    result.put(rolename, names);
+                }
+                names.add(rs.getString(2));
+            }
+        } catch (SQLException ex) {
+            throw new IOException(ex);
+        } finally {
+            closeFinally(con, ps, rs);
+        }
+        return result;
+    }
+
     /* (non-Javadoc)
      * @see org.geoserver.security.GeoServerRoleService#getRoleCount()
      */
@@ -70,6 +70,11 @@ public class JDBCSecurityProvider extends GeoServerSecurityProvider {
         return new JDBCRoleService();
     }
 
+    @Override
+    public boolean roleServiceNeedsCaching() {
+        return true;
+    }
+
     @Override
     public SecurityConfigValidator createConfigurationValidator(GeoServerSecurityManager securityManager) {
         return new JdbcSecurityConfigValidator(securityManager); 
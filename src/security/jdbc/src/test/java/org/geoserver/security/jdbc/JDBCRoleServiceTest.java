@@ -10,6 +10,8 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.Map;
+import java.util.SortedSet;
 import java.util.logging.Logger;
 
 import junit.framework.Assert;
@@ -18,6 +20,7 @@ import org.geoserver.data.test.SystemTestData;
 import org.geoserver.security.GeoServerRoleService;
 import org.geoserver.security.GeoServerRoleStore;
 import org.geoserver.security.impl.AbstractRoleServiceTest;
+import org.geoserver.security.impl.GeoServerRole;
 import org.junit.After;
 import org.junit.Assume;
 import org.junit.Before;
@@ -88,6 +91,37 @@ public abstract class JDBCRoleServiceTest extends AbstractRoleServiceTest {
         }
     }
 
+    @Test
+    public void testNamesByRole() throws IOException {
+        GeoServerRole admin = store.createRoleObject("ROLE_ADMINISTRATOR");
+        GeoServerRole author = store.createRoleObject("ROLE_AUTHOR");
+        store.addRole(admin);
+        store.addRole(author);
+        store.associateRoleToUser(admin, "user1");
+        store.associateRoleToUser(author, "user1");
+        store.associateRoleToUser(author, "user2");
+        store.associateRoleToGroup(author, "group1");
+        store.store();
+
+        JDBCRoleStore jdbcStore = (JDBCRoleStore) store;
+        Map<String, SortedSet<String>> users = jdbcStore.getUserNamesByRole();
+        assertEquals(2, users.size());
+        assertEquals(store.getUserNamesForRole(admin), users.get("ROLE_ADMINISTRATOR"));
+        assertEquals(store.getUserNamesForRole(author), users.get("ROLE_AUTHOR"));
+        assertEquals(2, users.get("ROLE_AUTHOR").size());
+        Map<String, SortedSet<String>> groups = jdbcStore.getGroupNamesByRole();
+        assertEquals(1, groups.size());
+        assertEquals(store.getGroupNamesForRole(author), groups.get("ROLE_AUTHOR"));
+
+        // dml files written before the bulk statements fall back to the per role queries
+        String sql = (String) jdbcStore.dmlProps.remove("userroles.all");
+        try {
+            assertNull(jdbcStore.getUserNamesByRole());
+        } finally {
+            jdbcStore.dmlProps.put("userroles.all", sql);
+        }
+    }
+
     @Override
     protected SystemTestData createTestData() throws Exception {
         if ("h2".equalsIgnoreCase(getFixtureId()))
@@ -7,6 +7,7 @@ package org.geoserver.security.ldap;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
@@ -22,12 +23,14 @@ import javax.naming.directory.DirContext;
 
 import org.geoserver.security.GeoServerRoleService;
 import org.geoserver.security.GeoServerRoleStore;
+import org.geoserver.security.RoleAssignmentLookup;
 import org.geoserver.security.config.SecurityNamedServiceConfig;
 import org.geoserver.security.event.RoleLoadedListener;
 import org.geoserver.security.impl.AbstractGeoServerSecurityService;
 import org.geoserver.security.impl.GeoServerRole;
 import org.geotools.util.logging.Logging;
 import org.springframework.ldap.core.AuthenticatedLdapEntryContextCallback;
+import org.springframework.ldap.core.ContextMapper;
 import org.springframework.ldap.core.DirContextOperations;
 import org.springframework.ldap.core.DistinguishedName;
 import org.springframework.ldap.core.LdapEntryIdentification;
@@ -40,7 +43,8 @@ import org.springframework.security.ldap.SpringSecurityLdapTemplate;
  * @author "Mauro Bartolomeoli - mauro.bartolomeoli@geo-solutions.it"
  *
  */
-public class LDAPRoleService extends AbstractGeoServerSecurityService implements GeoServerRoleService {
+public class LDAPRoleService extends AbstractGeoServerSecurityService implements
+        GeoServerRoleService, RoleAssignmentLookup {
 
     private static final SortedSet<GeoServerRole> emptySet = Collections
             .unmodifiableSortedSet(new TreeSet<GeoServerRole>());
@@ -206,6 +210,33 @@ public class LDAPRoleService extends AbstractGeoServerSecurityService implements
         return Collections.unmodifiableSortedSet(users);
     }
 
+    /**
+     * Reads the members of all the groups with a single search
+     */
+    @Override
+    public Map<String, SortedSet<String>> getUserNamesByRole() throws IOException {
+        final Map<String, SortedSet<String>> users = new HashMap<String, SortedSet<String>>();
+
+        authenticateIfNeeded(new AuthenticatedLdapEntryContextCallback() {
+
+            @Override
+            public void executeWithContext(DirContext ctx,
+                    LdapEntryIdentification ldapEntryIdentification) {
+                fillUsersByRole(ctx, users);
+            }
+        });
+
+        return users;
+    }
+
+    /**
+     * Roles to group association is not supported
+     */
+    @Override
+    public Map<String, SortedSet<String>> getGroupNamesByRole() throws IOException {
+        return Collections.emptyMap();
+    }
+
     @Override
     public SortedSet<GeoServerRole> getRolesForUser(final String username)
             throws IOException {
@@ -318,6 +349,49 @@ public class LDAPRoleService extends AbstractGeoServerSecurityService implements
         }
     }
 
+    private void fillUsersByRole(DirContext ctx, final Map<String, SortedSet<String>> users) {
+        // members of several groups are looked up once
+        final Map<String, String> userNames = new HashMap<String, String>();
+        LDAPUtils.getLdapTemplateInContext(ctx, template).search(groupSearchBase,
+                allGroupsSearchFilter, new ContextMapper() {
+
+                    @Override
+                    public Object mapFromContext(Object entry) {
+                        DirContextOperations group = (DirContextOperations) entry;
+                        String roleName = group.getStringAttribute(groupRoleAttribute);
+                        if (roleName == null) {
+                            return null;
+                        }
+                        SortedSet<String> names = new TreeSet<String>();
+                        Object[] members = group.getObjectAttributes(groupMembershipAttribute);
+                        if (members != null) {
+                            for (Object member : members) {
+                                String user = member.toString();
+                                Matcher m = userMembershipPattern.matcher(user);
+                                if (m.matches()) {
+                                    user = m.group(1);
+                                }
+                                if (lookupUserForDn) {
+                                    String name = userNames.get(user);
+                                    if (name == null) {
+                                        name = getUserNameFromMembership(user);
+                                        userNames.put(user, name);
+                                    }
+                                    user = name;
+                                }
+                                names.add(user);
+                            }
+                        }
+                        try {
+                            users.put(createRoleObject(roleName).getAuthority(), names);
+                        } catch (IOException e) {
+                            LOGGER.log(Level.SEVERE, "Error adding a new role from LDAP", e);
+                        }
+                        return null;
+                    }
+                });
+    }
+
     private String getUserNameFromMembership(final String user) {
         final Set<String> userName = new HashSet<String>();
         userName.add(user);
@@ -149,4 +149,9 @@ public class LDAPSecurityProvider extends GeoServerSecurityProvider {
             throws IOException {
         return new LDAPRoleService();
     }
+
+    @Override
+    public boolean roleServiceNeedsCaching() {
+        return true;
+    }
 }
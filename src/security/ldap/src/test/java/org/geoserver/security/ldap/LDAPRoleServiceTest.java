@@ -11,6 +11,7 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertEquals;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.SortedSet;
 
 import org.geoserver.security.GeoServerRoleService;
@@ -154,6 +155,35 @@ public class LDAPRoleServiceTest extends LDAPBaseTest {
         checkUserNamesForRole("other", 2, true);
     }
     
+    @Test
+    public void testGetUserNamesByRole() throws Exception {
+        Assume.assumeTrue(LDAPTestUtils.initLdapServer(true, ldapServerUrl,
+                basePath));
+
+        checkUserNamesByRole(false);
+    }
+
+    @Test
+    public void testGetUserNamesByRoleUsingUserFilter() throws Exception {
+        Assume.assumeTrue(LDAPTestUtils.initLdapServer(true, ldapServerUrl,
+                basePath, "data2.ldif"));
+
+        checkUserNamesByRole(true);
+    }
+
+    private void checkUserNamesByRole(boolean userFilter) throws IOException {
+        createRoleService(userFilter);
+
+        Map<String, SortedSet<String>> userNames =
+                ((LDAPRoleService) service).getUserNamesByRole();
+        assertEquals(1, userNames.get("ROLE_ADMIN").size());
+        assertEquals(2, userNames.get("ROLE_OTHER").size());
+        // same names as the lookup of a single role
+        assertEquals(service.getUserNamesForRole(new GeoServerRole("other")),
+                userNames.get("ROLE_OTHER"));
+        assertTrue(((LDAPRoleService) service).getGroupNamesByRole().isEmpty());
+    }
+
     private void configureAuthentication() {
         ((LDAPRoleServiceConfig)config).setUser("uid=admin,ou=People,dc=example,dc=com");//("uid=admin,ou=People,dc=example,dc=com");
         ((LDAPRoleServiceConfig)config).setPassword("admin");
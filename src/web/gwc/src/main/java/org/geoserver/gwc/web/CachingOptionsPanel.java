@@ -24,17 +24,24 @@ import org.apache.wicket.markup.html.list.ListItem;
 import org.apache.wicket.markup.html.list.ListView;
 import org.apache.wicket.markup.html.panel.Panel;
 import org.apache.wicket.model.IModel;
+import org.apache.wicket.model.Model;
 import org.apache.wicket.model.PropertyModel;
 import org.apache.wicket.model.ResourceModel;
+import org.apache.wicket.model.StringResourceModel;
 import org.apache.wicket.validation.IValidatable;
 import org.apache.wicket.validation.IValidator;
 import org.apache.wicket.validation.ValidationError;
+import org.geoserver.gwc.GWC;
+import org.geoserver.gwc.MemoryTileCache;
 import org.geoserver.gwc.config.GWCConfig;
 import org.geoserver.web.GeoServerApplication;
 import org.geoserver.web.wicket.LocalizedChoiceRenderer;
+import org.geoserver.wms.mvt.MVT;
 import org.geowebcache.locks.LockProvider;
 import org.springframework.context.ApplicationContext;
 
+import com.google.common.cache.CacheStats;
+
 public class CachingOptionsPanel extends Panel {
     private static final long serialVersionUID = 1L;
 
@@ -110,8 +117,22 @@ public class CachingOptionsPanel extends Panel {
                 gutterChoices);
         configs.add(gutterChoice);
 
+        IModel<Boolean> tileWarmingModel = new PropertyModel<Boolean>(gwcConfigModel,
+                "tileWarmingEnabled");
+        configs.add(new CheckBox("tileWarmingEnabled", tileWarmingModel));
+
+        IModel<Integer> cpuBudgetModel = new PropertyModel<Integer>(gwcConfigModel,
+                "tileWarmingCpuBudget");
+        List<Integer> cpuBudgetChoices = Arrays.asList(5, 10, 25, 50, 75, 100);
+        DropDownChoice<Integer> cpuBudgetChoice = new DropDownChoice<Integer>(
+                "tileWarmingCpuBudget", cpuBudgetModel, cpuBudgetChoices);
+        cpuBudgetChoice.setRequired(true);
+        configs.add(cpuBudgetChoice);
+
+        addMemoryCacheOptions(gwcConfigModel);
+
         final List<String> formats = Arrays.asList("image/png", "image/png8", "image/jpeg",
-                "image/gif");
+                "image/gif", MVT.MIME_TYPE);
 
         {
             IModel<List<String>> vectorFormatsModel = new PropertyModel<List<String>>(
@@ -209,4 +230,36 @@ public class CachingOptionsPanel extends Panel {
         rasterFormatsGroup.add(validator);
         otherFormatsGroup.add(validator);
     }
+
+    private void addMemoryCacheOptions(IModel<GWCConfig> gwcConfigModel) {
+        IModel<Boolean> memoryCacheModel = new PropertyModel<Boolean>(gwcConfigModel,
+                "memoryCacheEnabled");
+        add(new CheckBox("memoryCacheEnabled", memoryCacheModel));
+
+        IModel<Integer> memoryCacheSizeModel = new PropertyModel<Integer>(gwcConfigModel,
+                "memoryCacheSize");
+        List<Integer> sizeChoices = Arrays.asList(16, 32, 64, 128, 256, 512, 1024, 2048);
+        DropDownChoice<Integer> memoryCacheSize = new DropDownChoice<Integer>("memoryCacheSize",
+                memoryCacheSizeModel, sizeChoices);
+        memoryCacheSize.setRequired(true);
+        add(memoryCacheSize);
+
+        // statistics of the running cache, if any
+        MemoryTileCache memoryCache = GWC.get().getMemoryTileCache();
+        IModel<String> statisticsModel;
+        if (memoryCache == null) {
+            statisticsModel = new Model<String>("");
+        } else {
+            CacheStats stats = memoryCache.getStatistics();
+            Object[] params = { String.format("%.1f", stats.hitRate() * 100),
+                    stats.hitCount(), stats.missCount(), memoryCache.getEntryCount(),
+                    String.format("%.1f", memoryCache.getSize() / (1024d * 1024d)),
+                    String.format("%.1f", memoryCache.getAllocatedSize() / (1024d * 1024d)) };
+            statisticsModel = new StringResourceModel("GWCSettingsPage.memoryCacheStatistics",
+                    null, params);
+        }
+        Label statistics = new Label("memoryCacheStatistics", statisticsModel);
+        statistics.setVisible(memoryCache != null);
+        add(statistics);
+    }
 }
@@ -7,9 +7,15 @@ package org.geoserver.gwc.web;
 
 import static org.geoserver.gwc.web.GWCSettingsPage.checkbox;
 
+import java.util.Map;
+
+import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.markup.html.panel.Panel;
 import org.apache.wicket.model.IModel;
+import org.apache.wicket.model.Model;
 import org.apache.wicket.model.PropertyModel;
+import org.apache.wicket.model.StringResourceModel;
+import org.geoserver.gwc.GWC;
 import org.geoserver.gwc.config.GWCConfig;
 
 public class GWCServicesPanel extends Panel {
@@ -34,6 +40,24 @@ public class GWCServicesPanel extends Panel {
         add(checkbox("enableWMSIntegration", wmsIntegrationEnabledModel,
                 "GWCSettingsPage.enableWMSIntegration.title"));
 
+        // why the tiled GetMap requests did not hit the cache, if any did not
+        Map<String, Long> misses = GWC.get().getDispatchMisses();
+        IModel<String> missesModel = new Model<String>("");
+        if (!misses.isEmpty()) {
+            StringBuilder reasons = new StringBuilder();
+            for (Map.Entry<String, Long> miss : misses.entrySet()) {
+                if (reasons.length() > 0) {
+                    reasons.append(", ");
+                }
+                reasons.append(miss.getKey()).append(": ").append(miss.getValue());
+            }
+            missesModel = new StringResourceModel("GWCSettingsPage.wmsIntegrationMisses", null,
+                    new Object[] { reasons });
+        }
+        Label missesLabel = new Label("wmsIntegrationMisses", missesModel);
+        missesLabel.setVisible(!misses.isEmpty());
+        add(missesLabel);
+
         add(checkbox("enableWMSC", wmsCEnabledModel, "GWCSettingsPage.enableWMSC.title"));
         add(checkbox("enableWMTS", wmtsEnabledModel, "GWCSettingsPage.enableWMTS.title"));
         add(checkbox("enableTMS", tmsEnabledModel, "GWCSettingsPage.enableTMS.title"));
@@ -5,10 +5,19 @@
  */
 package org.geoserver.wms;
 
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.HttpErrorCodeException;
+import org.geoserver.ows.Request;
 import org.geoserver.ows.Response;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.wms.legendgraphic.BufferedImageLegendGraphic;
-import org.geotools.filter.function.EnvFunction;
+import org.geoserver.wms.legendgraphic.CachedLegendGraphic;
+import org.geoserver.wms.legendgraphic.LegendGraphicCache;
+import org.geoserver.wms.legendgraphic.LegendGraphicCache.LegendKey;
 
 /**
  * WMS GetLegendGraphic operation default implementation.
@@ -19,8 +28,15 @@ public class GetLegendGraphic {
 
     private final WMS wms;
 
+    private final LegendGraphicCache cache;
+
     public GetLegendGraphic(final WMS wms) {
+        this(wms, null);
+    }
+
+    public GetLegendGraphic(final WMS wms, final LegendGraphicCache cache) {
         this.wms = wms;
+        this.cache = cache;
     }
 
     /**
@@ -31,6 +47,11 @@ public class GetLegendGraphic {
      * for the whole OWS operation to succeed is that there exist a {@link Response} object (in the
      * application context) that can handle the returned object.
      * </p>
+     * <p>
+     * Legends built out of catalog styles are encoded once and served from the
+     * {@link LegendGraphicCache} afterwards, answering conditional requests with a 304 when the
+     * client already has the current legend.
+     * </p>
      * 
      * @param request
      * @return an Object representing the produced legend graphic
@@ -46,8 +67,31 @@ public class GetLegendGraphic {
             throw new ServiceException("There is no support for creating legends in "
                     + outputFormat + " format", "InvalidFormat");
         }
-        Object legend = format.produceLegendGraphic(request);
-        return legend;
+
+        final Request owsRequest = Dispatcher.REQUEST.get();
+        final LegendKey key = cache == null ? null : cache.getKey(request);
+        if (key == null || owsRequest == null || owsRequest.getOperation() == null) {
+            Object legend = format.produceLegendGraphic(request);
+            return legend;
+        }
+
+        CachedLegendGraphic cached = cache.get(key);
+        if (cached == null) {
+            Object legend = format.produceLegendGraphic(request);
+            try {
+                cached = cache.put(key, legend, owsRequest.getOperation());
+            } catch (IOException e) {
+                throw new ServiceException("Failed to encode the legend graphic", e);
+            }
+            if (cached == null) {
+                // no response we know of for this legend, let the dispatcher handle it
+                return legend;
+            }
+        }
+        if (LegendGraphicCache.isNotModified(cached, owsRequest.getHttpRequest())) {
+            throw new HttpErrorCodeException(HttpServletResponse.SC_NOT_MODIFIED);
+        }
+        return cached;
     }
 
 }
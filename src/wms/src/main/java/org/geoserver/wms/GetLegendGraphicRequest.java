@@ -12,6 +12,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
+import org.geoserver.catalog.StyleInfo;
 import org.geotools.styling.Style;
 import org.opengis.feature.type.FeatureType;
 import org.opengis.feature.type.Name;
@@ -97,6 +98,12 @@ public class GetLegendGraphicRequest extends WMSRequest {
      */
     private List<Style> styles=new ArrayList<Style>();
 
+    /**
+     * The catalog styles the {@link #styles} have been taken from, with {@code null} entries for
+     * the ones coming from the SLD or SLD_BODY parameters
+     */
+    private List<StyleInfo> styleInfos = new ArrayList<StyleInfo>();
+
     /**
      * should hold FEATURETYPE parameter value, though not used by now, since GeoServer WMS still
      * does not supports nested layers and layers has only a single feature type. This should change
@@ -248,6 +255,19 @@ public class GetLegendGraphicRequest extends WMSRequest {
         this.styles.add(style);
     }
 
+    /**
+     * Returns the catalog styles matching {@link #getStyles()}, possibly empty if the request
+     * has not been parsed from a KVP request, with {@code null} entries for the styles not coming
+     * from the catalog
+     */
+    public List<StyleInfo> getStyleInfos() {
+        return styleInfos;
+    }
+
+    public void setStyleInfos(List<StyleInfo> styleInfos) {
+        this.styleInfos = styleInfos;
+    }
+
     public int getWidth() {
         return width;
     }
@@ -26,6 +26,7 @@ import org.geoserver.catalog.LayerInfo;
 import org.geoserver.catalog.WMSLayerInfo;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.map.GeneralizationCache;
 import org.geoserver.wms.map.MetatileMapOutputFormat;
 import org.geoserver.wms.map.RenderedImageMap;
 import org.geoserver.wms.map.RenderedImageMapOutputFormat;
@@ -75,6 +76,8 @@ public class GetMap {
     
     private List<GetMapCallback> callbacks;
 
+    private GeneralizationCache generalizationCache;
+
     public GetMap(final WMS wms) {
         this.wms = wms;
         this.ff = CommonFactoryFinder.getFilterFactory(GeoTools.getDefaultHints());
@@ -90,6 +93,14 @@ public class GetMap {
         this.callbacks.addAll(callbacks);
     }
 
+    /**
+     * Sets the cache of generalized layers used for small scale maps, if {@code null} the layers
+     * are always read from their sources
+     */
+    public void setGeneralizationCache(GeneralizationCache generalizationCache) {
+        this.generalizationCache = generalizationCache;
+    }
+
     /**
      * Implements the map production logic for a WMS GetMap request, delegating the encoding to the
      * appropriate output format to a {@link GetMapOutputFormat} appropriate for the required
@@ -378,13 +389,29 @@ public class GetMap {
 
                     throw new ServiceException("Internal error", exp);
                 }
-                FeatureLayer featureLayer = new FeatureLayer(source, layerStyle);
+                // thematic rule sets are turned into lookups on the classifying attribute
+                final Style indexedStyle = RuleIndexer.index(layerStyle, source.getSchema());
+                // at small scales the features are read from a generalized copy of the layer
+                if (generalizationCache != null && viewParams == null && featureVersion == null
+                        && request.getStartIndex() == null) {
+                    SimpleFeatureSource generalized = generalizationCache.getFeatureSource(
+                            mapLayerInfo.getFeature(), source, indexedStyle, mapContent);
+                    if (generalized != null) {
+                        source = generalized;
+                    }
+                }
+                FeatureLayer featureLayer = new FeatureLayer(source, indexedStyle);
                 featureLayer.setTitle(mapLayerInfo.getFeature().prefixedName());
                 featureLayer.getUserData().put("abstract", mapLayerInfo.getDescription());
                 
                 // mix the dimension related filter with the layer filter
                 Filter dimensionFilter = wms.getTimeElevationToFilter(times, elevations, mapLayerInfo.getFeature());
                 Filter filter = Filters.and(ff, layerFilter, dimensionFilter); 
+                // and the features no rule classifies are not read at all
+                Filter rulesFilter = RuleIndexer.getRulesFilter(indexedStyle);
+                if (rulesFilter != Filter.INCLUDE) {
+                    filter = Filters.and(ff, filter, rulesFilter);
+                }
 
                 final Query definitionQuery = new Query(source.getSchema().getName().getLocalPart());
                 definitionQuery.setVersion(featureVersion);
@@ -15,6 +15,7 @@ import javax.media.jai.RenderedImageList;
 
 import org.geoserver.ows.AbstractDispatcherCallback;
 import org.geoserver.ows.Request;
+import org.geoserver.wms.map.DrawingSurfacePool;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.resources.image.ImageUtilities;
 
@@ -23,6 +24,8 @@ public class RasterCleaner extends AbstractDispatcherCallback {
 
     static final ThreadLocal<List<GridCoverage2D>> coverages = new ThreadLocal<List<GridCoverage2D>>();
 
+    static final ThreadLocal<List<BufferedImage>> surfaces = new ThreadLocal<List<BufferedImage>>();
+
     /**
      * Schedules a RenderedImage for cleanup at the end of the request
      * 
@@ -59,13 +62,53 @@ public class RasterCleaner extends AbstractDispatcherCallback {
         list.add(coverage);
     }
 
+    /**
+     * Schedules a pooled drawing surface to be returned to the {@link DrawingSurfacePool} at the end
+     * of the request, to be called once the map drawn on it has been encoded
+     * 
+     * @param surface
+     */
+    public static void addDrawingSurface(BufferedImage surface) {
+        if (surface == null) {
+            return;
+        }
+
+        List<BufferedImage> list = surfaces.get();
+        if (list == null) {
+            list = new ArrayList<BufferedImage>();
+            surfaces.set(list);
+        }
+        list.add(surface);
+    }
+
     @Override
     public void finished(Request request) {
+        cleanup();
+    }
+
+    /**
+     * Disposes the images and coverages scheduled so far by the current thread. Meant for work
+     * done outside of a dispatched request, e.g. encoding on a background thread, the images
+     * scheduled during a request are disposed when the request is finished.
+     */
+    public static void cleanup() {
         disposeCoverages();
         disposeImages();
+        releaseDrawingSurfaces();
+    }
+
+    private static void releaseDrawingSurfaces() {
+        List<BufferedImage> list = surfaces.get();
+        if (list != null) {
+            surfaces.remove();
+            for (BufferedImage surface : list) {
+                DrawingSurfacePool.get().release(surface);
+            }
+            list.clear();
+        }
     }
 
-    private void disposeImages() {
+    private static void disposeImages() {
         List<RenderedImage> list = images.get();
         if (list != null) {
             images.remove();
@@ -83,7 +126,7 @@ public class RasterCleaner extends AbstractDispatcherCallback {
         }
     }
 
-    private void disposeImage(RenderedImage image) {
+    private static void disposeImage(RenderedImage image) {
         if (image instanceof PlanarImage) {
             ImageUtilities.disposePlanarImageChain((PlanarImage) image);
         } else if (image instanceof BufferedImage) {
@@ -92,7 +135,7 @@ public class RasterCleaner extends AbstractDispatcherCallback {
         } 
     }
 
-    private void disposeCoverages() {
+    private static void disposeCoverages() {
         List<GridCoverage2D> list = coverages.get();
         if (list != null) {
             coverages.remove();
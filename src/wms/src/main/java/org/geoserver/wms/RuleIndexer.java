@@ -0,0 +1,663 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.filter.visitor.DuplicatingFilterVisitor;
+import org.geotools.styling.FeatureTypeStyle;
+import org.geotools.styling.Rule;
+import org.geotools.styling.Style;
+import org.geotools.styling.visitor.DuplicatingStyleVisitor;
+import org.geotools.util.Converters;
+import org.opengis.feature.type.FeatureType;
+import org.opengis.feature.type.PropertyDescriptor;
+import org.opengis.filter.And;
+import org.opengis.filter.BinaryComparisonOperator;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory;
+import org.opengis.filter.FilterVisitor;
+import org.opengis.filter.MultiValuedFilter.MatchAction;
+import org.opengis.filter.Or;
+import org.opengis.filter.PropertyIsBetween;
+import org.opengis.filter.PropertyIsEqualTo;
+import org.opengis.filter.PropertyIsGreaterThan;
+import org.opengis.filter.PropertyIsGreaterThanOrEqualTo;
+import org.opengis.filter.PropertyIsLessThan;
+import org.opengis.filter.PropertyIsLessThanOrEqualTo;
+import org.opengis.filter.expression.Expression;
+import org.opengis.filter.expression.Literal;
+import org.opengis.filter.expression.PropertyName;
+
+/**
+ * Turns the rules of thematic styles, the ones classifying features on a single attribute by
+ * unique values or class breaks, into a lookup on that attribute, so that the renderer does not
+ * evaluate every rule filter against every feature.
+ * <p>
+ * The indexed rules have their filter replaced by a view on a classifier shared by the feature
+ * type style, which looks up the attribute value in a hash table (unique values) or in a sorted
+ * array of class bounds (ranges) once per feature, the rule filters then just check the rule is
+ * among the matches. The union of the classes is also returned by {@link #getRulesFilter(Style)}
+ * as a compact filter, to be added to the layer query so that unclassified features are not even
+ * read, as the renderer only pushes down the rule filters of styles with few rules.
+ * </p>
+ * <p>
+ * Only feature type styles with at least {@code org.geoserver.wms.ruleIndex.minRules} rules (10
+ * by default), all classifying on the same attribute with comparisons against literals, are
+ * indexed. The indexing can be disabled by setting {@code org.geoserver.wms.ruleIndex.disable}
+ * to {@code true}.
+ * </p>
+ */
+public class RuleIndexer {
+
+    static final boolean DISABLED = Boolean.getBoolean("org.geoserver.wms.ruleIndex.disable");
+
+    static final int MIN_RULES = Integer.getInteger("org.geoserver.wms.ruleIndex.minRules", 10);
+
+    static final FilterFactory FF = CommonFactoryFinder.getFilterFactory(null);
+
+    /**
+     * Returns a copy of the style with the rules of the thematic feature type styles indexed, or
+     * the style itself if there is nothing to index
+     */
+    public static Style index(Style style, FeatureType schema) {
+        if (DISABLED || style == null || schema == null) {
+            return style;
+        }
+        List<FeatureTypeStyle> styles = style.featureTypeStyles();
+        Classifier[] classifiers = new Classifier[styles.size()];
+        boolean indexable = false;
+        for (int i = 0; i < styles.size(); i++) {
+            classifiers[i] = Classifier.build(styles.get(i), schema, MIN_RULES);
+            indexable |= classifiers[i] != null;
+        }
+        if (!indexable) {
+            return style;
+        }
+
+        DuplicatingStyleVisitor duplicator = new DuplicatingStyleVisitor();
+        style.accept(duplicator);
+        Style copy = (Style) duplicator.getCopy();
+        List<FeatureTypeStyle> copies = copy.featureTypeStyles();
+        for (int i = 0; i < copies.size(); i++) {
+            Classifier classifier = classifiers[i];
+            if (classifier != null) {
+                int ruleIndex = 0;
+                for (Rule rule : copies.get(i).rules()) {
+                    if (!rule.isElseFilter()) {
+                        rule.setFilter(new IndexedRuleFilter(classifier, ruleIndex++,
+                                rule.getFilter()));
+                    }
+                }
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the union of the rule filters of a style returned by
+     * {@link #index(Style, FeatureType)}, that is, a filter matching only the features some rule
+     * would paint, or {@link Filter#INCLUDE} if not all the rules have been indexed, or some are
+     * else rules
+     */
+    public static Filter getRulesFilter(Style style) {
+        if (style == null || style.featureTypeStyles().isEmpty()) {
+            return Filter.INCLUDE;
+        }
+        List<Filter> filters = new ArrayList<Filter>();
+        for (FeatureTypeStyle fts : style.featureTypeStyles()) {
+            Classifier classifier = null;
+            for (Rule rule : fts.rules()) {
+                if (rule.isElseFilter() || !(rule.getFilter() instanceof IndexedRuleFilter)) {
+                    return Filter.INCLUDE;
+                }
+                classifier = ((IndexedRuleFilter) rule.getFilter()).classifier;
+            }
+            if (classifier == null) {
+                return Filter.INCLUDE;
+            }
+            Filter union = classifier.getUnion();
+            if (union == Filter.INCLUDE) {
+                return Filter.INCLUDE;
+            }
+            if (!filters.contains(union)) {
+                filters.add(union);
+            }
+        }
+        return filters.size() == 1 ? filters.get(0) : FF.or(filters);
+    }
+
+    /**
+     * A set of values of the classifying attribute, either single values or ranges
+     */
+    static final class Range {
+        final Object low;
+
+        final boolean lowInclusive;
+
+        final Object high;
+
+        final boolean highInclusive;
+
+        Range(Object low, boolean lowInclusive, Object high, boolean highInclusive) {
+            this.low = low;
+            this.lowInclusive = lowInclusive;
+            this.high = high;
+            this.highInclusive = highInclusive;
+        }
+
+        boolean isValue() {
+            return low != null && lowInclusive && highInclusive && low.equals(high);
+        }
+
+        boolean contains(double value) {
+            if (low != null) {
+                double l = ((Number) low).doubleValue();
+                if (value < l || (value == l && !lowInclusive)) {
+                    return false;
+                }
+            }
+            if (high != null) {
+                double h = ((Number) high).doubleValue();
+                if (value > h || (value == h && !highInclusive)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Intersects the two ranges, comparing numbers as doubles
+         */
+        Range intersect(Range other) {
+            Object l = low;
+            boolean li = lowInclusive;
+            if (other.low != null) {
+                int c = l == null ? -1 : Double.compare(((Number) l).doubleValue(),
+                        ((Number) other.low).doubleValue());
+                if (c < 0 || (c == 0 && !other.lowInclusive)) {
+                    l = other.low;
+                    li = other.lowInclusive;
+                }
+            }
+            Object h = high;
+            boolean hi = highInclusive;
+            if (other.high != null) {
+                int c = h == null ? 1 : Double.compare(((Number) h).doubleValue(),
+                        ((Number) other.high).doubleValue());
+                if (c > 0 || (c == 0 && !other.highInclusive)) {
+                    h = other.high;
+                    hi = other.highInclusive;
+                }
+            }
+            return new Range(l, li, h, hi);
+        }
+    }
+
+    /**
+     * Classifies the features on the attribute the rules of a feature type style test
+     */
+    static abstract class Classifier {
+
+        static final BitSet NONE = new BitSet();
+
+        final PropertyName property;
+
+        final Class<?> binding;
+
+        private volatile Object[] last;
+
+        Classifier(PropertyName property, Class<?> binding) {
+            this.property = property;
+            this.binding = binding;
+        }
+
+        /**
+         * Builds the classifier for the rules of the feature type style, or returns {@code null}
+         * if they are not a thematic classification
+         */
+        static Classifier build(FeatureTypeStyle fts, FeatureType schema, int minRules) {
+            if (fts.getTransformation() != null) {
+                // the rules apply to the transformation output
+                return null;
+            }
+            PropertyName[] property = new PropertyName[1];
+            List<List<Range>> classes = new ArrayList<List<Range>>();
+            for (Rule rule : fts.rules()) {
+                if (rule.isElseFilter()) {
+                    continue;
+                }
+                List<Range> ranges = new ArrayList<Range>();
+                if (rule.getFilter() == null || !collect(rule.getFilter(), property, ranges)) {
+                    return null;
+                }
+                classes.add(ranges);
+            }
+            if (classes.size() < minRules || property[0] == null) {
+                return null;
+            }
+
+            PropertyDescriptor descriptor = schema.getDescriptor(property[0].getPropertyName());
+            if (descriptor == null) {
+                return null;
+            }
+            Class<?> binding = descriptor.getType().getBinding();
+            boolean values = true;
+            for (List<Range> ranges : classes) {
+                for (Range range : ranges) {
+                    values &= range.isValue();
+                }
+            }
+            boolean numeric = Number.class.isAssignableFrom(binding);
+            if (values ? !(numeric || binding == String.class || binding == Boolean.class)
+                    : !numeric) {
+                // other types, such as dates, have no consistent equality across their classes
+                return null;
+            }
+            for (List<Range> ranges : classes) {
+                for (int i = 0; i < ranges.size(); i++) {
+                    Range range = values ? toValue(ranges.get(i), binding) : toNumeric(ranges
+                            .get(i));
+                    if (range == null) {
+                        return null;
+                    }
+                    ranges.set(i, range);
+                }
+            }
+            if (values) {
+                return new ValueClassifier(property[0], binding, classes);
+            }
+            return new RangeClassifier(property[0], binding, classes);
+        }
+
+        /**
+         * Collects the ranges of values the filter accepts, returns false if the filter is not a
+         * comparison against literals of the classifying property, or a combination of them
+         */
+        static boolean collect(Filter filter, PropertyName[] property, List<Range> ranges) {
+            if (filter instanceof Or) {
+                for (Filter child : ((Or) filter).getChildren()) {
+                    if (!collect(child, property, ranges)) {
+                        return false;
+                    }
+                }
+                return true;
+            } else if (filter instanceof And) {
+                Range range = new Range(null, false, null, false);
+                for (Filter child : ((And) filter).getChildren()) {
+                    List<Range> childRanges = new ArrayList<Range>();
+                    if (!collect(child, property, childRanges) || childRanges.size() != 1) {
+                        return false;
+                    }
+                    Range childRange = toNumeric(childRanges.get(0));
+                    if (childRange == null) {
+                        return false;
+                    }
+                    range = range.intersect(childRange);
+                }
+                ranges.add(range);
+                return true;
+            } else if (filter instanceof PropertyIsBetween) {
+                PropertyIsBetween between = (PropertyIsBetween) filter;
+                if (!isProperty(between.getExpression(), property)
+                        || !(between.getLowerBoundary() instanceof Literal)
+                        || !(between.getUpperBoundary() instanceof Literal)
+                        || between.getMatchAction() != MatchAction.ANY) {
+                    return false;
+                }
+                Object low = ((Literal) between.getLowerBoundary()).getValue();
+                Object high = ((Literal) between.getUpperBoundary()).getValue();
+                if (low == null || high == null) {
+                    return false;
+                }
+                ranges.add(new Range(low, true, high, true));
+                return true;
+            } else if (filter instanceof BinaryComparisonOperator) {
+                BinaryComparisonOperator comparison = (BinaryComparisonOperator) filter;
+                if (comparison.getMatchAction() != MatchAction.ANY) {
+                    return false;
+                }
+                Expression e1 = comparison.getExpression1();
+                Expression e2 = comparison.getExpression2();
+                boolean reversed = false;
+                if (e1 instanceof Literal && e2 instanceof PropertyName) {
+                    Expression tmp = e1;
+                    e1 = e2;
+                    e2 = tmp;
+                    reversed = true;
+                }
+                if (!isProperty(e1, property) || !(e2 instanceof Literal)) {
+                    return false;
+                }
+                Object value = ((Literal) e2).getValue();
+                if (value == null) {
+                    return false;
+                }
+                if (filter instanceof PropertyIsEqualTo) {
+                    if (!comparison.isMatchingCase() && value instanceof String) {
+                        return false;
+                    }
+                    ranges.add(new Range(value, true, value, true));
+                } else if (filter instanceof PropertyIsLessThan) {
+                    ranges.add(reversed ? new Range(value, false, null, false) : new Range(null,
+                            false, value, false));
+                } else if (filter instanceof PropertyIsLessThanOrEqualTo) {
+                    ranges.add(reversed ? new Range(value, true, null, false) : new Range(null,
+                            false, value, true));
+                } else if (filter instanceof PropertyIsGreaterThan) {
+                    ranges.add(reversed ? new Range(null, false, value, false) : new Range(value,
+                            false, null, false));
+                } else if (filter instanceof PropertyIsGreaterThanOrEqualTo) {
+                    ranges.add(reversed ? new Range(null, false, value, true) : new Range(value,
+                            true, null, false));
+                } else {
+                    return false;
+                }
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Returns the range with its bounds converted to doubles, or null if not numeric
+         */
+        static Range toNumeric(Range range) {
+            Object low = range.low == null ? null : normalize(range.low, Double.class);
+            Object high = range.high == null ? null : normalize(range.high, Double.class);
+            if ((range.low != null && low == null) || (range.high != null && high == null)) {
+                return null;
+            }
+            return new Range(low, range.lowInclusive, high, range.highInclusive);
+        }
+
+        /**
+         * Converts the value to the attribute type, numbers are compared as doubles to match
+         * the filter comparison semantics whatever their actual class
+         */
+        static Object normalize(Object value, Class<?> binding) {
+            if (Number.class.isAssignableFrom(binding)) {
+                Double number = value instanceof Number ? ((Number) value).doubleValue()
+                        : Converters.convert(value, Double.class);
+                if (number == null || number.isNaN()) {
+                    return null;
+                }
+                // -0.0 and 0.0 are different keys otherwise
+                return number == 0 ? 0d : number;
+            }
+            return binding.isInstance(value) ? value : Converters.convert(value, binding);
+        }
+
+        private static boolean isProperty(Expression expression, PropertyName[] property) {
+            if (!(expression instanceof PropertyName)) {
+                return false;
+            }
+            PropertyName name = (PropertyName) expression;
+            if (property[0] == null) {
+                property[0] = name;
+                return true;
+            }
+            return property[0].getPropertyName().equals(name.getPropertyName());
+        }
+
+        /**
+         * Returns the single value range converted to the attribute type, or null if not
+         * possible
+         */
+        private static Range toValue(Range range, Class<?> binding) {
+            Object value = normalize(range.low, binding);
+            return value == null ? null : new Range(value, true, value, true);
+        }
+
+        /**
+         * Returns the indexes of the rules matching the feature. The matches of the last value
+         * are kept, as the renderer evaluates all the rules against a feature in a row.
+         */
+        BitSet classify(Object feature) {
+            Object value = property.evaluate(feature);
+            if (value == null) {
+                return NONE;
+            }
+            Object[] last = this.last;
+            if (last != null && (last[0] == value || last[0].equals(value))) {
+                return (BitSet) last[1];
+            }
+            Object normalized = normalize(value, binding);
+            BitSet matches = normalized == null ? NONE : lookup(normalized);
+            this.last = new Object[] { value, matches };
+            return matches;
+        }
+
+        abstract BitSet lookup(Object value);
+
+        /**
+         * Returns a filter matching the values any of the classes contains
+         */
+        abstract Filter getUnion();
+    }
+
+    /**
+     * Hash lookup of unique values classifications
+     */
+    static final class ValueClassifier extends Classifier {
+
+        final Map<Object, BitSet> classes = new HashMap<Object, BitSet>();
+
+        ValueClassifier(PropertyName property, Class<?> binding, List<List<Range>> rules) {
+            super(property, binding);
+            for (int i = 0; i < rules.size(); i++) {
+                for (Range range : rules.get(i)) {
+                    BitSet matches = classes.get(range.low);
+                    if (matches == null) {
+                        matches = new BitSet();
+                        classes.put(range.low, matches);
+                    }
+                    matches.set(i);
+                }
+            }
+        }
+
+        @Override
+        BitSet lookup(Object value) {
+            BitSet matches = classes.get(value);
+            return matches == null ? NONE : matches;
+        }
+
+        @Override
+        Filter getUnion() {
+            List<Filter> filters = new ArrayList<Filter>();
+            for (Object value : classes.keySet()) {
+                filters.add(FF.equals(property, FF.literal(value)));
+            }
+            return filters.size() == 1 ? filters.get(0) : FF.or(filters);
+        }
+    }
+
+    /**
+     * Binary search lookup of class breaks classifications. The class bounds split the number
+     * line in elementary intervals, the bounds themselves and the open intervals between them,
+     * each mapped to the rules containing it.
+     */
+    static final class RangeClassifier extends Classifier {
+
+        final double[] bounds;
+
+        /**
+         * Matches at each bound
+         */
+        final BitSet[] atBound;
+
+        /**
+         * Matches below the first bound, between the consecutive bounds, above the last bound
+         */
+        final BitSet[] between;
+
+        RangeClassifier(PropertyName property, Class<?> binding, List<List<Range>> rules) {
+            super(property, binding);
+            TreeSet<Double> values = new TreeSet<Double>();
+            for (List<Range> ranges : rules) {
+                for (Range range : ranges) {
+                    if (range.low != null) {
+                        values.add(((Number) range.low).doubleValue());
+                    }
+                    if (range.high != null) {
+                        values.add(((Number) range.high).doubleValue());
+                    }
+                }
+            }
+            bounds = new double[values.size()];
+            int k = 0;
+            for (Double value : values) {
+                bounds[k++] = value;
+            }
+
+            atBound = new BitSet[bounds.length];
+            between = new BitSet[bounds.length + 1];
+            for (int i = 0; i < bounds.length; i++) {
+                atBound[i] = matches(rules, bounds[i]);
+            }
+            for (int i = 0; i <= bounds.length; i++) {
+                double sample;
+                if (bounds.length == 0) {
+                    sample = 0;
+                } else if (i == 0) {
+                    sample = Math.nextAfter(bounds[0], Double.NEGATIVE_INFINITY);
+                } else if (i == bounds.length) {
+                    sample = Math.nextAfter(bounds[i - 1], Double.POSITIVE_INFINITY);
+                } else {
+                    sample = bounds[i - 1] + (bounds[i] - bounds[i - 1]) / 2;
+                    if (sample == bounds[i - 1] || sample == bounds[i]) {
+                        // consecutive doubles, nothing in between
+                        between[i] = NONE;
+                        continue;
+                    }
+                }
+                between[i] = matches(rules, sample);
+            }
+        }
+
+        private static BitSet matches(List<List<Range>> rules, double value) {
+            BitSet matches = new BitSet();
+            for (int i = 0; i < rules.size(); i++) {
+                for (Range range : rules.get(i)) {
+                    if (range.contains(value)) {
+                        matches.set(i);
+                        break;
+                    }
+                }
+            }
+            return matches.isEmpty() ? NONE : matches;
+        }
+
+        @Override
+        BitSet lookup(Object value) {
+            double v = ((Number) value).doubleValue();
+            int idx = Arrays.binarySearch(bounds, v);
+            return idx >= 0 ? atBound[idx] : between[-idx - 1];
+        }
+
+        @Override
+        Filter getUnion() {
+            // walk the elementary intervals in order, merging the runs of classified ones
+            List<Filter> filters = new ArrayList<Filter>();
+            int start = -1;
+            for (int step = 0; step <= 2 * bounds.length + 1; step++) {
+                boolean classified = step <= 2 * bounds.length && !getStep(step).isEmpty();
+                if (classified && start < 0) {
+                    start = step;
+                } else if (!classified && start >= 0) {
+                    filters.add(getRunFilter(start, step - 1));
+                    start = -1;
+                }
+            }
+            if (filters.size() == 1 && filters.get(0) == Filter.INCLUDE) {
+                return Filter.INCLUDE;
+            }
+            if (filters.isEmpty()) {
+                return Filter.EXCLUDE;
+            }
+            return filters.size() == 1 ? filters.get(0) : FF.or(filters);
+        }
+
+        /**
+         * Even steps are the open intervals, odd ones the bounds
+         */
+        private BitSet getStep(int step) {
+            return step % 2 == 0 ? between[step / 2] : atBound[step / 2];
+        }
+
+        private Filter getRunFilter(int first, int last) {
+            if (first == last && first % 2 == 1) {
+                return FF.equals(property, FF.literal(bounds[first / 2]));
+            }
+            Filter lower = null;
+            if (first > 0) {
+                Literal bound = FF.literal(bounds[(first - 1) / 2]);
+                lower = first % 2 == 1 ? FF.greaterOrEqual(property, bound) : FF.greater(
+                        property, bound);
+            }
+            Filter upper = null;
+            if (last < 2 * bounds.length) {
+                Literal bound = FF.literal(bounds[last / 2]);
+                upper = last % 2 == 1 ? FF.lessOrEqual(property, bound) : FF.less(property,
+                        bound);
+            }
+            if (lower == null && upper == null) {
+                return Filter.INCLUDE;
+            } else if (lower == null) {
+                return upper;
+            } else if (upper == null) {
+                return lower;
+            }
+            return FF.and(lower, upper);
+        }
+    }
+
+    /**
+     * The filter of an indexed rule, checking the rule is among the classifier matches. Filter
+     * visitors are handed the original filter, so that the attributes used by the rule are still
+     * found and the filter still encoded, but the copies made by the renderer keep the index.
+     */
+    static final class IndexedRuleFilter implements Filter {
+
+        final Classifier classifier;
+
+        final int ruleIndex;
+
+        final Filter original;
+
+        IndexedRuleFilter(Classifier classifier, int ruleIndex, Filter original) {
+            this.classifier = classifier;
+            this.ruleIndex = ruleIndex;
+            this.original = original;
+        }
+
+        @Override
+        public boolean evaluate(Object object) {
+            return classifier.classify(object).get(ruleIndex);
+        }
+
+        @Override
+        public Object accept(FilterVisitor visitor, Object extraData) {
+            if (visitor.getClass() == DuplicatingFilterVisitor.class) {
+                // the filter is immutable, the copy can be the filter itself
+                return this;
+            }
+            return original.accept(visitor, extraData);
+        }
+
+        @Override
+        public String toString() {
+            return original.toString();
+        }
+    }
+}
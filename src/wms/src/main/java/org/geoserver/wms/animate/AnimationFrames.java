@@ -0,0 +1,141 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.animate;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.media.jai.PlanarImage;
+import javax.media.jai.RenderedImageList;
+
+import org.geoserver.platform.ServiceException;
+import org.geotools.resources.image.ImageUtilities;
+
+/**
+ * A {@link RenderedImageList} rendering the animation frames on demand, so that they can be
+ * encoded as they are produced.
+ * <p>
+ * Frames are meant to be accessed in order, as the animated GIF encoder does: accessing a frame
+ * schedules the rendering of the following ones on the animator executor, keeping at most
+ * {@code maxInFlight} frames rendering or waiting to be encoded, and releases the frames before
+ * it. The first frame is kept as it is the primary image of the list, providing its size and
+ * color model.
+ * </p>
+ * <p>
+ * Once {@link #dispose() disposed} the pending frames are cancelled and the frames not yet
+ * accessed are reported as {@code null}, so that the request cleanup does not trigger their
+ * rendering.
+ * </p>
+ */
+class AnimationFrames extends RenderedImageList {
+
+    private final List<FrameLoader> loaders;
+
+    private final ExecutorService executor;
+
+    private final int maxInFlight;
+
+    private final Future<RenderedImage>[] frames;
+
+    /**
+     * Number of frames submitted for rendering so far
+     */
+    private int submitted;
+
+    /**
+     * Index of the last frame accessed
+     */
+    private int current = -1;
+
+    private boolean disposed;
+
+    @SuppressWarnings("unchecked")
+    AnimationFrames(List<FrameLoader> loaders, ExecutorService executor, int maxInFlight) {
+        this.loaders = loaders;
+        this.executor = executor;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.frames = new Future[loaders.size()];
+        this.imageCollection = new AbstractList<RenderedImage>() {
+
+            @Override
+            public RenderedImage get(int index) {
+                return getFrame(index);
+            }
+
+            @Override
+            public int size() {
+                return frames.length;
+            }
+        };
+    }
+
+    synchronized RenderedImage getFrame(int index) {
+        if (index < 0 || index >= frames.length) {
+            throw new IndexOutOfBoundsException("Frame " + index + " out of " + frames.length);
+        }
+        if (disposed || (index < current && index > 0)) {
+            // already encoded and released, or never going to be
+            return null;
+        }
+
+        // keep the pipeline full
+        while (submitted < frames.length && submitted <= index + maxInFlight - 1) {
+            frames[submitted] = executor.submit(loaders.get(submitted));
+            submitted++;
+        }
+        // let go of the frames before this one, but the primary image
+        for (int i = Math.max(1, current); i < index; i++) {
+            frames[i] = null;
+        }
+        current = Math.max(current, index);
+
+        try {
+            return frames[index].get();
+        } catch (InterruptedException e) {
+            dispose();
+            Thread.currentThread().interrupt();
+            throw new ServiceException("Interrupted while rendering animation frame " + index, e);
+        } catch (ExecutionException e) {
+            dispose();
+            throw new ServiceException("Failed to render animation frame " + index,
+                    e.getCause());
+        }
+    }
+
+    /**
+     * Cancels the frames still rendering and disposes the ones rendered but not encoded
+     */
+    synchronized void dispose() {
+        if (disposed) {
+            return;
+        }
+        disposed = true;
+        for (int i = Math.max(1, current + 1); i < submitted; i++) {
+            Future<RenderedImage> frame = frames[i];
+            if (frame != null && !frame.cancel(true)) {
+                try {
+                    disposeImage(frame.get());
+                } catch (Exception e) {
+                    // the frame failed, nothing to dispose
+                }
+            }
+            frames[i] = null;
+        }
+    }
+
+    private static void disposeImage(RenderedImage image) {
+        if (image instanceof PlanarImage) {
+            ImageUtilities.disposePlanarImageChain((PlanarImage) image);
+        } else if (image instanceof BufferedImage) {
+            ((BufferedImage) image).flush();
+        }
+    }
+}
@@ -5,13 +5,14 @@
  */
 package org.geoserver.wms.animate;
 
-import java.awt.image.RenderedImage;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 
+import javax.media.jai.RenderedImageList;
+
 import org.geoserver.catalog.LayerGroupInfo;
 import org.geoserver.catalog.LayerInfo;
 import org.geoserver.wms.DefaultWebMapService;
@@ -122,17 +123,26 @@ public class Animator {
             request.getRawKvp().put("HEIGHT", String.valueOf(request.getHeight()));
         }
 
+        // run a single getmap to get the right mime type and map context
+        WebMap wmsResponse = wms.getMap(request);
+
         // initializing the catalog visitor. This takes care of producing single
-        // RenderedImages.
+        // RenderedImages, which are rendered in parallel while the animation is encoded
         FrameCatalogVisitor visitor = new FrameCatalogVisitor();
         frameCatalog.getFrames(visitor);
-        RenderedImage imageList = visitor.produce(frameCatalog.getWmsConfiguration());
-
-        // run a single getmap to get the right mime type and map context
-        WebMap wmsResponse = wms.getMap(request);
+        final RenderedImageList imageList = visitor.produce(frameCatalog.getWmsConfiguration());
 
         return new RenderedImageMap(((RenderedImageMap) wmsResponse).getMapContext(), imageList,
-                wmsResponse.getMimeType());
+                wmsResponse.getMimeType()) {
+            @Override
+            protected void disposeInternal() {
+                // stop rendering the frames that did not make it to the output, if any
+                if (imageList instanceof AnimationFrames) {
+                    ((AnimationFrames) imageList).dispose();
+                }
+                super.disposeInternal();
+            }
+        };
     }
 
     /**
@@ -11,13 +11,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
 
 import javax.media.jai.RenderedImageList;
 
@@ -25,6 +21,7 @@ import org.apache.commons.beanutils.BeanUtils;
 import org.geoserver.ows.Dispatcher;
 import org.geoserver.ows.util.CaseInsensitiveMap;
 import org.geoserver.ows.util.KvpUtils;
+import org.geoserver.platform.ServiceException;
 import org.geoserver.wms.DefaultWebMapService;
 import org.geoserver.wms.GetMapRequest;
 import org.geoserver.wms.MapProducerCapabilities;
@@ -36,25 +33,33 @@ import org.geoserver.wms.map.RenderedImageMapResponse;
 
 /**
  * The Frame Visitor contains the logic to produce frame images.<br/>
- * The "visit" method initializes the runnables and the animatorExecutor service, while
- * the "produce" method runs the tasks and generated the frames images.
+ * The "visit" method collects the frame loaders, while the "produce" method renders the first
+ * frame and returns a list rendering the others on the animatorExecutor service as the
+ * animation gets encoded.
  * @author Alessio Fabiani, GeoSolutions S.A.S., alessio.fabiani@geo-solutions.it
  * @author Andrea Aime, GeoSolutions S.A.S., andrea.aime@geo-solutions.it
  */
 public class FrameCatalogVisitor {
 
+    /**
+     * Maximum number of frames of a single animation rendering, or rendered and waiting to be
+     * encoded, at any given time. Matches the core size of the animator executor service.
+     */
+    static final int MAX_FRAMES_IN_FLIGHT = 4;
+
     /**
      * total number of available frames for this visitor
      */
     int framesNumber;
 
     /**
-     * the list of runnables to be executed
+     * the frame loaders, in animation order
      */
-    List<Future<RenderedImage>> tasks;
+    List<FrameLoader> tasks;
 
     /**
-     * Adds a new visitor to the runnables list and initializes the animatorExecutor service is not yet initialied. 
+     * Adds a new frame loader to the list, the frame is not rendered until {@link #produce(WMS)}
+     * is called.
      * @param request
      * @param wms
      * @param wmsConfiguration
@@ -63,65 +68,55 @@ public class FrameCatalogVisitor {
      */
     public void visit(final GetMapRequest request, WebMapService wms, WMS wmsConfiguration, String aparam, String avalue) {
         if (this.tasks == null) {
-            this.tasks = new LinkedList<Future<RenderedImage>>();
+            this.tasks = new ArrayList<FrameLoader>();
         }
 
-        FrameLoader loader = new FrameLoader(request, wms, wmsConfiguration, aparam, avalue);
-        
-        
-        final FutureTask<RenderedImage> task = new FutureTask<RenderedImage>(loader);
-        this.tasks.add(task);
+        this.tasks.add(new FrameLoader(request, wms, wmsConfiguration, aparam, avalue));
         this.framesNumber++;
-
-        // run the loading in this thread
-        wmsConfiguration.getAnimatorExecutorService().execute(task);
     }
 
     /**
-     * Invokes the Executor service and produces the frames images.
+     * Produces the list of frames images. The first frame is rendered immediately to check the
+     * size of the animation against the max rendering size, the others are rendered in parallel,
+     * a few at a time, as the list is traversed.
      * @param wmsConfiguration
      * @return
      * @throws IOException
      */
     public RenderedImageList produce(WMS wmsConfiguration) throws IOException {
-        List<RenderedImage> images = new ArrayList<RenderedImage>();
-
-        long gifAnimatedSize = 0;
-
-        for (Future<RenderedImage> future : tasks) {
-            RenderedImage image = null;
-            try {
-                image = future.get();
-            } catch (InterruptedException e) {
-                dispose();
-                throw new IOException(e);
-            } catch (ExecutionException e) {
-                dispose();
-                throw new IOException(e);
-            }
+        if (tasks == null || tasks.isEmpty()) {
+            dispose();
+            throw new IOException("Empty list of frames.");
+        }
 
-            if (image == null) {
-                continue;
-            }
+        AnimationFrames frames = new AnimationFrames(tasks,
+                wmsConfiguration.getAnimatorExecutorService(), MAX_FRAMES_IN_FLIGHT);
+        RenderedImage first;
+        try {
+            first = frames.getFrame(0);
+        } catch (ServiceException e) {
+            dispose();
+            throw new IOException(e.getCause() != null ? e.getCause() : e);
+        }
+        if (first == null) {
+            frames.dispose();
+            dispose();
+            throw new IOException("Empty list of frames.");
+        }
 
-            // collect the images
-            gifAnimatedSize += getImageSizeInBytes(image);
-            if (wmsConfiguration.getMaxRenderingSize() != null
-                    && gifAnimatedSize >= wmsConfiguration.getMaxRenderingSize()) {
+        final Long maxRenderingSize = wmsConfiguration.getMaxRenderingSize();
+        if (maxRenderingSize != null) {
+            // all frames share the same size, use the first one to estimate the animation one
+            long frameSize = getImageSizeInBytes(first);
+            if (frameSize * tasks.size() >= maxRenderingSize) {
+                frames.dispose();
                 dispose();
                 throw new IOException("Max rendering size exceed!");
             }
-
-            images.add(image);
-        }
-
-        if (images == null || images.size() == 0) {
-            dispose();
-            throw new IOException("Empty list of frames.");
         }
 
         dispose();
-        return new RenderedImageList(images);
+        return frames;
     }
 
     private long getImageSizeInBytes(RenderedImage image) {
@@ -134,14 +129,10 @@ public class FrameCatalogVisitor {
     }
 
     /**
-     * Suddenly stops the Executor service and clear instantiated visitors.
+     * Clears the frame loaders, the ones already handed to the frames list are left alone.
      */
     private void dispose() {
         this.framesNumber = 0;
-
-        if (this.tasks != null)
-            this.tasks.clear();
-        
         this.tasks = null;
     }
 
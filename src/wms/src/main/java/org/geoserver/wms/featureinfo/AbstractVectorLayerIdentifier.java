@@ -33,12 +33,26 @@ abstract class AbstractVectorLayerIdentifier implements LayerIdentifier {
         List<Rule> result = new ArrayList<Rule>();
 
         for (FeatureTypeStyle fts : style.featureTypeStyles()) {
-            for (Rule r : fts.rules()) {
-                if ((r.getMinScaleDenominator() - TOLERANCE <= scaleDenominator)
-                        && (r.getMaxScaleDenominator() + TOLERANCE > scaleDenominator) 
-                        && r.getSymbolizers() != null && r.getSymbolizers().length > 0) {
-                    result.add(r);
-                }
+            result.addAll(getActiveRules(fts, scaleDenominator));
+        }
+        return result;
+    }
+
+    /**
+     * Selects the rules of a feature type style active at this zoom level
+     * 
+     * @param fts
+     * @param scaleDenominator
+     * @return
+     */
+    protected List<Rule> getActiveRules(FeatureTypeStyle fts, double scaleDenominator) {
+        List<Rule> result = new ArrayList<Rule>();
+
+        for (Rule r : fts.rules()) {
+            if ((r.getMinScaleDenominator() - TOLERANCE <= scaleDenominator)
+                    && (r.getMaxScaleDenominator() + TOLERANCE > scaleDenominator) 
+                    && r.getSymbolizers() != null && r.getSymbolizers().length > 0) {
+                result.add(r);
             }
         }
         return result;
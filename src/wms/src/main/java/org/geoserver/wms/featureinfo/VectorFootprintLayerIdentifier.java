@@ -0,0 +1,562 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.featureinfo;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.wms.FeatureInfoRequestParameters;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+import org.geoserver.wms.RenderingVariables;
+import org.geoserver.wms.WMS;
+import org.geoserver.wms.WMSMapContent;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.filter.visitor.SimplifyingFilterVisitor;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.FeatureLayer;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.operation.transform.AffineTransform2D;
+import org.geotools.referencing.operation.transform.ConcatenatedTransform;
+import org.geotools.renderer.lite.MetaBufferEstimator;
+import org.geotools.renderer.lite.RendererUtilities;
+import org.geotools.styling.AnchorPoint;
+import org.geotools.styling.Displacement;
+import org.geotools.styling.FeatureTypeStyle;
+import org.geotools.styling.Fill;
+import org.geotools.styling.Graphic;
+import org.geotools.styling.LineSymbolizer;
+import org.geotools.styling.Mark;
+import org.geotools.styling.PointSymbolizer;
+import org.geotools.styling.PolygonSymbolizer;
+import org.geotools.styling.Rule;
+import org.geotools.styling.Stroke;
+import org.geotools.styling.Style;
+import org.geotools.styling.StyleAttributeExtractor;
+import org.geotools.styling.Symbolizer;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.expression.Expression;
+import org.opengis.filter.expression.Literal;
+import org.opengis.filter.expression.PropertyName;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+import org.opengis.style.GraphicalSymbol;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.Polygonal;
+
+/**
+ * Footprint based layer identifier: instead of painting the area around the clicked point it
+ * queries the features close to it, using the spatial index of the store, and computes which ones
+ * would paint the clicked pixels out of their geometry and the size of the symbolizers applying
+ * to them.
+ * <p>
+ * Only styles whose footprint can be told analytically are handled, that is, solid fills and
+ * strokes, and circle or square marks, with no offsets, displacements or rendering
+ * transformations, and with symbol sizes that can be bounded in advance. The other styles fall
+ * back on the rendering based identification.
+ * </p>
+ * <p>
+ * The identifier can be disabled by setting the
+ * {@code org.geoserver.wms.featureinfo.footprint.enabled} system property to {@code false}
+ * </p>
+ */
+public class VectorFootprintLayerIdentifier extends VectorRenderingLayerIdentifier {
+
+    static final Logger LOGGER = Logging.getLogger(VectorFootprintLayerIdentifier.class);
+
+    private static final String FOOTPRINT_FEATUREINFO_ENABLED_KEY =
+            "org.geoserver.wms.featureinfo.footprint.enabled";
+
+    protected static boolean FOOTPRINT_FEATUREINFO_ENABLED = Boolean.valueOf(System.getProperty(
+            FOOTPRINT_FEATUREINFO_ENABLED_KEY, "true"));
+
+    private static final FilterFactory2 FF = CommonFactoryFinder.getFilterFactory2();
+
+    private static final GeometryFactory GF = new GeometryFactory();
+
+    /**
+     * Default size of marks, in pixels, as painted by the renderer
+     */
+    static final int DEFAULT_MARK_SIZE = 16;
+
+    public VectorFootprintLayerIdentifier(WMS wms, VectorBasicLayerIdentifier fallback) {
+        super(wms, fallback);
+    }
+
+    @Override
+    public boolean canHandle(MapLayerInfo layer) {
+        return FOOTPRINT_FEATUREINFO_ENABLED && super.canHandle(layer);
+    }
+
+    @Override
+    public List<FeatureCollection> identify(FeatureInfoRequestParameters params, int maxFeatures)
+            throws Exception {
+        final FeatureSource<?, ?> source = params.getLayer().getFeatureSource(true);
+        if (!(source.getSchema() instanceof SimpleFeatureType)) {
+            return super.identify(params, maxFeatures);
+        }
+        final SimpleFeatureType schema = (SimpleFeatureType) source.getSchema();
+
+        // grab the active rules, by feature type style, checking the footprint of their
+        // symbolizers can be computed
+        final Style style = preprocessStyle(params.getStyle(), params.getLayer().getFeature()
+                .getFeatureType());
+        final List<List<Rule>> ftsRules = new ArrayList<List<Rule>>();
+        final List<Rule> rules = new ArrayList<Rule>();
+        for (FeatureTypeStyle fts : style.featureTypeStyles()) {
+            List<Rule> active = getActiveRules(fts, params.getScaleDenominator());
+            if (active.isEmpty()) {
+                continue;
+            }
+            if (fts.getTransformation() != null) {
+                return super.identify(params, maxFeatures);
+            }
+            rescaleRules(active, params);
+            ftsRules.add(active);
+            rules.addAll(active);
+        }
+        if (rules.isEmpty()) {
+            return null;
+        }
+        for (Rule rule : rules) {
+            for (Symbolizer symbolizer : rule.symbolizers()) {
+                if (!isFootprintComputable(symbolizer, schema)) {
+                    LOGGER.log(Level.FINER, "Symbolizer footprint cannot be computed, "
+                            + "falling back on rendering based identification");
+                    return super.identify(params, maxFeatures);
+                }
+            }
+        }
+        final Integer radius = getFootprintRadius(params, rules);
+        if (radius == null) {
+            return super.identify(params, maxFeatures);
+        }
+
+        // setup the transformation from the data to the screen space
+        final GetMapRequest getMap = params.getGetMapRequest();
+        final CoordinateReferenceSystem nativeCRS = schema.getCoordinateReferenceSystem();
+        final CoordinateReferenceSystem mapCRS = getMap.getCrs();
+        final AffineTransform worldToScreen = RendererUtilities.worldToScreenTransform(
+                params.getRequestedBounds(),
+                new Rectangle(params.getWidth(), params.getHeight()));
+        final AffineTransform screenToWorld = worldToScreen.createInverse();
+        final boolean reproject = nativeCRS != null && mapCRS != null
+                && !CRS.equalsIgnoreMetadata(nativeCRS, mapCRS);
+        final MathTransform toScreen;
+        ReferencedEnvelope queryEnvelope;
+        final int userBuffer = params.getBuffer() > 0 ? params.getBuffer() : MIN_BUFFER_SIZE;
+        final int buffer = Math.min(userBuffer, wms.getMaxBuffer());
+        try {
+            Envelope queryRasterSpace = new Envelope(params.getX() - buffer - radius,
+                    params.getX() + buffer + radius + 1, params.getY() - buffer - radius,
+                    params.getY() + buffer + radius + 1);
+            queryEnvelope = new ReferencedEnvelope(JTS.transform(queryRasterSpace,
+                    new AffineTransform2D(screenToWorld)), mapCRS);
+            if (reproject) {
+                if (nativeCRS.getCoordinateSystem().getDimension() != mapCRS
+                        .getCoordinateSystem().getDimension()) {
+                    return super.identify(params, maxFeatures);
+                }
+                queryEnvelope = queryEnvelope.transform(nativeCRS, true);
+                toScreen = ConcatenatedTransform.create(
+                        CRS.findMathTransform(nativeCRS, mapCRS, true), new AffineTransform2D(
+                                worldToScreen));
+            } else {
+                toScreen = new AffineTransform2D(worldToScreen);
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Failed to setup the footprint based identification, "
+                    + "falling back on rendering based identification", e);
+            return super.identify(params, maxFeatures);
+        }
+
+        // the centers of the pixels the features have to paint to be a hit
+        final Geometry hitArea = GF.toGeometry(new Envelope(params.getX() - buffer + 0.5,
+                params.getX() + buffer + 0.5, params.getY() - buffer + 0.5, params.getY()
+                        + buffer + 0.5));
+
+        // setup the env variables just like in the original GetMap
+        WMSMapContent mc = new WMSMapContent(getMap);
+        try {
+            mc.getViewport().setBounds(new ReferencedEnvelope(getMap.getBbox(), mapCRS));
+            mc.setMapWidth(getMap.getWidth());
+            mc.setMapHeight(getMap.getHeight());
+            RenderingVariables.setupEnvironmentVariables(mc);
+
+            // run the indexed query, the layer one plus the area around the clicked point and
+            // the rule filters
+            FeatureLayer layer = getLayer(params, style);
+            Query query = new Query(layer.getQuery());
+            Filter filter = FF.bbox(FF.property(""), queryEnvelope);
+            if (query.getFilter() != null && query.getFilter() != Filter.INCLUDE) {
+                filter = FF.and(query.getFilter(), filter);
+            }
+            filter = FF.and(filter, getRulesFilter(rules));
+            query.setFilter((Filter) filter.accept(new SimplifyingFilterVisitor(), null));
+            String[] propertyNames = params.getPropertyNames();
+            if (propertyNames != null && propertyNames.length > 0) {
+                query.setPropertyNames(getStyleProperties(rules, schema));
+            }
+
+            List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+            SimpleFeatureBuilder retypeBuilder = null;
+            FeatureIterator<?> it = layer.getFeatureSource().getFeatures(query).features();
+            try {
+                while (it.hasNext() && features.size() < maxFeatures) {
+                    SimpleFeature feature = (SimpleFeature) it.next();
+                    Geometry geometry = (Geometry) feature.getDefaultGeometry();
+                    if (geometry == null || geometry.isEmpty()) {
+                        continue;
+                    }
+                    try {
+                        geometry = JTS.transform(geometry, toScreen);
+                    } catch (TransformException e) {
+                        LOGGER.log(Level.FINE, "Failed to transform " + feature.getID()
+                                + " to screen space, skipping it", e);
+                        continue;
+                    }
+                    if (!isHit(feature, geometry, ftsRules, hitArea)) {
+                        continue;
+                    }
+                    if (propertyNames != null && propertyNames.length > 0) {
+                        if (retypeBuilder == null) {
+                            retypeBuilder = new SimpleFeatureBuilder(SimpleFeatureTypeBuilder
+                                    .retype(feature.getFeatureType(), propertyNames));
+                        }
+                        feature = SimpleFeatureBuilder.retype(feature, retypeBuilder);
+                    }
+                    features.add(feature);
+                }
+            } finally {
+                it.close();
+            }
+
+            return aggregateByFeatureType(features);
+        } finally {
+            mc.dispose();
+        }
+    }
+
+    /**
+     * Returns the maximum distance, in pixels, from the geometry the symbolizers can paint at, or
+     * {@code null} if it cannot be known in advance
+     */
+    private Integer getFootprintRadius(FeatureInfoRequestParameters params, List<Rule> rules) {
+        MetaBufferEstimator estimator = new MetaBufferEstimator();
+        for (Rule rule : rules) {
+            rule.accept(estimator);
+        }
+        if (estimator.isEstimateAccurate()) {
+            return Math.max(estimator.getBuffer() / 2, MIN_BUFFER_SIZE);
+        }
+
+        // dynamic sizes, was the size manually configured?
+        final LayerInfo layerInfo = params.getLayer().getLayerInfo();
+        if (layerInfo != null) {
+            Integer layerBuffer = layerInfo.getMetadata().get(LayerInfo.BUFFER, Integer.class);
+            if (layerBuffer != null && layerBuffer > 0) {
+                return (int) Math.round(layerBuffer / 2.0);
+            }
+        }
+        return null;
+    }
+
+    private Filter getRulesFilter(List<Rule> rules) {
+        List<Filter> filters = new ArrayList<Filter>();
+        for (Rule rule : rules) {
+            if (rule.getFilter() == null || rule.isElseFilter()) {
+                return Filter.INCLUDE;
+            }
+            filters.add(rule.getFilter());
+        }
+        return filters.size() == 1 ? filters.get(0) : FF.or(filters);
+    }
+
+    /**
+     * The attributes the style needs, the feature info ones get added by the feature source
+     */
+    private String[] getStyleProperties(List<Rule> rules, SimpleFeatureType schema) {
+        StyleAttributeExtractor extractor = new StyleAttributeExtractor();
+        for (Rule rule : rules) {
+            rule.accept(extractor);
+        }
+        Set<String> names = new LinkedHashSet<String>();
+        names.add(schema.getGeometryDescriptor().getLocalName());
+        names.addAll(Arrays.asList(extractor.getAttributeNames()));
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Checks if the feature paints any of the pixels of the hit area, in screen space
+     */
+    boolean isHit(SimpleFeature feature, Geometry geometry, List<List<Rule>> ftsRules,
+            Geometry hitArea) {
+        for (List<Rule> rules : ftsRules) {
+            boolean matched = false;
+            for (Rule rule : rules) {
+                if (!rule.isElseFilter() && (rule.getFilter() == null
+                        || rule.getFilter().evaluate(feature))) {
+                    matched = true;
+                    if (isHit(feature, geometry, rule, hitArea)) {
+                        return true;
+                    }
+                }
+            }
+            if (!matched) {
+                for (Rule rule : rules) {
+                    if (rule.isElseFilter() && isHit(feature, geometry, rule, hitArea)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isHit(SimpleFeature feature, Geometry geometry, Rule rule, Geometry hitArea) {
+        for (Symbolizer symbolizer : rule.symbolizers()) {
+            if (symbolizer instanceof PolygonSymbolizer) {
+                PolygonSymbolizer ps = (PolygonSymbolizer) symbolizer;
+                Fill fill = ps.getFill();
+                if (fill != null && isPainting(fill.getOpacity()) && geometry.intersects(hitArea)) {
+                    return true;
+                }
+                if (isHit(feature, geometry.getBoundary(), ps.getStroke(), hitArea)) {
+                    return true;
+                }
+            } else if (symbolizer instanceof LineSymbolizer) {
+                Geometry line = geometry instanceof Polygonal ? geometry.getBoundary() : geometry;
+                if (isHit(feature, line, ((LineSymbolizer) symbolizer).getStroke(), hitArea)) {
+                    return true;
+                }
+            } else if (symbolizer instanceof PointSymbolizer) {
+                if (isHit(feature, geometry, ((PointSymbolizer) symbolizer).getGraphic(),
+                        hitArea.getEnvelopeInternal())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isHit(SimpleFeature feature, Geometry line, Stroke stroke, Geometry hitArea) {
+        if (stroke == null || !isPainting(stroke.getOpacity())) {
+            return false;
+        }
+        DynamicBufferEstimator estimator = new DynamicBufferEstimator();
+        estimator.setFeature(feature);
+        stroke.accept(estimator);
+        double width = Math.max(1, estimator.getBuffer());
+        return line.distance(hitArea) <= width / 2;
+    }
+
+    private boolean isHit(SimpleFeature feature, Geometry points, Graphic graphic,
+            Envelope hitArea) {
+        if (graphic == null || !isPainting(graphic.getOpacity())) {
+            return false;
+        }
+        DynamicBufferEstimator estimator = new DynamicBufferEstimator();
+        estimator.setFeature(feature);
+        graphic.accept(estimator);
+        int size = estimator.getBuffer() > 0 ? estimator.getBuffer() : DEFAULT_MARK_SIZE;
+
+        // marks are painted with their stroke centered on the mark outline
+        boolean circle = !graphic.graphicalSymbols().isEmpty();
+        double strokeWidth = 0;
+        for (GraphicalSymbol symbol : graphic.graphicalSymbols()) {
+            Mark mark = (Mark) symbol;
+            circle &= "circle".equalsIgnoreCase(mark.getWellKnownName().evaluate(null,
+                    String.class));
+            if (mark.getStroke() != null && mark.getStroke().getWidth() != null) {
+                Double width = mark.getStroke().getWidth().evaluate(feature, Double.class);
+                if (width != null) {
+                    strokeWidth = Math.max(strokeWidth, width);
+                }
+            }
+        }
+        double radius = size / 2.0 + strokeWidth / 2;
+
+        for (Coordinate c : points.getCoordinates()) {
+            double dx = Math.max(0, Math.max(hitArea.getMinX() - c.x, c.x - hitArea.getMaxX()));
+            double dy = Math.max(0, Math.max(hitArea.getMinY() - c.y, c.y - hitArea.getMaxY()));
+            if (circle ? dx * dx + dy * dy <= radius * radius : Math.max(dx, dy) <= radius) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the footprint of the symbolizer can be computed out of the geometry and
+     * the symbolizer size alone
+     */
+    static boolean isFootprintComputable(Symbolizer symbolizer, SimpleFeatureType schema) {
+        if (!isDefaultGeometry(symbolizer.getGeometry(), schema)) {
+            return false;
+        }
+        Class<?> binding = schema.getGeometryDescriptor().getType().getBinding();
+        if (symbolizer instanceof PolygonSymbolizer) {
+            PolygonSymbolizer ps = (PolygonSymbolizer) symbolizer;
+            return (Polygon.class.equals(binding) || MultiPolygon.class.equals(binding))
+                    && isZero(ps.getDisplacement()) && isZero(ps.getPerpendicularOffset())
+                    && isFootprintComputable(ps.getFill()) && isFootprintComputable(ps.getStroke());
+        } else if (symbolizer instanceof LineSymbolizer) {
+            LineSymbolizer ls = (LineSymbolizer) symbolizer;
+            return (LineString.class.equals(binding) || MultiLineString.class.equals(binding)
+                    || Polygon.class.equals(binding) || MultiPolygon.class.equals(binding))
+                    && isZero(ls.getPerpendicularOffset())
+                    && isFootprintComputable(ls.getStroke());
+        } else if (symbolizer instanceof PointSymbolizer) {
+            return (Point.class.equals(binding) || MultiPoint.class.equals(binding))
+                    && isFootprintComputable(((PointSymbolizer) symbolizer).getGraphic());
+        }
+        return false;
+    }
+
+    private static boolean isFootprintComputable(Fill fill) {
+        return fill == null || (fill.getGraphicFill() == null && isLiteral(fill.getOpacity()));
+    }
+
+    private static boolean isFootprintComputable(Stroke stroke) {
+        if (stroke == null) {
+            return true;
+        }
+        float[] dashArray = stroke.getDashArray();
+        return (dashArray == null || dashArray.length == 0) && stroke.getGraphicFill() == null
+                && stroke.getGraphicStroke() == null && isLiteral(stroke.getOpacity());
+    }
+
+    private static boolean isFootprintComputable(Graphic graphic) {
+        if (graphic == null || !isLiteral(graphic.getOpacity())
+                || !isZero(graphic.getDisplacement()) || !isCentered(graphic.getAnchorPoint())) {
+            return false;
+        }
+        boolean circles = true;
+        for (GraphicalSymbol symbol : graphic.graphicalSymbols()) {
+            if (!(symbol instanceof Mark)) {
+                return false;
+            }
+            Expression name = ((Mark) symbol).getWellKnownName();
+            if (!(name instanceof Literal)) {
+                return false;
+            }
+            String wellKnownName = name.evaluate(null, String.class);
+            if ("circle".equalsIgnoreCase(wellKnownName)) {
+                continue;
+            } else if ("square".equalsIgnoreCase(wellKnownName)) {
+                circles = false;
+            } else {
+                return false;
+            }
+        }
+        // rotated squares have a different footprint
+        return circles || graphic.getRotation() == null || isZero(graphic.getRotation());
+    }
+
+    private static boolean isDefaultGeometry(Expression geometry, SimpleFeatureType schema) {
+        GeometryDescriptor gd = schema.getGeometryDescriptor();
+        if (gd == null) {
+            return false;
+        }
+        if (geometry == null) {
+            return true;
+        }
+        if (!(geometry instanceof PropertyName)) {
+            return false;
+        }
+        String name = ((PropertyName) geometry).getPropertyName();
+        return "".equals(name) || gd.getLocalName().equals(name);
+    }
+
+    private static boolean isLiteral(Expression expression) {
+        return expression == null || expression instanceof Literal;
+    }
+
+    /**
+     * Returns false if the opacity is known to be zero, and the symbolizer would not paint
+     */
+    private static boolean isPainting(Expression opacity) {
+        if (opacity == null) {
+            return true;
+        }
+        Double value = opacity.evaluate(null, Double.class);
+        return value == null || value > 0;
+    }
+
+    private static boolean isZero(Expression expression) {
+        if (expression == null) {
+            return true;
+        }
+        if (!(expression instanceof Literal)) {
+            return false;
+        }
+        Double value = expression.evaluate(null, Double.class);
+        return value == null || value == 0;
+    }
+
+    private static boolean isZero(Displacement displacement) {
+        return displacement == null
+                || (isZero(displacement.getDisplacementX()) && isZero(displacement
+                        .getDisplacementY()));
+    }
+
+    private static boolean isCentered(AnchorPoint anchor) {
+        if (anchor == null) {
+            return true;
+        }
+        return isHalf(anchor.getAnchorPointX()) && isHalf(anchor.getAnchorPointY());
+    }
+
+    private static boolean isHalf(Expression expression) {
+        if (expression == null) {
+            return true;
+        }
+        if (!(expression instanceof Literal)) {
+            return false;
+        }
+        Double value = expression.evaluate(null, Double.class);
+        return value == null || value == 0.5;
+    }
+
+    /**
+     * Returns a priority higher than the rendering based identifier, which is used as a fallback
+     */
+    @Override
+    public int getPriority() {
+        return super.getPriority() - 1;
+    }
+}
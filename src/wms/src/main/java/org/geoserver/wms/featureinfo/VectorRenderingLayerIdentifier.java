@@ -96,7 +96,7 @@ public class VectorRenderingLayerIdentifier extends AbstractVectorLayerIdentifie
     protected static final int MIN_BUFFER_SIZE = Integer.getInteger("org.geoserver.wms.featureinfo.render.minBuffer", 3);
     protected static boolean RENDERING_FEATUREINFO_ENABLED;
     
-    private WMS wms;
+    protected WMS wms;
     private VectorBasicLayerIdentifier fallback;
     private static final FilterFactory2 FF = CommonFactoryFinder.getFilterFactory2();
     
@@ -236,7 +236,7 @@ public class VectorRenderingLayerIdentifier extends AbstractVectorLayerIdentifie
         }
     }
 
-    private void rescaleRules(List<Rule> rules, FeatureInfoRequestParameters params) {
+    protected void rescaleRules(List<Rule> rules, FeatureInfoRequestParameters params) {
         Map<Object, Object> rendererParams = new HashMap<Object, Object>();
         Integer requestedDpi = ((Integer) params.getGetMapRequest().getFormatOptions().get("dpi"));
         if(requestedDpi != null) {
@@ -265,7 +265,7 @@ public class VectorRenderingLayerIdentifier extends AbstractVectorLayerIdentifie
         }
     }
 
-    private Style preprocessStyle(Style style, FeatureType schema) {
+    protected Style preprocessStyle(Style style, FeatureType schema) {
         FeatureInfoStylePreprocessor preprocessor = new FeatureInfoStylePreprocessor(schema);
         style.accept(preprocessor);
         Style result = (Style) preprocessor.getCopy();
@@ -273,7 +273,7 @@ public class VectorRenderingLayerIdentifier extends AbstractVectorLayerIdentifie
         return result;
     }
 
-    private List<FeatureCollection> aggregateByFeatureType(List<? extends Feature> features) {
+    protected List<FeatureCollection> aggregateByFeatureType(List<? extends Feature> features) {
         // group by feature type (rendering transformations might cause us to get more
         // than one type from the original layer)
         Map<FeatureType, List<Feature>> map = new HashMap<FeatureType, List<Feature>>();
@@ -302,7 +302,7 @@ public class VectorRenderingLayerIdentifier extends AbstractVectorLayerIdentifie
         return result;
     }
 
-    private FeatureLayer getLayer(FeatureInfoRequestParameters params, Style style) throws IOException {
+    protected FeatureLayer getLayer(FeatureInfoRequestParameters params, Style style) throws IOException {
         // build the full filter
         List<Object> times = params.getTimes();
         List<Object> elevations = params.getElevations();
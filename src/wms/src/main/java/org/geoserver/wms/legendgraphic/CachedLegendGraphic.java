@@ -0,0 +1,53 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.legendgraphic;
+
+/**
+ * An already encoded legend graphic, as stored in the {@link LegendGraphicCache} and written back
+ * as is by {@link CachedLegendGraphicResponse}
+ */
+public class CachedLegendGraphic {
+
+    private final byte[] contents;
+
+    private final String mimeType;
+
+    private final String etag;
+
+    private final long lastModified;
+
+    public CachedLegendGraphic(byte[] contents, String mimeType, String etag, long lastModified) {
+        this.contents = contents;
+        this.mimeType = mimeType;
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * The encoded legend
+     */
+    public byte[] getContents() {
+        return contents;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * The hash of the encoded legend, without quotes
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * The most recent modification time of the styles the legend has been built from
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+}
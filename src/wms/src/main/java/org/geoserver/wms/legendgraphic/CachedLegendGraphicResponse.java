@@ -0,0 +1,68 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.legendgraphic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.geoserver.ows.Response;
+import org.geoserver.ows.util.OwsUtils;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.GetLegendGraphicRequest;
+import org.springframework.util.Assert;
+
+/**
+ * OWS {@link Response} writing back a {@link CachedLegendGraphic} along with its conditional
+ * request headers
+ */
+public class CachedLegendGraphicResponse extends Response {
+
+    public CachedLegendGraphicResponse() {
+        super(CachedLegendGraphic.class);
+    }
+
+    @Override
+    public boolean canHandle(Operation operation) {
+        return OwsUtils.parameter(operation.getParameters(), GetLegendGraphicRequest.class) != null;
+    }
+
+    @Override
+    public String getMimeType(Object value, Operation operation) throws ServiceException {
+        Assert.isInstanceOf(CachedLegendGraphic.class, value);
+        return ((CachedLegendGraphic) value).getMimeType();
+    }
+
+    @Override
+    public String[][] getHeaders(Object value, Operation operation) throws ServiceException {
+        Assert.isInstanceOf(CachedLegendGraphic.class, value);
+        CachedLegendGraphic legend = (CachedLegendGraphic) value;
+        return new String[][] { { "ETag", "\"" + legend.getEtag() + "\"" },
+                { "Last-Modified", formatDate(legend.getLastModified()) } };
+    }
+
+    @Override
+    public void write(Object value, OutputStream output, Operation operation) throws IOException,
+            ServiceException {
+        Assert.isInstanceOf(CachedLegendGraphic.class, value);
+        output.write(((CachedLegendGraphic) value).getContents());
+        output.flush();
+    }
+
+    /**
+     * Formats the time as a RFC 1123 HTTP date
+     */
+    static String formatDate(long time) {
+        DateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+}
@@ -320,6 +320,8 @@ public class GetLegendGraphicKvpReader extends KvpRequestReader {
         }
 
         List<Style> sldStyles = new ArrayList<Style>();
+        // the catalog styles, if any, for the legend cache
+        List<StyleInfo> styleInfos = new ArrayList<StyleInfo>();
 
         if (sldUrl != null) {
             if (LOGGER.isLoggable(Level.FINER)) {
@@ -347,9 +349,12 @@ public class GetLegendGraphicKvpReader extends KvpRequestReader {
                     List<LayerInfo> groupLayers = layerGroupInfo.layers();
                     if (pos < groupLayers.size()) {
                         sldStyles.add(getStyleFromLayer(groupLayers.get(pos)));
+                        styleInfos.add(groupLayers.get(pos).getDefaultStyle());
                     }
                 } else {
-                    sldStyles.add(wms.getStyleByName(styleName));
+                    StyleInfo styleInfo = wms.getCatalog().getStyleByName(styleName);
+                    sldStyles.add(styleInfo == null ? null : styleInfo.getStyle());
+                    styleInfos.add(styleInfo);
                 }
                 pos++;
             }
@@ -357,6 +362,7 @@ public class GetLegendGraphicKvpReader extends KvpRequestReader {
         } else {
             if(infoObj instanceof LayerInfo) {
                 sldStyles.add(getStyleFromLayer((LayerInfo)infoObj));
+                styleInfos.add(((LayerInfo) infoObj).getDefaultStyle());
             } else if(infoObj instanceof LayerGroupInfo) {
                 LayerGroupInfo layerGroupInfo=(LayerGroupInfo)infoObj;
                 List<LayerInfo> groupLayers = layerGroupInfo.layers();
@@ -364,15 +370,18 @@ public class GetLegendGraphicKvpReader extends KvpRequestReader {
                 for (int count = 0; count < groupLayers.size(); count++) {
                     if (count < groupStyles.size() && groupStyles.get(count) != null) {
                         sldStyles.add(groupStyles.get(count).getStyle());
+                        styleInfos.add(groupStyles.get(count));
                     } else {
                         LayerInfo layerInfo = groupLayers.get(count);
                         sldStyles.add(getStyleFromLayer(layerInfo));
+                        styleInfos.add(layerInfo.getDefaultStyle());
                     }
                 }
             }
         }
 
         req.setStyles(sldStyles);
+        req.setStyleInfos(styleInfos);
 
         String rule = (String) rawKvp.get("RULE");
         
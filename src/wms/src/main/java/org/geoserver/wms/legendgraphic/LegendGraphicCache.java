@@ -0,0 +1,403 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.legendgraphic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.GeoServerDataDirectory;
+import org.geoserver.config.impl.GeoServerLifecycleHandler;
+import org.geoserver.ows.Response;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.resource.Resource;
+import org.geoserver.wms.GetLegendGraphicRequest;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.type.FeatureType;
+
+/**
+ * Caches the encoded GetLegendGraphic responses for the legends built out of catalog styles, so
+ * that map viewers asking for the legends of their layers on every page load don't have them
+ * rendered and encoded each time.
+ * <p>
+ * Legends are keyed by the request parameters (layers, rules, size, scale, format, transparency,
+ * LEGEND_OPTIONS, ENV and language) along with the id and modification stamp of each style. The
+ * stamp is the last modification time of the style SLD file, or the time the style has been last
+ * changed in the catalog, whichever is newer: catalog changes to a style evict its legends. Legends
+ * built from the SLD and SLD_BODY parameters are not cached.
+ * </p>
+ * <p>
+ * The cache is bounded by the total size of the encoded legends, controlled by the
+ * {@code org.geoserver.wms.legendCache.maxSize} system property (in bytes, 16MB by default), and
+ * can be disabled by setting {@code org.geoserver.wms.legendCache.disable} to {@code true}
+ * </p>
+ */
+public class LegendGraphicCache implements CatalogListener, GeoServerLifecycleHandler {
+
+    private static final Logger LOGGER = Logging.getLogger(LegendGraphicCache.class);
+
+    static final boolean DISABLED = Boolean.getBoolean("org.geoserver.wms.legendCache.disable");
+
+    static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The key of a cached legend, along with the ids of the styles it depends on and their most
+     * recent modification stamp
+     */
+    public static final class LegendKey {
+        final String key;
+
+        final List<String> styleIds;
+
+        final long lastModified;
+
+        LegendKey(String key, List<String> styleIds, long lastModified) {
+            this.key = key;
+            this.styleIds = styleIds;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof LegendKey && key.equals(((LegendKey) obj).key);
+        }
+
+        @Override
+        public String toString() {
+            return key;
+        }
+    }
+
+    private final Catalog catalog;
+
+    private final GeoServerDataDirectory dataDirectory;
+
+    private final long maxSize;
+
+    /**
+     * Style modification stamps, by style id
+     */
+    private final ConcurrentHashMap<String, Long> stamps = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * The cached legends in access order, guarded by the cache lock
+     */
+    private final LinkedHashMap<LegendKey, CachedLegendGraphic> legends =
+            new LinkedHashMap<LegendKey, CachedLegendGraphic>(16, 0.75f, true);
+
+    private long size;
+
+    private volatile long startup = System.currentTimeMillis();
+
+    public LegendGraphicCache(Catalog catalog, GeoServerDataDirectory dataDirectory) {
+        this(catalog, dataDirectory, Long.getLong("org.geoserver.wms.legendCache.maxSize",
+                DEFAULT_MAX_SIZE));
+    }
+
+    LegendGraphicCache(Catalog catalog, GeoServerDataDirectory dataDirectory, long maxSize) {
+        this.catalog = catalog;
+        this.dataDirectory = dataDirectory;
+        this.maxSize = maxSize;
+        catalog.addListener(this);
+    }
+
+    /**
+     * Returns the cache key of the legend requested, or {@code null} if the legend cannot be
+     * cached (the cache is disabled, or some style does not come from the catalog)
+     */
+    @SuppressWarnings("rawtypes")
+    public LegendKey getKey(GetLegendGraphicRequest request) {
+        List<StyleInfo> styleInfos = request.getStyleInfos();
+        if (DISABLED || styleInfos == null || styleInfos.isEmpty()
+                || styleInfos.size() != request.getStyles().size()) {
+            return null;
+        }
+        List<FeatureType> layers = request.getLayers();
+        List<String> rules = request.getRules();
+        List<String> styleIds = new ArrayList<String>(styleInfos.size());
+        long lastModified = 0;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < styleInfos.size(); i++) {
+            StyleInfo style = styleInfos.get(i);
+            if (style == null || style.getId() == null) {
+                return null;
+            }
+            long stamp = getStamp(style);
+            lastModified = Math.max(lastModified, stamp);
+            styleIds.add(style.getId());
+
+            FeatureType layer = layers != null && i < layers.size() ? layers.get(i) : null;
+            if (layer != null) {
+                sb.append(layer.getName()).append('/').append(request.getTitle(layer.getName()));
+            }
+            sb.append('/').append(style.getId()).append('@').append(stamp).append('/');
+            if (rules != null && i < rules.size()) {
+                sb.append(rules.get(i));
+            }
+            sb.append(',');
+        }
+        sb.append(request.getFormat()).append(',').append(request.getWidth()).append('x');
+        sb.append(request.getHeight()).append(',').append(request.getScale()).append(',');
+        sb.append(request.isTransparent()).append(',').append(request.getLocale());
+        sb.append(',').append(request.getFeatureType()).append(',');
+        sb.append(sorted(request.getLegendOptions())).append(',');
+        Map env = request.getEnv();
+        if ((env == null || env.isEmpty()) && request.getRawKvp() != null) {
+            // not parsed into the request, the raw value works as well
+            sb.append(request.getRawKvp().get("ENV"));
+        } else {
+            sb.append(sorted(env));
+        }
+        return new LegendKey(sb.toString(), styleIds, lastModified);
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private Map sorted(Map map) {
+        if (map == null || map.isEmpty()) {
+            return map;
+        }
+        TreeMap sorted = new TreeMap(String.CASE_INSENSITIVE_ORDER);
+        for (Object o : map.entrySet()) {
+            Map.Entry entry = (Map.Entry) o;
+            sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+        }
+        return sorted;
+    }
+
+    /**
+     * Returns the legend cached under the key, or {@code null} if not found
+     */
+    public synchronized CachedLegendGraphic get(LegendKey key) {
+        return legends.get(key);
+    }
+
+    /**
+     * Encodes the legend with the {@link Response} that would have written it for the operation,
+     * and caches it under the key
+     *
+     * @return the encoded legend, or {@code null} if no response can handle the legend
+     */
+    public CachedLegendGraphic put(LegendKey key, Object legend, Operation operation)
+            throws IOException {
+        Response response = getResponse(legend, operation);
+        if (response == null) {
+            return null;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        response.write(legend, bos, operation);
+        byte[] contents = bos.toByteArray();
+        CachedLegendGraphic cached = new CachedLegendGraphic(contents, response.getMimeType(
+                legend, operation), getEtag(contents), key.lastModified);
+        put(key, cached);
+        return cached;
+    }
+
+    synchronized void put(LegendKey key, CachedLegendGraphic legend) {
+        if (legend.getContents().length > maxSize) {
+            return;
+        }
+        CachedLegendGraphic previous = legends.put(key, legend);
+        if (previous != null) {
+            size -= previous.getContents().length;
+        }
+        size += legend.getContents().length;
+        Iterator<CachedLegendGraphic> it = legends.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            size -= it.next().getContents().length;
+            it.remove();
+        }
+    }
+
+    private Response getResponse(Object legend, Operation operation) {
+        for (Response response : GeoServerExtensions.extensions(Response.class)) {
+            if (!(response instanceof CachedLegendGraphicResponse)
+                    && response.getBinding().isInstance(legend) && response.canHandle(operation)) {
+                return response;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns {@code true} if the client already has the legend, according to the
+     * {@code If-None-Match} and {@code If-Modified-Since} headers of the request
+     */
+    public static boolean isNotModified(CachedLegendGraphic legend, HttpServletRequest request) {
+        if (request == null) {
+            return false;
+        }
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            // the etag takes precedence over the modification time
+            return ifNoneMatch.contains(legend.getEtag()) || ifNoneMatch.trim().equals("*");
+        }
+        try {
+            long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            // the HTTP header has second precision
+            return ifModifiedSince >= 0
+                    && ifModifiedSince / 1000 >= legend.getLastModified() / 1000;
+        } catch (IllegalArgumentException e) {
+            if (LOGGER.isLoggable(Level.FINER)) {
+                LOGGER.finer("Can't parse client's If-Modified-Since header: '"
+                        + request.getHeader("If-Modified-Since") + "'");
+            }
+            return false;
+        }
+    }
+
+    static String getEtag(byte[] contents) {
+        try {
+            byte[] hash = MessageDigest.getInstance("MD5").digest(contents);
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the modification stamp of the style
+     */
+    long getStamp(StyleInfo style) {
+        Long stamp = stamps.get(style.getId());
+        if (stamp == null) {
+            stamp = getLastModified(style);
+            Long previous = stamps.putIfAbsent(style.getId(), stamp);
+            if (previous != null) {
+                stamp = previous;
+            }
+        }
+        return stamp;
+    }
+
+    private long getLastModified(StyleInfo style) {
+        if (dataDirectory != null && style.getFilename() != null) {
+            Resource resource = dataDirectory.style(style);
+            if (resource.getType() == Resource.Type.RESOURCE) {
+                return Math.max(resource.lastmodified(), 0);
+            }
+        }
+        // in memory style, or no data directory, the best we know is when we started
+        return startup;
+    }
+
+    /**
+     * Drops the legends built out of the style, and bumps its modification stamp
+     */
+    void invalidate(StyleInfo style) {
+        String id = style.getId();
+        if (id == null) {
+            return;
+        }
+        stamps.put(id, Math.max(System.currentTimeMillis(), getLastModified(style)));
+        synchronized (this) {
+            for (Iterator<Map.Entry<LegendKey, CachedLegendGraphic>> it = legends.entrySet()
+                    .iterator(); it.hasNext();) {
+                Map.Entry<LegendKey, CachedLegendGraphic> entry = it.next();
+                if (entry.getKey().styleIds.contains(id)) {
+                    size -= entry.getValue().getContents().length;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all the cached legends and style stamps
+     */
+    public void clear() {
+        synchronized (this) {
+            legends.clear();
+            size = 0;
+        }
+        stamps.clear();
+        startup = System.currentTimeMillis();
+    }
+
+    synchronized int size() {
+        return legends.size();
+    }
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+
+    }
+
+    @Override
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        if (event.getSource() instanceof StyleInfo) {
+            invalidate((StyleInfo) event.getSource());
+        }
+    }
+
+    @Override
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+
+    }
+
+    @Override
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        if (event.getSource() instanceof StyleInfo) {
+            invalidate((StyleInfo) event.getSource());
+        }
+    }
+
+    @Override
+    public void reloaded() {
+        clear();
+    }
+
+    @Override
+    public void onReset() {
+        clear();
+    }
+
+    @Override
+    public void onDispose() {
+        catalog.removeListener(this);
+        clear();
+    }
+
+    @Override
+    public void beforeReload() {
+
+    }
+
+    @Override
+    public void onReload() {
+        clear();
+    }
+}
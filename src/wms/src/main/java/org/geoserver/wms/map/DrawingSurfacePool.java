@@ -0,0 +1,241 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geoserver.wms.RasterCleaner;
+
+/**
+ * A pool of the {@link BufferedImage} drawing surfaces used by
+ * {@link RenderedImageMapOutputFormat}, to avoid allocating (and garbage collecting) a new multi
+ * megabyte image for each GetMap request.
+ * <p>
+ * Surfaces are pooled by size, transparency and palette, and cleared when checked out. A surface
+ * is returned to the pool only once the map drawn on it has been encoded, see
+ * {@link RasterCleaner#addDrawingSurface(BufferedImage)}, surfaces that are never returned are
+ * simply garbage collected. The memory held by the idle surfaces is bounded by the WMS maximum
+ * request memory, or {@link #DEFAULT_MAX_MEMORY} if the latter is not set.
+ * </p>
+ * <p>
+ * The pool can be disabled by setting the {@code org.geoserver.wms.drawingSurfacePool.disable}
+ * system property to {@code true}
+ * </p>
+ */
+public class DrawingSurfacePool {
+
+    static final boolean DISABLED = Boolean
+            .getBoolean("org.geoserver.wms.drawingSurfacePool.disable");
+
+    /**
+     * Pool size, in bytes, used when the WMS maximum request memory is not set
+     */
+    static final long DEFAULT_MAX_MEMORY = 64 * 1024 * 1024;
+
+    private static final DrawingSurfacePool INSTANCE = new DrawingSurfacePool();
+
+    /**
+     * Identifies a kind of drawing surface, the palette is compared by identity as the surfaces are
+     * bound to the palette instance they have been created with
+     */
+    static final class Key {
+        final int width;
+
+        final int height;
+
+        final IndexColorModel palette;
+
+        final boolean transparent;
+
+        Key(int width, int height, IndexColorModel palette, boolean transparent) {
+            this.width = width;
+            this.height = height;
+            this.palette = palette;
+            // the transparency flag is meaningless for paletted images
+            this.transparent = palette == null && transparent;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return width == other.width && height == other.height && palette == other.palette
+                    && transparent == other.transparent;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 31 * width + height;
+            result = 31 * result + System.identityHashCode(palette);
+            return 31 * result + (transparent ? 1 : 0);
+        }
+
+        long getMemoryUse() {
+            return ImageUtils.getDrawingSurfaceMemoryUse(width, height, palette, transparent);
+        }
+    }
+
+    private final ConcurrentMap<Key, Queue<BufferedImage>> idle =
+            new ConcurrentHashMap<Key, Queue<BufferedImage>>();
+
+    /**
+     * The surfaces handed out and not yet returned. Weak, surfaces that are not returned just go
+     * away
+     */
+    private final Map<BufferedImage, Key> checkedOut = Collections
+            .synchronizedMap(new WeakHashMap<BufferedImage, Key>());
+
+    private final AtomicLong idleMemory = new AtomicLong();
+
+    private volatile long maxMemory = DEFAULT_MAX_MEMORY;
+
+    public static DrawingSurfacePool get() {
+        return INSTANCE;
+    }
+
+    public static boolean isEnabled() {
+        return !DISABLED;
+    }
+
+    /**
+     * Returns a cleared drawing surface, as {@link ImageUtils#createImage} would create it
+     *
+     * @param maxRequestMemory the WMS maximum request memory, in KB, bounding the pool size, or 0
+     *        if not set
+     */
+    public BufferedImage checkout(int width, int height, IndexColorModel palette,
+            boolean transparent, long maxRequestMemory) {
+        this.maxMemory = maxRequestMemory > 0 ? maxRequestMemory * 1024 : DEFAULT_MAX_MEMORY;
+
+        Key key = new Key(width, height, palette, transparent);
+        BufferedImage surface = null;
+        Queue<BufferedImage> surfaces = idle.get(key);
+        if (surfaces != null) {
+            surface = surfaces.poll();
+        }
+        if (surface != null) {
+            idleMemory.addAndGet(-key.getMemoryUse());
+            clear(surface);
+        } else {
+            surface = ImageUtils.createImage(width, height, palette, transparent);
+        }
+        checkedOut.put(surface, key);
+        return surface;
+    }
+
+    /**
+     * Returns whether the image is a drawing surface handed out by this pool and not yet returned
+     */
+    public boolean isCheckedOut(BufferedImage image) {
+        return checkedOut.containsKey(image);
+    }
+
+    /**
+     * Returns a surface to the pool, to be called only once nothing is going to read the surface
+     * anymore. Images not handed out by the pool are ignored.
+     */
+    public void release(BufferedImage surface) {
+        Key key = checkedOut.remove(surface);
+        if (key == null) {
+            return;
+        }
+        long memory = key.getMemoryUse();
+        if (!reserve(memory)) {
+            return;
+        }
+        Queue<BufferedImage> surfaces = idle.get(key);
+        if (surfaces == null) {
+            surfaces = new ConcurrentLinkedQueue<BufferedImage>();
+            Queue<BufferedImage> existing = idle.putIfAbsent(key, surfaces);
+            if (existing != null) {
+                surfaces = existing;
+            }
+        }
+        surfaces.offer(surface);
+    }
+
+    /**
+     * Reserves room for an idle surface, evicting other idle surfaces if needed
+     */
+    private boolean reserve(long memory) {
+        if (memory > maxMemory) {
+            return false;
+        }
+        while (true) {
+            long current = idleMemory.get();
+            if (current + memory <= maxMemory) {
+                if (idleMemory.compareAndSet(current, current + memory)) {
+                    return true;
+                }
+            } else if (!evict()) {
+                return false;
+            }
+        }
+    }
+
+    private boolean evict() {
+        for (Iterator<Map.Entry<Key, Queue<BufferedImage>>> it = idle.entrySet().iterator(); it
+                .hasNext();) {
+            Map.Entry<Key, Queue<BufferedImage>> entry = it.next();
+            if (entry.getValue().poll() != null) {
+                idleMemory.addAndGet(-entry.getKey().getMemoryUse());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops all the idle surfaces
+     */
+    public void clear() {
+        while (evict()) {
+            // keep on evicting
+        }
+    }
+
+    long getIdleMemory() {
+        return idleMemory.get();
+    }
+
+    /**
+     * Zeroes out the surface contents, that is, fully transparent or black, or the first palette
+     * entry, depending on the image type
+     */
+    static void clear(BufferedImage surface) {
+        DataBuffer buffer = surface.getRaster().getDataBuffer();
+        for (int bank = 0; bank < buffer.getNumBanks(); bank++) {
+            if (buffer instanceof DataBufferByte) {
+                Arrays.fill(((DataBufferByte) buffer).getData(bank), (byte) 0);
+            } else if (buffer instanceof DataBufferUShort) {
+                Arrays.fill(((DataBufferUShort) buffer).getData(bank), (short) 0);
+            } else if (buffer instanceof DataBufferInt) {
+                Arrays.fill(((DataBufferInt) buffer).getData(bank), 0);
+            } else {
+                for (int i = 0; i < buffer.getSize(); i++) {
+                    buffer.setElem(bank, i, 0);
+                }
+            }
+        }
+    }
+}
@@ -12,9 +12,7 @@ import java.awt.image.IndexColorModel;
 import java.awt.image.RenderedImage;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -170,7 +168,6 @@ public final class GIFMapResponse extends RenderedImageMapResponse {
         param.setCompressionQuality(0.75f);
 
         ImageOutputStream otStream = null;
-        List<RenderedImage> images = new ArrayList<RenderedImage>();
         try {
             otStream = ImageIO.createImageOutputStream(outStream);
             gifWriter.setOutput(otStream);
@@ -188,24 +185,34 @@ public final class GIFMapResponse extends RenderedImageMapResponse {
                 throw new ServiceException("Animate GIF delay invalid: " + delay);
 
             //
-            // Getting input files
+            // Getting input files. The frames may be produced while we go (see the WMS
+            // animator), write them in order and let go of each one as soon as it is written
             //
             for (int i = 0; i < numfiles; i++) {
                 if (LOGGER.isLoggable(Level.FINE))
                     LOGGER.fine("Writing image " + i);
                 // get the image
-                RenderedImage ri = (RenderedImage) ril.get(i);
+                RenderedImage frame = (RenderedImage) ril.get(i);
+                if (frame == null) {
+                    continue;
+                }
                 // convert it to gif compatible
-                ri = applyPalette(ri, mapContent, MIME_TYPE, false);
-                if (ri != null) {
-                    // prepare metadata and write param
-                    final IIOMetadata imageMetadata = gifWriter.getDefaultImageMetadata(
-                    	new ImageTypeSpecifier(ri), param);
-                    prepareMetadata(ri, imageMetadata, loopContinuosly, delay);
-
-                    // write
-                    gifWriter.writeToSequence(new IIOImage(ri, null, imageMetadata), param);
-                    images.add(ri);
+                RenderedImage ri = applyPalette(frame, mapContent, MIME_TYPE, false);
+                try {
+                    if (ri != null) {
+                        // prepare metadata and write param
+                        final IIOMetadata imageMetadata = gifWriter.getDefaultImageMetadata(
+                                new ImageTypeSpecifier(ri), param);
+                        prepareMetadata(ri, imageMetadata, loopContinuosly, delay);
+
+                        // write
+                        gifWriter.writeToSequence(new IIOImage(ri, null, imageMetadata), param);
+                    }
+                } finally {
+                    disposeFrame(ri);
+                    if (frame != ri) {
+                        disposeFrame(frame);
+                    }
                 }
             }
 
@@ -232,21 +239,23 @@ public final class GIFMapResponse extends RenderedImageMapResponse {
             } catch (Exception e) {
                 // swallow
             }
-
-            // let go of the image chain as soon as possible to free memory
-            for (RenderedImage image : images) {
-                if (image instanceof PlanarImage) {
-                    ImageUtilities.disposePlanarImageChain((PlanarImage) image);
-                } else if (image instanceof BufferedImage) {
-                    ((BufferedImage) image).flush();
-                }
-            }
         }
 
         if (LOGGER.isLoggable(Level.FINE))
             LOGGER.fine("Done writing animated gif");
     }
 
+    /**
+     * Lets go of the image chain as soon as possible to free memory
+     */
+    private static void disposeFrame(RenderedImage image) {
+        if (image instanceof PlanarImage) {
+            ImageUtilities.disposePlanarImageChain((PlanarImage) image);
+        } else if (image instanceof BufferedImage) {
+            ((BufferedImage) image).flush();
+        }
+    }
+
     public String getContentDisposition() {
         // can be null
         return null;
@@ -0,0 +1,927 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
+
+import net.opengis.wfs.TransactionResponseType;
+import net.opengis.wfs.TransactionType;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.impl.GeoServerLifecycleHandler;
+import org.geoserver.platform.GeoServerResourceLoader;
+import org.geoserver.security.decorators.SecuredFeatureSource;
+import org.geoserver.util.ThreadPools;
+import org.geoserver.wfs.TransactionEvent;
+import org.geoserver.wfs.TransactionPlugin;
+import org.geoserver.wfs.WFSException;
+import org.geoserver.wms.WMSMapContent;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.data.jdbc.JDBCUtils;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.geotools.styling.FeatureTypeStyle;
+import org.geotools.styling.Style;
+import org.geotools.util.logging.Logging;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.h2.tools.DeleteDbFiles;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+import com.vividsolutions.jts.simplify.DouglasPeuckerSimplifier;
+
+/**
+ * Keeps generalized copies of the vector layers, so that GetMap requests at small scales do not
+ * have to read the full resolution geometries from the source only to have the renderer decimate
+ * them.
+ * <p>
+ * A copy is kept for each layer and zoom band, a zoom band being the set of map resolutions
+ * between two consecutive powers of two, in the layer native units. The geometries of a band are
+ * simplified with a tolerance of a quarter of its smallest resolution, and stored along with the
+ * other attributes in an embedded H2 database in the <code>generalization</code> folder of the
+ * data directory. Bands are built lazily in the background: the first requests at a given scale are
+ * served from the source, the following ones from the generalized copy.
+ * </p>
+ * <p>
+ * The copies are dropped when the layer is modified by a WFS transaction, or when the feature
+ * type or its store are changed in the catalog. Layers subject to data security limits, with a
+ * rendering transformation, point geometries, multiple geometries or non serializable attributes
+ * are always read from the source.
+ * </p>
+ * <p>
+ * The copies take at most {@code org.geoserver.wms.generalizationCache.maxSize} MB (512 by
+ * default), the least recently used ones are dropped to make room for new ones, and copies that
+ * would not fit alone are not built. Builds that fail are tried again after a delay, doubling at
+ * each failure.
+ * </p>
+ * <p>
+ * The cache is used only when the whole layer spans less than
+ * {@code org.geoserver.wms.generalizationCache.maxPixels} pixels (4096 by default), the number of
+ * background builders is set by {@code org.geoserver.wms.generalizationCache.threads} (1 by
+ * default), and the cache can be disabled by setting
+ * {@code org.geoserver.wms.generalizationCache.disable} to {@code true}
+ * </p>
+ */
+public class GeneralizationCache implements TransactionPlugin, CatalogListener,
+        GeoServerLifecycleHandler {
+
+    static final Logger LOGGER = Logging.getLogger(GeneralizationCache.class);
+
+    static final boolean DISABLED = Boolean
+            .getBoolean("org.geoserver.wms.generalizationCache.disable");
+
+    static final int MAX_PIXELS = Integer.getInteger(
+            "org.geoserver.wms.generalizationCache.maxPixels", 4096);
+
+    static final int THREADS = Integer.getInteger(
+            "org.geoserver.wms.generalizationCache.threads", 1);
+
+    static final long MAX_SIZE = Long.getLong("org.geoserver.wms.generalizationCache.maxSize",
+            512) * 1024 * 1024;
+
+    static final String DATABASE = "h2cache";
+
+    /**
+     * Delay before a failed build is tried again, doubled at each failure up to
+     * {@link #MAX_RETRY_DELAY}
+     */
+    static final long RETRY_DELAY = 60 * 1000;
+
+    static final long MAX_RETRY_DELAY = 60 * 60 * 1000;
+
+    /**
+     * Maximum number of open connections to the database, reads keep theirs while the map is
+     * being painted
+     */
+    static final int MAX_CONNECTIONS = 64;
+
+    /**
+     * Estimated storage overhead of each feature, on top of its geometry and attributes
+     */
+    static final int ROW_OVERHEAD = 64;
+
+    static final String TRANSACTION_LAYERS_PLACEHOLDER = "GENERALIZATION_CACHE_LAYERS";
+
+    /**
+     * Number of rows inserted before committing, while building a band
+     */
+    static final int BATCH_SIZE = 1000;
+
+    static {
+        try {
+            // make sure, once and for all, that H2 is around
+            Class.forName("org.h2.Driver");
+        } catch (Exception e) {
+            throw new RuntimeException("Could not initialize the class constants", e);
+        }
+    }
+
+    /**
+     * The generalized copy of a layer for a zoom band
+     */
+    static final class Band {
+        final String layerId;
+
+        final int band;
+
+        final long id;
+
+        final double tolerance;
+
+        /**
+         * Estimated size of the copy, in bytes
+         */
+        final AtomicLong size = new AtomicLong();
+
+        volatile boolean ready;
+
+        volatile boolean invalid;
+
+        /**
+         * Whether the copy would not fit in the cache, in which case it's not built again
+         */
+        volatile boolean tooLarge;
+
+        /**
+         * When the last build failed, zero if it did not
+         */
+        volatile long failed;
+
+        /**
+         * The number of failed builds so far
+         */
+        volatile int failures;
+
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Band(String layerId, int band, long id, int failures) {
+            this.layerId = layerId;
+            this.band = band;
+            this.id = id;
+            this.failures = failures;
+            this.tolerance = Math.scalb(0.25, band);
+        }
+
+        public boolean isReady() {
+            return ready && !invalid;
+        }
+
+        /**
+         * Returns the time to wait, since the last failure, before building again
+         */
+        long getRetryDelay() {
+            return Math.min(RETRY_DELAY << Math.min(Math.max(failures - 1, 0), 10),
+                    MAX_RETRY_DELAY);
+        }
+
+        boolean isRetryDue() {
+            return failed != 0 && System.currentTimeMillis() - failed >= getRetryDelay();
+        }
+
+        String getKey() {
+            return key(layerId, band);
+        }
+
+        static String key(String layerId, int band) {
+            return layerId + "@" + band;
+        }
+
+        @Override
+        public String toString() {
+            return getKey();
+        }
+    }
+
+    private final Catalog catalog;
+
+    private final Executor executor;
+
+    private final String url;
+
+    private final JdbcConnectionPool pool;
+
+    private final long maxSize;
+
+    /**
+     * Estimated size of all the copies, in bytes
+     */
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * The bands built or being built, by layer id and band
+     */
+    private final ConcurrentMap<String, Band> bands = new ConcurrentHashMap<String, Band>();
+
+    private final AtomicLong ids = new AtomicLong();
+
+    public GeneralizationCache(Catalog catalog, GeoServerResourceLoader loader) {
+        this(catalog, loader.get("generalization").dir(), ThreadPools.manage(Executors
+                .newFixedThreadPool(THREADS, ThreadPools.threadFactory(
+                        "Generalization cache builder %d", Thread.MIN_PRIORITY))));
+    }
+
+    GeneralizationCache(Catalog catalog, File directory, Executor executor) {
+        this(catalog, directory, executor, MAX_SIZE);
+    }
+
+    GeneralizationCache(Catalog catalog, File directory, Executor executor, long maxSize) {
+        this.catalog = catalog;
+        this.executor = executor;
+        this.maxSize = maxSize;
+        try {
+            // the cache does not survive restarts, the data might have changed in the meantime
+            DeleteDbFiles.execute(directory.getCanonicalPath(), DATABASE, true);
+            this.url = "jdbc:h2:file:" + directory.getCanonicalPath() + "/" + DATABASE
+                    + ";DB_CLOSE_DELAY=-1";
+            this.pool = JdbcConnectionPool.create(url, "geoserver", "geopass");
+            pool.setMaxConnections(MAX_CONNECTIONS);
+            createSchema();
+        } catch (Exception e) {
+            throw new RuntimeException("Could not initialize the generalization cache", e);
+        }
+        catalog.addListener(this);
+    }
+
+    /**
+     * Returns a feature source reading from the generalized copy of the layer for the scale of
+     * the map, or {@code null} if the layer has to be read from the source, either because the
+     * map is not at a small scale, the layer cannot be generalized, or its copy is not built yet
+     * (in which case the build is scheduled)
+     *
+     * @param info the layer feature type
+     * @param source the source GetMap would read from
+     * @param style the style the layer will be rendered with
+     * @param mapContent the map being rendered
+     */
+    public SimpleFeatureSource getFeatureSource(FeatureTypeInfo info, FeatureSource<?, ?> source,
+            Style style, WMSMapContent mapContent) {
+        if (DISABLED || !(source instanceof SimpleFeatureSource)
+                || source instanceof SecuredFeatureSource || info.getId() == null
+                || !isGeneralizable((SimpleFeatureType) source.getSchema(), style)) {
+            return null;
+        }
+
+        // the resolution of the map, in the layer units
+        SimpleFeatureType schema = (SimpleFeatureType) source.getSchema();
+        CoordinateReferenceSystem crs = schema.getCoordinateReferenceSystem();
+        double resolution;
+        double span;
+        try {
+            ReferencedEnvelope area = mapContent.getRenderingArea();
+            ReferencedEnvelope bounds = info.getNativeBoundingBox();
+            if (bounds == null || bounds.isEmpty()) {
+                return null;
+            }
+            if (crs != null) {
+                if (area.getCoordinateReferenceSystem() != null
+                        && !CRS.equalsIgnoreMetadata(area.getCoordinateReferenceSystem(), crs)) {
+                    area = area.transform(crs, true);
+                }
+                if (bounds.getCoordinateReferenceSystem() != null
+                        && !CRS.equalsIgnoreMetadata(bounds.getCoordinateReferenceSystem(), crs)) {
+                    bounds = bounds.transform(crs, true);
+                }
+            }
+            resolution = Math.max(area.getWidth() / mapContent.getMapWidth(), area.getHeight()
+                    / mapContent.getMapHeight());
+            span = Math.max(bounds.getWidth(), bounds.getHeight());
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Could not compute the map resolution in the layer units", e);
+            return null;
+        }
+        if (!(resolution > 0) || Double.isInfinite(resolution) || span / resolution > MAX_PIXELS) {
+            return null;
+        }
+
+        int zoomBand = Math.getExponent(resolution);
+        Band band = getBand(info.getId(), zoomBand, (SimpleFeatureSource) source);
+        if (!band.isReady()) {
+            return null;
+        }
+        return new GeneralizedFeatureSource((SimpleFeatureSource) source, this, band);
+    }
+
+    /**
+     * Returns true if the features of the layer can be generalized and stored in the cache
+     */
+    boolean isGeneralizable(SimpleFeatureType schema, Style style) {
+        GeometryDescriptor geometry = schema.getGeometryDescriptor();
+        if (geometry == null || Point.class.isAssignableFrom(geometry.getType().getBinding())
+                || MultiPoint.class.isAssignableFrom(geometry.getType().getBinding())) {
+            return false;
+        }
+        for (AttributeDescriptor ad : schema.getAttributeDescriptors()) {
+            if (ad instanceof GeometryDescriptor && ad != geometry) {
+                return false;
+            }
+            Class<?> binding = ad.getType().getBinding();
+            if (!binding.isPrimitive() && !Serializable.class.isAssignableFrom(binding)) {
+                return false;
+            }
+        }
+        // rendering transformations might need the actual geometries
+        if (style != null) {
+            for (FeatureTypeStyle fts : style.featureTypeStyles()) {
+                if (fts.getTransformation() != null) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the band for the layer, scheduling its build if not there yet
+     */
+    private Band getBand(String layerId, int zoomBand, final SimpleFeatureSource source) {
+        String key = Band.key(layerId, zoomBand);
+        Band band = bands.get(key);
+        if (band != null && !band.isRetryDue()) {
+            band.lastUsed = System.currentTimeMillis();
+            return band;
+        }
+
+        // not there yet, or failed long enough ago to be tried again
+        final Band newBand = new Band(layerId, zoomBand, ids.incrementAndGet(),
+                band == null ? 0 : band.failures);
+        if (band == null) {
+            Band existing = bands.putIfAbsent(key, newBand);
+            if (existing != null) {
+                return existing;
+            }
+        } else if (!bands.replace(key, band, newBand)) {
+            return band;
+        }
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                build(newBand, source);
+            }
+        });
+        return newBand;
+    }
+
+    /**
+     * Reads all the features of the source, and stores their generalized version in the band
+     */
+    void build(Band band, SimpleFeatureSource source) {
+        if (band.invalid) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        int count = 0;
+        Connection conn = null;
+        PreparedStatement ps = null;
+        SimpleFeatureIterator fi = null;
+        try {
+            conn = getConnection();
+            conn.setAutoCommit(false);
+            ps = conn.prepareStatement("INSERT INTO GENERALIZED VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+
+            SimpleFeatureType schema = source.getSchema();
+            int geometryIndex = schema.indexOf(schema.getGeometryDescriptor().getLocalName());
+            WKBWriter writer = new WKBWriter();
+            fi = source.getFeatures(Query.ALL).features();
+            while (fi.hasNext() && !band.invalid) {
+                SimpleFeature feature = fi.next();
+                Geometry geometry = (Geometry) feature.getAttribute(geometryIndex);
+                if (geometry == null || geometry.isEmpty()) {
+                    // would not be painted anyways
+                    continue;
+                }
+                Geometry simplified = DouglasPeuckerSimplifier.simplify(geometry, band.tolerance);
+                if (simplified == null || simplified.isEmpty()) {
+                    // smaller than the tolerance, keep it as is for the renderer to paint it
+                    simplified = geometry;
+                }
+
+                Object[] attributes = feature.getAttributes().toArray();
+                attributes[geometryIndex] = null;
+                Envelope envelope = geometry.getEnvelopeInternal();
+                ps.setLong(1, band.id);
+                ps.setString(2, feature.getID());
+                ps.setDouble(3, envelope.getMinX());
+                ps.setDouble(4, envelope.getMinY());
+                ps.setDouble(5, envelope.getMaxX());
+                ps.setDouble(6, envelope.getMaxY());
+                byte[] wkb = writer.write(simplified);
+                byte[] serialized = serialize(attributes);
+                ps.setBytes(7, wkb);
+                ps.setBytes(8, serialized);
+                ps.execute();
+                long rowSize = wkb.length + serialized.length + ROW_OVERHEAD;
+                band.size.addAndGet(rowSize);
+                size.addAndGet(rowSize);
+                if (++count % BATCH_SIZE == 0) {
+                    conn.commit();
+                    if (band.size.get() > maxSize) {
+                        break;
+                    }
+                    evict(band);
+                }
+            }
+            conn.commit();
+
+            if (band.size.get() > maxSize) {
+                // would push everything else out, and then some
+                band.tooLarge = true;
+                LOGGER.info("The generalized copy " + band + " does not fit in the "
+                        + (maxSize / 1024 / 1024) + "MB of the generalization cache, the layer "
+                        + "will be read from the source at this scale");
+                delete(band);
+                return;
+            }
+            band.ready = true;
+            if (band.invalid) {
+                // dropped while building, might have been missed by the invalidation
+                delete(band);
+            } else {
+                evict(band);
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine("Built the generalized copy " + band + " with " + count
+                            + " features in " + (System.currentTimeMillis() - start) + "ms");
+                }
+            }
+        } catch (Exception e) {
+            // the band stays there not ready until the retry delay is over, so that it's not
+            // rebuilt at every request
+            band.failures++;
+            band.failed = System.currentTimeMillis();
+            LOGGER.log(Level.WARNING, "Failed to build the generalized copy " + band
+                    + " (attempt " + band.failures + "), will try again in "
+                    + (band.getRetryDelay() / 1000) + "s", e);
+            try {
+                delete(band);
+            } catch (SQLException ex) {
+                LOGGER.log(Level.FINE, "Failed to clean up the generalized copy " + band, ex);
+            }
+        } finally {
+            if (fi != null) {
+                fi.close();
+            }
+            JDBCUtils.close(ps);
+            JDBCUtils.close(conn, null, null);
+        }
+    }
+
+    /**
+     * Opens an iterator over the generalized features of the band whose envelope intersects the
+     * specified one, and that match the filter, up to the specified max. The iterator must be
+     * closed to release its database connection
+     */
+    BandIterator open(Band band, SimpleFeatureType schema, Envelope envelope, Filter filter,
+            int maxFeatures) throws IOException {
+        band.lastUsed = System.currentTimeMillis();
+        Connection conn = null;
+        PreparedStatement ps = null;
+        try {
+            conn = getConnection();
+            ps = conn.prepareStatement("SELECT FID, GEOM, ATTRIBUTES FROM GENERALIZED "
+                    + "WHERE BUILD = ? AND MINX <= ? AND MAXX >= ? AND MINY <= ? AND MAXY >= ?");
+            ps.setLong(1, band.id);
+            ps.setDouble(2, envelope.getMaxX());
+            ps.setDouble(3, envelope.getMinX());
+            ps.setDouble(4, envelope.getMaxY());
+            ps.setDouble(5, envelope.getMinY());
+            return new BandIterator(band, conn, ps, ps.executeQuery(), schema, filter,
+                    maxFeatures);
+        } catch (SQLException e) {
+            JDBCUtils.close(ps);
+            JDBCUtils.close(conn, null, null);
+            throw new IOException("Failed to read the generalized copy " + band, e);
+        }
+    }
+
+    /**
+     * Streams the features of a band out of a database result set
+     */
+    static final class BandIterator implements Iterator<SimpleFeature>, Closeable {
+
+        final Band band;
+
+        final Connection conn;
+
+        final PreparedStatement ps;
+
+        final ResultSet rs;
+
+        final SimpleFeatureType schema;
+
+        final Filter filter;
+
+        final int geometryIndex;
+
+        final WKBReader reader = new WKBReader();
+
+        int remaining;
+
+        SimpleFeature next;
+
+        BandIterator(Band band, Connection conn, PreparedStatement ps, ResultSet rs,
+                SimpleFeatureType schema, Filter filter, int maxFeatures) {
+            this.band = band;
+            this.conn = conn;
+            this.ps = ps;
+            this.rs = rs;
+            this.schema = schema;
+            this.filter = filter;
+            this.remaining = maxFeatures;
+            this.geometryIndex = schema.indexOf(schema.getGeometryDescriptor().getLocalName());
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                while (rs.next()) {
+                    Object[] attributes = (Object[]) deserialize(rs.getBytes(3));
+                    attributes[geometryIndex] = reader.read(rs.getBytes(2));
+                    SimpleFeature feature = SimpleFeatureBuilder.build(schema, attributes,
+                            rs.getString(1));
+                    if (filter == null || filter.evaluate(feature)) {
+                        next = feature;
+                        remaining--;
+                        return true;
+                    }
+                }
+                return false;
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to read the generalized copy " + band, e);
+            }
+        }
+
+        @Override
+        public SimpleFeature next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            SimpleFeature result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("The generalized copies are read only");
+        }
+
+        @Override
+        public void close() {
+            JDBCUtils.close(rs);
+            JDBCUtils.close(ps);
+            JDBCUtils.close(conn, null, null);
+        }
+    }
+
+    /**
+     * Drops the generalized copies of the layer
+     */
+    public void invalidate(String layerId) {
+        Iterator<Band> it = bands.values().iterator();
+        while (it.hasNext()) {
+            final Band band = it.next();
+            if (band.layerId.equals(layerId)) {
+                it.remove();
+                invalidate(band);
+            }
+        }
+    }
+
+    /**
+     * Drops all the generalized copies
+     */
+    public void clear() {
+        Iterator<Band> it = bands.values().iterator();
+        while (it.hasNext()) {
+            Band band = it.next();
+            it.remove();
+            invalidate(band);
+        }
+    }
+
+    /**
+     * Drops the least recently used copies, other than the specified one, until the cache is
+     * back within its size limit
+     */
+    private void evict(Band building) {
+        while (size.get() > maxSize) {
+            Band lru = null;
+            for (Band band : bands.values()) {
+                if (band != building && band.isReady()
+                        && (lru == null || band.lastUsed < lru.lastUsed)) {
+                    lru = band;
+                }
+            }
+            if (lru == null) {
+                return;
+            }
+            if (bands.remove(lru.getKey(), lru)) {
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine("Dropping the generalized copy " + lru + " to make room for "
+                            + building);
+                }
+                invalidate(lru);
+            }
+        }
+    }
+
+    private void invalidate(final Band band) {
+        band.invalid = true;
+        // no longer counts, it's about to be deleted
+        size.addAndGet(-band.size.getAndSet(0));
+        // the bands being built are removed by their builder once done
+        if (band.ready) {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        delete(band);
+                    } catch (SQLException e) {
+                        LOGGER.log(Level.FINE, "Failed to remove the generalized copy " + band, e);
+                    }
+                }
+            });
+        }
+    }
+
+    private void delete(Band band) throws SQLException {
+        Connection conn = null;
+        Statement st = null;
+        try {
+            conn = getConnection();
+            st = conn.createStatement();
+            st.execute("DELETE FROM GENERALIZED WHERE BUILD = " + band.id);
+        } finally {
+            JDBCUtils.close(st);
+            JDBCUtils.close(conn, null, null);
+            size.addAndGet(-band.size.getAndSet(0));
+        }
+    }
+
+    /**
+     * Returns the number of bands ready to be used, for testing purposes
+     */
+    int getReadyCount() {
+        int count = 0;
+        for (Band band : bands.values()) {
+            if (band.isReady()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the estimated size of the copies, in bytes, for testing purposes
+     */
+    long getSize() {
+        return size.get();
+    }
+
+    private Connection getConnection() throws SQLException {
+        return pool.getConnection();
+    }
+
+    private void createSchema() throws SQLException {
+        Connection conn = getConnection();
+        Statement st = null;
+        try {
+            st = conn.createStatement();
+            st.execute("CREATE TABLE IF NOT EXISTS GENERALIZED( " //
+                    + "BUILD BIGINT, " //
+                    + "FID VARCHAR, " //
+                    + "MINX DOUBLE, " //
+                    + "MINY DOUBLE, " //
+                    + "MAXX DOUBLE, " //
+                    + "MAXY DOUBLE, " //
+                    + "GEOM VARBINARY, " //
+                    + "ATTRIBUTES VARBINARY)");
+            st.execute("CREATE INDEX IF NOT EXISTS IDX_GENERALIZED ON GENERALIZED(BUILD, MINX)");
+        } finally {
+            JDBCUtils.close(st);
+            JDBCUtils.close(conn, null, null);
+        }
+    }
+
+    static byte[] serialize(Object[] attributes) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(attributes);
+        oos.close();
+        return bos.toByteArray();
+    }
+
+    static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return ois.readObject();
+        } finally {
+            ois.close();
+        }
+    }
+
+    /**
+     * Drops the copies of the layers modified by a transaction as soon as the change is issued
+     *
+     * @see org.geoserver.wfs.TransactionListener#dataStoreChange(TransactionEvent)
+     */
+    @SuppressWarnings("unchecked")
+    public void dataStoreChange(TransactionEvent event) throws WFSException {
+        QName name = event.getLayerName();
+        FeatureTypeInfo info = name == null ? null : catalog.getFeatureTypeByName(
+                name.getNamespaceURI(), name.getLocalPart());
+        if (info == null) {
+            return;
+        }
+        invalidate(info.getId());
+
+        // remember the layer, bands might get rebuilt with the old data before the commit
+        TransactionType request = event.getRequest();
+        Map<Object, Object> properties = request.getExtendedProperties();
+        if (properties == null) {
+            properties = new HashMap<Object, Object>();
+            request.setExtendedProperties(properties);
+        }
+        Set<String> layerIds = (Set<String>) properties.get(TRANSACTION_LAYERS_PLACEHOLDER);
+        if (layerIds == null) {
+            layerIds = new HashSet<String>();
+            properties.put(TRANSACTION_LAYERS_PLACEHOLDER, layerIds);
+        }
+        layerIds.add(info.getId());
+    }
+
+    /**
+     * Not used, we're interested in the {@link #dataStoreChange} and {@link #afterTransaction}
+     * hooks
+     */
+    public TransactionType beforeTransaction(TransactionType request) throws WFSException {
+        return request;
+    }
+
+    /**
+     * Not used, we're interested in the {@link #dataStoreChange} and {@link #afterTransaction}
+     * hooks
+     */
+    public void beforeCommit(TransactionType request) throws WFSException {
+        // nothing to do
+    }
+
+    /**
+     * Drops again the copies of the layers modified by the transaction, now that the changes are
+     * visible to the builders
+     */
+    @SuppressWarnings("unchecked")
+    public void afterTransaction(TransactionType request, TransactionResponseType result,
+            boolean committed) {
+        Map<Object, Object> properties = request.getExtendedProperties();
+        Set<String> layerIds = properties == null ? null : (Set<String>) properties
+                .get(TRANSACTION_LAYERS_PLACEHOLDER);
+        if (layerIds != null) {
+            for (String layerId : layerIds) {
+                invalidate(layerId);
+            }
+        }
+    }
+
+    public int getPriority() {
+        return 0;
+    }
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+
+    }
+
+    @Override
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        handleChange(event.getSource());
+    }
+
+    @Override
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+
+    }
+
+    @Override
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        handleChange(event.getSource());
+    }
+
+    private void handleChange(Object source) {
+        if (source instanceof FeatureTypeInfo) {
+            invalidate(((FeatureTypeInfo) source).getId());
+        } else if (source instanceof DataStoreInfo) {
+            DataStoreInfo store = (DataStoreInfo) source;
+            for (FeatureTypeInfo info : catalog.getFeatureTypesByDataStore(store)) {
+                invalidate(info.getId());
+            }
+        }
+    }
+
+    @Override
+    public void reloaded() {
+        clear();
+    }
+
+    @Override
+    public void onReset() {
+        clear();
+    }
+
+    @Override
+    public void onDispose() {
+        catalog.removeListener(this);
+        if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdownNow();
+        }
+        // no need to delete the copies, the database is dropped on startup
+        for (Band band : bands.values()) {
+            band.invalid = true;
+        }
+        bands.clear();
+        // the database is kept open while the cache is around, close it
+        Connection conn = null;
+        Statement st = null;
+        try {
+            conn = getConnection();
+            st = conn.createStatement();
+            st.execute("SHUTDOWN");
+        } catch (SQLException e) {
+            LOGGER.log(Level.FINE, "Failed to shut down the generalization cache", e);
+        } finally {
+            JDBCUtils.close(st);
+            JDBCUtils.close(conn, null, null);
+            pool.dispose();
+        }
+    }
+
+    @Override
+    public void beforeReload() {
+
+    }
+
+    @Override
+    public void onReload() {
+        clear();
+    }
+}
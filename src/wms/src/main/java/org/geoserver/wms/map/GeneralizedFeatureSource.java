@@ -0,0 +1,196 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+
+import org.geoserver.security.decorators.DecoratingSimpleFeatureSource;
+import org.geoserver.wms.map.GeneralizationCache.Band;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.collection.AbstractFeatureCollection;
+import org.geotools.filter.visitor.ExtractBoundsFilterVisitor;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.Filter;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Streams the features from a generalized copy kept in the {@link GeneralizationCache}. Only the
+ * queries the renderer issues are answered from the copy, sorted, paged or reprojected queries,
+ * as well as bounds and counts, are delegated to the original source.
+ */
+class GeneralizedFeatureSource extends DecoratingSimpleFeatureSource {
+
+    private final GeneralizationCache cache;
+
+    private final Band band;
+
+    GeneralizedFeatureSource(SimpleFeatureSource delegate, GeneralizationCache cache, Band band) {
+        super(delegate);
+        this.cache = cache;
+        this.band = band;
+    }
+
+    @Override
+    public SimpleFeatureCollection getFeatures() throws IOException {
+        return getFeatures(Query.ALL);
+    }
+
+    @Override
+    public SimpleFeatureCollection getFeatures(Filter filter) throws IOException {
+        return getFeatures(new Query(getSchema().getTypeName(), filter));
+    }
+
+    @Override
+    public SimpleFeatureCollection getFeatures(Query query) throws IOException {
+        // the copy might have been dropped since the map has been set up
+        if (!band.isReady() || !isSupported(query)) {
+            return delegate.getFeatures(query);
+        }
+
+        return new GeneralizedFeatureCollection(query);
+    }
+
+    /**
+     * Returns true if the query can be answered by the generalized copy
+     */
+    boolean isSupported(Query query) {
+        if ((query.getSortBy() != null && query.getSortBy().length > 0)
+                || query.getStartIndex() != null) {
+            return false;
+        }
+        CoordinateReferenceSystem crs = getSchema().getCoordinateReferenceSystem();
+        return sameCRS(query.getCoordinateSystem(), crs)
+                && sameCRS(query.getCoordinateSystemReproject(), crs);
+    }
+
+    private boolean sameCRS(CoordinateReferenceSystem requested, CoordinateReferenceSystem crs) {
+        return requested == null || crs == null || CRS.equalsIgnoreMetadata(requested, crs);
+    }
+
+    /**
+     * Streams the features out of the generalized copy, reading them again at each iteration
+     * like a regular data store collection would
+     */
+    class GeneralizedFeatureCollection extends AbstractFeatureCollection {
+
+        final Query query;
+
+        GeneralizedFeatureCollection(Query query) {
+            super(GeneralizedFeatureSource.this.getSchema());
+            this.query = query;
+        }
+
+        @Override
+        protected Iterator<SimpleFeature> openIterator() {
+            try {
+                if (!band.isReady()) {
+                    // dropped in the meantime
+                    return new SourceIterator(delegate.getFeatures(query).features());
+                }
+                Filter filter = query.getFilter();
+                if (filter == null) {
+                    filter = Filter.INCLUDE;
+                }
+                Envelope envelope = (Envelope) filter.accept(
+                        ExtractBoundsFilterVisitor.BOUNDS_VISITOR, null);
+                if (envelope == null) {
+                    envelope = new Envelope(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+                            Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+                }
+                if (envelope.isNull() || filter == Filter.EXCLUDE) {
+                    return Collections.<SimpleFeature> emptyList().iterator();
+                }
+                return cache.open(band, schema, envelope, filter == Filter.INCLUDE ? null
+                        : filter, query.getMaxFeatures());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        protected void closeIterator(Iterator close) {
+            if (close instanceof Closeable) {
+                try {
+                    ((Closeable) close).close();
+                } catch (IOException e) {
+                    // the iterators here do not throw
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            int count = 0;
+            Iterator<SimpleFeature> it = openIterator();
+            try {
+                while (it.hasNext()) {
+                    it.next();
+                    count++;
+                }
+            } finally {
+                closeIterator(it);
+            }
+            return count;
+        }
+
+        @Override
+        public ReferencedEnvelope getBounds() {
+            ReferencedEnvelope bounds = new ReferencedEnvelope(schema
+                    .getCoordinateReferenceSystem());
+            Iterator<SimpleFeature> it = openIterator();
+            try {
+                while (it.hasNext()) {
+                    bounds.include(it.next().getBounds());
+                }
+            } finally {
+                closeIterator(it);
+            }
+            return bounds;
+        }
+    }
+
+    /**
+     * Adapts the iterator of the source collection
+     */
+    static class SourceIterator implements Iterator<SimpleFeature>, Closeable {
+
+        final SimpleFeatureIterator delegate;
+
+        SourceIterator(SimpleFeatureIterator delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return delegate.hasNext();
+        }
+
+        @Override
+        public SimpleFeature next() {
+            return delegate.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Removal is not supported");
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+    }
+}
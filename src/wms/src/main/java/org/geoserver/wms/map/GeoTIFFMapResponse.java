@@ -8,6 +8,7 @@ package org.geoserver.wms.map;
 import java.awt.image.RenderedImage;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -18,6 +19,8 @@ import org.geoserver.wms.MapProducerCapabilities;
 import org.geoserver.wms.RasterCleaner;
 import org.geoserver.wms.WMS;
 import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.map.tiff.StreamingTIFFWriter;
+import org.geoserver.wms.map.tiff.StreamingTIFFWriter.Field;
 import org.geotools.coverage.CoverageFactoryFinder;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.GridCoverageFactory;
@@ -79,7 +82,21 @@ public class GeoTIFFMapResponse extends RenderedImageMapResponse {
 
         // do we want it to be 8 bits?
         image = applyPalette(image, mapContent, IMAGE_GEOTIFF8, false);
-        
+
+        // large images are streamed out while their tiles are computed
+        if (StreamingTIFFWriter.isStreamable(image)) {
+            List<Field> geoFields = StreamingTIFFWriter.getGeoTIFFFields(
+                    mapContent.getRenderingArea(), image.getWidth(), image.getHeight());
+            if (geoFields != null) {
+                try {
+                    new StreamingTIFFWriter().writeGeoTIFF(image, geoFields, outStream);
+                } finally {
+                    RasterCleaner.addImage(image);
+                }
+                return;
+            }
+        }
+
         // crating a grid coverage
         final GridCoverage2D gc = factory.create("geotiff", image,
                 new GeneralEnvelope(mapContent.getRenderingArea()));
@@ -24,6 +24,7 @@ import java.util.logging.Level;
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.collections.EnumerationUtils;
+import org.apache.commons.io.IOUtils;
 import org.geoserver.catalog.DimensionInfo;
 import org.geoserver.catalog.LayerGroupInfo;
 import org.geoserver.catalog.LayerInfo;
@@ -37,6 +38,7 @@ import org.geoserver.catalog.util.ReaderDimensionsAccessor;
 import org.geoserver.ows.HttpServletRequestAware;
 import org.geoserver.ows.KvpRequestReader;
 import org.geoserver.ows.util.KvpUtils;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.util.EntityResolverProvider;
 import org.geoserver.wms.GetMapRequest;
@@ -111,6 +113,11 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
      * EntityResolver provider, used in SLD parsing
      */
     EntityResolverProvider entityResolverProvider;
+
+    /**
+     * The parsed SLD and SLD_BODY documents, looked up on first use when not set
+     */
+    private SLDCache sldCache;
     
     /**
      * This flags allows the kvp reader to go beyond the SLD library mode specification and match
@@ -145,6 +152,24 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
         this.filterFactory = filterFactory;
     }
 
+    public void setSldCache(SLDCache sldCache) {
+        this.sldCache = sldCache;
+    }
+
+    /**
+     * Returns the cache of the parsed style documents, or {@code null} if disabled or not
+     * available
+     */
+    SLDCache getSldCache() {
+        if (!SLDCache.isEnabled()) {
+            return null;
+        }
+        if (sldCache == null) {
+            sldCache = GeoServerExtensions.bean(SLDCache.class);
+        }
+        return sldCache;
+    }
+
     public boolean isParseStyle() {
         return parseStyles;
     }
@@ -253,19 +278,17 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
                 LOGGER.fine("Getting layers and styles from SLD_BODY");
             }
 
-            if (getMap.getValidateSchema().booleanValue()) {
-                ByteArrayInputStream stream = new ByteArrayInputStream(getMap.getSldBody()
-                        .getBytes());
-                List errors = validateStyle(stream, getMap);
-
-                if (errors.size() != 0) {
-                    throw new ServiceException(SLDValidator.getErrorMessage(
-                            new ByteArrayInputStream(getMap.getSldBody().getBytes()), errors));
-                }
+            StyledLayerDescriptor sld;
+            EntityResolver entityResolver = entityResolverProvider.getEntityResolver();
+            SLDCache cache = getSldCache();
+            if (cache != null) {
+                sld = cache.getSLD(getMap.getSldBody().getBytes(), getStyleFormat(getMap),
+                        getMap.styleVersion(), entityResolver,
+                        getMap.getValidateSchema().booleanValue(), getSLDParser(getMap));
+            } else {
+                sld = getSLDParser(getMap).parse(getMap.getSldBody().getBytes(),
+                        getMap.getValidateSchema().booleanValue(), entityResolver);
             }
-
-            InputStream input = new ByteArrayInputStream(getMap.getSldBody().getBytes());
-            StyledLayerDescriptor sld = parseStyle(getMap, input);
             processSld(getMap, requestedLayerInfos, sld, styleNameList);
 
             // set filter in, we'll check consistency later
@@ -276,38 +299,25 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
             }
 
             URL styleUrl = getMap.getStyleUrl();
-
-            if (getMap.getValidateSchema().booleanValue()) {
+            boolean validate = getMap.getValidateSchema().booleanValue();
+            StyledLayerDescriptor sld;
+            EntityResolver entityResolver = entityResolverProvider.getEntityResolver();
+            SLDCache cache = getSldCache();
+            if (cache != null) {
+                sld = cache.getSLD(styleUrl, getStyleFormat(getMap), getMap.styleVersion(),
+                        entityResolver, validate, getSLDParser(getMap));
+            } else {
+                // JD: GEOS-420, Wrap the sldUrl in getINputStream method in order
+                // to do compression
                 InputStream input = Requests.getInputStream(styleUrl);
-                List errors = null;
-
                 try {
-                    errors = validateStyle(input, getMap);
+                    sld = getSLDParser(getMap).parse(IOUtils.toByteArray(input), validate,
+                            entityResolver);
                 } finally {
                     input.close();
                 }
-
-                if ((errors != null) && (errors.size() != 0)) {
-                    input = Requests.getInputStream(styleUrl);
-
-                    try {
-                        throw new ServiceException(SLDValidator.getErrorMessage(input, errors));
-                    } finally {
-                        input.close();
-                    }
-                }
-            }
-
-            // JD: GEOS-420, Wrap the sldUrl in getINputStream method in order
-            // to do compression
-            InputStream input = Requests.getInputStream(styleUrl);
-
-            try {
-                StyledLayerDescriptor sld = parseStyle(getMap, input);
-                processSld(getMap, requestedLayerInfos, sld, styleNameList);
-            } finally {
-                input.close();
             }
+            processSld(getMap, requestedLayerInfos, sld, styleNameList);
 
             // set filter in, we'll check consistency later
             getMap.setFilter(filters);
@@ -436,6 +446,22 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
             }
         }
         
+        setDefaultDimensions(getMap);
+
+        // check that we don't have double dimensions listing
+        if((getMap.getElevation() != null && getMap.getElevation().size() > 1) &&
+           (getMap.getTime() != null && getMap.getTime().size() > 1)) {
+            throw new ServiceException("TIME and ELEVATION values cannot be both multivalued");
+        }
+
+        return getMap;
+    }
+
+    /**
+     * Forces the default time and elevation on the request if any of its layers has the
+     * dimension enabled and the request does not specify a value for it
+     */
+    public static void setDefaultDimensions(GetMapRequest getMap) {
         // check if layers have time/elevation support
         boolean hasTime = false;
         boolean hasElevation = false;
@@ -476,17 +502,12 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
             // ask for "DEFAULT"
             getMap.setElevation(Arrays.asList((Object) null));
         }
-        
-        // check that we don't have double dimensions listing
-        if((getMap.getElevation() != null && getMap.getElevation().size() > 1) &&
-           (getMap.getTime() != null && getMap.getTime().size() > 1)) {
-            throw new ServiceException("TIME and ELEVATION values cannot be both multivalued");
-        }
-
-        return getMap;
     }
 
-    private Style getDefaultStyle (LayerInfo layer) throws IOException{
+    /**
+     * Returns the style used for a layer when none is requested
+     */
+    public static Style getDefaultStyle(LayerInfo layer) throws IOException {
         if (layer.getResource() instanceof WMSLayerInfo) {
             // NamedStyle is a subclass of Style -> we use it as a way to convey
             // cascaded WMS layer styles
@@ -561,10 +582,10 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
      * validates an style document.
      * 
      */
-    private List validateStyle(InputStream stream, GetMapRequest getMap) {
+    private List validateStyle(InputStream stream, GetMapRequest getMap,
+            EntityResolver entityResolver) {
         try {
             String language = getStyleFormat(getMap);
-            EntityResolver entityResolver = entityResolverProvider.getEntityResolver();
 
             return Styles.handler(language).validate(stream, getMap.styleVersion(), entityResolver);
         } 
@@ -576,10 +597,10 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
     /**
      * Parses an style document.
      */
-    private StyledLayerDescriptor parseStyle(GetMapRequest getMap, InputStream stream) {
+    private StyledLayerDescriptor parseStyle(GetMapRequest getMap, InputStream stream,
+            EntityResolver entityResolver) {
         try {
             String format = getStyleFormat(getMap);
-            EntityResolver entityResolver = entityResolverProvider.getEntityResolver();
 
             return Styles.handler(format).parse(stream, getMap.styleVersion(), null, entityResolver);
         }
@@ -588,6 +609,28 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
         }
     }
 
+    /**
+     * Returns a parser validating, if requested, and parsing the style documents of the request
+     */
+    private SLDCache.SLDParser getSLDParser(final GetMapRequest getMap) {
+        return new SLDCache.SLDParser() {
+
+            @Override
+            public StyledLayerDescriptor parse(byte[] contents, boolean validate,
+                    EntityResolver entityResolver) throws IOException {
+                if (validate) {
+                    List errors = validateStyle(new ByteArrayInputStream(contents), getMap,
+                            entityResolver);
+                    if (errors.size() != 0) {
+                        throw new ServiceException(SLDValidator.getErrorMessage(
+                                new ByteArrayInputStream(contents), errors));
+                    }
+                }
+                return parseStyle(getMap, new ByteArrayInputStream(contents), entityResolver);
+            }
+        };
+    }
+
     /*
      * Get style language from request, falling back on SLD as default. 
      */
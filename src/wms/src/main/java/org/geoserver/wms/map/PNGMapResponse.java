@@ -21,6 +21,7 @@ import org.geoserver.wms.RasterCleaner;
 import org.geoserver.wms.WMS;
 import org.geoserver.wms.WMSMapContent;
 import org.geoserver.wms.map.png.PNGJWriter;
+import org.geoserver.wms.map.png.ParallelPNGWriter;
 import org.geotools.image.ImageWorker;
 import org.geotools.image.palette.ColorIndexerDescriptor;
 import org.geotools.util.logging.Logging;
@@ -108,6 +109,9 @@ public class PNGMapResponse extends RenderedImageMapResponse {
         if(encoder == JAIInfo.PngEncoderType.PNGJ) {
             image = new PNGJWriter().writePNG(image, outStream, quality, mapContent);
             RasterCleaner.addImage(image);
+        } else if(encoder == JAIInfo.PngEncoderType.PARALLEL) {
+            image = new ParallelPNGWriter().writePNG(image, outStream, quality);
+            RasterCleaner.addImage(image);
         } else {
             Boolean PNGNativeAcc = (encoder == JAIInfo.PngEncoderType.NATIVE);
             SampleModel sm = image.getSampleModel();
@@ -0,0 +1,275 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+import org.geoserver.wms.WMSMapContent;
+import org.geotools.image.palette.ColorIndexer;
+import org.geotools.image.palette.Quantizer;
+import org.geotools.styling.Style;
+
+/**
+ * Caches the palettes built for the paletted (PNG8) translucent output, by requested layers and
+ * styles, so that the consecutive tiles of a layer, which usually share most of their colors,
+ * don't each pay for the histogram and palette computation.
+ * <p>
+ * A cached palette comes with a {@link InverseColorLookup lookup table}, filled as the colors are
+ * met, making the quantization of the following images a table lookup per pixel. Before reuse a
+ * sample of the image pixels is matched against the cached palette, if the quantization error
+ * grew too much compared to the one of the image the palette was built for (e.g., the tile covers
+ * an area styled with different colors) the palette is rebuilt from the image.
+ * </p>
+ * <p>
+ * The cache can be disabled by setting the {@code org.geoserver.wms.paletteCache.disable} system
+ * property to {@code true}, its size is controlled by the
+ * {@code org.geoserver.wms.paletteCache.size} one
+ * </p>
+ */
+public class PaletteCache {
+
+    static final boolean DISABLED = Boolean.getBoolean("org.geoserver.wms.paletteCache.disable");
+
+    static final int DEFAULT_SIZE = 64;
+
+    /**
+     * How many times the mean quantization error of the image the palette was built for can be
+     * exceeded before the palette is considered not representative anymore
+     */
+    static final double MAX_ERROR_GROWTH = 2;
+
+    /**
+     * Mean squared error always tolerated, as the error of a palette on the image it was built for
+     * can be close to zero
+     */
+    static final double MIN_TOLERATED_ERROR = 48;
+
+    /**
+     * Sampling grid size used to estimate the quantization error
+     */
+    static final int SAMPLES = 64;
+
+    private static final PaletteCache INSTANCE = new PaletteCache(Integer.getInteger(
+            "org.geoserver.wms.paletteCache.size", DEFAULT_SIZE));
+
+    /**
+     * A palette along with the quantization error it had on the image it was built for
+     */
+    static final class CachedPalette {
+        final InverseColorLookup lookup;
+
+        final double error;
+
+        CachedPalette(InverseColorLookup lookup, double error) {
+            this.lookup = lookup;
+            this.error = error;
+        }
+    }
+
+    private final Map<String, CachedPalette> palettes;
+
+    public static PaletteCache get() {
+        return INSTANCE;
+    }
+
+    public static boolean isEnabled() {
+        return !DISABLED;
+    }
+
+    PaletteCache(final int size) {
+        this.palettes = Collections.synchronizedMap(new LinkedHashMap<String, CachedPalette>(16,
+                0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedPalette> eldest) {
+                return size() > size;
+            }
+        });
+    }
+
+    /**
+     * Returns the cache key for the map, made of the requested layers and styles, the
+     * transparency and the background color, or {@code null} if the map has no request to build
+     * it from
+     */
+    public static String getKey(WMSMapContent mapContent) {
+        GetMapRequest request = mapContent.getRequest();
+        if (request == null || request.getLayers() == null || request.getLayers().isEmpty()) {
+            return null;
+        }
+        List<MapLayerInfo> layers = request.getLayers();
+        List<Style> styles = request.getStyles();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < layers.size(); i++) {
+            Style style = styles != null && i < styles.size() ? styles.get(i) : null;
+            sb.append(layers.get(i).getName()).append('/');
+            sb.append(style == null ? "" : style.getName()).append(',');
+        }
+        sb.append(request.isTransparent());
+        Color bgColor = request.getBgColor();
+        if (bgColor != null) {
+            sb.append(',').append(bgColor.getRGB());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns a color indexer for the image, reusing the palette cached under the key if still
+     * representative of the image colors, or building (and caching) a new one otherwise
+     *
+     * @param image a RGB or RGBA image, with a byte {@link java.awt.image.ComponentColorModel}
+     */
+    public ColorIndexer getColorIndexer(RenderedImage image, String key) {
+        CachedPalette cached = palettes.get(key);
+        if (cached != null
+                && getError(image, cached.lookup) <= Math.max(cached.error * MAX_ERROR_GROWTH,
+                        MIN_TOLERATED_ERROR)) {
+            return cached.lookup;
+        }
+
+        ColorIndexer indexer = new Quantizer(256).subsample().buildColorIndexer(image);
+        InverseColorLookup lookup = new InverseColorLookup(indexer);
+        palettes.put(key, new CachedPalette(lookup, getError(image, lookup)));
+        // the image the palette was built for uses the exact indexer
+        return indexer;
+    }
+
+    /**
+     * Drops all the cached palettes
+     */
+    public void clear() {
+        palettes.clear();
+    }
+
+    int size() {
+        return palettes.size();
+    }
+
+    /**
+     * Estimates the mean squared quantization error of the indexer on the image, matching a grid
+     * of pixel samples
+     */
+    static double getError(RenderedImage image, ColorIndexer indexer) {
+        IndexColorModel palette = indexer.toIndexColorModel();
+        ColorModel cm = image.getColorModel();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int stepX = Math.max(1, width / SAMPLES);
+        int stepY = Math.max(1, height / SAMPLES);
+        long error = 0;
+        int count = 0;
+        Object pixel = null;
+        for (int y = image.getMinY() + stepY / 2; y < image.getMinY() + height; y += stepY) {
+            Raster row = image.getData(new Rectangle(image.getMinX(), y, width, 1));
+            for (int x = image.getMinX() + stepX / 2; x < image.getMinX() + width; x += stepX) {
+                pixel = row.getDataElements(x, y, pixel);
+                int argb = cm.getRGB(pixel);
+                int a = argb >>> 24;
+                int r = (argb >> 16) & 0xFF;
+                int g = (argb >> 8) & 0xFF;
+                int b = argb & 0xFF;
+                int index = indexer.getClosestIndex(r, g, b, a);
+                int da = a - palette.getAlpha(index);
+                error += da * da;
+                if (a > 0) {
+                    // the color of fully transparent pixels does not matter
+                    int dr = r - palette.getRed(index);
+                    int dg = g - palette.getGreen(index);
+                    int db = b - palette.getBlue(index);
+                    error += dr * dr + dg * dg + db * db;
+                }
+                count++;
+            }
+        }
+        return count == 0 ? 0 : (double) error / count;
+    }
+
+    /**
+     * A {@link ColorIndexer} caching the closest palette entries in a table indexed by color,
+     * with 5 bits per color component and 16 alpha levels, fully transparent and fully opaque
+     * being levels of their own. The table is split in pages allocated on demand, as maps use a
+     * tiny fraction of the color space.
+     */
+    static final class InverseColorLookup implements ColorIndexer {
+
+        static final int PAGE_BITS = 10;
+
+        static final int[] ALPHA_LEVELS = new int[256];
+
+        static final int[] ALPHA_CENTERS = new int[16];
+
+        static {
+            int[] sums = new int[16];
+            int[] counts = new int[16];
+            for (int a = 0; a < 256; a++) {
+                int level = a == 0 ? 0 : a == 255 ? 15 : 1 + (a - 1) * 14 / 254;
+                ALPHA_LEVELS[a] = level;
+                sums[level] += a;
+                counts[level]++;
+            }
+            for (int level = 0; level < 16; level++) {
+                ALPHA_CENTERS[level] = sums[level] / counts[level];
+            }
+        }
+
+        final ColorIndexer indexer;
+
+        final IndexColorModel palette;
+
+        /**
+         * Palette index plus one by color key, zero meaning not looked up yet
+         */
+        final AtomicReferenceArray<short[]> pages = new AtomicReferenceArray<short[]>(
+                1 << (19 - PAGE_BITS));
+
+        InverseColorLookup(ColorIndexer indexer) {
+            this.indexer = indexer;
+            this.palette = indexer.toIndexColorModel();
+        }
+
+        @Override
+        public IndexColorModel toIndexColorModel() {
+            return palette;
+        }
+
+        @Override
+        public int getClosestIndex(int r, int g, int b, int a) {
+            final int key = (r >> 3) << 14 | (g >> 3) << 9 | (b >> 3) << 4 | ALPHA_LEVELS[a];
+            final int pageIndex = key >> PAGE_BITS;
+            short[] page = pages.get(pageIndex);
+            if (page == null) {
+                pages.compareAndSet(pageIndex, null, new short[1 << PAGE_BITS]);
+                page = pages.get(pageIndex);
+            }
+            final int offset = key & ((1 << PAGE_BITS) - 1);
+            int value = page[offset];
+            if (value == 0) {
+                // races are harmless, the same value gets computed
+                int index;
+                synchronized (indexer) {
+                    index = indexer.getClosestIndex((r & 0xF8) | 4, (g & 0xF8) | 4,
+                            (b & 0xF8) | 4, ALPHA_CENTERS[ALPHA_LEVELS[a]]);
+                }
+                value = index + 1;
+                page[offset] = (short) value;
+            }
+            return value - 1;
+        }
+    }
+}
@@ -5,6 +5,7 @@
  */
 package org.geoserver.wms.map;
 
+import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
 import java.util.Collections;
 import java.util.List;
@@ -24,6 +25,8 @@ public class RenderedImageMap extends WebMap {
 
     private List<GridCoverage2D> renderedCoverages;
 
+    private BufferedImage drawingSurface;
+
     public RenderedImageMap(final WMSMapContent mapContent, final RenderedImage image,
             final String mimeType) {
         super(mapContent);
@@ -38,6 +41,7 @@ public class RenderedImageMap extends WebMap {
     @Override
     protected void disposeInternal() {
         image = null;
+        drawingSurface = null;
     }
 
     /**
@@ -60,6 +64,19 @@ public class RenderedImageMap extends WebMap {
         this.renderedCoverages = renderedCoverages;
     }
 
+    /**
+     * Returns the pooled drawing surface the map has been drawn on, to be returned to the
+     * {@link DrawingSurfacePool} once the map has been encoded, or {@code null} if the map was not
+     * drawn on a pooled surface
+     */
+    public BufferedImage getDrawingSurface() {
+        return drawingSurface;
+    }
+
+    public void setDrawingSurface(BufferedImage drawingSurface) {
+        this.drawingSurface = drawingSurface;
+    }
+
     /**
      * Access to the map's context this map is created for
      */
@@ -531,6 +531,10 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
         }
 
         RenderedImageMap map = buildMap(mapContent, image);
+        if (preparedImage instanceof BufferedImage
+                && DrawingSurfacePool.get().isCheckedOut((BufferedImage) preparedImage)) {
+            map.setDrawingSurface((BufferedImage) preparedImage);
+        }
         return map;
     }
 
@@ -656,8 +660,8 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
 
     /**
      * Sets up a {@link BufferedImage#TYPE_4BYTE_ABGR} if the paletteInverter is not provided, or a
-     * indexed image otherwise. Subclasses may override this method should they need a special kind
-     * of image
+     * indexed image otherwise. The image is taken from the {@link DrawingSurfacePool}, unless
+     * disabled. Subclasses may override this method should they need a special kind of image
      * 
      * @param width
      * @param height
@@ -666,6 +670,12 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
      */
     protected RenderedImage prepareImage(int width, int height, IndexColorModel palette,
             boolean transparent) {
+        if (DrawingSurfacePool.isEnabled()) {
+            return DrawingSurfacePool.get().checkout(width, height,
+                    isPaletteSupported() ? palette : null,
+                    transparent && isTransparencySupported(),
+                    wms == null ? 0 : wms.getMaxRequestMemory());
+        }
         return ImageUtils.createImage(width, height, isPaletteSupported() ? palette : null,
                 transparent && isTransparencySupported());
     }
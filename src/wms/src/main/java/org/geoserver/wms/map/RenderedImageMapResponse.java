@@ -128,6 +128,8 @@ public abstract class RenderedImageMapResponse extends AbstractMapResponse {
                     RasterCleaner.addCoverage(coverage);
                 }
                 RasterCleaner.addImage(image);
+                // the image has been encoded, the surface it's been drawn on can be reused
+                RasterCleaner.addDrawingSurface(imageMap.getDrawingSurface());
             }
         } finally {
             imageMap.dispose();
@@ -179,8 +181,14 @@ public abstract class RenderedImageMapResponse extends AbstractMapResponse {
                 if (mapContent.getPalette() != null) {
                     indexer = new CachingColorIndexer(new LRUColorIndexer(icm, 1024));
                 } else if (palettedFormatName.equalsIgnoreCase(format)) {
+                    // reuse the palette of the previous maps of the same layers and styles, or
                     // build the palette and grab the optimized color indexer
-                    indexer = new Quantizer(256).subsample().buildColorIndexer(image);
+                    String key = PaletteCache.isEnabled() ? PaletteCache.getKey(mapContent) : null;
+                    if (key != null) {
+                        indexer = PaletteCache.get().getColorIndexer(image, key);
+                    } else {
+                        indexer = new Quantizer(256).subsample().buildColorIndexer(image);
+                    }
                 }
 
                 // if we have an indexer transform the image
@@ -0,0 +1,345 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.geoserver.config.impl.GeoServerLifecycleHandler;
+import org.geotools.styling.StyledLayerDescriptor;
+import org.geotools.styling.visitor.DuplicatingStyleVisitor;
+import org.geotools.util.Version;
+import org.geotools.util.logging.Logging;
+import org.xml.sax.EntityResolver;
+
+/**
+ * Caches the style documents parsed out of the SLD_BODY and SLD GetMap parameters, so that the
+ * clients sending the same dynamic style along with each tile don't pay for its parsing and
+ * validation over and over.
+ * <p>
+ * SLD_BODY documents are keyed by a hash of their contents. Remote SLD documents are keyed by
+ * URL and follow the HTTP caching rules: they are reused without contacting the remote server
+ * until they expire (as told by the {@code Cache-Control: max-age} or {@code Expires} headers),
+ * revalidated with a conditional request afterwards if they carry an {@code ETag} or
+ * {@code Last-Modified} header, and not cached at all when {@code Cache-Control: no-store} is
+ * used. The keys also tell the entity resolver used, documents parsed while external entities
+ * were allowed are not reused once they are disabled, and the other way round.
+ * </p>
+ * <p>
+ * Each request gets its own copy of the cached document, as the styles are handed over to the
+ * rendering machinery. The cache can be disabled by setting the
+ * {@code org.geoserver.wms.sldCache.disable} system property to {@code true}, its size is
+ * controlled by the {@code org.geoserver.wms.sldCache.size} one. The cache is emptied when the
+ * configuration is reset or reloaded.
+ * </p>
+ */
+public class SLDCache implements GeoServerLifecycleHandler {
+
+    static final Logger LOGGER = Logging.getLogger(SLDCache.class);
+
+    static final boolean DISABLED = Boolean.getBoolean("org.geoserver.wms.sldCache.disable");
+
+    static final int DEFAULT_SIZE = 64;
+
+    /**
+     * Parses, and optionally validates, a style document
+     */
+    public interface SLDParser {
+
+        /**
+         * Parses the document, validating it first if requested. Validation failures are
+         * reported by throwing an exception, as usual for the GetMap parameters
+         */
+        StyledLayerDescriptor parse(byte[] contents, boolean validate,
+                EntityResolver entityResolver) throws IOException;
+    }
+
+    /**
+     * A parsed document, along with the information needed to tell if it's still fresh
+     */
+    static final class CachedSLD {
+        final StyledLayerDescriptor sld;
+
+        final boolean validated;
+
+        final String etag;
+
+        final String lastModified;
+
+        /**
+         * Until when the document can be used without revalidation, in milliseconds
+         */
+        final long expires;
+
+        CachedSLD(StyledLayerDescriptor sld, boolean validated, String etag,
+                String lastModified, long expires) {
+            this.sld = sld;
+            this.validated = validated;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expires = expires;
+        }
+
+        boolean isUsable(boolean validate) {
+            return validated || !validate;
+        }
+
+        boolean isRevalidable() {
+            return etag != null || lastModified != null;
+        }
+    }
+
+    private final Map<String, CachedSLD> documents;
+
+    public static boolean isEnabled() {
+        return !DISABLED;
+    }
+
+    public SLDCache() {
+        this(Integer.getInteger("org.geoserver.wms.sldCache.size", DEFAULT_SIZE));
+    }
+
+    SLDCache(final int size) {
+        this.documents = Collections.synchronizedMap(new LinkedHashMap<String, CachedSLD>(16,
+                0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedSLD> eldest) {
+                return size() > size;
+            }
+        });
+    }
+
+    /**
+     * Returns a copy of the document with the specified contents, parsing and caching it if not
+     * found in the cache
+     *
+     * @param format the style format, as the parsed result depends on it
+     * @param version the style version, or {@code null}
+     * @param entityResolver the resolver handed to the parser, {@code null} to resolve external
+     *        entities
+     */
+    public StyledLayerDescriptor getSLD(byte[] contents, String format, Version version,
+            EntityResolver entityResolver, boolean validate, SLDParser parser)
+            throws IOException {
+        String key = getKey("body", format, version, entityResolver, getHash(contents));
+        CachedSLD cached = documents.get(key);
+        if (cached != null && cached.isUsable(validate)) {
+            return copy(cached.sld);
+        }
+
+        StyledLayerDescriptor sld = parser.parse(contents, validate, entityResolver);
+        documents.put(key, new CachedSLD(sld, validate, null, null, Long.MAX_VALUE));
+        return copy(sld);
+    }
+
+    /**
+     * Returns a copy of the document at the specified location, honoring the HTTP caching
+     * headers sent along with it. Only HTTP documents are cached, the other ones are read and
+     * parsed on each call.
+     *
+     * @param format the style format, as the parsed result depends on it
+     * @param version the style version, or {@code null}
+     * @param entityResolver the resolver handed to the parser, {@code null} to resolve external
+     *        entities
+     */
+    public StyledLayerDescriptor getSLD(URL url, String format, Version version,
+            EntityResolver entityResolver, boolean validate, SLDParser parser)
+            throws IOException {
+        URLConnection conn = url.openConnection();
+        if (!(conn instanceof HttpURLConnection)) {
+            InputStream input = conn.getInputStream();
+            try {
+                return parser.parse(IOUtils.toByteArray(input), validate, entityResolver);
+            } finally {
+                input.close();
+            }
+        }
+
+        String key = getKey("url", format, version, entityResolver, url.toExternalForm());
+        CachedSLD cached = documents.get(key);
+        if (cached != null && !cached.isUsable(validate)) {
+            cached = null;
+        }
+        long now = System.currentTimeMillis();
+        if (cached != null && now < cached.expires) {
+            return copy(cached.sld);
+        }
+
+        HttpURLConnection http = (HttpURLConnection) conn;
+        http.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        if (cached != null) {
+            if (cached.etag != null) {
+                http.setRequestProperty("If-None-Match", cached.etag);
+            }
+            if (cached.lastModified != null) {
+                http.setRequestProperty("If-Modified-Since", cached.lastModified);
+            }
+        }
+        http.connect();
+        try {
+            String cacheControl = http.getHeaderField("Cache-Control");
+            if (cached != null && http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine("Remote SLD " + url + " not modified, using the cached copy");
+                }
+                // the server might have sent fresh caching headers along
+                long expires = getExpiration(http, cacheControl, now);
+                documents.put(key, new CachedSLD(cached.sld, cached.validated, cached.etag,
+                        cached.lastModified, Math.max(expires, now)));
+                return copy(cached.sld);
+            }
+
+            StyledLayerDescriptor sld = parser.parse(read(http), validate, entityResolver);
+            String etag = http.getHeaderField("ETag");
+            String lastModified = http.getHeaderField("Last-Modified");
+            long expires = getExpiration(http, cacheControl, now);
+            CachedSLD parsed = new CachedSLD(sld, validate, etag, lastModified, expires);
+            if (!hasDirective(cacheControl, "no-store")
+                    && (parsed.isRevalidable() || expires > now)) {
+                documents.put(key, parsed);
+                return copy(sld);
+            } else {
+                documents.remove(key);
+                return sld;
+            }
+        } finally {
+            http.disconnect();
+        }
+    }
+
+    /**
+     * Drops all the cached documents
+     */
+    public void clear() {
+        documents.clear();
+    }
+
+    int size() {
+        return documents.size();
+    }
+
+    @Override
+    public void onReset() {
+        clear();
+    }
+
+    @Override
+    public void onDispose() {
+        clear();
+    }
+
+    @Override
+    public void beforeReload() {
+
+    }
+
+    @Override
+    public void onReload() {
+        clear();
+    }
+
+    /**
+     * Returns until when a response can be used without revalidation
+     */
+    static long getExpiration(HttpURLConnection http, String cacheControl, long now) {
+        if (hasDirective(cacheControl, "no-cache")) {
+            return 0;
+        }
+        String maxAge = getDirective(cacheControl, "max-age");
+        if (maxAge != null) {
+            try {
+                return now + Long.parseLong(maxAge) * 1000;
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        // zero if missing or invalid
+        return http.getExpiration();
+    }
+
+    static boolean hasDirective(String cacheControl, String name) {
+        return getDirective(cacheControl, name) != null;
+    }
+
+    /**
+     * Returns the value of a Cache-Control directive, an empty string for the directives without
+     * value, or {@code null} if the directive is not there
+     */
+    static String getDirective(String cacheControl, String name) {
+        if (cacheControl == null) {
+            return null;
+        }
+        for (String directive : cacheControl.split(",")) {
+            String[] kv = directive.trim().split("=", 2);
+            if (kv[0].trim().equalsIgnoreCase(name)) {
+                return kv.length > 1 ? kv[1].trim().replace("\"", "") : "";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the response body, decompressing it as needed
+     */
+    static byte[] read(HttpURLConnection http) throws IOException {
+        InputStream input = http.getInputStream();
+        try {
+            String encoding = http.getContentEncoding();
+            if ("gzip".equalsIgnoreCase(encoding)) {
+                input = new GZIPInputStream(input);
+            } else if ("deflate".equalsIgnoreCase(encoding)) {
+                input = new InflaterInputStream(input, new Inflater(true));
+            }
+            return IOUtils.toByteArray(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    static StyledLayerDescriptor copy(StyledLayerDescriptor sld) {
+        DuplicatingStyleVisitor duplicator = new DuplicatingStyleVisitor();
+        sld.accept(duplicator);
+        return (StyledLayerDescriptor) duplicator.getCopy();
+    }
+
+    static String getKey(String type, String format, Version version,
+            EntityResolver entityResolver, String id) {
+        // the parsed document depends on the resolver, e.g. whether external entities are allowed
+        String resolver = entityResolver == null ? "" : entityResolver.getClass().getName();
+        return type + ":" + format + ":" + (version == null ? "" : version.toString()) + ":"
+                + resolver + ":" + id;
+    }
+
+    static String getHash(byte[] contents) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(contents);
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -24,6 +24,7 @@ import org.geoserver.wms.MapProducerCapabilities;
 import org.geoserver.wms.RasterCleaner;
 import org.geoserver.wms.WMS;
 import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.map.tiff.StreamingTIFFWriter;
 import org.geotools.image.io.ImageIOExt;
 import org.geotools.image.palette.InverseColorMapOp;
 import org.geotools.resources.image.ImageUtilities;
@@ -91,6 +92,19 @@ public final class TIFFMapResponse extends RenderedImageMapResponse {
      */
     public void formatImageOutputStream(RenderedImage image, OutputStream outStream,
             WMSMapContent mapContent) throws ServiceException, IOException {
+        // do we want it to be 8 bits?
+        image = applyPalette(image, mapContent, IMAGE_TIFF8, false);
+
+        // large images are streamed out while their tiles are computed
+        if (StreamingTIFFWriter.isStreamable(image)) {
+            try {
+                new StreamingTIFFWriter().writeTIFF(image, outStream);
+            } finally {
+                RasterCleaner.addImage(image);
+            }
+            return;
+        }
+
         // getting a writer
         if (LOGGER.isLoggable(Level.FINE)) {
             LOGGER.fine("Getting a writer for tiff");
@@ -109,9 +123,6 @@ public final class TIFFMapResponse extends RenderedImageMapResponse {
             LOGGER.fine("Writing tiff image ...");
         }
 
-        // do we want it to be 8 bits?
-        image = applyPalette(image, mapContent, IMAGE_TIFF8, false);
-
         // write it out
         try {
             writer.setOutput(ioutstream);
@@ -0,0 +1,521 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map.png;
+
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.geoserver.platform.ServiceException;
+import org.geoserver.util.ThreadPools;
+import org.geotools.image.ImageWorker;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Encodes the image in PNG compressing bands of rows in parallel.
+ * <p>
+ * The image is split in bands of rows, each band is filtered and deflated on its own by a pool of
+ * threads, using the filter type that works best for the band, and ending with a sync flush so
+ * that the deflate streams of the bands can be concatenated into a single valid IDAT stream (the
+ * same approach as pigz). The bands are written out in order as soon as they are compressed.
+ * Small images, fitting in a single band, are encoded in the calling thread.
+ * </p>
+ * <p>
+ * Since each band is compressed without the dictionary of the previous one the output is slightly
+ * larger than the one of a sequential encoder, the trade off pays on large maps and meta tiles,
+ * where deflating dominates the encoding time.
+ * </p>
+ */
+public class ParallelPNGWriter {
+
+    private static final Logger LOGGER = Logging.getLogger(ParallelPNGWriter.class);
+
+    /**
+     * Minimum amount of filtered bytes in a band, smaller bands compress poorly
+     */
+    static final int MIN_BAND_BYTES = 128 * 1024;
+
+    static final int FILTER_NONE = 0;
+
+    static final int FILTER_SUB = 1;
+
+    static final int FILTER_UP = 2;
+
+    static final int FILTER_AVERAGE = 3;
+
+    static final int FILTER_PAETH = 4;
+
+    private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+    private static final int COLOR_GRAY = 0;
+
+    private static final int COLOR_RGB = 2;
+
+    private static final int COLOR_PALETTE = 3;
+
+    private static final int COLOR_GRAY_ALPHA = 4;
+
+    private static final int COLOR_RGB_ALPHA = 6;
+
+    private static final ThreadPools.Shared<ExecutorService> EXECUTOR =
+            new ThreadPools.Shared<ExecutorService>() {
+                @Override
+                protected ExecutorService create() {
+                    return ThreadPools.newFixedThreadPool("Parallel PNG encoder %d", Runtime
+                            .getRuntime().availableProcessors());
+                }
+            };
+
+    private final int minBandBytes;
+
+    public ParallelPNGWriter() {
+        this(MIN_BAND_BYTES);
+    }
+
+    ParallelPNGWriter(int minBandBytes) {
+        this.minBandBytes = minBandBytes;
+    }
+
+    /**
+     * Encodes the image
+     *
+     * @param quality the compression quality, between 0 (best compression) and 1 (no compression)
+     * @return the image actually encoded, which may be a byte based copy of the input one
+     */
+    public RenderedImage writePNG(RenderedImage image, OutputStream outStream, float quality) {
+        if (!isSupported(image)) {
+            image = new ImageWorker(image).rescaleToBytes().forceComponentColorModel()
+                    .getRenderedImage();
+        }
+        int level = Math.max(0, Math.min(9, Math.round(9 * (1 - quality))));
+        try {
+            encode(image, outStream, level);
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Failed to encode the PNG", e);
+            throw new ServiceException(e);
+        }
+        return image;
+    }
+
+    /**
+     * Returns whether the image can be encoded without conversions, that is, an 8 bit paletted
+     * image, or a byte gray or RGB image with an optional, not premultiplied, alpha channel
+     */
+    static boolean isSupported(RenderedImage image) {
+        ColorModel cm = image.getColorModel();
+        SampleModel sm = image.getSampleModel();
+        if (cm instanceof IndexColorModel) {
+            return sm.getNumBands() == 1 && sm.getSampleSize(0) <= 8
+                    && ((IndexColorModel) cm).getMapSize() <= 256;
+        }
+        if (!(cm instanceof ComponentColorModel) || sm.getDataType() != DataBuffer.TYPE_BYTE
+                || cm.isAlphaPremultiplied()) {
+            return false;
+        }
+        int colorSpace = cm.getColorSpace().getType();
+        int bands = sm.getNumBands();
+        if (colorSpace == ColorSpace.TYPE_GRAY) {
+            return bands == (cm.hasAlpha() ? 2 : 1);
+        } else if (colorSpace == ColorSpace.TYPE_RGB) {
+            return bands == (cm.hasAlpha() ? 4 : 3);
+        }
+        return false;
+    }
+
+    void encode(final RenderedImage image, OutputStream outStream, final int level)
+            throws IOException, InterruptedException, ExecutionException {
+        final ColorModel cm = image.getColorModel();
+        final boolean paletted = cm instanceof IndexColorModel;
+        final int channels = paletted ? 1 : image.getSampleModel().getNumBands();
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int rowBytes = width * channels;
+
+        DataOutputStream out = new DataOutputStream(outStream);
+        out.write(SIGNATURE);
+        writeHeader(out, width, height, getColorType(cm, channels));
+        if (paletted) {
+            writePalette(out, (IndexColorModel) cm);
+        }
+
+        // zlib header, the deflate blocks of the bands follow
+        writeChunk(out, "IDAT", new byte[] { 0x78, (byte) (level < 2 ? 0x01 : level < 6 ? 0x5E
+                : level < 7 ? 0x9C : 0xDA) });
+
+        final int rowsPerBand = Math.max(1, minBandBytes / (rowBytes + 1));
+        List<Band> bands = new ArrayList<Band>();
+        for (int y = 0; y < height; y += rowsPerBand) {
+            bands.add(new Band(image, y, Math.min(rowsPerBand, height - y), paletted, level,
+                    y + rowsPerBand >= height));
+        }
+
+        List<Future<Band>> results = new ArrayList<Future<Band>>(bands.size());
+        if (bands.size() == 1) {
+            bands.get(0).call();
+        } else {
+            for (Band band : bands) {
+                results.add(EXECUTOR.get().submit(band));
+            }
+        }
+
+        long adler = 1;
+        try {
+            for (int i = 0; i < bands.size(); i++) {
+                Band band = results.isEmpty() ? bands.get(i) : results.get(i).get();
+                adler = combineAdler32(adler, band.adler, band.length);
+                byte[] data = band.compressed;
+                if (band.last) {
+                    byte[] trailer = new byte[data.length + 4];
+                    System.arraycopy(data, 0, trailer, 0, data.length);
+                    trailer[data.length] = (byte) (adler >>> 24);
+                    trailer[data.length + 1] = (byte) (adler >>> 16);
+                    trailer[data.length + 2] = (byte) (adler >>> 8);
+                    trailer[data.length + 3] = (byte) adler;
+                    data = trailer;
+                }
+                writeChunk(out, "IDAT", data);
+                band.compressed = null;
+            }
+        } finally {
+            for (Future<Band> result : results) {
+                result.cancel(false);
+            }
+        }
+
+        writeChunk(out, "IEND", new byte[0]);
+        out.flush();
+    }
+
+    private static int getColorType(ColorModel cm, int channels) {
+        if (cm instanceof IndexColorModel) {
+            return COLOR_PALETTE;
+        }
+        switch (channels) {
+        case 1:
+            return COLOR_GRAY;
+        case 2:
+            return COLOR_GRAY_ALPHA;
+        case 3:
+            return COLOR_RGB;
+        default:
+            return COLOR_RGB_ALPHA;
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out, int width, int height, int colorType)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(13);
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(width);
+        header.writeInt(height);
+        header.writeByte(8); // bit depth
+        header.writeByte(colorType);
+        header.writeByte(0); // deflate
+        header.writeByte(0); // adaptive filtering
+        header.writeByte(0); // no interlacing
+        writeChunk(out, "IHDR", bytes.toByteArray());
+    }
+
+    private static void writePalette(DataOutputStream out, IndexColorModel icm)
+            throws IOException {
+        int size = icm.getMapSize();
+        byte[] palette = new byte[size * 3];
+        int lastTranslucent = -1;
+        byte[] alphas = new byte[size];
+        for (int i = 0; i < size; i++) {
+            palette[i * 3] = (byte) icm.getRed(i);
+            palette[i * 3 + 1] = (byte) icm.getGreen(i);
+            palette[i * 3 + 2] = (byte) icm.getBlue(i);
+            alphas[i] = (byte) icm.getAlpha(i);
+            if (icm.getAlpha(i) != 255) {
+                lastTranslucent = i;
+            }
+        }
+        writeChunk(out, "PLTE", palette);
+        if (lastTranslucent >= 0) {
+            byte[] transparency = new byte[lastTranslucent + 1];
+            System.arraycopy(alphas, 0, transparency, 0, transparency.length);
+            writeChunk(out, "tRNS", transparency);
+        }
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data)
+            throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(typeBytes);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Computes the Adler-32 checksum of two concatenated byte sequences out of their checksums, as
+     * zlib's adler32_combine
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long remainder = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (remainder * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + base - remainder;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= (base << 1)) {
+            sum2 -= (base << 1);
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * A band of rows, filtered and compressed on its own
+     */
+    static final class Band implements Callable<Band> {
+
+        final RenderedImage image;
+
+        final int y;
+
+        final int rows;
+
+        final boolean paletted;
+
+        final int level;
+
+        final boolean last;
+
+        int filter;
+
+        byte[] compressed;
+
+        long adler;
+
+        long length;
+
+        Band(RenderedImage image, int y, int rows, boolean paletted, int level, boolean last) {
+            this.image = image;
+            this.y = y;
+            this.rows = rows;
+            this.paletted = paletted;
+            this.level = level;
+            this.last = last;
+        }
+
+        @Override
+        public Band call() {
+            final int channels = paletted ? 1 : image.getSampleModel().getNumBands();
+            final int rowBytes = image.getWidth() * channels;
+
+            // read the rows, along with the one before the band the filters refer to
+            final byte[][] raw = readRows(y == 0 ? 0 : y - 1, y == 0 ? rows : rows + 1,
+                    channels);
+            final byte[] previousRow = y == 0 ? new byte[rowBytes] : raw[0];
+            final int first = y == 0 ? 0 : 1;
+
+            filter = paletted ? FILTER_NONE : pickFilter(raw, first, previousRow, channels);
+
+            // filter
+            byte[] filtered = new byte[rows * (rowBytes + 1)];
+            byte[] prior = previousRow;
+            for (int r = 0; r < rows; r++) {
+                byte[] row = raw[first + r];
+                int offset = r * (rowBytes + 1);
+                filtered[offset] = (byte) filter;
+                applyFilter(filter, row, prior, channels, filtered, offset + 1);
+                prior = row;
+            }
+
+            Adler32 checksum = new Adler32();
+            checksum.update(filtered);
+            adler = checksum.getValue();
+            length = filtered.length;
+
+            // deflate, ending with a sync flush so that the next band can be appended
+            Deflater deflater = new Deflater(level, true);
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(filtered.length / 4 + 64);
+                byte[] buffer = new byte[64 * 1024];
+                deflater.setInput(filtered);
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        int count = deflater.deflate(buffer);
+                        out.write(buffer, 0, count);
+                    }
+                } else {
+                    int count;
+                    do {
+                        count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                        out.write(buffer, 0, count);
+                    } while (count == buffer.length);
+                }
+                compressed = out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+            return this;
+        }
+
+        /**
+         * Reads rows of pixels in PNG sample order
+         */
+        byte[][] readRows(int startRow, int count, int channels) {
+            final int width = image.getWidth();
+            final int minX = image.getMinX();
+            final int minY = image.getMinY();
+            Raster raster = image.getData(new Rectangle(minX, minY + startRow, width, count));
+            byte[][] rows = new byte[count][width * channels];
+
+            SampleModel sm = raster.getSampleModel();
+            if (sm instanceof ComponentSampleModel
+                    && raster.getDataBuffer() instanceof DataBufferByte) {
+                // fast path, straight out of the backing arrays
+                ComponentSampleModel csm = (ComponentSampleModel) sm;
+                DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+                int[] bandOffsets = csm.getBandOffsets();
+                int[] banks = csm.getBankIndices();
+                int pixelStride = csm.getPixelStride();
+                int scanlineStride = csm.getScanlineStride();
+                int tx = raster.getSampleModelTranslateX();
+                int ty = raster.getSampleModelTranslateY();
+                for (int b = 0; b < channels; b++) {
+                    byte[] data = buffer.getData(banks[b]);
+                    int bankOffset = buffer.getOffsets()[banks[b]] + bandOffsets[b];
+                    for (int r = 0; r < count; r++) {
+                        byte[] row = rows[r];
+                        int index = bankOffset + (minY + startRow + r - ty) * scanlineStride
+                                + (minX - tx) * pixelStride;
+                        for (int x = 0, i = b; x < width; x++, i += channels) {
+                            row[i] = data[index];
+                            index += pixelStride;
+                        }
+                    }
+                }
+            } else {
+                int[] pixels = new int[width * channels];
+                for (int r = 0; r < count; r++) {
+                    raster.getPixels(minX, minY + startRow + r, width, 1, pixels);
+                    byte[] row = rows[r];
+                    for (int i = 0; i < pixels.length; i++) {
+                        row[i] = (byte) pixels[i];
+                    }
+                }
+            }
+            return rows;
+        }
+
+        /**
+         * Picks the filter with the minimum sum of absolute differences over a sample of the rows
+         * of the band, the heuristic suggested by the PNG specification
+         */
+        static int pickFilter(byte[][] raw, int first, byte[] previousRow, int channels) {
+            final int rowBytes = previousRow.length;
+            final int step = Math.max(1, (raw.length - first) / 16);
+            byte[] target = new byte[rowBytes];
+            int best = FILTER_NONE;
+            long bestSum = Long.MAX_VALUE;
+            for (int filter = FILTER_NONE; filter <= FILTER_PAETH; filter++) {
+                long sum = 0;
+                for (int r = first; r < raw.length && sum < bestSum; r += step) {
+                    byte[] prior = r == first ? previousRow : raw[r - 1];
+                    applyFilter(filter, raw[r], prior, channels, target, 0);
+                    for (int i = 0; i < rowBytes; i++) {
+                        sum += Math.abs(target[i]);
+                    }
+                }
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    best = filter;
+                }
+            }
+            return best;
+        }
+
+        static void applyFilter(int filter, byte[] row, byte[] prior, int bpp, byte[] target,
+                int offset) {
+            final int length = row.length;
+            switch (filter) {
+            case FILTER_NONE:
+                System.arraycopy(row, 0, target, offset, length);
+                break;
+            case FILTER_SUB:
+                for (int i = 0; i < length; i++) {
+                    int left = i < bpp ? 0 : row[i - bpp] & 0xff;
+                    target[offset + i] = (byte) ((row[i] & 0xff) - left);
+                }
+                break;
+            case FILTER_UP:
+                for (int i = 0; i < length; i++) {
+                    target[offset + i] = (byte) ((row[i] & 0xff) - (prior[i] & 0xff));
+                }
+                break;
+            case FILTER_AVERAGE:
+                for (int i = 0; i < length; i++) {
+                    int left = i < bpp ? 0 : row[i - bpp] & 0xff;
+                    int average = (left + (prior[i] & 0xff)) >> 1;
+                    target[offset + i] = (byte) ((row[i] & 0xff) - average);
+                }
+                break;
+            case FILTER_PAETH:
+                for (int i = 0; i < length; i++) {
+                    int left = i < bpp ? 0 : row[i - bpp] & 0xff;
+                    int up = prior[i] & 0xff;
+                    int upLeft = i < bpp ? 0 : prior[i - bpp] & 0xff;
+                    target[offset + i] = (byte) ((row[i] & 0xff) - paeth(left, up, upLeft));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown filter type " + filter);
+            }
+        }
+
+        static int paeth(int left, int up, int upLeft) {
+            int p = left + up - upLeft;
+            int pa = Math.abs(p - left);
+            int pb = Math.abs(p - up);
+            int pc = Math.abs(p - upLeft);
+            if (pa <= pb && pa <= pc) {
+                return left;
+            } else if (pb <= pc) {
+                return up;
+            }
+            return upLeft;
+        }
+    }
+}
@@ -0,0 +1,626 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map.tiff;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.media.jai.PlanarImage;
+
+import org.geoserver.util.ThreadPools;
+import org.geotools.coverage.grid.io.imageio.geotiff.GeoTiffIIOMetadataEncoder;
+import org.geotools.gce.geotiff.CRS2GeoTiffMetadataAdapter;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.CRS.AxisOrder;
+import org.geotools.util.logging.Logging;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Encodes the image as an uncompressed, striped TIFF in a single forward pass over the output.
+ * <p>
+ * Since the strips are not compressed their size, and thus the whole file layout, is known in
+ * advance: the header and the directory are written right away, followed by the strips in order.
+ * The strips are computed by a separate thread, pulling the tiles of the image lazily (and asking
+ * JAI to prefetch the tiles of the next strip), while the request thread writes the ones already
+ * computed. At most a few strips are held in memory at any time, so neither the time to the first
+ * byte nor the memory used depend on the image size, unlike the ImageIO writers, which need a
+ * seekable stream and thus cache the whole encoded image before sending it.
+ * </p>
+ * <p>
+ * Since the output is sent while the image is computed, a failure in the middle of the image can
+ * only result in a truncated response.
+ * </p>
+ */
+public class StreamingTIFFWriter {
+
+    private static final Logger LOGGER = Logging.getLogger(StreamingTIFFWriter.class);
+
+    /**
+     * Max size of a strip, in bytes
+     */
+    static final int MAX_STRIP_BYTES = 1024 * 1024;
+
+    /**
+     * Number of strips computed ahead of the one being written
+     */
+    static final int PREFETCH = 4;
+
+    static final boolean DISABLED = Boolean.getBoolean("org.geoserver.wms.tiff.streaming.disable");
+
+    /**
+     * Min number of pixels an image must have to be streamed, smaller ones are better handled by
+     * the ImageIO writers
+     */
+    static final long THRESHOLD = Long.getLong("org.geoserver.wms.tiff.streaming.threshold",
+            1024 * 1024);
+
+    static final short TYPE_ASCII = 2;
+
+    static final short TYPE_SHORT = 3;
+
+    static final short TYPE_LONG = 4;
+
+    static final short TYPE_DOUBLE = 12;
+
+    static final int IMAGE_WIDTH = 256;
+
+    static final int IMAGE_LENGTH = 257;
+
+    static final int BITS_PER_SAMPLE = 258;
+
+    static final int COMPRESSION = 259;
+
+    static final int PHOTOMETRIC = 262;
+
+    static final int STRIP_OFFSETS = 273;
+
+    static final int SAMPLES_PER_PIXEL = 277;
+
+    static final int ROWS_PER_STRIP = 278;
+
+    static final int STRIP_BYTE_COUNTS = 279;
+
+    static final int PLANAR_CONFIGURATION = 284;
+
+    static final int COLOR_MAP = 320;
+
+    static final int EXTRA_SAMPLES = 338;
+
+    static final int SAMPLE_FORMAT = 339;
+
+    static final int MODEL_PIXEL_SCALE = 33550;
+
+    static final int MODEL_TIEPOINT = 33922;
+
+    static final int GEO_KEY_DIRECTORY = 34735;
+
+    static final int GEO_DOUBLE_PARAMS = 34736;
+
+    static final int GEO_ASCII_PARAMS = 34737;
+
+    private static final ThreadPools.Shared<ExecutorService> EXECUTOR =
+            new ThreadPools.Shared<ExecutorService>() {
+                @Override
+                protected ExecutorService create() {
+                    return ThreadPools.newCachedThreadPool("Streaming TIFF encoder %d");
+                }
+            };
+
+    /**
+     * A TIFF directory entry
+     */
+    public static final class Field {
+        final int tag;
+
+        final short type;
+
+        final int count;
+
+        final Object values;
+
+        Field(int tag, short type, long... values) {
+            this.tag = tag;
+            this.type = type;
+            this.count = values.length;
+            this.values = values;
+        }
+
+        Field(int tag, double... values) {
+            this.tag = tag;
+            this.type = TYPE_DOUBLE;
+            this.count = values.length;
+            this.values = values;
+        }
+
+        Field(int tag, String value) {
+            this.tag = tag;
+            this.type = TYPE_ASCII;
+            // NUL terminated
+            this.count = value.length() + 1;
+            this.values = value;
+        }
+
+        /**
+         * Size of the values, in bytes
+         */
+        int getSize() {
+            switch (type) {
+            case TYPE_ASCII:
+                return count;
+            case TYPE_SHORT:
+                return count * 2;
+            case TYPE_DOUBLE:
+                return count * 8;
+            default:
+                return count * 4;
+            }
+        }
+
+        void writeValues(DataOutputStream out) throws IOException {
+            if (type == TYPE_ASCII) {
+                out.writeBytes((String) values);
+                out.writeByte(0);
+            } else if (type == TYPE_DOUBLE) {
+                for (double value : (double[]) values) {
+                    out.writeDouble(value);
+                }
+            } else {
+                for (long value : (long[]) values) {
+                    if (type == TYPE_SHORT) {
+                        out.writeShort((int) value);
+                    } else {
+                        out.writeInt((int) value);
+                    }
+                }
+            }
+        }
+    }
+
+    private final int maxStripBytes;
+
+    private final int prefetch;
+
+    public StreamingTIFFWriter() {
+        this(MAX_STRIP_BYTES, PREFETCH);
+    }
+
+    StreamingTIFFWriter(int maxStripBytes, int prefetch) {
+        this.maxStripBytes = maxStripBytes;
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * Returns true if the image is large enough to benefit from streaming, and can be streamed
+     */
+    public static boolean isStreamable(RenderedImage image) {
+        return !DISABLED && (long) image.getWidth() * image.getHeight() >= THRESHOLD
+                && isSupported(image);
+    }
+
+    /**
+     * Returns whether the image can be encoded, that is, all its samples have the same size, and
+     * the uncompressed image fits in a classic, non BigTIFF, file. Paletted images with sub byte
+     * samples are expanded to a byte per pixel.
+     */
+    static boolean isSupported(RenderedImage image) {
+        SampleModel sm = image.getSampleModel();
+        if (getBitsPerSample(image) < 0) {
+            return false;
+        }
+        long size = (long) image.getWidth() * image.getHeight() * sm.getNumBands()
+                * (getBitsPerSample(image) / 8);
+        return size < 0xFFFFFFFFL - 64 * 1024;
+    }
+
+    /**
+     * Returns the bits per sample used in the TIFF, or -1 if the image cannot be encoded
+     */
+    static int getBitsPerSample(RenderedImage image) {
+        SampleModel sm = image.getSampleModel();
+        ColorModel cm = image.getColorModel();
+        if (cm instanceof IndexColorModel) {
+            return sm.getNumBands() == 1 && sm.getSampleSize(0) <= 8
+                    && ((IndexColorModel) cm).getMapSize() <= 256 ? 8 : -1;
+        }
+        int bits = sm.getSampleSize(0);
+        for (int i = 1; i < sm.getNumBands(); i++) {
+            if (sm.getSampleSize(i) != bits) {
+                return -1;
+            }
+        }
+        int dataType = sm.getDataType();
+        if ((dataType == DataBuffer.TYPE_FLOAT && bits != 32)
+                || (dataType == DataBuffer.TYPE_DOUBLE && bits != 64)) {
+            return -1;
+        }
+        return bits == 8 || bits == 16 || bits == 32 || bits == 64 ? bits : -1;
+    }
+
+    /**
+     * Returns the GeoTIFF fields locating the image in the specified area, or {@code null} if
+     * they cannot be built (unsupported CRS, or one whose axis order would require flipping the
+     * raster to model transformation)
+     */
+    public static List<Field> getGeoTIFFFields(ReferencedEnvelope envelope, int width,
+            int height) {
+        CoordinateReferenceSystem crs = envelope.getCoordinateReferenceSystem();
+        if (crs == null || CRS.getAxisOrder(crs) == AxisOrder.NORTH_EAST) {
+            return null;
+        }
+        List<Field> fields = new ArrayList<Field>();
+        try {
+            GeoTiffIIOMetadataEncoder encoder = new CRS2GeoTiffMetadataAdapter(crs)
+                    .parseCoordinateReferenceSystem();
+            // GTRasterTypeGeoKey, RasterPixelIsArea
+            encoder.addGeoShortParam(1025, 1);
+            NodeList nodes = encoder.createRootTree().getElementsByTagName("TIFFField");
+            for (int i = 0; i < nodes.getLength(); i++) {
+                Field field = parseField((Element) nodes.item(i));
+                if (field != null && field.tag >= GEO_KEY_DIRECTORY
+                        && field.tag <= GEO_ASCII_PARAMS) {
+                    fields.add(field);
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Could not encode " + crs + " in GeoTIFF", e);
+            return null;
+        }
+        if (fields.isEmpty()) {
+            return null;
+        }
+
+        fields.add(new Field(MODEL_PIXEL_SCALE, envelope.getWidth() / width,
+                envelope.getHeight() / height, 0));
+        fields.add(new Field(MODEL_TIEPOINT, 0, 0, 0, envelope.getMinX(), envelope.getMaxY(), 0));
+        return fields;
+    }
+
+    /**
+     * Parses a TIFFField element of the TIFF image metadata format
+     */
+    static Field parseField(Element element) {
+        int tag = Integer.parseInt(element.getAttribute("number"));
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (!(child instanceof Element)) {
+                continue;
+            }
+            String name = child.getNodeName();
+            NodeList values = ((Element) child).getElementsByTagName(name.substring(0,
+                    name.length() - 1));
+            if ("TIFFAsciis".equals(name)) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < values.getLength(); i++) {
+                    sb.append(((Element) values.item(i)).getAttribute("value"));
+                }
+                return new Field(tag, sb.toString());
+            } else if ("TIFFDoubles".equals(name)) {
+                double[] doubles = new double[values.getLength()];
+                for (int i = 0; i < doubles.length; i++) {
+                    doubles[i] = Double.parseDouble(((Element) values.item(i))
+                            .getAttribute("value"));
+                }
+                return new Field(tag, doubles);
+            } else if ("TIFFShorts".equals(name) || "TIFFLongs".equals(name)) {
+                long[] longs = new long[values.getLength()];
+                for (int i = 0; i < longs.length; i++) {
+                    longs[i] = Long.parseLong(((Element) values.item(i)).getAttribute("value"));
+                }
+                return new Field(tag, "TIFFShorts".equals(name) ? TYPE_SHORT : TYPE_LONG,
+                        longs);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Encodes the image as a TIFF
+     */
+    public void writeTIFF(RenderedImage image, OutputStream outStream) throws IOException {
+        write(image, new ArrayList<Field>(), outStream);
+    }
+
+    /**
+     * Encodes the image as a GeoTIFF, the fields being the ones returned by
+     * {@link #getGeoTIFFFields(ReferencedEnvelope, int, int)}
+     */
+    public void writeGeoTIFF(RenderedImage image, List<Field> geoFields, OutputStream outStream)
+            throws IOException {
+        write(image, geoFields, outStream);
+    }
+
+    void write(final RenderedImage image, List<Field> extraFields, OutputStream outStream)
+            throws IOException {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int bands = image.getSampleModel().getNumBands();
+        final int bits = getBitsPerSample(image);
+        if (bits < 0) {
+            throw new IOException("Unsupported image structure, sample model "
+                    + image.getSampleModel() + ", color model " + image.getColorModel());
+        }
+        final int rowBytes = width * bands * bits / 8;
+        final int rowsPerStrip = getRowsPerStrip(image, rowBytes);
+        final int strips = (height + rowsPerStrip - 1) / rowsPerStrip;
+
+        // the directory entries, sorted by tag
+        TreeMap<Integer, Field> fields = new TreeMap<Integer, Field>();
+        fields.put(IMAGE_WIDTH, new Field(IMAGE_WIDTH, TYPE_LONG, width));
+        fields.put(IMAGE_LENGTH, new Field(IMAGE_LENGTH, TYPE_LONG, height));
+        fields.put(BITS_PER_SAMPLE, new Field(BITS_PER_SAMPLE, TYPE_SHORT, fill(bands, bits)));
+        fields.put(COMPRESSION, new Field(COMPRESSION, TYPE_SHORT, 1));
+        fields.put(SAMPLES_PER_PIXEL, new Field(SAMPLES_PER_PIXEL, TYPE_SHORT, bands));
+        fields.put(ROWS_PER_STRIP, new Field(ROWS_PER_STRIP, TYPE_LONG, rowsPerStrip));
+        fields.put(PLANAR_CONFIGURATION, new Field(PLANAR_CONFIGURATION, TYPE_SHORT, 1));
+        fields.put(SAMPLE_FORMAT, new Field(SAMPLE_FORMAT, TYPE_SHORT, fill(bands,
+                getSampleFormat(image.getSampleModel().getDataType(), bits))));
+        addColorFields(image.getColorModel(), bands, fields);
+        for (Field field : extraFields) {
+            fields.put(field.tag, field);
+        }
+        long[] byteCounts = new long[strips];
+        for (int i = 0; i < strips; i++) {
+            byteCounts[i] = (long) Math.min(rowsPerStrip, height - i * rowsPerStrip) * rowBytes;
+        }
+        fields.put(STRIP_BYTE_COUNTS, new Field(STRIP_BYTE_COUNTS, TYPE_LONG, byteCounts));
+        // placeholder, same size as the actual offsets
+        fields.put(STRIP_OFFSETS, new Field(STRIP_OFFSETS, TYPE_LONG, new long[strips]));
+
+        // layout: header, directory, values not fitting in the entries, strips
+        long directorySize = 2 + 12 * fields.size() + 4;
+        long valuesSize = 0;
+        for (Field field : fields.values()) {
+            if (field.getSize() > 4) {
+                valuesSize += field.getSize() + (field.getSize() & 1);
+            }
+        }
+        long offset = 8 + directorySize + valuesSize;
+        long[] offsets = new long[strips];
+        for (int i = 0; i < strips; i++) {
+            offsets[i] = offset;
+            offset += byteCounts[i];
+        }
+        fields.put(STRIP_OFFSETS, new Field(STRIP_OFFSETS, TYPE_LONG, offsets));
+
+        DataOutputStream out = new DataOutputStream(outStream);
+        writeHeaderAndDirectory(out, fields.values(), 8 + directorySize);
+        // let the client know we're alive before the pixels are computed
+        out.flush();
+
+        writeStrips(image, out, rowsPerStrip, strips, bits);
+        out.flush();
+    }
+
+    private int getRowsPerStrip(RenderedImage image, int rowBytes) {
+        // whole rows of tiles if possible, so that each tile is computed once
+        int rows = image.getTileHeight();
+        if ((long) rows * rowBytes > maxStripBytes) {
+            rows = Math.max(1, maxStripBytes / Math.max(1, rowBytes));
+        }
+        return Math.min(rows, image.getHeight());
+    }
+
+    private static long[] fill(int count, long value) {
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = value;
+        }
+        return values;
+    }
+
+    private static int getSampleFormat(int dataType, int bits) {
+        if (dataType == DataBuffer.TYPE_FLOAT || dataType == DataBuffer.TYPE_DOUBLE) {
+            return 3;
+        } else if (dataType == DataBuffer.TYPE_SHORT
+                || (dataType == DataBuffer.TYPE_INT && bits == 32)) {
+            return 2;
+        }
+        return 1;
+    }
+
+    /**
+     * Adds the photometric interpretation, color map and extra samples fields
+     */
+    private static void addColorFields(ColorModel cm, int bands, TreeMap<Integer, Field> fields) {
+        int photometric;
+        int colorBands;
+        if (cm instanceof IndexColorModel) {
+            IndexColorModel icm = (IndexColorModel) cm;
+            photometric = 3;
+            colorBands = 1;
+            long[] colorMap = new long[3 * 256];
+            for (int i = 0; i < icm.getMapSize(); i++) {
+                // 16 bits per component
+                colorMap[i] = icm.getRed(i) * 257;
+                colorMap[256 + i] = icm.getGreen(i) * 257;
+                colorMap[512 + i] = icm.getBlue(i) * 257;
+            }
+            fields.put(COLOR_MAP, new Field(COLOR_MAP, TYPE_SHORT, colorMap));
+        } else if (cm != null && cm.getColorSpace().getType() == ColorSpace.TYPE_RGB
+                && bands >= 3) {
+            photometric = 2;
+            colorBands = 3;
+        } else {
+            // gray, or generic multiband data
+            photometric = 1;
+            colorBands = 1;
+        }
+        fields.put(PHOTOMETRIC, new Field(PHOTOMETRIC, TYPE_SHORT, photometric));
+
+        if (bands > colorBands) {
+            long[] extra = new long[bands - colorBands];
+            if (cm != null && cm.hasAlpha() && bands - colorBands == 1) {
+                // associated or unassociated alpha
+                extra[0] = cm.isAlphaPremultiplied() ? 1 : 2;
+            }
+            fields.put(EXTRA_SAMPLES, new Field(EXTRA_SAMPLES, TYPE_SHORT, extra));
+        }
+    }
+
+    private static void writeHeaderAndDirectory(DataOutputStream out,
+            Collection<Field> fields, long valuesOffset) throws IOException {
+        // big endian, version, directory offset
+        out.writeBytes("MM");
+        out.writeShort(42);
+        out.writeInt(8);
+
+        out.writeShort(fields.size());
+        List<Field> outOfLine = new ArrayList<Field>();
+        long offset = valuesOffset;
+        for (Field field : fields) {
+            out.writeShort(field.tag);
+            out.writeShort(field.type);
+            out.writeInt(field.count);
+            int size = field.getSize();
+            if (size <= 4) {
+                // left justified in the entry
+                field.writeValues(out);
+                for (int i = size; i < 4; i++) {
+                    out.writeByte(0);
+                }
+            } else {
+                out.writeInt((int) offset);
+                offset += size + (size & 1);
+                outOfLine.add(field);
+            }
+        }
+        // no next directory
+        out.writeInt(0);
+
+        for (Field field : outOfLine) {
+            field.writeValues(out);
+            if ((field.getSize() & 1) != 0) {
+                out.writeByte(0);
+            }
+        }
+    }
+
+    /**
+     * Computes the strips in a separate thread, and writes them as they are ready
+     */
+    private void writeStrips(final RenderedImage image, DataOutputStream out,
+            final int rowsPerStrip, final int strips, final int bits) throws IOException {
+        final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(prefetch);
+        Future<?> producer = EXECUTOR.get().submit(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < strips; i++) {
+                        prefetchTiles(image, (i + 1) * rowsPerStrip, rowsPerStrip);
+                        queue.put(encodeStrip(image, i * rowsPerStrip, rowsPerStrip, bits));
+                    }
+                } catch (InterruptedException e) {
+                    // the writer gave up
+                } catch (Throwable t) {
+                    try {
+                        queue.put(t);
+                    } catch (InterruptedException e) {
+                        // the writer gave up
+                    }
+                }
+            }
+        });
+
+        try {
+            for (int i = 0; i < strips; i++) {
+                Object strip = queue.take();
+                if (strip instanceof Throwable) {
+                    throw new IOException("Failed to compute the image strip " + i,
+                            (Throwable) strip);
+                }
+                out.write((byte[]) strip);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for the image strips", e);
+        } finally {
+            producer.cancel(true);
+        }
+    }
+
+    /**
+     * Asks JAI to compute in the background the tiles of the strip
+     */
+    private static void prefetchTiles(RenderedImage image, int y, int rows) {
+        if (!(image instanceof PlanarImage) || y >= image.getHeight()) {
+            return;
+        }
+        PlanarImage planar = (PlanarImage) image;
+        Rectangle area = new Rectangle(image.getMinX(), image.getMinY() + y, image.getWidth(),
+                Math.min(rows, image.getHeight() - y));
+        Point[] tiles = planar.getTileIndices(area);
+        if (tiles != null && tiles.length > 0) {
+            planar.prefetchTiles(tiles);
+        }
+    }
+
+    /**
+     * Returns the samples of the strip, pixel interleaved, big endian
+     */
+    static byte[] encodeStrip(RenderedImage image, int y, int rows, int bits) {
+        final int width = image.getWidth();
+        final int minX = image.getMinX();
+        final int minY = image.getMinY() + y;
+        rows = Math.min(rows, image.getHeight() - y);
+        final int samples = width * image.getSampleModel().getNumBands();
+        final int dataType = image.getSampleModel().getDataType();
+
+        Raster raster = image.getData(new Rectangle(minX, minY, width, rows));
+        ByteBuffer buffer = ByteBuffer.allocate(samples * rows * bits / 8);
+        int[] ints = null;
+        float[] floats = null;
+        double[] doubles = null;
+        for (int row = 0; row < rows; row++) {
+            if (dataType == DataBuffer.TYPE_DOUBLE) {
+                doubles = raster.getPixels(minX, minY + row, width, 1, doubles);
+                for (int i = 0; i < samples; i++) {
+                    buffer.putDouble(doubles[i]);
+                }
+            } else if (dataType == DataBuffer.TYPE_FLOAT) {
+                floats = raster.getPixels(minX, minY + row, width, 1, floats);
+                for (int i = 0; i < samples; i++) {
+                    buffer.putFloat(floats[i]);
+                }
+            } else {
+                ints = raster.getPixels(minX, minY + row, width, 1, ints);
+                for (int i = 0; i < samples; i++) {
+                    if (bits == 8) {
+                        buffer.put((byte) ints[i]);
+                    } else if (bits == 16) {
+                        buffer.putShort((short) ints[i]);
+                    } else {
+                        buffer.putInt(ints[i]);
+                    }
+                }
+            }
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,32 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.mvt;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Constants of the Mapbox vector tile output format
+ */
+public final class MVT {
+
+    public static final String MIME_TYPE = "application/x-protobuf;type=mapbox-vector";
+
+    public static final Set<String> OUTPUT_FORMATS = Collections
+            .unmodifiableSet(new HashSet<String>(Arrays.asList(MIME_TYPE,
+                    "application/vnd.mapbox-vector-tile", "pbf")));
+
+    /**
+     * Default tile extent, in tile coordinate units
+     */
+    public static final int DEFAULT_EXTENT = 4096;
+
+    private MVT() {
+        //
+    }
+}
@@ -0,0 +1,70 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.mvt;
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.GetMapOutputFormat;
+import org.geoserver.wms.MapProducerCapabilities;
+import org.geoserver.wms.WMSMapContent;
+
+/**
+ * Handles a GetMap request that expects a map in the Mapbox vector tile format. Styles are not
+ * applied, the features of each vector layer are encoded with all their attributes, leaving the
+ * styling to the client.
+ * 
+ * @see StreamingMVTMap
+ * @see MVTMapResponse
+ */
+public final class MVTMapOutputFormat implements GetMapOutputFormat {
+
+    /**
+     * Default capabilities for the vector tile format.
+     * 
+     * <p>
+     * <ol>
+     * <li>tiled = supported</li>
+     * <li>multipleValues = unsupported</li>
+     * <li>paletteSupported = unsupported</li>
+     * <li>transparency = supported</li>
+     * </ol>
+     */
+    private static MapProducerCapabilities CAPABILITIES = new MapProducerCapabilities(true,
+            false, false, true, null);
+
+    /**
+     * @return {@code ["application/x-protobuf;type=mapbox-vector",
+     *         "application/vnd.mapbox-vector-tile", "pbf"]}
+     * @see org.geoserver.wms.GetMapOutputFormat#getOutputFormatNames()
+     */
+    public Set<String> getOutputFormatNames() {
+        return MVT.OUTPUT_FORMATS;
+    }
+
+    /**
+     * @return {@code "application/x-protobuf;type=mapbox-vector"}
+     * @see org.geoserver.wms.GetMapOutputFormat#getMimeType()
+     */
+    public String getMimeType() {
+        return MVT.MIME_TYPE;
+    }
+
+    /**
+     * @see org.geoserver.wms.GetMapOutputFormat#produceMap(org.geoserver.wms.WMSMapContent)
+     */
+    public StreamingMVTMap produceMap(WMSMapContent mapContent) throws ServiceException,
+            IOException {
+        StreamingMVTMap map = new StreamingMVTMap(mapContent);
+        map.setMimeType(getMimeType());
+        return map;
+    }
+
+    public MapProducerCapabilities getCapabilities(String format) {
+        return CAPABILITIES;
+    }
+}
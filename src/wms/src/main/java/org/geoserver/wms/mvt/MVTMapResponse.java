@@ -0,0 +1,40 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.mvt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.map.AbstractMapResponse;
+
+/**
+ * Encodes the maps produced by {@link MVTMapOutputFormat}
+ * 
+ * @see StreamingMVTMap
+ */
+public final class MVTMapResponse extends AbstractMapResponse {
+
+    public MVTMapResponse() {
+        super(StreamingMVTMap.class, MVT.OUTPUT_FORMATS);
+    }
+
+    /**
+     * @see org.geoserver.ows.Response#write(java.lang.Object, java.io.OutputStream,
+     *      org.geoserver.platform.Operation)
+     */
+    @Override
+    public void write(Object value, OutputStream output, Operation operation) throws IOException,
+            ServiceException {
+        StreamingMVTMap map = (StreamingMVTMap) value;
+        try {
+            map.encode(output);
+        } finally {
+            map.dispose();
+        }
+    }
+}
@@ -0,0 +1,491 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.mvt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.Polygonal;
+import com.vividsolutions.jts.geom.Puntal;
+
+/**
+ * Writes a Mapbox vector tile, version 2 of the specification, in its protocol buffers
+ * encoding.
+ * <p>
+ * The geometries handed to the writer must be expressed in tile coordinates, with the origin in
+ * the upper left corner and the y axis pointing down, they are quantised to integer coordinates
+ * while encoded, dropping the repeated points and the parts collapsing in the process. Polygon
+ * rings are oriented as the specification requires.
+ * </p>
+ * <p>
+ * The features are encoded as soon as they are added, only the current layer is kept in memory,
+ * in its encoded form, as its length has to precede it in the output.
+ * </p>
+ */
+public class MVTWriter {
+
+    // Tile message
+    static final int TILE_LAYERS = 3;
+
+    // Layer message
+    static final int LAYER_NAME = 1;
+
+    static final int LAYER_FEATURES = 2;
+
+    static final int LAYER_KEYS = 3;
+
+    static final int LAYER_VALUES = 4;
+
+    static final int LAYER_EXTENT = 5;
+
+    static final int LAYER_VERSION = 15;
+
+    // Feature message
+    static final int FEATURE_ID = 1;
+
+    static final int FEATURE_TAGS = 2;
+
+    static final int FEATURE_TYPE = 3;
+
+    static final int FEATURE_GEOMETRY = 4;
+
+    // Value message
+    static final int VALUE_STRING = 1;
+
+    static final int VALUE_FLOAT = 2;
+
+    static final int VALUE_DOUBLE = 3;
+
+    static final int VALUE_SINT = 6;
+
+    static final int VALUE_BOOL = 7;
+
+    // Geometry types
+    static final int POINT = 1;
+
+    static final int LINESTRING = 2;
+
+    static final int POLYGON = 3;
+
+    // Geometry commands
+    static final int MOVE_TO = 1;
+
+    static final int LINE_TO = 2;
+
+    static final int CLOSE_PATH = 7;
+
+    // Wire types
+    static final int VARINT = 0;
+
+    static final int FIXED64 = 1;
+
+    static final int LENGTH_DELIMITED = 2;
+
+    static final int FIXED32 = 5;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final OutputStream out;
+
+    private final int extent;
+
+    private String layerName;
+
+    private final Buffer features = new Buffer();
+
+    private final Buffer feature = new Buffer();
+
+    private final Buffer geometry = new Buffer();
+
+    private final Buffer tags = new Buffer();
+
+    private final Map<String, Integer> keys = new LinkedHashMap<String, Integer>();
+
+    private final Map<Object, Integer> values = new LinkedHashMap<Object, Integer>();
+
+    /**
+     * Cursor of the geometry being encoded, the commands are relative to it
+     */
+    private int cursorX, cursorY;
+
+    public MVTWriter(OutputStream out, int extent) {
+        this.out = out;
+        this.extent = extent;
+    }
+
+    /**
+     * Starts a new layer, ending the current one if any
+     */
+    public void startLayer(String name) throws IOException {
+        if (layerName != null) {
+            endLayer();
+        }
+        this.layerName = name;
+    }
+
+    /**
+     * Adds a feature to the current layer
+     *
+     * @param id the feature id, or {@code null}
+     * @param geom the feature geometry, in tile coordinates
+     * @param attributes the feature attributes, {@code null} values are skipped
+     * @return {@code false} if the feature was skipped, as its geometry collapsed once quantised
+     */
+    public boolean addFeature(Long id, Geometry geom, Map<String, Object> attributes)
+            throws IOException {
+        if (layerName == null) {
+            throw new IllegalStateException("No layer started");
+        }
+        geometry.reset();
+        cursorX = cursorY = 0;
+        int type;
+        if (geom instanceof Puntal) {
+            type = POINT;
+            encodePoints(geom);
+        } else if (geom instanceof Polygonal) {
+            type = POLYGON;
+            for (int i = 0; i < geom.getNumGeometries(); i++) {
+                encodePolygon((Polygon) geom.getGeometryN(i));
+            }
+        } else {
+            type = LINESTRING;
+            for (int i = 0; i < geom.getNumGeometries(); i++) {
+                Geometry line = geom.getGeometryN(i);
+                if (line instanceof LineString) {
+                    encodePath(((LineString) line).getCoordinates(), false, false);
+                }
+            }
+        }
+        if (geometry.size == 0) {
+            return false;
+        }
+
+        tags.reset();
+        if (attributes != null) {
+            for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+                Object value = normalize(attribute.getValue());
+                if (value == null) {
+                    continue;
+                }
+                tags.writeVarint(index(keys, attribute.getKey()));
+                tags.writeVarint(index(values, value));
+            }
+        }
+
+        feature.reset();
+        if (id != null && id >= 0) {
+            feature.writeTag(FEATURE_ID, VARINT);
+            feature.writeVarint(id);
+        }
+        if (tags.size > 0) {
+            feature.writeTag(FEATURE_TAGS, LENGTH_DELIMITED);
+            feature.writeBytes(tags);
+        }
+        feature.writeTag(FEATURE_TYPE, VARINT);
+        feature.writeVarint(type);
+        feature.writeTag(FEATURE_GEOMETRY, LENGTH_DELIMITED);
+        feature.writeBytes(geometry);
+
+        features.writeTag(LAYER_FEATURES, LENGTH_DELIMITED);
+        features.writeBytes(feature);
+        return true;
+    }
+
+    /**
+     * Writes out the current layer, layers without features are skipped
+     */
+    public void endLayer() throws IOException {
+        if (layerName == null) {
+            return;
+        }
+        if (features.size > 0) {
+            Buffer layer = new Buffer();
+            layer.writeTag(LAYER_VERSION, VARINT);
+            layer.writeVarint(2);
+            layer.writeTag(LAYER_NAME, LENGTH_DELIMITED);
+            layer.writeString(layerName);
+            layer.append(features);
+            for (String key : keys.keySet()) {
+                layer.writeTag(LAYER_KEYS, LENGTH_DELIMITED);
+                layer.writeString(key);
+            }
+            Buffer value = new Buffer();
+            for (Object v : values.keySet()) {
+                value.reset();
+                writeValue(value, v);
+                layer.writeTag(LAYER_VALUES, LENGTH_DELIMITED);
+                layer.writeBytes(value);
+            }
+            layer.writeTag(LAYER_EXTENT, VARINT);
+            layer.writeVarint(extent);
+
+            Buffer header = new Buffer();
+            header.writeTag(TILE_LAYERS, LENGTH_DELIMITED);
+            header.writeVarint(layer.size);
+            out.write(header.bytes, 0, header.size);
+            out.write(layer.bytes, 0, layer.size);
+        }
+        layerName = null;
+        features.reset();
+        keys.clear();
+        values.clear();
+    }
+
+    /**
+     * Ends the current layer and flushes the output
+     */
+    public void flush() throws IOException {
+        endLayer();
+        out.flush();
+    }
+
+    private static <T> int index(Map<T, Integer> dictionary, T key) {
+        Integer index = dictionary.get(key);
+        if (index == null) {
+            index = dictionary.size();
+            dictionary.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * Maps the attribute values to the types the tile can hold, so that equal values share the
+     * same dictionary entry
+     */
+    static Object normalize(Object value) {
+        if (value == null || value instanceof String || value instanceof Boolean
+                || value instanceof Double || value instanceof Float) {
+            return value;
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        } else if (value instanceof Long) {
+            return value;
+        } else if (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64) {
+            return ((BigInteger) value).longValue();
+        } else if (value instanceof BigDecimal || value instanceof Number) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof Geometry) {
+            // secondary geometries are not encoded
+            return null;
+        }
+        return value.toString();
+    }
+
+    private static void writeValue(Buffer buffer, Object value) {
+        if (value instanceof String) {
+            buffer.writeTag(VALUE_STRING, LENGTH_DELIMITED);
+            buffer.writeString((String) value);
+        } else if (value instanceof Boolean) {
+            buffer.writeTag(VALUE_BOOL, VARINT);
+            buffer.writeVarint(((Boolean) value) ? 1 : 0);
+        } else if (value instanceof Long) {
+            buffer.writeTag(VALUE_SINT, VARINT);
+            long l = (Long) value;
+            buffer.writeVarint((l << 1) ^ (l >> 63));
+        } else if (value instanceof Float) {
+            buffer.writeTag(VALUE_FLOAT, FIXED32);
+            buffer.writeFixed32(Float.floatToIntBits((Float) value));
+        } else {
+            buffer.writeTag(VALUE_DOUBLE, FIXED64);
+            buffer.writeFixed64(Double.doubleToLongBits((Double) value));
+        }
+    }
+
+    private void encodePoints(Geometry points) {
+        int[] xy = new int[points.getNumGeometries() * 2];
+        int n = 0;
+        for (int i = 0; i < points.getNumGeometries(); i++) {
+            Point p = (Point) points.getGeometryN(i);
+            if (!p.isEmpty()) {
+                xy[n++] = round(p.getX());
+                xy[n++] = round(p.getY());
+            }
+        }
+        if (n == 0) {
+            return;
+        }
+        geometry.writeVarint(command(MOVE_TO, n / 2));
+        for (int i = 0; i < n; i += 2) {
+            writeDelta(xy[i], xy[i + 1]);
+        }
+    }
+
+    private void encodePolygon(Polygon polygon) {
+        if (!encodePath(polygon.getExteriorRing().getCoordinates(), true, true)) {
+            // the holes have no meaning without the shell
+            return;
+        }
+        for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+            encodePath(polygon.getInteriorRingN(i).getCoordinates(), true, false);
+        }
+    }
+
+    /**
+     * Encodes a line or a ring, quantising it
+     *
+     * @return {@code false} if the path collapsed and was not encoded
+     */
+    private boolean encodePath(Coordinate[] coordinates, boolean ring, boolean shell) {
+        int[] xy = new int[coordinates.length * 2];
+        int n = 0;
+        for (Coordinate c : coordinates) {
+            int x = round(c.x);
+            int y = round(c.y);
+            if (n > 0 && xy[n - 2] == x && xy[n - 1] == y) {
+                continue;
+            }
+            xy[n++] = x;
+            xy[n++] = y;
+        }
+        if (ring) {
+            // the closing point is implied by the ClosePath command
+            if (n > 2 && xy[0] == xy[n - 2] && xy[1] == xy[n - 1]) {
+                n -= 2;
+            }
+            if (n < 6) {
+                return false;
+            }
+            long area = 0;
+            for (int i = 0; i < n; i += 2) {
+                int j = (i + 2) % n;
+                area += (long) xy[i] * xy[j + 1] - (long) xy[j] * xy[i + 1];
+            }
+            if (area == 0) {
+                return false;
+            }
+            // with the y axis pointing down shells must have a positive area, holes a negative one
+            if ((area > 0) != shell) {
+                reverse(xy, n);
+            }
+        } else if (n < 4) {
+            return false;
+        }
+
+        geometry.writeVarint(command(MOVE_TO, 1));
+        writeDelta(xy[0], xy[1]);
+        geometry.writeVarint(command(LINE_TO, n / 2 - 1));
+        for (int i = 2; i < n; i += 2) {
+            writeDelta(xy[i], xy[i + 1]);
+        }
+        if (ring) {
+            geometry.writeVarint(command(CLOSE_PATH, 1));
+        }
+        return true;
+    }
+
+    private static void reverse(int[] xy, int n) {
+        for (int i = 0, j = n - 2; i < j; i += 2, j -= 2) {
+            int x = xy[i], y = xy[i + 1];
+            xy[i] = xy[j];
+            xy[i + 1] = xy[j + 1];
+            xy[j] = x;
+            xy[j + 1] = y;
+        }
+    }
+
+    private void writeDelta(int x, int y) {
+        geometry.writeVarint(zigZag(x - cursorX));
+        geometry.writeVarint(zigZag(y - cursorY));
+        cursorX = x;
+        cursorY = y;
+    }
+
+    private static int round(double ordinate) {
+        return (int) Math.round(ordinate);
+    }
+
+    static int command(int id, int count) {
+        return (id & 0x7) | (count << 3);
+    }
+
+    static int zigZag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    /**
+     * A growable byte buffer with the protocol buffers primitive encoders
+     */
+    static final class Buffer {
+        byte[] bytes = new byte[256];
+
+        int size;
+
+        void reset() {
+            size = 0;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+
+        void writeTag(int field, int wireType) {
+            writeVarint((field << 3) | wireType);
+        }
+
+        void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void writeVarint(int value) {
+            // uint32 fields, negative values never occur here
+            writeVarint(value & 0xFFFFFFFFL);
+        }
+
+        void writeFixed32(int value) {
+            ensureCapacity(4);
+            for (int i = 0; i < 4; i++) {
+                bytes[size++] = (byte) (value >> (8 * i));
+            }
+        }
+
+        void writeFixed64(long value) {
+            ensureCapacity(8);
+            for (int i = 0; i < 8; i++) {
+                bytes[size++] = (byte) (value >> (8 * i));
+            }
+        }
+
+        void writeString(String value) {
+            byte[] utf8 = value.getBytes(UTF8);
+            writeVarint(utf8.length);
+            ensureCapacity(utf8.length);
+            System.arraycopy(utf8, 0, bytes, size, utf8.length);
+            size += utf8.length;
+        }
+
+        /**
+         * Writes the contents of another buffer, prefixed by their length
+         */
+        void writeBytes(Buffer other) {
+            writeVarint(other.size);
+            append(other);
+        }
+
+        void append(Buffer other) {
+            ensureCapacity(other.size);
+            System.arraycopy(other.bytes, 0, bytes, size, other.size);
+            size += other.size;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.mvt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.WebMap;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.geometry.jts.GeometryClipper;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.FeatureLayer;
+import org.geotools.map.Layer;
+import org.geotools.referencing.CRS;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.Feature;
+import org.opengis.feature.Property;
+import org.opengis.feature.type.FeatureType;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.spatial.BBOX;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.util.AffineTransformation;
+import com.vividsolutions.jts.simplify.DouglasPeuckerSimplifier;
+
+/**
+ * Streaming Mapbox vector tile encoder.
+ * <p>
+ * Each vector layer of the map becomes a tile layer holding the features intersecting the map
+ * area plus a buffer, with all their attributes, styles are not applied. The geometries are
+ * transformed into tile coordinates, clipped to the buffered tile, simplified to a fraction of
+ * a pixel and quantised to the tile {@link MVT#DEFAULT_EXTENT extent}. Features are encoded as
+ * they are read, see {@link MVTWriter}.
+ * </p>
+ */
+public class StreamingMVTMap extends WebMap {
+
+    private static final Logger LOGGER = Logging.getLogger(StreamingMVTMap.class);
+
+    /**
+     * Buffer around the tile, in pixels, used if the request does not specify one
+     */
+    static final int DEFAULT_BUFFER = 8;
+
+    /**
+     * Simplification tolerance, in pixels
+     */
+    static final double SIMPLIFICATION_TOLERANCE = 0.25;
+
+    private final int extent = MVT.DEFAULT_EXTENT;
+
+    public StreamingMVTMap(WMSMapContent mapContent) {
+        super(mapContent);
+    }
+
+    public void encode(final OutputStream out) throws IOException {
+        MVTWriter writer = new MVTWriter(out, extent);
+        for (Layer layer : mapContent.layers()) {
+            if (layer instanceof FeatureLayer) {
+                writeLayer(writer, (FeatureLayer) layer);
+            } else if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Skipping non vector layer " + layer.getTitle());
+            }
+        }
+        writer.flush();
+    }
+
+    private void writeLayer(MVTWriter writer, FeatureLayer layer) throws IOException {
+        FeatureSource<?, ?> source = layer.getFeatureSource();
+        FeatureType schema = source.getSchema();
+        GeometryDescriptor geometryDescriptor = schema.getGeometryDescriptor();
+        if (geometryDescriptor == null) {
+            return;
+        }
+
+        // map to tile coordinates, y axis pointing down
+        final ReferencedEnvelope area = mapContent.getRenderingArea();
+        final double scaleX = extent / area.getWidth();
+        final double scaleY = extent / area.getHeight();
+        final AffineTransformation toTile = new AffineTransformation(scaleX, 0, -area.getMinX()
+                * scaleX, 0, -scaleY, area.getMaxY() * scaleY);
+        final double pixel = (double) extent / mapContent.getMapWidth();
+        final int buffer = mapContent.getBuffer() > 0 ? mapContent.getBuffer() : DEFAULT_BUFFER;
+        final Envelope clip = new Envelope(-buffer * pixel, extent + buffer * pixel, -buffer
+                * pixel, extent + buffer * pixel);
+        final GeometryClipper clipper = new GeometryClipper(clip);
+        final double tolerance = SIMPLIFICATION_TOLERANCE * pixel;
+
+        // query the buffered area in the native CRS
+        ReferencedEnvelope queryArea = new ReferencedEnvelope(area);
+        queryArea.expandBy(buffer * area.getWidth() / mapContent.getMapWidth(), buffer
+                * area.getHeight() / mapContent.getMapHeight());
+        CoordinateReferenceSystem nativeCrs = geometryDescriptor.getCoordinateReferenceSystem();
+        CoordinateReferenceSystem mapCrs = area.getCoordinateReferenceSystem();
+        MathTransform toMap = null;
+        try {
+            if (nativeCrs != null && mapCrs != null && !CRS.equalsIgnoreMetadata(nativeCrs, mapCrs)) {
+                queryArea = queryArea.transform(nativeCrs, true);
+                toMap = CRS.findMathTransform(nativeCrs, mapCrs, true);
+            }
+        } catch (Exception e) {
+            throw new IOException("Failed to reproject layer " + layer.getTitle()
+                    + " to the map CRS", e);
+        }
+
+        FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+        String geometryName = geometryDescriptor.getName().getLocalPart();
+        BBOX bboxFilter = ff.bbox(ff.property(geometryName), queryArea);
+        Query definitionQuery = layer.getQuery();
+        Query query = new Query(DataUtilities.mixQueries(definitionQuery, new Query(schema
+                .getName().getLocalPart(), bboxFilter), "mvtEncoder"));
+        query.setHints(definitionQuery.getHints());
+
+        writer.startLayer(layer.getTitle());
+        FeatureCollection<?, ?> features = source.getFeatures(query);
+        FeatureIterator<?> it = features.features();
+        try {
+            while (it.hasNext()) {
+                Feature feature = it.next();
+                Property geometryProperty = feature.getDefaultGeometryProperty();
+                Geometry geometry = geometryProperty == null ? null : (Geometry) geometryProperty
+                        .getValue();
+                if (geometry == null || geometry.isEmpty()) {
+                    continue;
+                }
+                if (toMap != null) {
+                    geometry = JTS.transform(geometry, toMap);
+                }
+                geometry = toTile.transform(geometry);
+                if (!clip.contains(geometry.getEnvelopeInternal())) {
+                    geometry = clipper.clip(geometry, true);
+                    if (geometry == null || geometry.isEmpty()) {
+                        continue;
+                    }
+                }
+                if (geometry.getDimension() > 0) {
+                    geometry = DouglasPeuckerSimplifier.simplify(geometry, tolerance);
+                }
+
+                Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+                for (Property property : feature.getProperties()) {
+                    if (property != geometryProperty && property.getValue() != null) {
+                        attributes.put(property.getName().getLocalPart(), property.getValue());
+                    }
+                }
+                writer.addFeature(getId(feature), geometry, attributes);
+            }
+        } catch (Exception e) {
+            throw new IOException("Failed to encode layer " + layer.getTitle(), e);
+        } finally {
+            it.close();
+        }
+        writer.endLayer();
+    }
+
+    /**
+     * @return the numeric part of the feature id, if any
+     */
+    static Long getId(Feature feature) {
+        if (feature.getIdentifier() == null) {
+            return null;
+        }
+        String fid = feature.getIdentifier().getID();
+        int i = fid.length();
+        while (i > 0 && Character.isDigit(fid.charAt(i - 1))) {
+            i--;
+        }
+        if (i == fid.length() || fid.length() - i > 18) {
+            return null;
+        }
+        return Long.valueOf(fid.substring(i));
+    }
+}
@@ -0,0 +1,227 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.geoserver.wms.RuleIndexer.IndexedRuleFilter;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.filter.FilterAttributeExtractor;
+import org.geotools.styling.FeatureTypeStyle;
+import org.geotools.styling.Rule;
+import org.geotools.styling.Style;
+import org.geotools.styling.StyleBuilder;
+import org.geotools.styling.visitor.DuplicatingStyleVisitor;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory;
+
+import com.vividsolutions.jts.geom.Point;
+
+public class RuleIndexerTest {
+
+    StyleBuilder sb = new StyleBuilder();
+
+    FilterFactory ff = CommonFactoryFinder.getFilterFactory(null);
+
+    SimpleFeatureType schema;
+
+    public RuleIndexerTest() {
+        SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+        tb.setName("test");
+        tb.add("geom", Point.class);
+        tb.add("name", String.class);
+        tb.add("value", Integer.class);
+        schema = tb.buildFeatureType();
+    }
+
+    private SimpleFeature feature(String name, Integer value) {
+        return SimpleFeatureBuilder.build(schema, new Object[] { null, name, value }, null);
+    }
+
+    private Style style(Rule... rules) {
+        Style style = sb.createStyle();
+        style.featureTypeStyles().add(sb.createFeatureTypeStyle("test", rules));
+        return style;
+    }
+
+    private Rule rule(Filter filter) {
+        Rule rule = sb.createRule(sb.createPointSymbolizer());
+        rule.setFilter(filter);
+        return rule;
+    }
+
+    /**
+     * Returns the positions of the rules matching the feature
+     */
+    private List<Integer> matches(Style style, SimpleFeature feature) {
+        Integer[] matches = new Integer[0];
+        List<Rule> rules = style.featureTypeStyles().get(0).rules();
+        for (int i = 0; i < rules.size(); i++) {
+            if (!rules.get(i).isElseFilter() && rules.get(i).getFilter().evaluate(feature)) {
+                matches = Arrays.copyOf(matches, matches.length + 1);
+                matches[matches.length - 1] = i;
+            }
+        }
+        return Arrays.asList(matches);
+    }
+
+    private Style uniqueValues(int count) {
+        Rule[] rules = new Rule[count];
+        for (int i = 0; i < count; i++) {
+            rules[i] = rule(ff.equals(ff.property("name"), ff.literal("v" + i)));
+        }
+        return style(rules);
+    }
+
+    /**
+     * Class breaks written as in SLD documents, with string literals
+     */
+    private Style classBreaks(int count) {
+        Rule[] rules = new Rule[count];
+        for (int i = 0; i < count; i++) {
+            rules[i] = rule(ff.and(
+                    ff.greaterOrEqual(ff.property("value"), ff.literal(String.valueOf(i * 10))),
+                    ff.less(ff.property("value"), ff.literal(String.valueOf((i + 1) * 10)))));
+        }
+        return style(rules);
+    }
+
+    @Test
+    public void testUniqueValues() {
+        Style style = uniqueValues(20);
+        Style indexed = RuleIndexer.index(style, schema);
+        assertNotSame(style, indexed);
+        FeatureTypeStyle fts = indexed.featureTypeStyles().get(0);
+        for (Rule rule : fts.rules()) {
+            assertTrue(rule.getFilter() instanceof IndexedRuleFilter);
+        }
+        // the original is untouched
+        assertFalse(style.featureTypeStyles().get(0).rules().get(0).getFilter() instanceof
+                IndexedRuleFilter);
+
+        assertEquals(Arrays.asList(0), matches(indexed, feature("v0", 0)));
+        assertEquals(Arrays.asList(13), matches(indexed, feature("v13", 0)));
+        assertEquals(Arrays.asList(13), matches(indexed, feature("v13", 5)));
+        assertEquals(Arrays.<Integer> asList(), matches(indexed, feature("V13", 0)));
+        assertEquals(Arrays.<Integer> asList(), matches(indexed, feature(null, 0)));
+
+        Filter union = RuleIndexer.getRulesFilter(indexed);
+        assertTrue(union.evaluate(feature("v19", 0)));
+        assertFalse(union.evaluate(feature("v20", 0)));
+        assertFalse(union.evaluate(feature(null, 0)));
+    }
+
+    @Test
+    public void testClassBreaks() {
+        Style indexed = RuleIndexer.index(classBreaks(12), schema);
+        assertTrue(indexed.featureTypeStyles().get(0).rules().get(0).getFilter() instanceof
+                IndexedRuleFilter);
+
+        assertEquals(Arrays.asList(0), matches(indexed, feature("a", 0)));
+        assertEquals(Arrays.asList(0), matches(indexed, feature("a", 9)));
+        assertEquals(Arrays.asList(1), matches(indexed, feature("a", 10)));
+        assertEquals(Arrays.asList(11), matches(indexed, feature("a", 119)));
+        assertEquals(Arrays.<Integer> asList(), matches(indexed, feature("a", 120)));
+        assertEquals(Arrays.<Integer> asList(), matches(indexed, feature("a", -1)));
+        assertEquals(Arrays.<Integer> asList(), matches(indexed, feature("a", null)));
+
+        // contiguous classes, a single range
+        Filter union = RuleIndexer.getRulesFilter(indexed);
+        assertEquals(ff.and(ff.greaterOrEqual(ff.property("value"), ff.literal(0d)),
+                ff.less(ff.property("value"), ff.literal(120d))), union);
+    }
+
+    @Test
+    public void testOverlappingRanges() {
+        Rule[] rules = new Rule[10];
+        for (int i = 0; i < rules.length; i++) {
+            rules[i] = rule(ff.between(ff.property("value"), ff.literal(i * 10),
+                    ff.literal(i * 10 + 15)));
+        }
+        Style indexed = RuleIndexer.index(style(rules), schema);
+        assertEquals(Arrays.asList(0), matches(indexed, feature("a", 5)));
+        assertEquals(Arrays.asList(0, 1), matches(indexed, feature("a", 10)));
+        assertEquals(Arrays.asList(0, 1), matches(indexed, feature("a", 15)));
+        assertEquals(Arrays.asList(1), matches(indexed, feature("a", 16)));
+        assertEquals(Arrays.asList(9), matches(indexed, feature("a", 105)));
+        assertEquals(Arrays.<Integer> asList(), matches(indexed, feature("a", 106)));
+    }
+
+    @Test
+    public void testElseRule() {
+        Style style = uniqueValues(12);
+        Rule elseRule = sb.createRule(sb.createPointSymbolizer());
+        elseRule.setElseFilter(true);
+        style.featureTypeStyles().get(0).rules().add(elseRule);
+
+        Style indexed = RuleIndexer.index(style, schema);
+        assertEquals(Arrays.asList(3), matches(indexed, feature("v3", 0)));
+        // unclassified features must still be read, for the else rule
+        assertSame(Filter.INCLUDE, RuleIndexer.getRulesFilter(indexed));
+    }
+
+    @Test
+    public void testNotIndexed() {
+        // too few rules
+        Style style = uniqueValues(5);
+        assertSame(style, RuleIndexer.index(style, schema));
+        assertSame(Filter.INCLUDE, RuleIndexer.getRulesFilter(style));
+
+        // more than one attribute
+        style = uniqueValues(12);
+        style.featureTypeStyles().get(0).rules().get(5)
+                .setFilter(ff.equals(ff.property("value"), ff.literal(5)));
+        assertSame(style, RuleIndexer.index(style, schema));
+
+        // not a comparison with a literal
+        style = uniqueValues(12);
+        style.featureTypeStyles().get(0).rules().get(5)
+                .setFilter(ff.like(ff.property("name"), "v*"));
+        assertSame(style, RuleIndexer.index(style, schema));
+
+        // a rule without filter
+        style = uniqueValues(12);
+        style.featureTypeStyles().get(0).rules().get(5).setFilter(null);
+        assertSame(style, RuleIndexer.index(style, schema));
+
+        // ranges on strings
+        style = uniqueValues(12);
+        style.featureTypeStyles().get(0).rules().get(5)
+                .setFilter(ff.less(ff.property("name"), ff.literal("v")));
+        assertSame(style, RuleIndexer.index(style, schema));
+    }
+
+    @Test
+    public void testCopiesAndVisitors() {
+        Style indexed = RuleIndexer.index(classBreaks(12), schema);
+
+        // the renderer rescaling copies keep the index
+        DuplicatingStyleVisitor duplicator = new DuplicatingStyleVisitor();
+        indexed.accept(duplicator);
+        Style copy = (Style) duplicator.getCopy();
+        assertTrue(copy.featureTypeStyles().get(0).rules().get(3).getFilter() instanceof
+                IndexedRuleFilter);
+
+        // the attributes needed are still found
+        FilterAttributeExtractor extractor = new FilterAttributeExtractor();
+        indexed.featureTypeStyles().get(0).rules().get(3).getFilter().accept(extractor, null);
+        assertEquals(new HashSet<String>(Arrays.asList("value")), extractor.getAttributeNameSet());
+    }
+}
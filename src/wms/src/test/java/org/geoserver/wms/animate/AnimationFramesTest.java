@@ -0,0 +1,122 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.animate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geoserver.platform.ServiceException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AnimationFramesTest {
+
+    private ExecutorService executor;
+
+    private AtomicInteger rendered;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        rendered = new AtomicInteger();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private List<FrameLoader> loaders(int count, final int failing) {
+        List<FrameLoader> loaders = new ArrayList<FrameLoader>();
+        for (int i = 0; i < count; i++) {
+            final int frame = i;
+            loaders.add(new FrameLoader(null, null, null, "TIME", String.valueOf(i)) {
+                @Override
+                public RenderedImage call() throws Exception {
+                    rendered.incrementAndGet();
+                    if (frame == failing) {
+                        throw new Exception("Frame " + frame + " failed");
+                    }
+                    return new BufferedImage(10 + frame, 10, BufferedImage.TYPE_INT_ARGB);
+                }
+            });
+        }
+        return loaders;
+    }
+
+    @Test
+    public void testFramesInOrder() throws Exception {
+        AnimationFrames frames = new AnimationFrames(loaders(10, -1), executor, 3);
+        assertEquals(10, frames.size());
+        assertEquals(0, rendered.get());
+
+        for (int i = 0; i < 10; i++) {
+            RenderedImage frame = (RenderedImage) frames.get(i);
+            assertEquals(10 + i, frame.getWidth());
+            // the frames after the next two are not rendered yet
+            assertTrue(rendered.get() <= i + 3);
+        }
+        assertEquals(10, rendered.get());
+
+        // written frames are released, but the primary one
+        assertNull(frames.get(5));
+        assertNotNull(frames.get(0));
+        assertEquals(10, frames.getWidth());
+    }
+
+    @Test
+    public void testWindow() throws Exception {
+        AnimationFrames frames = new AnimationFrames(loaders(10, -1), executor, 2);
+        RenderedImage first = (RenderedImage) frames.get(0);
+        assertSame(first, frames.get(0));
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        assertEquals(2, rendered.get());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        AnimationFrames frames = new AnimationFrames(loaders(5, 2), executor, 2);
+        frames.get(0);
+        frames.get(1);
+        try {
+            frames.get(2);
+            fail("Frame rendering should have failed");
+        } catch (ServiceException e) {
+            assertEquals("Frame 2 failed", e.getCause().getMessage());
+        }
+        // once failed the list is disposed, no more rendering is triggered
+        assertNull(frames.get(4));
+    }
+
+    @Test
+    public void testDispose() throws Exception {
+        AnimationFrames frames = new AnimationFrames(loaders(10, -1), executor, 2);
+        frames.get(0);
+        frames.dispose();
+        for (int i = 0; i < 10; i++) {
+            assertNull(frames.get(i));
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        // the second frame might have been cancelled before starting
+        assertTrue(rendered.get() <= 2);
+    }
+}
@@ -0,0 +1,181 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.featureinfo;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.styling.ExternalGraphic;
+import org.geotools.styling.Graphic;
+import org.geotools.styling.LineSymbolizer;
+import org.geotools.styling.PointSymbolizer;
+import org.geotools.styling.Rule;
+import org.geotools.styling.StyleBuilder;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.FilterFactory;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.io.WKTReader;
+
+public class VectorFootprintLayerIdentifierTest {
+
+    StyleBuilder sb = new StyleBuilder();
+
+    FilterFactory ff = CommonFactoryFinder.getFilterFactory(null);
+
+    VectorFootprintLayerIdentifier identifier;
+
+    /**
+     * The centers of the pixels around 50,50, with a 3 pixels buffer
+     */
+    Geometry hitArea = new GeometryFactory().toGeometry(new Envelope(47.5, 53.5, 47.5, 53.5));
+
+    @Before
+    public void setup() {
+        identifier = new VectorFootprintLayerIdentifier(null, null);
+    }
+
+    private SimpleFeatureType type(Class<?> binding) {
+        SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+        tb.setName("test");
+        tb.add("geom", binding);
+        tb.add("size", Integer.class);
+        return tb.buildFeatureType();
+    }
+
+    private SimpleFeature feature(String wkt, int size) throws Exception {
+        Geometry geometry = new WKTReader().read(wkt);
+        return SimpleFeatureBuilder.build(type(geometry.getClass()), new Object[] { geometry,
+                size }, null);
+    }
+
+    private boolean isHit(SimpleFeature feature, Rule... rules) {
+        List<List<Rule>> ftsRules = Collections.singletonList(Arrays.asList(rules));
+        return identifier.isHit(feature, (Geometry) feature.getDefaultGeometry(), ftsRules,
+                hitArea);
+    }
+
+    private PointSymbolizer mark(String name, Object size) {
+        Graphic graphic = sb.createGraphic(null, sb.createMark(name, Color.RED), null);
+        graphic.setSize(size instanceof String ? ff.property((String) size) : ff.literal(size));
+        return sb.createPointSymbolizer(graphic);
+    }
+
+    @Test
+    public void testFootprintComputable() {
+        SimpleFeatureType points = type(Point.class);
+        SimpleFeatureType lines = type(LineString.class);
+        SimpleFeatureType polygons = type(Polygon.class);
+        SimpleFeatureType generic = type(Geometry.class);
+
+        assertTrue(VectorFootprintLayerIdentifier.isFootprintComputable(
+                sb.createPolygonSymbolizer(Color.RED, Color.BLACK, 2), polygons));
+        assertTrue(VectorFootprintLayerIdentifier.isFootprintComputable(
+                sb.createLineSymbolizer(Color.RED, 3), lines));
+        assertTrue(VectorFootprintLayerIdentifier.isFootprintComputable(
+                sb.createLineSymbolizer(Color.RED, 3), polygons));
+        assertTrue(VectorFootprintLayerIdentifier.isFootprintComputable(mark("circle", 10),
+                points));
+        assertTrue(VectorFootprintLayerIdentifier.isFootprintComputable(mark("square", "size"),
+                points));
+
+        // symbolizers not matching the geometry type
+        assertFalse(VectorFootprintLayerIdentifier.isFootprintComputable(
+                sb.createPolygonSymbolizer(Color.RED), lines));
+        assertFalse(VectorFootprintLayerIdentifier.isFootprintComputable(mark("circle", 10),
+                polygons));
+        assertFalse(VectorFootprintLayerIdentifier.isFootprintComputable(
+                sb.createLineSymbolizer(Color.RED, 3), generic));
+
+        // dashes, offsets and non trivial symbols
+        LineSymbolizer dashed = sb.createLineSymbolizer(sb.createStroke(Color.RED, 3,
+                new float[] { 4, 4 }));
+        assertFalse(VectorFootprintLayerIdentifier.isFootprintComputable(dashed, lines));
+        LineSymbolizer offset = sb.createLineSymbolizer(Color.RED, 3);
+        offset.setPerpendicularOffset(ff.literal(5));
+        assertFalse(VectorFootprintLayerIdentifier.isFootprintComputable(offset, lines));
+        assertFalse(VectorFootprintLayerIdentifier.isFootprintComputable(mark("triangle", 10),
+                points));
+        ExternalGraphic icon = sb.createExternalGraphic("file:icon.png", "image/png");
+        assertFalse(VectorFootprintLayerIdentifier.isFootprintComputable(
+                sb.createPointSymbolizer(sb.createGraphic(icon, null, null)), points));
+        PointSymbolizer rotated = mark("square", 10);
+        rotated.getGraphic().setRotation(ff.literal(45));
+        assertFalse(VectorFootprintLayerIdentifier.isFootprintComputable(rotated, points));
+    }
+
+    @Test
+    public void testSquareMark() throws Exception {
+        Rule rule = sb.createRule(mark("square", 10));
+        // 5 pixels half size, plus half the mark stroke
+        assertTrue(isHit(feature("POINT(58 58)", 0), rule));
+        assertFalse(isHit(feature("POINT(60 50)", 0), rule));
+        assertFalse(isHit(feature("POINT(40 40)", 0), rule));
+    }
+
+    @Test
+    public void testCircleMark() throws Exception {
+        Rule rule = sb.createRule(mark("circle", 10));
+        assertTrue(isHit(feature("POINT(58 50)", 0), rule));
+        // would be hit by a square of the same size
+        assertFalse(isHit(feature("POINT(58 58)", 0), rule));
+    }
+
+    @Test
+    public void testDynamicSize() throws Exception {
+        Rule rule = sb.createRule(mark("square", "size"));
+        assertFalse(isHit(feature("POINT(70 50)", 10), rule));
+        assertTrue(isHit(feature("POINT(70 50)", 40), rule));
+    }
+
+    @Test
+    public void testLine() throws Exception {
+        Rule thin = sb.createRule(sb.createLineSymbolizer(Color.RED, 1));
+        Rule thick = sb.createRule(sb.createLineSymbolizer(Color.RED, 10));
+        SimpleFeature line = feature("LINESTRING(0 58, 100 58)", 0);
+        assertFalse(isHit(line, thin));
+        assertTrue(isHit(line, thick));
+    }
+
+    @Test
+    public void testPolygon() throws Exception {
+        Rule fill = sb.createRule(sb.createPolygonSymbolizer(Color.RED));
+        Rule outline = sb.createRule(sb.createLineSymbolizer(Color.RED, 1));
+        // the hit area is inside the polygon
+        SimpleFeature polygon = feature("POLYGON((0 0, 0 100, 100 100, 100 0, 0 0))", 0);
+        assertTrue(isHit(polygon, fill));
+        assertFalse(isHit(polygon, outline));
+        // next to it
+        SimpleFeature close = feature("POLYGON((55 0, 55 100, 100 100, 100 0, 55 0))", 0);
+        assertFalse(isHit(close, fill));
+    }
+
+    @Test
+    public void testElseRule() throws Exception {
+        Rule small = sb.createRule(mark("square", 2));
+        small.setFilter(ff.greater(ff.property("size"), ff.literal(5)));
+        Rule large = sb.createRule(mark("square", 20));
+        large.setElseFilter(true);
+        assertFalse(isHit(feature("POINT(60 50)", 10), small, large));
+        assertTrue(isHit(feature("POINT(60 50)", 0), small, large));
+    }
+}
@@ -0,0 +1,161 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.legendgraphic;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.data.test.MockData;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wms.GetLegendGraphicRequest;
+import org.geoserver.wms.WMSTestSupport;
+import org.geoserver.wms.legendgraphic.LegendGraphicCache.LegendKey;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
+public class LegendGraphicCacheTest extends WMSTestSupport {
+
+    private LegendGraphicCache cache;
+
+    @Before
+    public void clearCache() {
+        cache = GeoServerExtensions.bean(LegendGraphicCache.class);
+        cache.clear();
+    }
+
+    private String legendPath(String style) {
+        return "wms?service=WMS&version=1.1.1&request=GetLegendGraphic&layer="
+                + getLayerId(MockData.LAKES) + "&style=" + style
+                + "&format=image/png&width=20&height=20";
+    }
+
+    @Test
+    public void testCached() throws Exception {
+        MockHttpServletResponse response = getAsServletResponse(legendPath("Lakes"));
+        assertEquals("image/png", response.getContentType());
+        String etag = response.getHeader("ETag");
+        assertNotNull(etag);
+        assertNotNull(response.getHeader("Last-Modified"));
+        assertEquals(1, cache.size());
+
+        MockHttpServletResponse cached = getAsServletResponse(legendPath("Lakes"));
+        assertEquals(etag, cached.getHeader("ETag"));
+        assertArrayEquals(getBinary(response), getBinary(cached));
+        assertEquals(1, cache.size());
+
+        // other options, other legend
+        getAsServletResponse(legendPath("Lakes") + "&legend_options=dpi:180");
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testConditionalRequests() throws Exception {
+        String path = legendPath("Lakes");
+        MockHttpServletResponse response = getAsServletResponse(path);
+        String etag = response.getHeader("ETag");
+        String lastModified = response.getHeader("Last-Modified");
+
+        MockHttpServletRequest request = createRequest(path);
+        request.setMethod("GET");
+        request.setBodyContent(new byte[] {});
+        request.setHeader("If-None-Match", etag);
+        response = dispatch(request, "UTF-8");
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getErrorCode());
+
+        request = createRequest(path);
+        request.setMethod("GET");
+        request.setBodyContent(new byte[] {});
+        request.setHeader("If-None-Match", "\"abcdef\"");
+        response = dispatch(request, "UTF-8");
+        assertEquals(HttpServletResponse.SC_OK, response.getErrorCode());
+
+        request = createRequest(path);
+        request.setMethod("GET");
+        request.setBodyContent(new byte[] {});
+        request.setHeader("If-Modified-Since", lastModified);
+        response = dispatch(request, "UTF-8");
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getErrorCode());
+
+        request = createRequest(path);
+        request.setMethod("GET");
+        request.setBodyContent(new byte[] {});
+        request.setHeader("If-Modified-Since", "Thu, 01 Jan 1970 00:00:00 GMT");
+        response = dispatch(request, "UTF-8");
+        assertEquals(HttpServletResponse.SC_OK, response.getErrorCode());
+    }
+
+    @Test
+    public void testStyleChange() throws Exception {
+        getAsServletResponse(legendPath("Lakes"));
+        getAsServletResponse(legendPath("Default"));
+        assertEquals(2, cache.size());
+
+        StyleInfo style = getCatalog().getStyleByName("Lakes");
+        long stamp = cache.getStamp(style);
+        getCatalog().save(style);
+
+        // only the legend of the modified style is gone
+        assertEquals(1, cache.size());
+        assertFalse(stamp == cache.getStamp(style));
+    }
+
+    @Test
+    public void testNotCatalogStyle() throws Exception {
+        StyleInfo styleInfo = getCatalog().getStyleByName("Lakes");
+        GetLegendGraphicRequest request = new GetLegendGraphicRequest();
+        request.setFormat("image/png");
+        request.setStyles(Arrays.asList(styleInfo.getStyle()));
+        // no catalog style information, e.g. from SLD_BODY
+        assertNull(cache.getKey(request));
+
+        request.setStyleInfos(Arrays.asList(styleInfo));
+        LegendKey key = cache.getKey(request);
+        assertNotNull(key);
+        assertEquals(key, cache.getKey(request));
+
+        request.setStyleInfos(Arrays.asList((StyleInfo) null));
+        assertNull(cache.getKey(request));
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        LegendGraphicCache small = new LegendGraphicCache(getCatalog(), null, 100);
+        try {
+            StyleInfo styleInfo = getCatalog().getStyleByName("Lakes");
+            GetLegendGraphicRequest request = new GetLegendGraphicRequest();
+            request.setFormat("image/png");
+            request.setStyles(Arrays.asList(styleInfo.getStyle()));
+            request.setStyleInfos(Arrays.asList(styleInfo));
+            LegendKey first = small.getKey(request);
+            small.put(first, new CachedLegendGraphic(new byte[60], "image/png", "a", 0));
+            assertEquals(1, small.size());
+
+            request.setWidth(40);
+            LegendKey second = small.getKey(request);
+            small.put(second, new CachedLegendGraphic(new byte[60], "image/png", "b", 0));
+            assertEquals(1, small.size());
+            assertNull(small.get(first));
+            assertNotNull(small.get(second));
+
+            // too large to be cached at all
+            small.put(first, new CachedLegendGraphic(new byte[200], "image/png", "c", 0));
+            assertNull(small.get(first));
+        } finally {
+            small.onDispose();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+
+import org.geoserver.wms.RasterCleaner;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DrawingSurfacePoolTest {
+
+    private DrawingSurfacePool pool;
+
+    @Before
+    public void setUp() {
+        pool = new DrawingSurfacePool();
+    }
+
+    @Test
+    public void testReuse() {
+        BufferedImage surface = pool.checkout(256, 256, null, true, 0);
+        assertEquals(BufferedImage.TYPE_4BYTE_ABGR, surface.getType());
+        assertTrue(pool.isCheckedOut(surface));
+
+        Graphics2D graphics = surface.createGraphics();
+        graphics.setColor(Color.RED);
+        graphics.fillRect(0, 0, 256, 256);
+        graphics.dispose();
+        pool.release(surface);
+        assertFalse(pool.isCheckedOut(surface));
+        assertEquals(256 * 256 * 4, pool.getIdleMemory());
+
+        // a different kind of surface
+        BufferedImage opaque = pool.checkout(256, 256, null, false, 0);
+        assertEquals(BufferedImage.TYPE_3BYTE_BGR, opaque.getType());
+        assertNotSame(surface, opaque);
+
+        // same kind, reused and cleared
+        BufferedImage reused = pool.checkout(256, 256, null, true, 0);
+        assertSame(surface, reused);
+        assertEquals(0, reused.getRGB(10, 10));
+        assertEquals(0, pool.getIdleMemory());
+
+        // released twice, pooled once
+        pool.release(reused);
+        pool.release(reused);
+        assertEquals(256 * 256 * 4, pool.getIdleMemory());
+    }
+
+    @Test
+    public void testPalette() {
+        IndexColorModel palette = new IndexColorModel(8, 2, new byte[] { 0, (byte) 255 },
+                new byte[] { 0, 0 }, new byte[] { 0, 0 });
+        IndexColorModel other = new IndexColorModel(8, 2, new byte[] { 0, 0 }, new byte[] { 0,
+                (byte) 255 }, new byte[] { 0, 0 });
+
+        BufferedImage surface = pool.checkout(64, 64, palette, false, 0);
+        assertSame(palette, surface.getColorModel());
+        pool.release(surface);
+
+        BufferedImage otherSurface = pool.checkout(64, 64, other, false, 0);
+        assertSame(other, otherSurface.getColorModel());
+        assertSame(surface, pool.checkout(64, 64, palette, false, 0));
+    }
+
+    @Test
+    public void testBounded() {
+        // 256KB of max request memory, only one 256x256 ABGR surface fits
+        BufferedImage s1 = pool.checkout(256, 256, null, true, 256);
+        BufferedImage s2 = pool.checkout(256, 256, null, true, 256);
+        pool.release(s1);
+        pool.release(s2);
+        assertEquals(256 * 256 * 4, pool.getIdleMemory());
+
+        // a surface of another kind evicts the idle ones
+        BufferedImage s3 = pool.checkout(128, 128, null, true, 256);
+        pool.release(s3);
+        assertEquals(128 * 128 * 4, pool.getIdleMemory());
+        BufferedImage s4 = pool.checkout(300, 200, null, true, 256);
+        pool.release(s4);
+        assertEquals(300 * 200 * 4, pool.getIdleMemory());
+
+        // too large to be pooled at all
+        pool.release(pool.checkout(512, 512, null, true, 256));
+        assertEquals(300 * 200 * 4, pool.getIdleMemory());
+
+        pool.clear();
+        assertEquals(0, pool.getIdleMemory());
+    }
+
+    @Test
+    public void testForeignImagesIgnored() {
+        pool.release(new BufferedImage(10, 10, BufferedImage.TYPE_4BYTE_ABGR));
+        assertEquals(0, pool.getIdleMemory());
+    }
+
+    @Test
+    public void testReleasedByRasterCleaner() {
+        DrawingSurfacePool shared = DrawingSurfacePool.get();
+        shared.clear();
+        BufferedImage surface = shared.checkout(32, 32, null, false, 0);
+        RasterCleaner.addDrawingSurface(surface);
+        assertTrue(shared.isCheckedOut(surface));
+        RasterCleaner.cleanup();
+        assertFalse(shared.isCheckedOut(surface));
+        assertSame(surface, shared.checkout(32, 32, null, false, 0));
+    }
+}
@@ -0,0 +1,253 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import net.opengis.wfs.TransactionType;
+import net.opengis.wfs.WfsFactory;
+
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.data.test.MockData;
+import org.geoserver.wfs.TransactionEvent;
+import org.geoserver.wfs.TransactionEventType;
+import org.geoserver.wfs.request.TransactionRequest;
+import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.WMSTestSupport;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.FilterFactory;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+public class GeneralizationCacheTest extends WMSTestSupport {
+
+    private List<Runnable> tasks = new ArrayList<Runnable>();
+
+    private GeneralizationCache cache;
+
+    // run the builds on demand
+    private Executor executor = new Executor() {
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+    };
+
+    @Before
+    public void setUpCache() throws Exception {
+        tasks.clear();
+        cache = createCache(GeneralizationCache.MAX_SIZE);
+    }
+
+    private GeneralizationCache createCache(long maxSize) throws Exception {
+        return new GeneralizationCache(getCatalog(), getDataDirectory().findOrCreateDir(
+                "generalizationTest"), executor, maxSize);
+    }
+
+    @After
+    public void disposeCache() {
+        cache.onDispose();
+    }
+
+    private void runTasks() {
+        List<Runnable> running = new ArrayList<Runnable>(tasks);
+        tasks.clear();
+        for (Runnable task : running) {
+            task.run();
+        }
+    }
+
+    private WMSMapContent map(ReferencedEnvelope area, int width) {
+        WMSMapContent map = new WMSMapContent();
+        map.getViewport().setBounds(area);
+        map.setMapWidth(width);
+        map.setMapHeight(width);
+        return map;
+    }
+
+    private Map<String, SimpleFeature> read(SimpleFeatureSource source, ReferencedEnvelope area)
+            throws Exception {
+        FilterFactory ff = CommonFactoryFinder.getFilterFactory(null);
+        Map<String, SimpleFeature> features = new HashMap<String, SimpleFeature>();
+        SimpleFeatureIterator it = source.getFeatures(
+                ff.bbox(ff.property(""), area.getMinX(), area.getMinY(), area.getMaxX(),
+                        area.getMaxY(), null)).features();
+        try {
+            while (it.hasNext()) {
+                SimpleFeature feature = it.next();
+                features.put(feature.getID(), feature);
+            }
+        } finally {
+            it.close();
+        }
+        return features;
+    }
+
+    @Test
+    public void testSmallScale() throws Exception {
+        FeatureTypeInfo info = getCatalog().getFeatureTypeByName(getLayerId(MockData.STREAMS));
+        SimpleFeatureSource source = (SimpleFeatureSource) info.getFeatureSource(null, null);
+        ReferencedEnvelope bounds = info.getNativeBoundingBox();
+        WMSMapContent map = map(bounds, 64);
+
+        // not there yet, the build gets scheduled only once
+        assertNull(cache.getFeatureSource(info, source, null, map));
+        assertNull(cache.getFeatureSource(info, source, null, map));
+        assertEquals(1, tasks.size());
+        runTasks();
+        assertEquals(1, cache.getReadyCount());
+
+        SimpleFeatureSource generalized = cache.getFeatureSource(info, source, null, map);
+        assertTrue(generalized instanceof GeneralizedFeatureSource);
+        assertEquals(source.getSchema(), generalized.getSchema());
+
+        // same features, same attributes, geometries no more complex than the original ones
+        Map<String, SimpleFeature> expected = read(source, bounds);
+        Map<String, SimpleFeature> actual = read(generalized, bounds);
+        assertEquals(expected.keySet(), actual.keySet());
+        assertFalse(actual.isEmpty());
+        for (SimpleFeature feature : expected.values()) {
+            SimpleFeature copy = actual.get(feature.getID());
+            assertEquals(feature.getAttribute("NAME"), copy.getAttribute("NAME"));
+            assertEquals(feature.getAttribute("FID"), copy.getAttribute("FID"));
+            Geometry original = (Geometry) feature.getDefaultGeometry();
+            Geometry simplified = (Geometry) copy.getDefaultGeometry();
+            assertTrue(simplified.getNumPoints() <= original.getNumPoints());
+            assertTrue(original.getEnvelopeInternal().contains(simplified.getEnvelopeInternal()));
+        }
+
+        // the area filter is honored
+        ReferencedEnvelope away = new ReferencedEnvelope(10, 11, 10, 11,
+                bounds.getCoordinateReferenceSystem());
+        assertTrue(read(generalized, away).isEmpty());
+    }
+
+    @Test
+    public void testNotSmallScale() throws Exception {
+        FeatureTypeInfo info = getCatalog().getFeatureTypeByName(getLayerId(MockData.STREAMS));
+        SimpleFeatureSource source = (SimpleFeatureSource) info.getFeatureSource(null, null);
+        ReferencedEnvelope bounds = info.getNativeBoundingBox();
+        // the layer would cover many more pixels than the threshold
+        ReferencedEnvelope area = new ReferencedEnvelope(bounds.getMinX(), bounds.getMinX()
+                + bounds.getWidth() / 100, bounds.getMinY(), bounds.getMinY()
+                + bounds.getHeight() / 100, bounds.getCoordinateReferenceSystem());
+
+        assertNull(cache.getFeatureSource(info, source, null, map(area, 1024)));
+        assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void testPoints() throws Exception {
+        FeatureTypeInfo info = getCatalog().getFeatureTypeByName(getLayerId(MockData.BRIDGES));
+        SimpleFeatureSource source = (SimpleFeatureSource) info.getFeatureSource(null, null);
+        WMSMapContent map = map(getCatalog().getFeatureTypeByName(
+                getLayerId(MockData.STREAMS)).getNativeBoundingBox(), 64);
+
+        // nothing to generalize
+        assertNull(cache.getFeatureSource(info, source, null, map));
+        assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+        FeatureTypeInfo info = getCatalog().getFeatureTypeByName(getLayerId(MockData.STREAMS));
+        SimpleFeatureSource source = (SimpleFeatureSource) info.getFeatureSource(null, null);
+        WMSMapContent map = map(info.getNativeBoundingBox(), 64);
+        cache.getFeatureSource(info, source, null, map);
+        runTasks();
+        SimpleFeatureSource generalized = cache.getFeatureSource(info, source, null, map);
+        assertNotNull(generalized);
+
+        // a transaction drops the copy, also for the sources already handed out
+        TransactionType tx = WfsFactory.eINSTANCE.createTransactionType();
+        cache.dataStoreChange(new TransactionEvent(TransactionEventType.PRE_UPDATE,
+                TransactionRequest.adapt(tx), MockData.STREAMS, null));
+        assertEquals(0, cache.getReadyCount());
+        assertEquals(read(source, info.getNativeBoundingBox()).keySet(),
+                read(generalized, info.getNativeBoundingBox()).keySet());
+        runTasks();
+
+        // rebuilt on demand
+        assertNull(cache.getFeatureSource(info, source, null, map));
+        runTasks();
+        assertNotNull(cache.getFeatureSource(info, source, null, map));
+
+        // and dropped again once the transaction is over
+        cache.afterTransaction(tx, null, true);
+        assertEquals(0, cache.getReadyCount());
+
+        // as well as on configuration changes
+        cache.getFeatureSource(info, source, null, map);
+        runTasks();
+        assertEquals(1, cache.getReadyCount());
+        getCatalog().save(info);
+        assertEquals(0, cache.getReadyCount());
+    }
+
+    @Test
+    public void testTooLarge() throws Exception {
+        cache.onDispose();
+        cache = createCache(1);
+        FeatureTypeInfo info = getCatalog().getFeatureTypeByName(getLayerId(MockData.STREAMS));
+        SimpleFeatureSource source = (SimpleFeatureSource) info.getFeatureSource(null, null);
+        WMSMapContent map = map(info.getNativeBoundingBox(), 64);
+        assertNull(cache.getFeatureSource(info, source, null, map));
+        runTasks();
+        assertEquals(0, cache.getReadyCount());
+        assertEquals(0, cache.getSize());
+
+        // not built again
+        assertNull(cache.getFeatureSource(info, source, null, map));
+        assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        FeatureTypeInfo info = getCatalog().getFeatureTypeByName(getLayerId(MockData.STREAMS));
+        SimpleFeatureSource source = (SimpleFeatureSource) info.getFeatureSource(null, null);
+        // two zoom bands
+        WMSMapContent map1 = map(info.getNativeBoundingBox(), 64);
+        WMSMapContent map2 = map(info.getNativeBoundingBox(), 32);
+        cache.getFeatureSource(info, source, null, map1);
+        runTasks();
+        long size1 = cache.getSize();
+        cache.getFeatureSource(info, source, null, map2);
+        runTasks();
+        long size2 = cache.getSize() - size1;
+        assertEquals(2, cache.getReadyCount());
+
+        // room for either one, but not both
+        cache.onDispose();
+        cache = createCache(Math.max(size1, size2) + Math.min(size1, size2) / 2);
+        cache.getFeatureSource(info, source, null, map1);
+        runTasks();
+        cache.getFeatureSource(info, source, null, map2);
+        runTasks();
+        assertEquals(1, cache.getReadyCount());
+        assertNotNull(cache.getFeatureSource(info, source, null, map2));
+        // the least recently used got dropped
+        assertNull(cache.getFeatureSource(info, source, null, map1));
+        assertEquals(1, tasks.size());
+    }
+}
@@ -0,0 +1,111 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+
+import org.geoserver.wms.map.PaletteCache.InverseColorLookup;
+import org.geotools.image.palette.ColorIndexer;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PaletteCacheTest {
+
+    private PaletteCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new PaletteCache(2);
+    }
+
+    @Test
+    public void testReuse() {
+        ColorIndexer first = cache.getColorIndexer(drawMap(Color.RED, Color.BLUE, 0), "key");
+        assertFalse(first instanceof InverseColorLookup);
+
+        // same colors, slightly different geometry, palette reused
+        ColorIndexer second = cache.getColorIndexer(drawMap(Color.RED, Color.BLUE, 20), "key");
+        assertTrue(second instanceof InverseColorLookup);
+        assertSame(second, cache.getColorIndexer(drawMap(Color.RED, Color.BLUE, 40), "key"));
+
+        // other key, other palette
+        ColorIndexer other = cache.getColorIndexer(drawMap(Color.RED, Color.BLUE, 0), "other");
+        assertFalse(other instanceof InverseColorLookup);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testDrift() {
+        cache.getColorIndexer(drawMap(Color.RED, Color.BLUE, 0), "key");
+        ColorIndexer cached = cache.getColorIndexer(drawMap(Color.RED, Color.BLUE, 0), "key");
+        assertTrue(cached instanceof InverseColorLookup);
+
+        // colors the cached palette does not have, rebuilt
+        ColorIndexer rebuilt = cache.getColorIndexer(drawMap(Color.GREEN, Color.YELLOW, 0),
+                "key");
+        assertFalse(rebuilt instanceof InverseColorLookup);
+        ColorIndexer updated = cache.getColorIndexer(drawMap(Color.GREEN, Color.YELLOW, 0),
+                "key");
+        assertTrue(updated instanceof InverseColorLookup);
+        assertNotSame(cached, updated);
+    }
+
+    @Test
+    public void testBounded() {
+        cache.getColorIndexer(drawMap(Color.RED, Color.BLUE, 0), "k1");
+        cache.getColorIndexer(drawMap(Color.RED, Color.BLUE, 0), "k2");
+        cache.getColorIndexer(drawMap(Color.RED, Color.BLUE, 0), "k3");
+        assertEquals(2, cache.size());
+        // the eldest one has been evicted
+        assertFalse(cache.getColorIndexer(drawMap(Color.RED, Color.BLUE, 0), "k1") instanceof
+                InverseColorLookup);
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testInverseLookup() {
+        ColorIndexer indexer = cache.getColorIndexer(drawMap(Color.RED, Color.BLUE, 0), "key");
+        InverseColorLookup lookup = new InverseColorLookup(indexer);
+        IndexColorModel palette = lookup.toIndexColorModel();
+        assertSame(indexer.toIndexColorModel(), palette);
+        for (Color color : new Color[] { Color.RED, Color.BLUE, new Color(0, 0, 0, 0) }) {
+            int index = lookup.getClosestIndex(color.getRed(), color.getGreen(),
+                    color.getBlue(), color.getAlpha());
+            assertEquals(color.getAlpha(), palette.getAlpha(index));
+            if (color.getAlpha() > 0) {
+                assertEquals(color.getRGB(), palette.getRGB(index));
+            }
+            // looked up again from the table
+            assertEquals(index, lookup.getClosestIndex(color.getRed(), color.getGreen(),
+                    color.getBlue(), color.getAlpha()));
+        }
+    }
+
+    /**
+     * A transparent map with two colored shapes
+     */
+    private BufferedImage drawMap(Color c1, Color c2, int offset) {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_4BYTE_ABGR);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(c1);
+        graphics.fillRect(10 + offset, 10, 100, 100);
+        graphics.setColor(c2);
+        graphics.fillOval(100, 80 + offset, 120, 120);
+        graphics.dispose();
+        return image;
+    }
+}
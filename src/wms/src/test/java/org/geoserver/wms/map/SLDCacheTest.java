@@ -0,0 +1,267 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.geoserver.util.NoExternalEntityResolver;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.styling.NamedLayer;
+import org.geotools.styling.StyleFactory;
+import org.geotools.styling.StyledLayer;
+import org.geotools.styling.StyledLayerDescriptor;
+import org.junit.Test;
+import org.xml.sax.EntityResolver;
+
+public class SLDCacheTest {
+
+    StyleFactory sf = CommonFactoryFinder.getStyleFactory(null);
+
+    SLDCache cache = new SLDCache(2);
+
+    /**
+     * Counts the parsed documents, naming the layer after the document contents
+     */
+    class CountingParser implements SLDCache.SLDParser {
+        int parsed;
+
+        int validated;
+
+        EntityResolver entityResolver;
+
+        @Override
+        public StyledLayerDescriptor parse(byte[] contents, boolean validate,
+                EntityResolver entityResolver) throws IOException {
+            parsed++;
+            this.entityResolver = entityResolver;
+            if (validate) {
+                validated++;
+            }
+            NamedLayer layer = sf.createNamedLayer();
+            layer.setName(new String(contents, "UTF-8"));
+            StyledLayerDescriptor sld = sf.createStyledLayerDescriptor();
+            sld.setStyledLayers(new StyledLayer[] { layer });
+            return sld;
+        }
+    }
+
+    /**
+     * A canned HTTP response, recording the requests made
+     */
+    class FakeConnection extends HttpURLConnection {
+        int code = HTTP_OK;
+
+        Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+
+        String body;
+
+        FakeConnection(URL url) {
+            super(url);
+        }
+
+        @Override
+        public void connect() throws IOException {
+            requests.add(getRequestProperties());
+            connected = true;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return code;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return headers.get(name);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new ByteArrayInputStream(body.getBytes("UTF-8"));
+        }
+    }
+
+    List<Map<String, List<String>>> requests = new ArrayList<Map<String, List<String>>>();
+
+    FakeConnection response;
+
+    URL url;
+
+    public SLDCacheTest() throws Exception {
+        url = new URL(null, "http://localhost/styles/test.sld", new URLStreamHandler() {
+
+            @Override
+            protected URLConnection openConnection(URL u) throws IOException {
+                FakeConnection connection = new FakeConnection(u);
+                connection.code = response.code;
+                connection.headers.putAll(response.headers);
+                connection.body = response.body;
+                return connection;
+            }
+        });
+        response = new FakeConnection(url);
+        response.body = "remote";
+    }
+
+    private String getLayerName(StyledLayerDescriptor sld) {
+        return sld.getStyledLayers()[0].getName();
+    }
+
+    private String getRequestHeader(int request, String name) {
+        List<String> values = requests.get(request).get(name);
+        return values == null ? null : values.get(0);
+    }
+
+    @Test
+    public void testBody() throws Exception {
+        CountingParser parser = new CountingParser();
+        StyledLayerDescriptor first = cache.getSLD("a".getBytes("UTF-8"), "sld", null, null,
+                false, parser);
+        StyledLayerDescriptor second = cache.getSLD("a".getBytes("UTF-8"), "sld", null, null,
+                false, parser);
+        assertEquals(1, parser.parsed);
+        assertEquals("a", getLayerName(first));
+        assertEquals("a", getLayerName(second));
+        // each request gets its own copy
+        assertNotSame(first, second);
+        assertNotSame(first.getStyledLayers()[0], second.getStyledLayers()[0]);
+
+        // the format is part of the key
+        cache.getSLD("a".getBytes("UTF-8"), "css", null, null, false, parser);
+        assertEquals(2, parser.parsed);
+
+        // a document parsed without validation is validated when asked
+        cache.getSLD("a".getBytes("UTF-8"), "sld", null, null, true, parser);
+        assertEquals(3, parser.parsed);
+        assertEquals(1, parser.validated);
+        cache.getSLD("a".getBytes("UTF-8"), "sld", null, null, true, parser);
+        cache.getSLD("a".getBytes("UTF-8"), "sld", null, null, false, parser);
+        assertEquals(3, parser.parsed);
+
+        // bounded
+        cache.getSLD("b".getBytes("UTF-8"), "sld", null, null, false, parser);
+        cache.getSLD("c".getBytes("UTF-8"), "sld", null, null, false, parser);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testEntityResolver() throws Exception {
+        CountingParser parser = new CountingParser();
+        EntityResolver resolver = new NoExternalEntityResolver();
+        cache.getSLD("a".getBytes("UTF-8"), "sld", null, resolver, false, parser);
+        cache.getSLD("a".getBytes("UTF-8"), "sld", null, resolver, false, parser);
+        assertEquals(1, parser.parsed);
+        assertSame(resolver, parser.entityResolver);
+
+        // parsed again once external entities are allowed
+        cache.getSLD("a".getBytes("UTF-8"), "sld", null, null, false, parser);
+        assertEquals(2, parser.parsed);
+        assertNull(parser.entityResolver);
+    }
+
+    @Test
+    public void testLifecycle() throws Exception {
+        CountingParser parser = new CountingParser();
+        cache.getSLD("a".getBytes("UTF-8"), "sld", null, null, false, parser);
+        cache.onReset();
+        assertEquals(0, cache.size());
+
+        cache.getSLD("a".getBytes("UTF-8"), "sld", null, null, false, parser);
+        cache.onReload();
+        assertEquals(0, cache.size());
+        assertEquals(2, parser.parsed);
+    }
+
+    @Test
+    public void testRemoteMaxAge() throws Exception {
+        CountingParser parser = new CountingParser();
+        response.headers.put("Cache-Control", "public, max-age=3600");
+        assertEquals("remote", getLayerName(cache.getSLD(url, "sld", null, null, false, parser)));
+        assertEquals("remote", getLayerName(cache.getSLD(url, "sld", null, null, false, parser)));
+        // fresh, not even fetched again
+        assertEquals(1, requests.size());
+        assertEquals(1, parser.parsed);
+    }
+
+    @Test
+    public void testRemoteRevalidation() throws Exception {
+        CountingParser parser = new CountingParser();
+        response.headers.put("ETag", "\"v1\"");
+        response.headers.put("Last-Modified", "Tue, 15 Nov 1994 12:45:26 GMT");
+        cache.getSLD(url, "sld", null, null, false, parser);
+        assertNull(getRequestHeader(0, "If-None-Match"));
+
+        // stale, revalidated
+        response.code = HttpURLConnection.HTTP_NOT_MODIFIED;
+        assertEquals("remote", getLayerName(cache.getSLD(url, "sld", null, null, false, parser)));
+        assertEquals(2, requests.size());
+        assertEquals("\"v1\"", getRequestHeader(1, "If-None-Match"));
+        assertEquals("Tue, 15 Nov 1994 12:45:26 GMT", getRequestHeader(1, "If-Modified-Since"));
+        assertEquals(1, parser.parsed);
+
+        // changed on the server
+        response.code = HttpURLConnection.HTTP_OK;
+        response.body = "changed";
+        assertEquals("changed", getLayerName(cache.getSLD(url, "sld", null, null, false, parser)));
+        assertEquals(2, parser.parsed);
+    }
+
+    @Test
+    public void testRemoteNoStore() throws Exception {
+        CountingParser parser = new CountingParser();
+        response.headers.put("Cache-Control", "no-store");
+        response.headers.put("ETag", "\"v1\"");
+        cache.getSLD(url, "sld", null, null, false, parser);
+        cache.getSLD(url, "sld", null, null, false, parser);
+        assertEquals(2, parser.parsed);
+        assertNull(getRequestHeader(1, "If-None-Match"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testRemoteNotCacheable() throws Exception {
+        // no validators, no expiration
+        CountingParser parser = new CountingParser();
+        cache.getSLD(url, "sld", null, null, false, parser);
+        cache.getSLD(url, "sld", null, null, false, parser);
+        assertEquals(2, parser.parsed);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testCacheControl() {
+        String cc = "private, max-age=\"60\", no-cache";
+        assertEquals("60", SLDCache.getDirective(cc, "max-age"));
+        assertEquals("", SLDCache.getDirective(cc, "no-cache"));
+        assertEquals("", SLDCache.getDirective(cc, "Private"));
+        assertNull(SLDCache.getDirective(cc, "no-store"));
+        assertNull(SLDCache.getDirective(null, "no-store"));
+    }
+}
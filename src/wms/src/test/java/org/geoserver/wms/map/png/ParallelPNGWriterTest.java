@@ -0,0 +1,197 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map.png;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.logging.Logger;
+import java.util.zip.Adler32;
+
+import javax.imageio.ImageIO;
+
+import org.geoserver.wms.WMSMapContent;
+import org.geotools.util.logging.Logging;
+import org.junit.Test;
+
+public class ParallelPNGWriterTest {
+
+    static final Logger LOGGER = Logging.getLogger(ParallelPNGWriterTest.class);
+
+    /**
+     * Small bands, so that even the test images are split in several of them
+     */
+    private ParallelPNGWriter writer = new ParallelPNGWriter(4 * 1024);
+
+    @Test
+    public void testCombineAdler32() {
+        byte[] data = new byte[100000];
+        new Random(0).nextBytes(data);
+        Adler32 whole = new Adler32();
+        whole.update(data);
+
+        Adler32 first = new Adler32();
+        first.update(data, 0, 30000);
+        Adler32 second = new Adler32();
+        second.update(data, 30000, 70000);
+        assertEquals(whole.getValue(),
+                ParallelPNGWriter.combineAdler32(first.getValue(), second.getValue(), 70000));
+    }
+
+    @Test
+    public void testRGB() throws Exception {
+        assertRoundTrip(drawMap(300, 200, BufferedImage.TYPE_3BYTE_BGR));
+    }
+
+    @Test
+    public void testRGBA() throws Exception {
+        assertRoundTrip(drawMap(300, 200, BufferedImage.TYPE_4BYTE_ABGR));
+    }
+
+    @Test
+    public void testIntRGB() throws Exception {
+        // not directly supported, converted to a component color model first
+        BufferedImage image = drawMap(300, 200, BufferedImage.TYPE_INT_ARGB);
+        assertFalse(ParallelPNGWriter.isSupported(image));
+        assertRoundTrip(image);
+    }
+
+    @Test
+    public void testGray() throws Exception {
+        assertRoundTrip(drawMap(300, 200, BufferedImage.TYPE_BYTE_GRAY));
+    }
+
+    @Test
+    public void testPaletted() throws Exception {
+        byte[] reds = new byte[] { 0, (byte) 255, 0, 0 };
+        byte[] greens = new byte[] { 0, 0, (byte) 255, 0 };
+        byte[] blues = new byte[] { 0, 0, 0, (byte) 255 };
+        byte[] alphas = new byte[] { 0, (byte) 128, (byte) 255, (byte) 255 };
+        IndexColorModel palette = new IndexColorModel(8, 4, reds, greens, blues, alphas);
+        BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_BYTE_INDEXED,
+                palette);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.RED);
+        graphics.fillRect(20, 20, 100, 100);
+        graphics.setColor(Color.BLUE);
+        graphics.fillOval(100, 50, 150, 120);
+        graphics.dispose();
+
+        assertTrue(ParallelPNGWriter.isSupported(image));
+        assertRoundTrip(image);
+    }
+
+    @Test
+    public void testSingleBand() throws Exception {
+        ParallelPNGWriter writer = new ParallelPNGWriter();
+        BufferedImage image = drawMap(64, 64, BufferedImage.TYPE_4BYTE_ABGR);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        writer.writePNG(image, bos, 0.75f);
+        assertSamePixels(image, ImageIO.read(new ByteArrayInputStream(bos.toByteArray())));
+    }
+
+    @Test
+    public void testNoCompression() throws Exception {
+        BufferedImage image = drawMap(300, 200, BufferedImage.TYPE_4BYTE_ABGR);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        writer.writePNG(image, bos, 1f);
+        assertSamePixels(image, ImageIO.read(new ByteArrayInputStream(bos.toByteArray())));
+    }
+
+    /**
+     * Compares size and encoding time with the PNGJ encoder, on a large map
+     */
+    @Test
+    public void testCompareWithPNGJ() throws Exception {
+        BufferedImage image = drawMap(2048, 2048, BufferedImage.TYPE_4BYTE_ABGR);
+        ParallelPNGWriter parallel = new ParallelPNGWriter();
+        PNGJWriter pngj = new PNGJWriter();
+        WMSMapContent mapContent = new WMSMapContent();
+
+        // warm up
+        parallel.writePNG(image, new ByteArrayOutputStream(), 0.75f);
+        pngj.writePNG(image, new ByteArrayOutputStream(), 0.75f, mapContent);
+
+        ByteArrayOutputStream parallelBytes = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+        parallel.writePNG(image, parallelBytes, 0.75f);
+        long parallelTime = System.nanoTime() - start;
+
+        ByteArrayOutputStream pngjBytes = new ByteArrayOutputStream();
+        start = System.nanoTime();
+        pngj.writePNG(image, pngjBytes, 0.75f, mapContent);
+        long pngjTime = System.nanoTime() - start;
+        mapContent.dispose();
+
+        LOGGER.info("Parallel encoder: " + parallelBytes.size() + " bytes in "
+                + parallelTime / 1000000 + "ms, PNGJ encoder: " + pngjBytes.size()
+                + " bytes in " + pngjTime / 1000000 + "ms");
+        assertSamePixels(image,
+                ImageIO.read(new ByteArrayInputStream(parallelBytes.toByteArray())));
+    }
+
+    private void assertRoundTrip(BufferedImage image) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        RenderedImage encoded = writer.writePNG(image, bos, 0.75f);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(bos.toByteArray()));
+        assertEquals(image.getColorModel().hasAlpha(), decoded.getColorModel().hasAlpha());
+        assertSamePixels(image, decoded);
+        if (encoded == image) {
+            assertEquals(image.getColorModel() instanceof IndexColorModel,
+                    decoded.getColorModel() instanceof IndexColorModel);
+        }
+    }
+
+    private void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int expectedPixel = expected.getRGB(x, y);
+                int actualPixel = actual.getRGB(x, y);
+                if ((expectedPixel >>> 24) == 0) {
+                    // fully transparent, color does not matter
+                    assertEquals("Pixel " + x + "," + y, 0, actualPixel >>> 24);
+                } else {
+                    assertEquals("Pixel " + x + "," + y, expectedPixel, actualPixel);
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws something map like, flat areas, gradients and antialiased lines
+     */
+    private BufferedImage drawMap(int width, int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+        graphics.setPaint(new GradientPaint(0, 0, new Color(0, 0, 255, 64), width, height,
+                new Color(0, 255, 0, 200)));
+        graphics.fillRect(0, 0, width / 2, height);
+        Random random = new Random(0);
+        for (int i = 0; i < 200; i++) {
+            graphics.setColor(new Color(random.nextInt(256), random.nextInt(256), random
+                    .nextInt(256), 128 + random.nextInt(128)));
+            graphics.drawLine(random.nextInt(width), random.nextInt(height),
+                    random.nextInt(width), random.nextInt(height));
+        }
+        graphics.dispose();
+        return image;
+    }
+}
@@ -0,0 +1,236 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map.tiff;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import it.geosolutions.imageioimpl.plugins.tiff.TIFFImageReaderSpi;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.geoserver.wms.map.tiff.StreamingTIFFWriter.Field;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.gce.geotiff.GeoTiffReader;
+import org.geotools.geometry.GeneralEnvelope;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.junit.Test;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+public class StreamingTIFFWriterTest {
+
+    /**
+     * Small strips, so that even the test images are split in several of them
+     */
+    private StreamingTIFFWriter writer = new StreamingTIFFWriter(4 * 1024, 2);
+
+    @Test
+    public void testRGB() throws Exception {
+        assertRoundTrip(drawMap(300, 200, BufferedImage.TYPE_3BYTE_BGR));
+    }
+
+    @Test
+    public void testRGBA() throws Exception {
+        assertRoundTrip(drawMap(300, 200, BufferedImage.TYPE_4BYTE_ABGR));
+    }
+
+    @Test
+    public void testIntRGB() throws Exception {
+        assertRoundTrip(drawMap(300, 200, BufferedImage.TYPE_INT_ARGB));
+    }
+
+    @Test
+    public void testGray() throws Exception {
+        assertRoundTrip(drawMap(300, 200, BufferedImage.TYPE_BYTE_GRAY));
+    }
+
+    @Test
+    public void testPaletted() throws Exception {
+        byte[] reds = new byte[] { 0, (byte) 255, 0, 0 };
+        byte[] greens = new byte[] { 0, 0, (byte) 255, 0 };
+        byte[] blues = new byte[] { 0, 0, 0, (byte) 255 };
+        IndexColorModel palette = new IndexColorModel(2, 4, reds, greens, blues);
+        // two bits per pixel, expanded to a byte
+        BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_BYTE_BINARY,
+                palette);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.RED);
+        graphics.fillRect(20, 20, 100, 100);
+        graphics.setColor(Color.BLUE);
+        graphics.fillOval(100, 50, 150, 120);
+        graphics.dispose();
+
+        assertTrue(StreamingTIFFWriter.isSupported(image));
+        assertEquals(8, StreamingTIFFWriter.getBitsPerSample(image));
+        assertRoundTrip(image);
+    }
+
+    @Test
+    public void testUShort() throws Exception {
+        BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_USHORT_GRAY);
+        WritableRaster raster = image.getRaster();
+        Random random = new Random(0);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                raster.setSample(x, y, 0, random.nextInt(65536));
+            }
+        }
+
+        assertEquals(16, StreamingTIFFWriter.getBitsPerSample(image));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        writer.writeTIFF(image, bos);
+        assertSameSamples(image.getRaster(), read(bos.toByteArray()).getRaster());
+    }
+
+    @Test
+    public void testNotSupported() throws Exception {
+        // 5-6-5 packed pixels, samples of different sizes
+        BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_USHORT_565_RGB);
+        assertFalse(StreamingTIFFWriter.isSupported(image));
+        assertFalse(StreamingTIFFWriter.isStreamable(image));
+
+        // supported, but too small to be worth streaming
+        image = drawMap(300, 200, BufferedImage.TYPE_4BYTE_ABGR);
+        assertTrue(StreamingTIFFWriter.isSupported(image));
+        assertFalse(StreamingTIFFWriter.isStreamable(image));
+    }
+
+    @Test
+    public void testGeoTIFF() throws Exception {
+        BufferedImage image = drawMap(300, 200, BufferedImage.TYPE_3BYTE_BGR);
+        CoordinateReferenceSystem crs = CRS.decode("EPSG:4326", true);
+        ReferencedEnvelope envelope = new ReferencedEnvelope(-30, 30, -20, 20, crs);
+        List<Field> fields = StreamingTIFFWriter.getGeoTIFFFields(envelope, 300, 200);
+        assertNotNull(fields);
+
+        File file = File.createTempFile("streaming", ".tif");
+        try {
+            OutputStream os = new FileOutputStream(file);
+            try {
+                writer.writeGeoTIFF(image, fields, os);
+            } finally {
+                os.close();
+            }
+
+            GeoTiffReader reader = new GeoTiffReader(file);
+            GridCoverage2D coverage = reader.read(null);
+            try {
+                assertTrue(CRS.equalsIgnoreMetadata(crs, coverage.getCoordinateReferenceSystem()));
+                GeneralEnvelope read = (GeneralEnvelope) coverage.getEnvelope();
+                assertTrue(read.equals(new GeneralEnvelope(envelope), 1e-6, false));
+                assertSamePixels(image, read(Files.readAllBytes(file.toPath())));
+            } finally {
+                coverage.dispose(true);
+                reader.dispose();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testGeoTIFFNorthEast() throws Exception {
+        // the raster to model transformation would need flipping, left to the GeoTiffWriter
+        ReferencedEnvelope envelope = new ReferencedEnvelope(-20, 20, -30, 30,
+                CRS.decode("EPSG:4326"));
+        assertNull(StreamingTIFFWriter.getGeoTIFFFields(envelope, 300, 200));
+    }
+
+    private void assertRoundTrip(BufferedImage image) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        writer.writeTIFF(image, bos);
+        BufferedImage decoded = read(bos.toByteArray());
+        assertEquals(image.getColorModel().hasAlpha(), decoded.getColorModel().hasAlpha());
+        assertEquals(image.getColorModel() instanceof IndexColorModel,
+                decoded.getColorModel() instanceof IndexColorModel);
+        assertSamePixels(image, decoded);
+    }
+
+    private BufferedImage read(byte[] bytes) throws Exception {
+        ImageReader reader = new TIFFImageReaderSpi().createReaderInstance();
+        ImageInputStream iis = new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes));
+        try {
+            reader.setInput(iis);
+            return reader.read(0);
+        } finally {
+            reader.dispose();
+            iis.close();
+        }
+    }
+
+    private void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals("Pixel " + x + "," + y, expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+    private void assertSameSamples(Raster expected, Raster actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertEquals(expected.getNumBands(), actual.getNumBands());
+        assertTrue(actual.getSampleModel() instanceof ComponentSampleModel);
+        assertEquals(DataBuffer.TYPE_USHORT, actual.getSampleModel().getDataType());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                for (int b = 0; b < expected.getNumBands(); b++) {
+                    assertEquals("Sample " + x + "," + y + "," + b,
+                            expected.getSample(x, y, b), actual.getSample(x, y, b));
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws something map like, flat areas, gradients and antialiased lines
+     */
+    private BufferedImage drawMap(int width, int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+        graphics.setPaint(new GradientPaint(0, 0, new Color(0, 0, 255, 64), width, height,
+                new Color(0, 255, 0, 200)));
+        graphics.fillRect(0, 0, width / 2, height);
+        Random random = new Random(0);
+        for (int i = 0; i < 200; i++) {
+            graphics.setColor(new Color(random.nextInt(256), random.nextInt(256), random
+                    .nextInt(256), 128 + random.nextInt(128)));
+            graphics.drawLine(random.nextInt(width), random.nextInt(height),
+                    random.nextInt(width), random.nextInt(height));
+        }
+        graphics.dispose();
+        return image;
+    }
+}
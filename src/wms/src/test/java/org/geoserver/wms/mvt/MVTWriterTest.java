@@ -0,0 +1,224 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.mvt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
+
+public class MVTWriterTest {
+
+    private ByteArrayOutputStream out;
+
+    private MVTWriter writer;
+
+    @Before
+    public void setUp() {
+        out = new ByteArrayOutputStream();
+        writer = new MVTWriter(out, MVT.DEFAULT_EXTENT);
+    }
+
+    private Geometry geometry(String wkt) throws Exception {
+        return new WKTReader().read(wkt);
+    }
+
+    @Test
+    public void testPoint() throws Exception {
+        Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+        attributes.put("name", "a");
+        attributes.put("count", 3);
+        attributes.put("missing", null);
+
+        writer.startLayer("points");
+        assertTrue(writer.addFeature(1l, geometry("POINT(10 20)"), attributes));
+        attributes.put("name", "b");
+        assertTrue(writer.addFeature(2l, geometry("POINT(11 20)"), attributes));
+        writer.flush();
+
+        List<Field> tile = decode(out.toByteArray());
+        assertEquals(1, tile.size());
+        assertEquals(MVTWriter.TILE_LAYERS, tile.get(0).number);
+
+        List<Field> layer = decode(tile.get(0).bytes);
+        assertEquals(2, get(layer, MVTWriter.LAYER_VERSION).get(0).value);
+        assertEquals("points", get(layer, MVTWriter.LAYER_NAME).get(0).string());
+        assertEquals(4096, get(layer, MVTWriter.LAYER_EXTENT).get(0).value);
+        List<Field> keys = get(layer, MVTWriter.LAYER_KEYS);
+        assertEquals(2, keys.size());
+        assertEquals("name", keys.get(0).string());
+        assertEquals("count", keys.get(1).string());
+        // "a", 3 and "b", the count is shared
+        assertEquals(3, get(layer, MVTWriter.LAYER_VALUES).size());
+
+        List<Field> features = get(layer, MVTWriter.LAYER_FEATURES);
+        assertEquals(2, features.size());
+        List<Field> feature = decode(features.get(0).bytes);
+        assertEquals(1, get(feature, MVTWriter.FEATURE_ID).get(0).value);
+        assertEquals(MVTWriter.POINT, get(feature, MVTWriter.FEATURE_TYPE).get(0).value);
+        assertArrayEquals(new long[] { 0, 0, 1, 1 },
+                varints(get(feature, MVTWriter.FEATURE_TAGS).get(0).bytes));
+        assertArrayEquals(new long[] { 9, 20, 40 },
+                varints(get(feature, MVTWriter.FEATURE_GEOMETRY).get(0).bytes));
+
+        feature = decode(features.get(1).bytes);
+        assertArrayEquals(new long[] { 0, 2, 1, 1 },
+                varints(get(feature, MVTWriter.FEATURE_TAGS).get(0).bytes));
+    }
+
+    @Test
+    public void testPolygonOrientation() throws Exception {
+        writer.startLayer("polygons");
+        writer.addFeature(null, geometry("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0))"), null);
+        writer.addFeature(null, geometry("POLYGON((0 0, 0 10, 10 10, 10 0, 0 0))"), null);
+        writer.flush();
+
+        List<Field> layer = decode(decode(out.toByteArray()).get(0).bytes);
+        List<Field> features = get(layer, MVTWriter.LAYER_FEATURES);
+        assertEquals(2, features.size());
+
+        List<Field> feature = decode(features.get(0).bytes);
+        assertTrue(get(feature, MVTWriter.FEATURE_ID).isEmpty());
+        assertEquals(MVTWriter.POLYGON, get(feature, MVTWriter.FEATURE_TYPE).get(0).value);
+        assertArrayEquals(new long[] { 9, 0, 0, 26, 20, 0, 0, 20, 19, 0, 15 },
+                varints(get(feature, MVTWriter.FEATURE_GEOMETRY).get(0).bytes));
+
+        // the counter clockwise shell is reversed
+        feature = decode(features.get(1).bytes);
+        assertArrayEquals(new long[] { 9, 20, 0, 26, 0, 20, 19, 0, 0, 19, 15 },
+                varints(get(feature, MVTWriter.FEATURE_GEOMETRY).get(0).bytes));
+    }
+
+    @Test
+    public void testLine() throws Exception {
+        writer.startLayer("lines");
+        writer.addFeature(null, geometry("LINESTRING(1 1, 1.2 1.2, 3 1)"), null);
+        writer.flush();
+
+        List<Field> layer = decode(decode(out.toByteArray()).get(0).bytes);
+        List<Field> feature = decode(get(layer, MVTWriter.LAYER_FEATURES).get(0).bytes);
+        assertEquals(MVTWriter.LINESTRING, get(feature, MVTWriter.FEATURE_TYPE).get(0).value);
+        // the repeated point is dropped once quantised
+        assertArrayEquals(new long[] { 9, 2, 2, 10, 4, 0 },
+                varints(get(feature, MVTWriter.FEATURE_GEOMETRY).get(0).bytes));
+    }
+
+    @Test
+    public void testCollapsedGeometries() throws Exception {
+        writer.startLayer("collapsed");
+        assertFalse(writer.addFeature(null, geometry("LINESTRING(0.1 0.1, 0.2 0.2)"), null));
+        assertFalse(writer.addFeature(null,
+                geometry("POLYGON((0 0, 0.2 0, 0.2 0.2, 0 0.2, 0 0))"), null));
+        assertFalse(writer.addFeature(null, geometry("POLYGON((0 0, 5 0, 10 0, 0 0))"), null));
+        writer.flush();
+
+        // empty layers are not written
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    public void testNormalize() {
+        assertEquals(3l, MVTWriter.normalize(3));
+        assertEquals(3l, MVTWriter.normalize((short) 3));
+        assertEquals(1.5, MVTWriter.normalize(new BigDecimal("1.5")));
+        assertEquals(1.5f, MVTWriter.normalize(1.5f));
+        assertEquals(Boolean.TRUE, MVTWriter.normalize(true));
+        assertEquals("a", MVTWriter.normalize(new StringBuilder("a")));
+        assertNull(MVTWriter.normalize(null));
+    }
+
+    static class Field {
+        int number;
+
+        long value;
+
+        byte[] bytes;
+
+        String string() throws Exception {
+            return new String(bytes, "UTF-8");
+        }
+    }
+
+    private static List<Field> get(List<Field> fields, int number) {
+        List<Field> result = new ArrayList<Field>();
+        for (Field field : fields) {
+            if (field.number == number) {
+                result.add(field);
+            }
+        }
+        return result;
+    }
+
+    private static List<Field> decode(byte[] bytes) {
+        List<Field> fields = new ArrayList<Field>();
+        int[] pos = { 0 };
+        while (pos[0] < bytes.length) {
+            long key = readVarint(bytes, pos);
+            Field field = new Field();
+            field.number = (int) (key >>> 3);
+            switch ((int) (key & 0x7)) {
+            case MVTWriter.VARINT:
+                field.value = readVarint(bytes, pos);
+                break;
+            case MVTWriter.LENGTH_DELIMITED:
+                int length = (int) readVarint(bytes, pos);
+                field.bytes = new byte[length];
+                System.arraycopy(bytes, pos[0], field.bytes, 0, length);
+                pos[0] += length;
+                break;
+            case MVTWriter.FIXED32:
+                pos[0] += 4;
+                break;
+            case MVTWriter.FIXED64:
+                pos[0] += 8;
+                break;
+            default:
+                throw new IllegalStateException("Unexpected wire type in " + key);
+            }
+            fields.add(field);
+        }
+        return fields;
+    }
+
+    private static long[] varints(byte[] bytes) {
+        List<Long> values = new ArrayList<Long>();
+        int[] pos = { 0 };
+        while (pos[0] < bytes.length) {
+            values.add(readVarint(bytes, pos));
+        }
+        long[] result = new long[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+
+    private static long readVarint(byte[] bytes, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes[pos[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}